@@ -3,40 +3,244 @@ package no.clueless.guestbook;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.javalin.Javalin;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import no.clueless.guestbook.persistence.GuestbookRepository;
 import no.clueless.guestbook.persistence.SqliteGuestbookRepository;
+import no.clueless.guestbook.web.AltchaChallengePool;
 import no.clueless.guestbook.web.AltchaController;
+import no.clueless.guestbook.web.AltchaDifficulty;
+import no.clueless.guestbook.web.AltchaReplayCache;
+import no.clueless.guestbook.web.Book;
+import no.clueless.guestbook.web.Bookshelf;
+import no.clueless.guestbook.web.ConcurrencyLimiter;
+import no.clueless.guestbook.web.ConcurrencyLimiters;
+import no.clueless.guestbook.web.EntryStream;
+import no.clueless.guestbook.web.ExportController;
 import no.clueless.guestbook.web.GuestbookController;
 import no.clueless.guestbook.web.JavalinServer;
+import no.clueless.guestbook.web.MetricsServer;
+import no.clueless.guestbook.web.ModerationController;
+import no.clueless.guestbook.web.RateLimiters;
+import no.clueless.guestbook.web.SnapshotPublisher;
+import no.clueless.guestbook.web.TokenBucketRateLimiter;
 
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
 import java.util.concurrent.SubmissionPublisher;
+import java.util.function.IntSupplier;
+
+public class Application implements AutoCloseable {
+    private final Javalin  javalin;
+    private final Runnable shutdown;
+
+    private Application(Javalin javalin, Runnable shutdown) {
+        this.javalin  = javalin;
+        this.shutdown = shutdown;
+    }
 
-public class Application {
     public static void main(String[] args) {
-        final var serverPort                         = Optional.ofNullable(System.getenv("SERVER_PORT")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(8080);
-        final var connectionString                   = Optional.ofNullable(System.getenv("CONNECTION_STRING")).filter(property -> !property.isBlank()).orElse("jdbc:sqlite:guestbook.db");
-        final var defaultPageSize                    = Optional.ofNullable(System.getenv("DEFAULT_PAGE_SIZE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(10);
-        final var altchaHmacKey                      = Optional.ofNullable(System.getenv("ALTCHA_HMAC_KEY")).filter(property -> !property.isBlank()).orElseThrow(() -> new IllegalStateException("ALTCHA_HMAC_KEY must be set"));
-        final var senderEmailAddress                 = Optional.ofNullable(System.getenv("SENDER_EMAIL_ADDRESS")).filter(property -> !property.isBlank()).orElseThrow(() -> new IllegalStateException("SENDER_EMAIL_ADDRESS must be set"));
-        final var recipientEmailAddress              = Optional.ofNullable(System.getenv("RECIPIENT_EMAIL_ADDRESS")).filter(property -> !property.isBlank()).orElseThrow(() -> new IllegalStateException("RECIPIENT_EMAIL_ADDRESS must be set"));
-        final var allowedOrigin                      = Optional.ofNullable(System.getenv("ALLOWED_ORIGIN")).filter(property -> !property.isBlank()).map(property -> new HashSet<>(Arrays.asList(property.split(",")))).orElseThrow(() -> new IllegalStateException("ALLOWED_ORIGIN must be set"));
-        final var allowedReferrers                   = Optional.ofNullable(System.getenv("ALLOWED_REFERRERS")).filter(property -> !property.isBlank()).map(property -> new HashSet<>(Arrays.asList(property.split(",")))).orElseThrow(() -> new IllegalStateException("ALLOWED_REFERRERS must be set"));
-        final var maximumSubmissionsPerUserPerMinute = Optional.ofNullable(System.getenv("MAXIMUM_SUBMISSIONS_PER_USER_PER_MINUTE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElseThrow(() -> new IllegalStateException("MAXIMUM_SUBMISSIONS_PER_USER_PER_MINUTE must be set"));
-        final var jsonMapper = new ObjectMapper()
-                .registerModule(new JavaTimeModule())
-                .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        var application = start(System.getenv());
+        Runtime.getRuntime().addShutdownHook(new Thread(application::close, "guestbook-shutdown"));
+    }
 
-        var entrySubmissionPublisher = new SubmissionPublisher<Entry>();
-        var guestbookRepository      = new SqliteGuestbookRepository(connectionString);
-        var guestbook                = new Guestbook(guestbookRepository, entrySubmissionPublisher);
-        var guestbookController      = new GuestbookController(guestbook, jsonMapper, defaultPageSize, altchaHmacKey, maximumSubmissionsPerUserPerMinute);
-        var altchaController         = new AltchaController(altchaHmacKey);
-        var javalinServer            = new JavalinServer(altchaController, guestbookController, allowedOrigin, allowedReferrers, jsonMapper);
+    /**
+     * Wire up and start the guestbook.
+     *
+     * @param environment The configuration, with the same variables as the process environment.
+     * @return The running application.
+     */
+    public static Application start(Map<String, String> environment) {
+        final var serverPort                         = Optional.ofNullable(environment.get("SERVER_PORT")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(8080);
+        final var connectionString                   = Optional.ofNullable(environment.get("CONNECTION_STRING")).filter(property -> !property.isBlank()).orElse("jdbc:sqlite:guestbook.db");
+        final var readerPoolSize                     = Optional.ofNullable(environment.get("DATABASE_READER_POOL_SIZE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(SqliteGuestbookRepository.DEFAULT_READER_POOL_SIZE);
+        final var writeBatchSize                     = Optional.ofNullable(environment.get("DATABASE_WRITE_BATCH_SIZE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(SqliteGuestbookRepository.DEFAULT_MAXIMUM_BATCH_SIZE);
+        final var writeBatchDelay                    = Optional.ofNullable(environment.get("DATABASE_WRITE_BATCH_DELAY_MILLIS")).filter(property -> !property.isBlank()).map(Long::parseLong).map(Duration::ofMillis).orElse(SqliteGuestbookRepository.DEFAULT_MAXIMUM_BATCH_DELAY);
+        final var entryCacheMaximumSize              = Optional.ofNullable(environment.get("ENTRY_CACHE_MAXIMUM_SIZE")).filter(property -> !property.isBlank()).map(Long::parseLong).orElse(1000L);
+        final var entryCachePollInterval             = Optional.ofNullable(environment.get("ENTRY_CACHE_POLL_INTERVAL_MILLIS")).filter(property -> !property.isBlank()).map(Long::parseLong).map(Duration::ofMillis).orElse(Duration.ofSeconds(1));
+        final var defaultPageSize                    = Optional.ofNullable(environment.get("DEFAULT_PAGE_SIZE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(10);
+        final var maximumNameLength                  = Optional.ofNullable(environment.get("MAXIMUM_NAME_LENGTH")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(Sanitizer.DEFAULT_MAXIMUM_NAME_LENGTH);
+        final var maximumMessageLength               = Optional.ofNullable(environment.get("MAXIMUM_MESSAGE_LENGTH")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(Sanitizer.DEFAULT_MAXIMUM_MESSAGE_LENGTH);
+        final var duplicateWindow                    = Optional.ofNullable(environment.get("DUPLICATE_WINDOW_SECONDS")).filter(property -> !property.isBlank()).map(Long::parseLong).map(Duration::ofSeconds).orElse(DuplicateDetector.DEFAULT_WINDOW);
+        final var duplicateMaximumDistance           = Optional.ofNullable(environment.get("DUPLICATE_MAXIMUM_DISTANCE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(DuplicateDetector.DEFAULT_MAXIMUM_DISTANCE);
+        final var duplicateIndexCapacity             = Optional.ofNullable(environment.get("DUPLICATE_INDEX_CAPACITY")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(DuplicateDetector.DEFAULT_CAPACITY);
+        final var altchaHmacKey                      = Optional.ofNullable(environment.get("ALTCHA_HMAC_KEY")).filter(property -> !property.isBlank()).orElseThrow(() -> new IllegalStateException("ALTCHA_HMAC_KEY must be set"));
+        final var altchaChallengePoolSize            = Optional.ofNullable(environment.get("ALTCHA_CHALLENGE_POOL_SIZE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(256);
+        final var altchaMaximumReplayEntries         = Optional.ofNullable(environment.get("ALTCHA_MAXIMUM_REPLAY_ENTRIES")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(100_000);
+        final var altchaMinimumMaxNumber             = Optional.ofNullable(environment.get("ALTCHA_MINIMUM_MAX_NUMBER")).filter(property -> !property.isBlank()).map(Long::parseLong).orElse(AltchaChallengePool.DEFAULT_MAX_NUMBER);
+        final var altchaMaximumMaxNumber             = Optional.ofNullable(environment.get("ALTCHA_MAXIMUM_MAX_NUMBER")).filter(property -> !property.isBlank()).map(Long::parseLong).orElse(Math.max(altchaMinimumMaxNumber, AltchaDifficulty.DEFAULT_MAXIMUM_MAX_NUMBER));
+        final var altchaTargetSubmissions            = Optional.ofNullable(environment.get("ALTCHA_TARGET_SUBMISSIONS_PER_MINUTE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(AltchaDifficulty.DEFAULT_TARGET_SUBMISSIONS_PER_MINUTE);
+        final var altchaTargetFailedVerifications    = Optional.ofNullable(environment.get("ALTCHA_TARGET_FAILED_VERIFICATIONS_PER_MINUTE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(AltchaDifficulty.DEFAULT_TARGET_FAILED_VERIFICATIONS_PER_MINUTE);
+        final var altchaClientBuckets                = Optional.ofNullable(environment.get("ALTCHA_CLIENT_BUCKETS")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(0);
+        final var altchaTargetBucketSubmissions      = Optional.ofNullable(environment.get("ALTCHA_TARGET_SUBMISSIONS_PER_CLIENT_BUCKET_PER_MINUTE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(AltchaDifficulty.DEFAULT_TARGET_SUBMISSIONS_PER_CLIENT_BUCKET_PER_MINUTE);
+        final var senderEmailAddress                 = Optional.ofNullable(environment.get("SENDER_EMAIL_ADDRESS")).filter(property -> !property.isBlank()).orElseThrow(() -> new IllegalStateException("SENDER_EMAIL_ADDRESS must be set"));
+        final var recipientEmailAddress              = Optional.ofNullable(environment.get("RECIPIENT_EMAIL_ADDRESS")).filter(property -> !property.isBlank()).orElseThrow(() -> new IllegalStateException("RECIPIENT_EMAIL_ADDRESS must be set"));
+        final var resendApiKey                       = environment.get("RESEND_API_KEY");
+        final var resendEndpoint                     = Optional.ofNullable(environment.get("RESEND_ENDPOINT")).filter(property -> !property.isBlank()).map(URI::create).orElse(URI.create("https://api.resend.com/emails"));
+        final var notificationDigestWindow           = Optional.ofNullable(environment.get("NOTIFICATION_DIGEST_WINDOW_SECONDS")).filter(property -> !property.isBlank()).map(Long::parseLong).map(Duration::ofSeconds).orElse(Duration.ofMinutes(1));
+        final var notificationMaximumInFlight        = Optional.ofNullable(environment.get("NOTIFICATION_MAXIMUM_IN_FLIGHT")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(4);
+        final var notificationMaximumRetries         = Optional.ofNullable(environment.get("NOTIFICATION_MAXIMUM_RETRIES")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(5);
+        final var allowedOrigin                      = Optional.ofNullable(environment.get("ALLOWED_ORIGIN")).filter(property -> !property.isBlank()).map(property -> new HashSet<>(Arrays.asList(property.split(",")))).orElseThrow(() -> new IllegalStateException("ALLOWED_ORIGIN must be set"));
+        final var allowedReferrers                   = Optional.ofNullable(environment.get("ALLOWED_REFERRERS")).filter(property -> !property.isBlank()).map(property -> new HashSet<>(Arrays.asList(property.split(",")))).orElseThrow(() -> new IllegalStateException("ALLOWED_REFERRERS must be set"));
+        final var trustedProxies                     = Optional.ofNullable(environment.get("TRUSTED_PROXIES")).filter(property -> !property.isBlank()).map(property -> new HashSet<>(Arrays.asList(property.split(",")))).orElse(new HashSet<>(Arrays.asList("127.0.0.1", "::1")));
+        final var maximumSubmissionsPerUserPerMinute = Optional.ofNullable(environment.get("MAXIMUM_SUBMISSIONS_PER_USER_PER_MINUTE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElseThrow(() -> new IllegalStateException("MAXIMUM_SUBMISSIONS_PER_USER_PER_MINUTE must be set"));
+        final var maximumReadsPerUserPerMinute       = Optional.ofNullable(environment.get("MAXIMUM_READS_PER_USER_PER_MINUTE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(120);
+        final var maximumChallengesPerUserPerMinute  = Optional.ofNullable(environment.get("MAXIMUM_CHALLENGES_PER_USER_PER_MINUTE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(30);
+        final var maximumRateLimitedClients          = Optional.ofNullable(environment.get("MAXIMUM_RATE_LIMITED_CLIENTS")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(100_000);
+        final var executionMode                      = Optional.ofNullable(environment.get("EXECUTION_MODE")).filter(property -> !property.isBlank()).map(ExecutionMode::parse).orElse(ExecutionMode.PLATFORM);
+        final var publisherBufferSize                = Optional.ofNullable(environment.get("PUBLISHER_BUFFER_SIZE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(Flow.defaultBufferSize());
+        final var streamMaximumClients               = Optional.ofNullable(environment.get("STREAM_MAXIMUM_CLIENTS")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(EntryStream.DEFAULT_MAXIMUM_CLIENTS);
+        final var streamClientBufferSize             = Optional.ofNullable(environment.get("STREAM_CLIENT_BUFFER_SIZE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(EntryStream.DEFAULT_CLIENT_BUFFER_SIZE);
+        final var adminToken                         = Optional.ofNullable(environment.get("ADMIN_TOKEN")).filter(property -> !property.isBlank());
+        final var metricsPort                        = Optional.ofNullable(environment.get("METRICS_PORT")).filter(property -> !property.isBlank()).map(Integer::parseInt);
+        final var booksDirectory                     = Optional.ofNullable(environment.get("BOOKS_DIRECTORY")).filter(property -> !property.isBlank()).map(Path::of);
+        final var maximumOpenBooks                   = Optional.ofNullable(environment.get("MAXIMUM_OPEN_BOOKS")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(Bookshelf.DEFAULT_MAXIMUM_OPEN_BOOKS);
+        final var snapshotDirectory                  = Optional.ofNullable(environment.get("SNAPSHOT_DIRECTORY")).filter(property -> !property.isBlank()).map(Path::of);
+        final var snapshotMaximumPages               = Optional.ofNullable(environment.get("SNAPSHOT_MAXIMUM_PAGES")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(SnapshotPublisher.DEFAULT_MAXIMUM_PAGES);
+        final var admissionMaximumConcurrency        = Optional.ofNullable(environment.get("ADMISSION_MAXIMUM_CONCURRENCY")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(ConcurrencyLimiter.DEFAULT_MAXIMUM_LIMIT);
+        final var admissionLatencyTarget             = Optional.ofNullable(environment.get("ADMISSION_LATENCY_TARGET_MILLIS")).filter(property -> !property.isBlank()).map(Long::parseLong).map(Duration::ofMillis).orElse(ConcurrencyLimiter.DEFAULT_LATENCY_TARGET);
+        final var admissionQueueSize                 = Optional.ofNullable(environment.get("ADMISSION_QUEUE_SIZE")).filter(property -> !property.isBlank()).map(Integer::parseInt).orElse(ConcurrencyLimiter.DEFAULT_MAXIMUM_QUEUED);
+        final var admissionMaximumWait               = Optional.ofNullable(environment.get("ADMISSION_MAXIMUM_WAIT_MILLIS")).filter(property -> !property.isBlank()).map(Long::parseLong).map(Duration::ofMillis).orElse(ConcurrencyLimiter.DEFAULT_MAXIMUM_WAIT);
+        final var jsonMapper = createJsonMapper();
+        final var metrics    = new MetricsRegistry();
 
+        // Subscribers get an executor of their own so they never compete with other users of the common pool.
+        var publisherExecutor        = executionMode == ExecutionMode.VIRTUAL ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(2);
+        var entrySubmissionPublisher = new SubmissionPublisher<Entry>(publisherExecutor, publisherBufferSize);
+        metrics.gauge("guestbook_publisher_lag", "Estimated number of created entries published but not yet consumed by the slowest subscriber.", entrySubmissionPublisher::estimateMaximumLag);
+        var guestbookRepository      = GuestbookRepository.open(connectionString, readerPoolSize, writeBatchSize, writeBatchDelay, metrics);
         guestbookRepository.initialize();
-        guestbook.subscribeToEntryCreated(new EntryCreatedSubscriber(senderEmailAddress, recipientEmailAddress, jsonMapper));
-        javalinServer.create().start(serverPort);
+
+        var approvedEntriesMonitor   = ApprovedEntriesMonitor.start(guestbookRepository::getApprovedEntriesVersion, entryCachePollInterval);
+        var entryCache               = EntryCache.create(approvedEntriesMonitor, entryCacheMaximumSize);
+        metrics.counter("guestbook_entry_cache_requests_total", "Number of entry cache lookups, by result.", () -> entryCache.statistics().pageHits(), "cache", "pages", "result", "hit");
+        metrics.counter("guestbook_entry_cache_requests_total", "Number of entry cache lookups, by result.", () -> entryCache.statistics().pageMisses(), "cache", "pages", "result", "miss");
+        metrics.counter("guestbook_entry_cache_requests_total", "Number of entry cache lookups, by result.", () -> entryCache.statistics().countHits(), "cache", "count", "result", "hit");
+        metrics.counter("guestbook_entry_cache_requests_total", "Number of entry cache lookups, by result.", () -> entryCache.statistics().countMisses(), "cache", "count", "result", "miss");
+        metrics.counter("guestbook_entry_cache_evictions_total", "Number of pages evicted from the entry cache to keep it within its maximum size.", () -> entryCache.statistics().pageEvictions());
+        var sanitizer                = new Sanitizer(maximumNameLength, maximumMessageLength);
+        // One detector for every book, so the same spam posted to several books is only let through once.
+        var duplicateDetector        = duplicateWindow.isZero() ? null : new DuplicateDetector(duplicateWindow, duplicateMaximumDistance, duplicateIndexCapacity);
+        var guestbook                = new Guestbook(guestbookRepository, entrySubmissionPublisher, entryCache, sanitizer, duplicateDetector, metrics);
+        // The write queue is only there to raise the difficulty while SQLite is falling behind; the append-log engine has none.
+        IntSupplier writeQueueDepth  = guestbookRepository instanceof SqliteGuestbookRepository sqliteGuestbookRepository ? sqliteGuestbookRepository::getWriteQueueDepth : () -> 0;
+        var altchaDifficulty         = new AltchaDifficulty(altchaMinimumMaxNumber, altchaMaximumMaxNumber, altchaTargetSubmissions, altchaTargetFailedVerifications, writeQueueDepth, writeBatchSize, altchaClientBuckets, altchaTargetBucketSubmissions);
+        metrics.gauge("guestbook_altcha_max_number", "The maxNumber of Altcha challenges handed out to clients without a difficulty of their own.", altchaDifficulty::maxNumber);
+        metrics.counter("guestbook_altcha_failed_verifications_total", "Number of submissions whose Altcha solution was rejected.", altchaDifficulty::failedVerifications);
+        var altchaChallengePool      = AltchaChallengePool.start(altchaHmacKey, altchaDifficulty::maxNumber, AltchaChallengePool.DEFAULT_CHALLENGE_LIFETIME, altchaChallengePoolSize);
+        var altchaReplayCache        = new AltchaReplayCache(AltchaChallengePool.DEFAULT_CHALLENGE_LIFETIME, altchaMaximumReplayEntries);
+        var entryStream              = EntryStream.start(approvedEntriesMonitor, guestbook, jsonMapper, streamMaximumClients, streamClientBufferSize, metrics);
+        var moderator                = new Moderator(guestbookRepository, approvedEntriesMonitor);
+        var moderationController     = adminToken.map(token -> new ModerationController(moderator, token, defaultPageSize)).orElse(null);
+        var exportController         = new ExportController(guestbookRepository, jsonMapper);
+        var guestbookController      = new GuestbookController(guestbook, jsonMapper, defaultPageSize, altchaHmacKey, altchaReplayCache, altchaDifficulty, sanitizer);
+        var altchaController         = new AltchaController(altchaChallengePool, altchaDifficulty);
+        var notificationHttpClient   = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        var notificationDispatcher   = new NotificationDispatcher(notificationHttpClient, resendEndpoint, resendApiKey, senderEmailAddress, recipientEmailAddress, jsonMapper, notificationDigestWindow, notificationMaximumInFlight, notificationMaximumRetries, Duration.ofSeconds(1), metrics);
+        guestbook.subscribeToEntryCreated(new EntryCreatedSubscriber(notificationDispatcher));
+        moderator.addListener(notificationDispatcher::discard);
+        var snapshotPublisher        = snapshotDirectory.map(directory -> SnapshotPublisher.start(approvedEntriesMonitor, guestbookController, directory, snapshotMaximumPages, metrics)).orElse(null);
+        // Every book gets metrics of its own which are never served, so books opened and closed over and over do not
+        // leave their gauges behind. The bookshelf reports how many books are open.
+        var bookshelf                = booksDirectory.map(directory -> Bookshelf.create(directory, maximumOpenBooks, (book, databaseFile) -> {
+            var bookMetrics    = new MetricsRegistry();
+            var bookRepository = GuestbookRepository.open("jdbc:sqlite:" + databaseFile, readerPoolSize, writeBatchSize, writeBatchDelay, bookMetrics);
+            try {
+                bookRepository.initialize();
+            } catch (RuntimeException e) {
+                bookRepository.close();
+                throw e;
+            }
+            var bookMonitor    = ApprovedEntriesMonitor.start(bookRepository::getApprovedEntriesVersion, entryCachePollInterval);
+            // A publisher of its own, so notifications say which book an entry is in and ids of different books never mix.
+            var bookPublisher  = new SubmissionPublisher<Entry>(publisherExecutor, publisherBufferSize);
+            var bookGuestbook  = new Guestbook(bookRepository, bookPublisher, EntryCache.create(bookMonitor, entryCacheMaximumSize), sanitizer, duplicateDetector, bookMetrics);
+            bookGuestbook.subscribeToEntryCreated(new EntryCreatedSubscriber(notificationDispatcher, book));
+            var bookStream     = EntryStream.start(bookMonitor, bookGuestbook, jsonMapper, streamMaximumClients, streamClientBufferSize, bookMetrics);
+            var bookModerator  = new Moderator(bookRepository, bookMonitor);
+            bookModerator.addListener(ids -> notificationDispatcher.discard(book, ids));
+            return new Book(
+                    new GuestbookController(bookGuestbook, jsonMapper, defaultPageSize, altchaHmacKey, altchaReplayCache, altchaDifficulty, sanitizer),
+                    bookStream,
+                    adminToken.map(token -> new ModerationController(bookModerator, token, defaultPageSize)).orElse(null),
+                    new ExportController(bookRepository, jsonMapper),
+                    () -> {
+                        bookStream.close();
+                        bookPublisher.close();
+                        bookMonitor.close();
+                        bookRepository.close();
+                    }
+            );
+        }, metrics)).orElse(null);
+        var rateLimiters             = new RateLimiters(
+                new TokenBucketRateLimiter("entries", maximumReadsPerUserPerMinute, maximumRateLimitedClients),
+                new TokenBucketRateLimiter("submissions", maximumSubmissionsPerUserPerMinute, maximumRateLimitedClients),
+                new TokenBucketRateLimiter("challenges", maximumChallengesPerUserPerMinute, maximumRateLimitedClients)
+        );
+        // Shared by every book, since they all compete for the same threads and disk.
+        var concurrencyLimiters      = ConcurrencyLimiters.prioritized(admissionMaximumConcurrency, admissionLatencyTarget, admissionQueueSize, admissionMaximumWait);
+        for (var limiter : concurrencyLimiters.all()) {
+            metrics.gauge("guestbook_admission_in_flight", "Number of requests being handled, by lane.", limiter::inFlight, "lane", limiter.name());
+            metrics.gauge("guestbook_admission_queued", "Number of requests waiting for a permit, by lane.", limiter::queued, "lane", limiter.name());
+            metrics.gauge("guestbook_admission_limit", "Number of requests let through at once, by lane.", limiter::limit, "lane", limiter.name());
+            metrics.counter("guestbook_admission_rejected_total", "Number of requests shed with 503 Service Unavailable, by lane.", limiter::rejected, "lane", limiter.name());
+        }
+        var javalinServer            = new JavalinServer(altchaController, guestbookController, entryStream, moderationController, exportController, bookshelf, allowedOrigin, allowedReferrers, trustedProxies, jsonMapper, executionMode, rateLimiters, concurrencyLimiters, metrics);
+
+        var javalin        = javalinServer.create().start(serverPort);
+        var metricsJavalin = metricsPort.map(port -> new MetricsServer(metrics).create().start(port)).orElse(null);
+
+        return new Application(javalin, () -> {
+            entryStream.close();
+            javalin.stop();
+            if (metricsJavalin != null) {
+                metricsJavalin.stop();
+            }
+            if (bookshelf != null) {
+                bookshelf.close();
+            }
+            altchaChallengePool.close();
+            entrySubmissionPublisher.close();
+            publisherExecutor.shutdown();
+            notificationDispatcher.close();
+            notificationHttpClient.close();
+            approvedEntriesMonitor.close();
+            if (snapshotPublisher != null) {
+                snapshotPublisher.close();
+            }
+            guestbookRepository.close();
+        });
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int port() {
+        return javalin.port();
+    }
+
+    /**
+     * Stop the server and release everything the application holds, flushing pending work where possible.
+     */
+    @Override
+    public void close() {
+        shutdown.run();
+    }
+
+    /**
+     * @return The JSON mapper used for requests, responses and outgoing notifications.
+     */
+    public static ObjectMapper createJsonMapper() {
+        return new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
     }
-}
\ No newline at end of file
+}
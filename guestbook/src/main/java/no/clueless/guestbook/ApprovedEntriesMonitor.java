@@ -0,0 +1,109 @@
+package no.clueless.guestbook;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Watches the version of the approved entries in the background and tells listeners when it changes. Readers only ever
+ * look at the last version seen, so finding out whether anything changed never costs a request a database round trip.
+ */
+public class ApprovedEntriesMonitor implements AutoCloseable {
+    private static final Logger                   log       = LoggerFactory.getLogger(ApprovedEntriesMonitor.class);
+    private final        LongSupplier             versionSupplier;
+    private final        List<LongConsumer>       listeners = new CopyOnWriteArrayList<>();
+    private final        ReentrantLock            pollLock  = new ReentrantLock();
+    private final        ScheduledExecutorService scheduler;
+    private volatile     long                     version;
+
+    private ApprovedEntriesMonitor(LongSupplier versionSupplier) {
+        this.versionSupplier = versionSupplier;
+        this.version         = versionSupplier.getAsLong();
+        this.scheduler       = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "approved-entries-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create a monitor and start polling the version in the background. Polling starts only once the monitor is fully
+     * constructed, so the poller never sees it half-initialized.
+     *
+     * @param versionSupplier Reads the current version of the approved entries.
+     * @param pollInterval    How often to poll the version.
+     * @return The started monitor.
+     */
+    public static ApprovedEntriesMonitor start(LongSupplier versionSupplier, Duration pollInterval) {
+        if (versionSupplier == null) {
+            throw new IllegalArgumentException("versionSupplier cannot be null");
+        }
+        if (pollInterval == null || pollInterval.isNegative() || pollInterval.isZero()) {
+            throw new IllegalArgumentException("pollInterval must be greater than 0");
+        }
+
+        var monitor = new ApprovedEntriesMonitor(versionSupplier);
+        monitor.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                monitor.refresh();
+            } catch (RuntimeException e) {
+                log.error("Failed to poll the version of the approved entries", e);
+            }
+        }, pollInterval.toMillis(), pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+        return monitor;
+    }
+
+    /**
+     * @return The last version of the approved entries seen by the monitor.
+     */
+    public long version() {
+        return version;
+    }
+
+    public void addListener(LongConsumer listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener cannot be null");
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Poll the version right away instead of waiting for the next scheduled poll, notifying listeners if it changed. Use
+     * this after changing the approved entries in-process.
+     */
+    public void refresh() {
+        pollLock.lock();
+        try {
+            var latestVersion = versionSupplier.getAsLong();
+            if (latestVersion == version) {
+                return;
+            }
+
+            log.debug("Approved entries changed from version {} to {}", version, latestVersion);
+            version = latestVersion;
+            for (var listener : listeners) {
+                try {
+                    listener.accept(latestVersion);
+                } catch (RuntimeException e) {
+                    log.error("Approved entries listener failed", e);
+                }
+            }
+        } finally {
+            pollLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
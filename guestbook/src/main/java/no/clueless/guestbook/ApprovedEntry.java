@@ -0,0 +1,11 @@
+package no.clueless.guestbook;
+
+/**
+ * An approved entry and where it falls in the order entries were approved in.
+ *
+ * @param sequence The position of the entry in the approval order. Later approvals have greater sequences, with gaps
+ *                 where entries have since been deleted.
+ * @param entry    The approved entry.
+ */
+public record ApprovedEntry(long sequence, Entry entry) {
+}
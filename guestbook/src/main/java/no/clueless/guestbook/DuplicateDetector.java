@@ -0,0 +1,240 @@
+package no.clueless.guestbook;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Recognizes new entries which are the same as, or only slightly different from, an entry submitted shortly before, so
+ * that a flood of spam can be turned away before it costs a database write and an email.
+ * <p>
+ * Every submission gets a 64 bit SimHash fingerprint. The fingerprint is built from the overlapping four-character
+ * shingles of its name and message, lower-cased and with everything but letters and digits collapsed to single spaces.
+ * Texts which share most of their shingles get fingerprints which differ in few bits. Two submissions are near-duplicates
+ * when their fingerprints differ in at most {@code maximumDistance} bits.
+ * <p>
+ * The index finds them without comparing against every recent fingerprint. The 64 bits are split into
+ * {@code maximumDistance + 1} blocks, and two fingerprints that close must agree on at least one whole block. So each
+ * block has a table of its own, and a fingerprint is looked up and stored in the set its block hashes to in every table.
+ * The higher the distance, the shorter the blocks, so the fewer and larger the sets, and the more fingerprints a lookup
+ * compares against: with the defaults, 9 tables of 64 ways.
+ * The tables are fixed-size arrays, so memory is bounded by the capacity, with the oldest fingerprint in a set giving way
+ * to a new one. Lookups and stores are plain atomic reads and writes with no locks. Racing stores to the same slot can at
+ * worst pair a fingerprint with the time of the other one, which are both recent, and copies submitted at the same
+ * moment may all be let through before the first is remembered.
+ */
+public class DuplicateDetector {
+    public static final  Duration DEFAULT_WINDOW           = Duration.ofMinutes(10);
+    public static final  int      DEFAULT_MAXIMUM_DISTANCE = 8;
+    public static final  int      DEFAULT_CAPACITY         = 8192;
+    static final         int      SHINGLE_LENGTH           = 4;
+    private static final int      MINIMUM_WAYS             = 4;
+
+    private final long            windowNanos;
+    private final int             maximumDistance;
+    private final int             blockBits;
+    private final int             setMask;
+    private final int             ways;
+    private final int             tableSize;
+    private final LongSupplier    clock;
+    private final long            origin;
+    private final AtomicLongArray fingerprints;
+    private final AtomicLongArray storedAt;
+
+    public DuplicateDetector(Duration window, int maximumDistance, int capacity) {
+        this(window, maximumDistance, capacity, System::nanoTime);
+    }
+
+    /**
+     * @param window          How long a submission is remembered for.
+     * @param maximumDistance The number of bits two fingerprints may differ in and still count as near-duplicates, from 0
+     *                        for exact copies of the normalized text up to 15.
+     * @param capacity        The number of fingerprints each table remembers, rounded up to a power of two. The index takes
+     *                        16 bytes per fingerprint per table.
+     * @param clock           The source of the current time in nanoseconds.
+     */
+    DuplicateDetector(Duration window, int maximumDistance, int capacity, LongSupplier clock) {
+        if (window == null || window.isNegative() || window.isZero()) {
+            throw new IllegalArgumentException("window must be greater than 0");
+        }
+        if (maximumDistance < 0 || maximumDistance > 15) {
+            throw new IllegalArgumentException("maximumDistance must be between 0 and 15");
+        }
+        if (capacity < MINIMUM_WAYS || capacity > 1 << 24) {
+            throw new IllegalArgumentException("capacity must be between " + MINIMUM_WAYS + " and " + (1 << 24));
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("clock cannot be null");
+        }
+
+        var tables    = maximumDistance + 1;
+        var blockBits = Long.SIZE / tables;
+        var tableSize = Integer.highestOneBit(capacity - 1) << 1;
+        // A block of b bits only has 2^b values, so with short blocks the sets get more ways instead of going unused.
+        var sets      = Math.min(tableSize / MINIMUM_WAYS, 1 << Math.min(blockBits, 30));
+
+        this.windowNanos     = window.toNanos();
+        this.maximumDistance = maximumDistance;
+        this.blockBits       = blockBits;
+        this.tableSize       = tableSize;
+        this.setMask         = sets - 1;
+        this.ways            = tableSize / sets;
+        this.clock           = clock;
+        this.origin          = clock.getAsLong();
+        this.fingerprints    = new AtomicLongArray(tables * tableSize);
+        this.storedAt        = new AtomicLongArray(tables * tableSize);
+    }
+
+    /**
+     * Check whether a near-duplicate of a submission was seen within the window. The submission is not remembered, see
+     * {@link #remember(long)}.
+     *
+     * @param fingerprint The fingerprint of the submission, from {@link #fingerprint(String, String)}.
+     * @return Whether the submission is a near-duplicate of a recent one.
+     */
+    public boolean isDuplicate(long fingerprint) {
+        var now = now();
+        for (var table = 0; table <= maximumDistance; table++) {
+            var set = table * tableSize + set(fingerprint, table) * ways;
+            for (var slot = set; slot < set + ways; slot++) {
+                // The fingerprint is read before its time, so a slot being written is either skipped or read whole.
+                var candidate = fingerprints.get(slot);
+                var time      = storedAt.get(slot);
+                if (time != 0 && now - time < windowNanos && Long.bitCount(candidate ^ fingerprint) <= maximumDistance) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remember a submission for the length of the window. Remember near-duplicates too, so a flood which drifts a little
+     * at a time keeps matching its latest variants, but remember new entries only once they are stored, so a visitor
+     * whose entry failed to be written is not turned away when trying again.
+     *
+     * @param fingerprint The fingerprint of the submission, from {@link #fingerprint(String, String)}.
+     */
+    public void remember(long fingerprint) {
+        var now = now();
+        for (var table = 0; table <= maximumDistance; table++) {
+            var set    = table * tableSize + set(fingerprint, table) * ways;
+            var target = set;
+            var oldest = Long.MAX_VALUE;
+            for (var slot = set; slot < set + ways; slot++) {
+                var candidate = fingerprints.get(slot);
+                var time      = storedAt.get(slot);
+                // An exact copy refreshes its own slot instead of pushing out another fingerprint.
+                if (candidate == fingerprint) {
+                    target = slot;
+                    break;
+                } else if (time < oldest) {
+                    target = slot;
+                    oldest = time;
+                }
+            }
+            storedAt.set(target, 0);
+            fingerprints.set(target, fingerprint);
+            storedAt.set(target, now);
+        }
+    }
+
+    /**
+     * @return The current time relative to the detector, which is never 0, since 0 marks a slot being written.
+     */
+    private long now() {
+        return clock.getAsLong() - origin + 1;
+    }
+
+    private int set(long fingerprint, int table) {
+        var shift = table * blockBits;
+        var bits  = table == maximumDistance ? Long.SIZE - shift : blockBits;
+        var block = (fingerprint >>> shift) & (bits == Long.SIZE ? -1L : (1L << bits) - 1);
+        return (int) mix(block + table) & setMask;
+    }
+
+    /**
+     * @param name    The name of the new entry.
+     * @param message The message of the new entry.
+     * @return The SimHash of the shingles of the normalized name and message.
+     */
+    public static long fingerprint(String name, String message) {
+        if (name == null) {
+            throw new IllegalArgumentException("name cannot be null");
+        }
+        if (message == null) {
+            throw new IllegalArgumentException("message cannot be null");
+        }
+
+        var text     = normalize(name + " " + message);
+        var shingles = Math.max(1, text.length - SHINGLE_LENGTH + 1);
+        // Each byte of lanes[j] counts the shingles with bit j + 8k set, flushed before a byte can overflow, so adding a
+        // shingle takes 8 operations instead of 64.
+        var counts   = new int[Long.SIZE];
+        var lanes    = new long[Byte.SIZE];
+        var pending  = 0;
+        // The last four chars fit in one long, which shifts the oldest out as the next one comes in.
+        var shingle  = 0L;
+        for (var end = 0; end < Math.max(text.length, 1); end++) {
+            if (end < text.length) {
+                shingle = shingle << Character.SIZE | text[end];
+            }
+            if (end < SHINGLE_LENGTH - 1 && end < text.length - 1) {
+                continue;
+            }
+            var hash = mix(shingle);
+            for (var lane = 0; lane < Byte.SIZE; lane++) {
+                lanes[lane] += (hash >>> lane) & 0x0101010101010101L;
+            }
+            if (++pending == 255) {
+                flush(lanes, counts);
+                pending = 0;
+            }
+        }
+        flush(lanes, counts);
+
+        var fingerprint = 0L;
+        for (var bit = 0; bit < Long.SIZE; bit++) {
+            if (counts[bit] * 2 > shingles) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return fingerprint;
+    }
+
+    private static void flush(long[] lanes, int[] counts) {
+        for (var lane = 0; lane < Byte.SIZE; lane++) {
+            for (var k = 0; k < Byte.SIZE; k++) {
+                counts[lane + Byte.SIZE * k] += (int) (lanes[lane] >>> (Byte.SIZE * k)) & 0xff;
+            }
+            lanes[lane] = 0;
+        }
+    }
+
+    private static char[] normalize(String text) {
+        var normalized = new char[text.length()];
+        var length     = 0;
+        for (var i = 0; i < text.length(); i++) {
+            var c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                normalized[length++] = Character.toLowerCase(c);
+            } else if (length > 0 && normalized[length - 1] != ' ') {
+                normalized[length++] = ' ';
+            }
+        }
+        if (length > 0 && normalized[length - 1] == ' ') {
+            length--;
+        }
+        return Arrays.copyOf(normalized, length);
+    }
+
+    /**
+     * The finalizer of SplitMix64, which spreads every input bit over every output bit.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
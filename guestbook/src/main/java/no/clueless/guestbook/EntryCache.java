@@ -0,0 +1,103 @@
+package no.clueless.guestbook;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache of pages of approved entries and of the total number of approved entries.
+ * <p>
+ * Everything cached is keyed by the version of the approved entries it was read at, as reported by an
+ * {@link ApprovedEntriesMonitor}. A cache hit is therefore a volatile read and a hash lookup with no JDBC involved, and
+ * a page read just before a change can never be served after the monitor has noticed the change. Old versions are
+ * dropped as soon as the monitor reports a new one.
+ */
+public class EntryCache {
+    private static final Logger                      log         = LoggerFactory.getLogger(EntryCache.class);
+    private final        ApprovedEntriesMonitor      monitor;
+    private final        Cache<PageKey, List<Entry>> pages;
+    private final        LongAdder                   countHits   = new LongAdder();
+    private final        LongAdder                   countMisses = new LongAdder();
+    private volatile     CachedCount                 cachedCount;
+
+    private EntryCache(ApprovedEntriesMonitor monitor, long maximumNumberOfPages) {
+        this.monitor = monitor;
+        this.pages   = Caffeine.newBuilder()
+                .maximumSize(maximumNumberOfPages)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Create a cache which is invalidated whenever the monitor reports a new version.
+     *
+     * @param monitor              The monitor whose version the cached content is keyed by.
+     * @param maximumNumberOfPages The number of pages to keep.
+     * @return The cache, already listening to the monitor.
+     */
+    public static EntryCache create(ApprovedEntriesMonitor monitor, long maximumNumberOfPages) {
+        if (monitor == null) {
+            throw new IllegalArgumentException("monitor cannot be null");
+        }
+        if (maximumNumberOfPages < 1) {
+            throw new IllegalArgumentException("maximumNumberOfPages must be greater than 0");
+        }
+
+        var entryCache = new EntryCache(monitor, maximumNumberOfPages);
+        monitor.addListener(version -> {
+            log.debug("Invalidating entry cache for version {}: {}", version, entryCache.statistics());
+            entryCache.invalidateAll();
+        });
+        return entryCache;
+    }
+
+    /**
+     * @return The version the cached content is keyed by. Changes whenever the approved entries change.
+     */
+    public long version() {
+        return monitor.version();
+    }
+
+    public List<Entry> getPage(Integer pageNumber, Integer afterId, int pageSize, String orderByColumn, String orderDirection, Supplier<List<Entry>> loader) {
+        var key = new PageKey(monitor.version(), pageNumber, afterId, pageSize, orderByColumn.toLowerCase(), orderDirection.toLowerCase());
+        return pages.get(key, ignored -> List.copyOf(loader.get()));
+    }
+
+    public long getTotalEntries(Supplier<Long> loader) {
+        var version = monitor.version();
+        var count   = cachedCount;
+        if (count != null && count.version() == version) {
+            countHits.increment();
+            return count.count();
+        }
+
+        countMisses.increment();
+        var loadedCount = loader.get();
+        cachedCount = new CachedCount(version, loadedCount);
+        return loadedCount;
+    }
+
+    public void invalidateAll() {
+        cachedCount = null;
+        pages.invalidateAll();
+    }
+
+    public Statistics statistics() {
+        var stats = pages.stats();
+        return new Statistics(stats.hitCount(), stats.missCount(), stats.evictionCount(), pages.estimatedSize(), countHits.sum(), countMisses.sum());
+    }
+
+    public record Statistics(long pageHits, long pageMisses, long pageEvictions, long cachedPages, long countHits, long countMisses) {
+    }
+
+    private record PageKey(long version, Integer pageNumber, Integer afterId, int pageSize, String orderByColumn, String orderDirection) {
+    }
+
+    private record CachedCount(long version, long count) {
+    }
+}
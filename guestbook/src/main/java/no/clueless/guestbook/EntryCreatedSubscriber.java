@@ -1,38 +1,31 @@
 package no.clueless.guestbook;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.util.Map;
 import java.util.concurrent.Flow;
 
 public class EntryCreatedSubscriber implements Flow.Subscriber<Entry> {
-    private static final Logger            log = LoggerFactory.getLogger(EntryCreatedSubscriber.class);
-    private              Flow.Subscription subscription;
-    private final        String            senderEmailAddress;
-    private final        String            recipientEmailAddress;
-    private final        ObjectMapper      jsonMapper;
+    private static final Logger                 log = LoggerFactory.getLogger(EntryCreatedSubscriber.class);
+    private              Flow.Subscription      subscription;
+    private final        NotificationDispatcher notificationDispatcher;
+    private final        String                 book;
 
-    public EntryCreatedSubscriber(String senderEmailAddress, String recipientEmailAddress, ObjectMapper jsonMapper) {
-        if (senderEmailAddress == null || senderEmailAddress.isBlank()) {
-            throw new IllegalArgumentException("senderEmailAddress cannot be null or blank");
-        }
-        if (recipientEmailAddress == null || recipientEmailAddress.isBlank()) {
-            throw new IllegalArgumentException("recipientEmailAddress cannot be null or blank");
-        }
-        if (jsonMapper == null) {
-            throw new IllegalArgumentException("jsonMapper cannot be null");
+    public EntryCreatedSubscriber(NotificationDispatcher notificationDispatcher) {
+        this(notificationDispatcher, null);
+    }
+
+    /**
+     * @param notificationDispatcher The dispatcher to notify about created entries.
+     * @param book                   The book the entries are created in, or null for the main guestbook.
+     */
+    public EntryCreatedSubscriber(NotificationDispatcher notificationDispatcher, String book) {
+        if (notificationDispatcher == null) {
+            throw new IllegalArgumentException("notificationDispatcher cannot be null");
         }
 
-        this.senderEmailAddress    = senderEmailAddress;
-        this.recipientEmailAddress = recipientEmailAddress;
-        this.jsonMapper            = jsonMapper;
+        this.notificationDispatcher = notificationDispatcher;
+        this.book                   = book;
     }
 
     @Override
@@ -43,28 +36,10 @@ public class EntryCreatedSubscriber implements Flow.Subscriber<Entry> {
 
     @Override
     public void onNext(Entry entry) {
-        try (var httpClient = HttpClient.newHttpClient()) {
-            var httpRequest = HttpRequest.newBuilder()
-                    .uri(URI.create("https://api.resend.com/emails"))
-                    .header("Authorization", "Bearer " + System.getenv("RESEND_API_KEY"))
-                    .header("Content-Type", "application/json")
-                    .method("POST", HttpRequest.BodyPublishers.ofString(jsonMapper.writeValueAsString(Map.of(
-                            "from", senderEmailAddress,
-                            "to", recipientEmailAddress,
-                            "subject", "[clueless.no guestbook] New entry pending approval",
-                            "html",
-                            String.format("<p>There's a new guestbook entry with ID %d from %s pending approval.</p>", entry.getId(), entry.getName())
-                    ))))
-                    .build();
-            var httpResponse = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
-
-            if (httpResponse.statusCode() != 200) {
-                log.error("Failed to send email notification: {}", httpResponse.body());
-            } else {
-                log.info("Sent email notification");
-            }
-        } catch (IOException | InterruptedException e) {
-            log.error("Failed to send email notification", e);
+        try {
+            notificationDispatcher.dispatch(book, entry);
+        } catch (RuntimeException e) {
+            log.error("Failed to dispatch email notification", e);
         }
 
         subscription.request(1);
@@ -0,0 +1,26 @@
+package no.clueless.guestbook;
+
+import java.time.LocalDateTime;
+
+/**
+ * Selects pending entries for bulk moderation. Every criterion which is set has to match, and at least one has to be
+ * set, so that a filter can never select every pending entry by accident.
+ *
+ * @param nameContains    Text the name has to contain, ignoring case, or null.
+ * @param messageContains Text the message has to contain, ignoring case, or null.
+ * @param createdAfter    The time, in UTC, the entry has to be created after, or null.
+ * @param createdBefore   The time, in UTC, the entry has to be created before, or null.
+ */
+public record EntryFilter(String nameContains, String messageContains, LocalDateTime createdAfter, LocalDateTime createdBefore) {
+    public EntryFilter {
+        if (nameContains != null && nameContains.isBlank()) {
+            nameContains = null;
+        }
+        if (messageContains != null && messageContains.isBlank()) {
+            messageContains = null;
+        }
+        if (nameContains == null && messageContains == null && createdAfter == null && createdBefore == null) {
+            throw new IllegalArgumentException("filter must have at least one criterion");
+        }
+    }
+}
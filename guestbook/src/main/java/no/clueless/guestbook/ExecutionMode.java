@@ -0,0 +1,26 @@
+package no.clueless.guestbook;
+
+/**
+ * How the guestbook runs blocking work such as request handlers and entry-created notifications.
+ */
+public enum ExecutionMode {
+    /**
+     * Run on pools of platform threads, which caps the number of requests being handled at the size of the pool.
+     */
+    PLATFORM,
+    /**
+     * Run every task on a virtual thread of its own, so requests blocked on I/O do not hold up any others.
+     */
+    VIRTUAL;
+
+    public static ExecutionMode parse(String value) {
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("value cannot be null or blank");
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("execution mode must be either platform or virtual", e);
+        }
+    }
+}
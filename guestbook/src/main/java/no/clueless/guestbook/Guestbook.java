@@ -1,31 +1,73 @@
 package no.clueless.guestbook;
 
-import no.clueless.guestbook.persistence.SqliteGuestbookRepository;
-import org.jsoup.Jsoup;
-import org.jsoup.safety.Safelist;
+import no.clueless.guestbook.metrics.Counter;
+import no.clueless.guestbook.metrics.Histogram;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import no.clueless.guestbook.persistence.GuestbookRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.concurrent.Flow;
 import java.util.concurrent.SubmissionPublisher;
 
 public class Guestbook {
     private static final Logger                     log = LoggerFactory.getLogger(Guestbook.class);
-    private final        SqliteGuestbookRepository  guestbookRepository;
+    private final        GuestbookRepository        guestbookRepository;
     private final        SubmissionPublisher<Entry> entryCreatedPublisher;
+    private final        EntryCache                 entryCache;
+    private final        Sanitizer                  sanitizer;
+    private final        DuplicateDetector          duplicateDetector;
+    private final        Histogram                  sanitizeTimer;
+    private final        Counter                    duplicates;
 
-    public Guestbook(SqliteGuestbookRepository guestbookRepository, SubmissionPublisher<Entry> entryCreatedPublisher) {
+    public Guestbook(GuestbookRepository guestbookRepository, SubmissionPublisher<Entry> entryCreatedPublisher) {
+        this(guestbookRepository, entryCreatedPublisher, null);
+    }
+
+    public Guestbook(GuestbookRepository guestbookRepository, SubmissionPublisher<Entry> entryCreatedPublisher, EntryCache entryCache) {
+        this(guestbookRepository, entryCreatedPublisher, entryCache, new MetricsRegistry());
+    }
+
+    public Guestbook(GuestbookRepository guestbookRepository, SubmissionPublisher<Entry> entryCreatedPublisher, EntryCache entryCache, MetricsRegistry metrics) {
+        this(guestbookRepository, entryCreatedPublisher, entryCache, new Sanitizer(), metrics);
+    }
+
+    public Guestbook(GuestbookRepository guestbookRepository, SubmissionPublisher<Entry> entryCreatedPublisher, EntryCache entryCache, Sanitizer sanitizer, MetricsRegistry metrics) {
+        this(guestbookRepository, entryCreatedPublisher, entryCache, sanitizer, null, metrics);
+    }
+
+    /**
+     * @param guestbookRepository   The repository to store entries in.
+     * @param entryCreatedPublisher The publisher to publish created entries to.
+     * @param entryCache            The cache to read approved entries through, or null to always read from the repository.
+     * @param sanitizer             The sanitizer to clean names and messages with.
+     * @param duplicateDetector     The detector to turn away near-duplicates of recent entries with, or null to accept them.
+     * @param metrics               Where to record sanitization timings and rejected duplicates.
+     */
+    public Guestbook(GuestbookRepository guestbookRepository, SubmissionPublisher<Entry> entryCreatedPublisher, EntryCache entryCache, Sanitizer sanitizer, DuplicateDetector duplicateDetector, MetricsRegistry metrics) {
         if (guestbookRepository == null) {
             throw new IllegalArgumentException("guestbookRepository cannot be null");
         }
         if (entryCreatedPublisher == null) {
             throw new IllegalArgumentException("entryCreatedPublisher cannot be null");
         }
+        if (sanitizer == null) {
+            throw new IllegalArgumentException("sanitizer cannot be null");
+        }
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics cannot be null");
+        }
 
         this.guestbookRepository   = guestbookRepository;
         this.entryCreatedPublisher = entryCreatedPublisher;
+        this.entryCache            = entryCache;
+        this.sanitizer             = sanitizer;
+        this.duplicateDetector     = duplicateDetector;
+        this.sanitizeTimer         = metrics.histogram("guestbook_sanitize_duration_seconds", "Time spent cleaning the name and message of new entries.");
+        this.duplicates            = metrics.counter("guestbook_duplicate_submissions_total", "Number of new entries turned away as near-duplicates of recent ones.");
     }
 
     public void subscribeToEntryCreated(Flow.Subscriber<Entry> subscriber) {
@@ -49,11 +91,99 @@ public class Guestbook {
             throw new IllegalArgumentException("orderDirection must be either asc or desc");
         }
 
-        return guestbookRepository.getApprovedEntries(pageNumber, pageSize, orderByColumn, orderDirection);
+        if (entryCache == null) {
+            return guestbookRepository.getApprovedEntries(pageNumber, pageSize, orderByColumn, orderDirection);
+        }
+        return entryCache.getPage(pageNumber, null, pageSize, orderByColumn, orderDirection, () -> guestbookRepository.getApprovedEntries(pageNumber, pageSize, orderByColumn, orderDirection));
+    }
+
+    /**
+     * Read a page of approved entries following the entry with the given id in the given ordering.
+     *
+     * @param afterId        The id of the last entry on the previous page, or null to read the first page.
+     * @param pageSize       The maximum number of entries to read.
+     * @param orderByColumn  The column to order by.
+     * @param orderDirection The direction to order in, either asc or desc.
+     * @return The entries on the page.
+     */
+    public List<Entry> readAfter(Integer afterId, int pageSize, String orderByColumn, String orderDirection) {
+        if (afterId != null && afterId < 1) {
+            throw new IllegalArgumentException("afterId must be greater than 0");
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
+        if (orderByColumn == null || orderByColumn.isBlank()) {
+            throw new IllegalArgumentException("orderByColumn cannot be null or blank");
+        }
+        if (orderDirection == null || !orderDirection.equalsIgnoreCase("asc") && !orderDirection.equalsIgnoreCase("desc")) {
+            throw new IllegalArgumentException("orderDirection must be either asc or desc");
+        }
+
+        if (entryCache == null) {
+            return guestbookRepository.getApprovedEntriesAfter(afterId, pageSize, orderByColumn, orderDirection);
+        }
+        return entryCache.getPage(null, afterId, pageSize, orderByColumn, orderDirection, () -> guestbookRepository.getApprovedEntriesAfter(afterId, pageSize, orderByColumn, orderDirection));
+    }
+
+    /**
+     * Read approved entries in the order they were approved in. Never cached, since it is read right after approvals.
+     *
+     * @param afterSequence The sequence of the last entry already read, or 0 to start from the first approval.
+     * @param limit         The maximum number of entries to read.
+     * @return The entries approved after the given sequence, in approval order.
+     */
+    public List<ApprovedEntry> readApprovedAfter(long afterSequence, int limit) {
+        if (afterSequence < 0) {
+            throw new IllegalArgumentException("afterSequence must be greater than or equal to 0");
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be greater than 0");
+        }
+        return guestbookRepository.getEntriesApprovedAfter(afterSequence, limit);
+    }
+
+    /**
+     * @return The sequence of the most recent approval, or 0 if there has been none.
+     */
+    public long getLastApprovalSequence() {
+        return guestbookRepository.getLastApprovalSequence();
     }
 
     public Long getTotalEntries() {
-        return guestbookRepository.getNumberOfApprovedEntries();
+        if (entryCache == null) {
+            return guestbookRepository.getNumberOfApprovedEntries();
+        }
+        return entryCache.getTotalEntries(guestbookRepository::getNumberOfApprovedEntries);
+    }
+
+    /**
+     * @return The version of the approved entries, which changes whenever they change, or {@link OptionalLong#empty()} if
+     * the guestbook reads straight from the repository and has no way of knowing.
+     */
+    public OptionalLong getVersion() {
+        return entryCache == null ? OptionalLong.empty() : OptionalLong.of(entryCache.version());
+    }
+
+    /**
+     * Search the approved entries, best matches first.
+     *
+     * @param query      The words to search for.
+     * @param pageNumber The page of results to read, starting at 0.
+     * @param pageSize   The maximum number of results to read.
+     * @return The matching entries on the page, each with a highlighted snippet, and the total number of matches.
+     */
+    public SearchResults search(String query, int pageNumber, int pageSize) {
+        if (query == null || query.isBlank()) {
+            throw new IllegalArgumentException("query cannot be null or blank");
+        }
+        if (pageNumber < 0) {
+            throw new IllegalArgumentException("pageNumber must be greater than or equal to 0");
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
+        return guestbookRepository.searchApprovedEntries(query, pageNumber, pageSize);
     }
 
     /**
@@ -61,7 +191,9 @@ public class Guestbook {
      *
      * @param name    The name of the author.
      * @param message The message from the author.
-     * @return The created entry, or {@link Optional#empty()} if cleaning the name and/or message resulted in empty strings.
+     * @return The created entry, or {@link Optional#empty()} if cleaning the name and/or message resulted in empty strings,
+     * or if the entry is a near-duplicate of a recent one.
+     * @throws IllegalArgumentException If the name or message is longer than the sanitizer allows.
      */
     public Optional<Entry> sign(String name, String message) {
         if (name == null || name.isBlank()) {
@@ -71,19 +203,33 @@ public class Guestbook {
             throw new IllegalArgumentException("message cannot be null or blank");
         }
 
-        var cleanName = Jsoup.clean(name, Safelist.none());
+        var sanitizeStart = System.nanoTime();
+        var cleanName     = sanitizer.cleanName(name);
         if (cleanName.isBlank()) {
+            sanitizeTimer.recordSince(sanitizeStart);
             log.info("Cleaning name ({}) resulted in a blank string. Entry will not be created.", name);
             return Optional.empty();
         }
 
-        var cleanMessage = Jsoup.clean(message, Safelist.none());
+        var cleanMessage = sanitizer.cleanMessage(message);
+        sanitizeTimer.recordSince(sanitizeStart);
         if (cleanMessage.isBlank()) {
             log.info("Cleaning message ({}) resulted in a blank string. Entry will not be created.", message);
             return Optional.empty();
         }
+        var fingerprint = duplicateDetector != null ? DuplicateDetector.fingerprint(cleanName, cleanMessage) : 0;
+        if (duplicateDetector != null && duplicateDetector.isDuplicate(fingerprint)) {
+            duplicateDetector.remember(fingerprint);
+            duplicates.increment();
+            log.debug("Entry from {} is a near-duplicate of a recent entry. Entry will not be created.", cleanName);
+            return Optional.empty();
+        }
 
         var createdEntry = guestbookRepository.createEntry(Entry.newEntry(cleanName, cleanMessage));
+        // Only once the entry is stored, so a failed write does not turn the visitor's retry away as a duplicate.
+        if (duplicateDetector != null) {
+            duplicateDetector.remember(fingerprint);
+        }
         entryCreatedPublisher.submit(createdEntry);
         return Optional.ofNullable(createdEntry);
     }
@@ -0,0 +1,87 @@
+package no.clueless.guestbook;
+
+import no.clueless.guestbook.persistence.GuestbookRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Approves and deletes entries in bulk. Every call is one transaction, and once it has committed the
+ * {@link ApprovedEntriesMonitor} is refreshed right away, so cached pages are invalidated and the live entry stream is
+ * fed without waiting for the next poll. Listeners are then told which entries were moderated.
+ */
+public class Moderator {
+    private static final Logger                        log       = LoggerFactory.getLogger(Moderator.class);
+    private final        GuestbookRepository           guestbookRepository;
+    private final        ApprovedEntriesMonitor        monitor;
+    private final        List<Consumer<List<Integer>>> listeners = new CopyOnWriteArrayList<>();
+
+    public Moderator(GuestbookRepository guestbookRepository, ApprovedEntriesMonitor monitor) {
+        if (guestbookRepository == null) {
+            throw new IllegalArgumentException("guestbookRepository cannot be null");
+        }
+        if (monitor == null) {
+            throw new IllegalArgumentException("monitor cannot be null");
+        }
+
+        this.guestbookRepository = guestbookRepository;
+        this.monitor             = monitor;
+    }
+
+    /**
+     * @param listener Called with the ids of the entries approved or deleted by each call which changed anything.
+     */
+    public void addListener(Consumer<List<Integer>> listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener cannot be null");
+        }
+        listeners.add(listener);
+    }
+
+    public List<Entry> getPendingEntries(Integer afterId, int pageSize) {
+        if (afterId != null && afterId < 1) {
+            throw new IllegalArgumentException("afterId must be greater than 0");
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
+        return guestbookRepository.getPendingEntries(afterId, pageSize);
+    }
+
+    public List<Integer> approve(Collection<Integer> ids) {
+        return moderated("Approved", guestbookRepository.approveEntries(ids));
+    }
+
+    public List<Integer> approve(EntryFilter filter) {
+        return moderated("Approved", guestbookRepository.approveEntries(filter));
+    }
+
+    public List<Integer> delete(Collection<Integer> ids) {
+        return moderated("Deleted", guestbookRepository.deleteEntries(ids));
+    }
+
+    public List<Integer> delete(EntryFilter filter) {
+        return moderated("Deleted", guestbookRepository.deleteEntries(filter));
+    }
+
+    private List<Integer> moderated(String action, List<Integer> ids) {
+        if (ids.isEmpty()) {
+            return ids;
+        }
+
+        log.info("{} {} entries", action, ids.size());
+        monitor.refresh();
+        for (var listener : listeners) {
+            try {
+                listener.accept(ids);
+            } catch (RuntimeException e) {
+                log.error("Moderation listener failed", e);
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,370 @@
+package no.clueless.guestbook;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.clueless.guestbook.metrics.Counter;
+import no.clueless.guestbook.metrics.Histogram;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Sends email notifications about new entries through the Resend API.
+ * <p>
+ * Entries are kept apart by the book they were written in, since ids are only unique within one book. Entries of the
+ * main guestbook have no book.
+ * <p>
+ * The first entry after a quiet period is notified about right away. Entries arriving within the digest window after
+ * that are collected and sent as one digest email when the window closes, so a burst of spam turns into a handful of
+ * emails instead of one per entry.
+ * <p>
+ * Emails are sent asynchronously over one long-lived {@link HttpClient}, with at most a fixed number of requests in
+ * flight. Failed sends are retried with exponential backoff and full jitter; client errors other than 429 are not.
+ */
+public class NotificationDispatcher implements AutoCloseable {
+    private static final Logger log              = LoggerFactory.getLogger(NotificationDispatcher.class);
+    private static final int    MAXIMUM_OUTBOX   = 1000;
+    private static final String SUBJECT          = "[clueless.no guestbook] New entry pending approval";
+    private static final String DIGEST_SUBJECT   = "[clueless.no guestbook] %d new entries pending approval";
+    private static final long   MAXIMUM_BACKOFF  = TimeUnit.MINUTES.toMillis(5);
+
+    private final HttpClient                          httpClient;
+    private final URI                                 endpoint;
+    private final String                              apiKey;
+    private final String                              senderEmailAddress;
+    private final String                              recipientEmailAddress;
+    private final ObjectMapper                        jsonMapper;
+    private final Duration                            digestWindow;
+    private final int                                 maximumInFlightRequests;
+    private final int                                 maximumRetries;
+    private final Duration                            initialBackoff;
+    private final ScheduledExecutorService            scheduler;
+    private final ReentrantLock                       digestLock   = new ReentrantLock();
+    private final List<BookEntry>                     digest       = new ArrayList<>();
+    private final ConcurrentLinkedQueue<PendingEmail> outbox       = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger                       outboxSize   = new AtomicInteger();
+    private final AtomicInteger                       inFlight     = new AtomicInteger();
+    private final Histogram                           sendTimer;
+    private final Counter                             sent;
+    private final Counter                             retried;
+    private final Counter                             failed;
+    private final Counter                             dropped;
+    private       boolean                             digestWindowOpen;
+
+    public NotificationDispatcher(
+            HttpClient httpClient,
+            URI endpoint,
+            String apiKey,
+            String senderEmailAddress,
+            String recipientEmailAddress,
+            ObjectMapper jsonMapper,
+            Duration digestWindow,
+            int maximumInFlightRequests,
+            int maximumRetries,
+            Duration initialBackoff,
+            MetricsRegistry metrics
+    ) {
+        if (httpClient == null) {
+            throw new IllegalArgumentException("httpClient cannot be null");
+        }
+        if (endpoint == null) {
+            throw new IllegalArgumentException("endpoint cannot be null");
+        }
+        if (senderEmailAddress == null || senderEmailAddress.isBlank()) {
+            throw new IllegalArgumentException("senderEmailAddress cannot be null or blank");
+        }
+        if (recipientEmailAddress == null || recipientEmailAddress.isBlank()) {
+            throw new IllegalArgumentException("recipientEmailAddress cannot be null or blank");
+        }
+        if (jsonMapper == null) {
+            throw new IllegalArgumentException("jsonMapper cannot be null");
+        }
+        if (digestWindow == null || digestWindow.isNegative()) {
+            throw new IllegalArgumentException("digestWindow cannot be null or negative");
+        }
+        if (maximumInFlightRequests < 1) {
+            throw new IllegalArgumentException("maximumInFlightRequests must be greater than 0");
+        }
+        if (maximumRetries < 0) {
+            throw new IllegalArgumentException("maximumRetries must be greater than or equal to 0");
+        }
+        if (initialBackoff == null || initialBackoff.isNegative() || initialBackoff.isZero()) {
+            throw new IllegalArgumentException("initialBackoff must be greater than 0");
+        }
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics cannot be null");
+        }
+
+        this.httpClient              = httpClient;
+        this.endpoint                = endpoint;
+        this.apiKey                  = apiKey;
+        this.senderEmailAddress      = senderEmailAddress;
+        this.recipientEmailAddress   = recipientEmailAddress;
+        this.jsonMapper              = jsonMapper;
+        this.digestWindow            = digestWindow;
+        this.maximumInFlightRequests = maximumInFlightRequests;
+        this.maximumRetries          = maximumRetries;
+        this.initialBackoff          = initialBackoff;
+        this.sendTimer               = metrics.histogram("guestbook_notification_send_duration_seconds", "Time taken by the email API to answer a notification.");
+        this.sent                    = metrics.counter("guestbook_notifications_total", "Number of email notifications, by outcome.", "outcome", "sent");
+        this.retried                 = metrics.counter("guestbook_notifications_total", "Number of email notifications, by outcome.", "outcome", "retried");
+        this.failed                  = metrics.counter("guestbook_notifications_total", "Number of email notifications, by outcome.", "outcome", "failed");
+        this.dropped                 = metrics.counter("guestbook_notifications_total", "Number of email notifications, by outcome.", "outcome", "dropped");
+        metrics.gauge("guestbook_notification_outbox_size", "Number of email notifications waiting to be sent.", outboxSize::get);
+        metrics.gauge("guestbook_notification_in_flight", "Number of email notifications being sent.", inFlight::get);
+        this.scheduler               = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "notification-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Notify about a new entry of the main guestbook, either right away or as part of the next digest. Never blocks.
+     *
+     * @param entry The new entry.
+     */
+    public void dispatch(Entry entry) {
+        dispatch(null, entry);
+    }
+
+    /**
+     * Notify about a new entry, either right away or as part of the next digest. Never blocks.
+     *
+     * @param book  The book the entry was written in, or null for the main guestbook.
+     * @param entry The new entry.
+     */
+    public void dispatch(String book, Entry entry) {
+        if (entry == null) {
+            throw new IllegalArgumentException("entry cannot be null");
+        }
+
+        var bookEntry = new BookEntry(book, entry);
+        digestLock.lock();
+        try {
+            if (digestWindowOpen) {
+                digest.add(bookEntry);
+                return;
+            }
+            digestWindowOpen = !digestWindow.isZero();
+            if (digestWindowOpen) {
+                scheduler.schedule(this::closeDigestWindow, digestWindow.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            digestLock.unlock();
+        }
+
+        enqueue(List.of(bookEntry));
+    }
+
+    /**
+     * Leave entries of the main guestbook which have already been moderated out of the next digest.
+     *
+     * @param ids The ids of the moderated entries.
+     */
+    public void discard(Collection<Integer> ids) {
+        discard(null, ids);
+    }
+
+    /**
+     * Leave entries which have already been moderated out of the next digest. Emails which are already on their way are
+     * not affected.
+     *
+     * @param book The book the entries were moderated in, or null for the main guestbook.
+     * @param ids  The ids of the moderated entries.
+     */
+    public void discard(String book, Collection<Integer> ids) {
+        if (ids == null) {
+            throw new IllegalArgumentException("ids cannot be null");
+        }
+
+        var moderatedIds = ids instanceof Set<Integer> set ? set : new HashSet<>(ids);
+        digestLock.lock();
+        try {
+            digest.removeIf(bookEntry -> Objects.equals(bookEntry.book(), book) && moderatedIds.contains(bookEntry.entry().getId()));
+        } finally {
+            digestLock.unlock();
+        }
+    }
+
+    private void closeDigestWindow() {
+        List<BookEntry> entries;
+        digestLock.lock();
+        try {
+            if (digest.isEmpty()) {
+                digestWindowOpen = false;
+                return;
+            }
+            entries = List.copyOf(digest);
+            digest.clear();
+            // Keep the window open for another round, so a burst which outlasts one window still only sends one digest per window.
+            scheduler.schedule(this::closeDigestWindow, digestWindow.toMillis(), TimeUnit.MILLISECONDS);
+        } finally {
+            digestLock.unlock();
+        }
+
+        enqueue(entries);
+    }
+
+    private void enqueue(List<BookEntry> entries) {
+        String body;
+        try {
+            body = jsonMapper.writeValueAsString(Map.of(
+                    "from", senderEmailAddress,
+                    "to", recipientEmailAddress,
+                    "subject", entries.size() == 1 ? SUBJECT : String.format(DIGEST_SUBJECT, entries.size()),
+                    "html", html(entries)
+            ));
+        } catch (JsonProcessingException e) {
+            log.error("Failed to serialize email notification about {} entries", entries.size(), e);
+            return;
+        }
+
+        if (outboxSize.incrementAndGet() > MAXIMUM_OUTBOX) {
+            outboxSize.decrementAndGet();
+            dropped.increment();
+            log.error("Dropping email notification about {} entries because the outbox is full", entries.size());
+            return;
+        }
+        outbox.add(new PendingEmail(body, entries.size(), 0));
+        pump();
+    }
+
+    private static String html(List<BookEntry> entries) {
+        if (entries.size() == 1) {
+            var bookEntry = entries.get(0);
+            return String.format("<p>There's a new guestbook entry with ID %d from %s%s pending approval.</p>", bookEntry.entry().getId(), bookEntry.entry().getName(), in(bookEntry.book()));
+        }
+        return entries.stream()
+                .map(bookEntry -> String.format("<li>ID %d from %s%s</li>", bookEntry.entry().getId(), bookEntry.entry().getName(), in(bookEntry.book())))
+                .collect(Collectors.joining("", String.format("<p>There are %d new guestbook entries pending approval:</p><ul>", entries.size()), "</ul>"));
+    }
+
+    private static String in(String book) {
+        return book == null ? "" : " in the book " + book;
+    }
+
+    /**
+     * Start sending queued emails until the maximum number of requests are in flight.
+     */
+    private void pump() {
+        while (true) {
+            var current = inFlight.get();
+            if (current >= maximumInFlightRequests) {
+                return;
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+
+            var email = outbox.poll();
+            if (email == null) {
+                inFlight.decrementAndGet();
+                // Another email may have been queued after the poll but before the decrement.
+                if (outbox.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            outboxSize.decrementAndGet();
+            send(email);
+        }
+    }
+
+    private void send(PendingEmail email) {
+        var httpRequest = HttpRequest.newBuilder()
+                .uri(endpoint)
+                .timeout(Duration.ofSeconds(30))
+                .header("Authorization", "Bearer " + apiKey)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(email.body()))
+                .build();
+
+        var sendStart = System.nanoTime();
+        httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString()).whenComplete((httpResponse, throwable) -> {
+            sendTimer.recordSince(sendStart);
+            inFlight.decrementAndGet();
+            try {
+                if (throwable != null) {
+                    retry(email, throwable.toString());
+                } else if (httpResponse.statusCode() / 100 == 2) {
+                    sent.increment();
+                    log.info("Sent email notification about {} entries", email.numberOfEntries());
+                } else if (httpResponse.statusCode() == 429 || httpResponse.statusCode() >= 500) {
+                    retry(email, httpResponse.statusCode() + " " + httpResponse.body());
+                } else {
+                    failed.increment();
+                    log.error("Failed to send email notification: {} {}", httpResponse.statusCode(), httpResponse.body());
+                }
+            } finally {
+                pump();
+            }
+        });
+    }
+
+    private void retry(PendingEmail email, String reason) {
+        if (email.attempt() >= maximumRetries) {
+            failed.increment();
+            log.error("Giving up on email notification about {} entries after {} attempts: {}", email.numberOfEntries(), email.attempt() + 1, reason);
+            return;
+        }
+
+        retried.increment();
+        var ceiling = Math.min(MAXIMUM_BACKOFF, initialBackoff.toMillis() << Math.min(email.attempt(), 20));
+        var backoff = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        log.warn("Failed to send email notification ({}), retrying in {} ms", reason, backoff);
+
+        scheduler.schedule(() -> {
+            outboxSize.incrementAndGet();
+            outbox.add(new PendingEmail(email.body(), email.numberOfEntries(), email.attempt() + 1));
+            pump();
+        }, backoff, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send any pending digest right away and stop scheduling new work.
+     */
+    @Override
+    public void close() {
+        List<BookEntry> entries;
+        digestLock.lock();
+        try {
+            entries          = List.copyOf(digest);
+            digestWindowOpen = false;
+            digest.clear();
+        } finally {
+            digestLock.unlock();
+        }
+        if (!entries.isEmpty()) {
+            enqueue(entries);
+        }
+        scheduler.shutdownNow();
+    }
+
+    private record PendingEmail(String body, int numberOfEntries, int attempt) {
+    }
+
+    private record BookEntry(String book, Entry entry) {
+    }
+}
@@ -0,0 +1,125 @@
+package no.clueless.guestbook;
+
+import org.jsoup.Jsoup;
+import org.jsoup.safety.Cleaner;
+import org.jsoup.safety.Safelist;
+
+/**
+ * Strips all markup from the names and messages of new entries, with the same output as
+ * {@code Jsoup.clean(text, Safelist.none())}.
+ * <p>
+ * Most entries are plain text which Jsoup would return unchanged, so the text is scanned first and only parsed if it has
+ * something Jsoup would remove, escape or collapse. Texts longer than the maximum length are rejected before either.
+ */
+public class Sanitizer {
+    public static final  int     DEFAULT_MAXIMUM_NAME_LENGTH    = 100;
+    public static final  int     DEFAULT_MAXIMUM_MESSAGE_LENGTH = 5000;
+    // Cleaners only read their safelist, so one can be shared by every thread.
+    private static final Cleaner CLEANER                        = new Cleaner(Safelist.none());
+    private final        int     maximumNameLength;
+    private final        int     maximumMessageLength;
+
+    public Sanitizer() {
+        this(DEFAULT_MAXIMUM_NAME_LENGTH, DEFAULT_MAXIMUM_MESSAGE_LENGTH);
+    }
+
+    public Sanitizer(int maximumNameLength, int maximumMessageLength) {
+        if (maximumNameLength < 1) {
+            throw new IllegalArgumentException("maximumNameLength must be greater than 0");
+        }
+        if (maximumMessageLength < 1) {
+            throw new IllegalArgumentException("maximumMessageLength must be greater than 0");
+        }
+
+        this.maximumNameLength    = maximumNameLength;
+        this.maximumMessageLength = maximumMessageLength;
+    }
+
+    public int maximumNameLength() {
+        return maximumNameLength;
+    }
+
+    public int maximumMessageLength() {
+        return maximumMessageLength;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the name is longer than the maximum name length.
+     */
+    public String cleanName(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name cannot be null");
+        }
+        if (name.length() > maximumNameLength) {
+            throw new IllegalArgumentException("name cannot be longer than " + maximumNameLength + " characters");
+        }
+        return clean(name);
+    }
+
+    /**
+     * @throws IllegalArgumentException If the message is longer than the maximum message length.
+     */
+    public String cleanMessage(String message) {
+        if (message == null) {
+            throw new IllegalArgumentException("message cannot be null");
+        }
+        if (message.length() > maximumMessageLength) {
+            throw new IllegalArgumentException("message cannot be longer than " + maximumMessageLength + " characters");
+        }
+        return clean(message);
+    }
+
+    static String clean(String text) {
+        if (isAlreadyClean(text)) {
+            return text;
+        }
+        return CLEANER.clean(Jsoup.parseBodyFragment(text, "")).body().html();
+    }
+
+    /**
+     * @return Whether Jsoup would return the text unchanged: it has no markup or character references, nothing Jsoup
+     * escapes ({@code >}, no-break spaces, control characters and unpaired surrogates), and no whitespace it would
+     * collapse or trim.
+     */
+    static boolean isAlreadyClean(String text) {
+        var length = text.length();
+        if (length == 0 || text.charAt(0) == ' ' || text.charAt(length - 1) == ' ') {
+            return false;
+        }
+
+        var previous = '\0';
+        for (var i = 0; i < length; i++) {
+            var c = text.charAt(i);
+            switch (c) {
+                case '<', '>', '&', '\u00A0', '\uFFFF' -> {
+                    return false;
+                }
+                case ' ' -> {
+                    if (previous == ' ') {
+                        return false;
+                    }
+                }
+                default -> {
+                    if (c < ' ') {
+                        return false;
+                    }
+                    if (Character.isHighSurrogate(c)) {
+                        if (i + 1 == length || !Character.isLowSurrogate(text.charAt(i + 1))) {
+                            return false;
+                        }
+                        // Jsoup checks whether a code point can be encoded by its lower 16 bits, so it escapes the
+                        // supplementary code points whose lower 16 bits look like a surrogate.
+                        if (Character.isSurrogate((char) Character.toCodePoint(c, text.charAt(i + 1)))) {
+                            return false;
+                        }
+                        i++;
+                    } else if (Character.isLowSurrogate(c)) {
+                        return false;
+                    }
+                }
+            }
+            previous = c;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,10 @@
+package no.clueless.guestbook;
+
+/**
+ * An entry matching a search.
+ *
+ * @param entry   The matching entry.
+ * @param snippet The part of the entry which best matches the search, with matching terms wrapped in {@code <mark>}.
+ */
+public record SearchResult(Entry entry, String snippet) {
+}
@@ -0,0 +1,12 @@
+package no.clueless.guestbook;
+
+import java.util.List;
+
+/**
+ * A page of entries matching a search.
+ *
+ * @param results      The matching entries on the page, best matches first.
+ * @param totalResults The number of entries matching the search across all pages.
+ */
+public record SearchResults(List<SearchResult> results, long totalResults) {
+}
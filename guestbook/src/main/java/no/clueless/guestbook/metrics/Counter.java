@@ -0,0 +1,30 @@
+package no.clueless.guestbook.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count. Incrementing is a {@link LongAdder} update, which neither locks nor allocates.
+ */
+public final class Counter implements Metric {
+    private final LongAdder value = new LongAdder();
+
+    Counter() {
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long value() {
+        return value.sum();
+    }
+
+    @Override
+    public void writeTo(StringBuilder out, String name, String labels) {
+        out.append(name).append(labels).append(' ').append(value.sum()).append('\n');
+    }
+}
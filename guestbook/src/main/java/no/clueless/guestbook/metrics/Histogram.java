@@ -0,0 +1,82 @@
+package no.clueless.guestbook.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with fixed buckets, exported in seconds.
+ * <p>
+ * Recording finds the bucket by scanning a small array of upper bounds and increments a {@link LongAdder}, so it
+ * neither locks nor allocates. The cumulative bucket counts Prometheus expects are only computed when scraped.
+ */
+public final class Histogram implements Metric {
+    private static final long[] BUCKET_BOUNDS_NANOS = {
+            TimeUnit.MICROSECONDS.toNanos(100),
+            TimeUnit.MICROSECONDS.toNanos(250),
+            TimeUnit.MICROSECONDS.toNanos(500),
+            TimeUnit.MILLISECONDS.toNanos(1),
+            TimeUnit.MILLISECONDS.toNanos(2) + TimeUnit.MICROSECONDS.toNanos(500),
+            TimeUnit.MILLISECONDS.toNanos(5),
+            TimeUnit.MILLISECONDS.toNanos(10),
+            TimeUnit.MILLISECONDS.toNanos(25),
+            TimeUnit.MILLISECONDS.toNanos(50),
+            TimeUnit.MILLISECONDS.toNanos(100),
+            TimeUnit.MILLISECONDS.toNanos(250),
+            TimeUnit.MILLISECONDS.toNanos(500),
+            TimeUnit.SECONDS.toNanos(1),
+            TimeUnit.MILLISECONDS.toNanos(2500),
+            TimeUnit.SECONDS.toNanos(5),
+            TimeUnit.SECONDS.toNanos(10)
+    };
+
+    private final LongAdder[] buckets  = new LongAdder[BUCKET_BOUNDS_NANOS.length + 1];
+    private final LongAdder   sumNanos = new LongAdder();
+
+    Histogram() {
+        for (var i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record the time elapsed since a start time.
+     *
+     * @param startNanos A start time from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param nanos A duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        var bucket = 0;
+        while (bucket < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sumNanos.add(nanos);
+    }
+
+    public long count() {
+        var count = 0L;
+        for (var bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public void writeTo(StringBuilder out, String name, String labels) {
+        var separator  = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+        var cumulative = 0L;
+        for (var i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            var bound = i < BUCKET_BOUNDS_NANOS.length ? Double.toString(BUCKET_BOUNDS_NANOS[i] / 1e9) : "+Inf";
+            out.append(name).append("_bucket").append(separator).append("le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(name).append("_sum").append(labels).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+    }
+}
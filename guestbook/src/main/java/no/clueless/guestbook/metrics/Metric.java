@@ -0,0 +1,9 @@
+package no.clueless.guestbook.metrics;
+
+/**
+ * A single time series, or a group of them in the case of a histogram, which can render itself in the Prometheus text
+ * exposition format.
+ */
+interface Metric {
+    void writeTo(StringBuilder out, String name, String labels);
+}
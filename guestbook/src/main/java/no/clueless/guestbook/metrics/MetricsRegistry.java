@@ -0,0 +1,116 @@
+package no.clueless.guestbook.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Keeps track of the application's metrics and renders them in the Prometheus text exposition format.
+ * <p>
+ * Metrics are registered once, up front, and the returned {@link Counter} or {@link Histogram} is kept by whoever
+ * records to it, so the hot path never looks anything up. Registering the same name and labels twice returns the same
+ * metric.
+ */
+public class MetricsRegistry {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * @param name   The name of the metric.
+     * @param help   A description of the metric.
+     * @param labels Label names and values, alternating.
+     * @return The counter.
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, Counter::new);
+    }
+
+    /**
+     * @param name   The name of the metric, which should end in {@code _seconds}.
+     * @param help   A description of the metric.
+     * @param labels Label names and values, alternating.
+     * @return The histogram.
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) register(name, help, "histogram", labels, Histogram::new);
+    }
+
+    /**
+     * @param name   The name of the metric.
+     * @param help   A description of the metric.
+     * @param value  Where to read the value from when scraped.
+     * @param labels Label names and values, alternating.
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        if (value == null) {
+            throw new IllegalArgumentException("value cannot be null");
+        }
+        register(name, help, "gauge", labels, () -> new SuppliedValue(value));
+    }
+
+    /**
+     * Register a counter which is kept elsewhere, such as by a cache's own statistics.
+     *
+     * @param name   The name of the metric, which should end in {@code _total}.
+     * @param help   A description of the metric.
+     * @param value  Where to read the value from when scraped.
+     * @param labels Label names and values, alternating.
+     */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        if (value == null) {
+            throw new IllegalArgumentException("value cannot be null");
+        }
+        register(name, help, "counter", labels, () -> new SuppliedValue(value::getAsLong));
+    }
+
+    private synchronized Metric register(String name, String help, String type, String[] labels, Supplier<Metric> factory) {
+        if (name == null || !name.matches("[a-zA-Z_:][a-zA-Z0-9_:]*")) {
+            throw new IllegalArgumentException("name must be a valid metric name");
+        }
+        if (help == null || help.isBlank()) {
+            throw new IllegalArgumentException("help cannot be null or blank");
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be pairs of names and values");
+        }
+
+        var family = families.computeIfAbsent(name, ignored -> new Family(help, type, new LinkedHashMap<>()));
+        if (!family.type().equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type());
+        }
+        return family.metrics().computeIfAbsent(renderLabels(labels), ignored -> factory.get());
+    }
+
+    private static String renderLabels(String[] labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        var rendered = new StringBuilder("{");
+        for (var i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                rendered.append(',');
+            }
+            rendered.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return rendered.append('}').toString();
+    }
+
+    /**
+     * @return Every registered metric in the Prometheus text exposition format.
+     */
+    public synchronized String scrape() {
+        var out = new StringBuilder(4096);
+        families.forEach((name, family) -> {
+            out.append("# HELP ").append(name).append(' ').append(family.help()).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type()).append('\n');
+            family.metrics().forEach((labels, metric) -> metric.writeTo(out, name, labels));
+        });
+        return out.toString();
+    }
+
+    private record Family(String help, String type, Map<String, Metric> metrics) {
+    }
+}
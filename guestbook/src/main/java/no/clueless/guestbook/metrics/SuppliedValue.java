@@ -0,0 +1,20 @@
+package no.clueless.guestbook.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value which is read from its source when scraped, so keeping it up to date costs nothing. Used for gauges and for
+ * counters which are already kept elsewhere.
+ */
+final class SuppliedValue implements Metric {
+    private final DoubleSupplier value;
+
+    SuppliedValue(DoubleSupplier value) {
+        this.value = value;
+    }
+
+    @Override
+    public void writeTo(StringBuilder out, String name, String labels) {
+        out.append(name).append(labels).append(' ').append(value.getAsDouble()).append('\n');
+    }
+}
@@ -0,0 +1,273 @@
+package no.clueless.guestbook.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.zip.CRC32C;
+
+/**
+ * A memory-mapped, append-only file of changes to the entries. Each record is its length, a CRC32C of its body and the
+ * body, so a record torn by a crash is recognised on replay and everything from it onwards is discarded. Bytes past the
+ * last record are zero, which reads as a record of length 0 and ends the replay.
+ * <p>
+ * Not thread-safe; {@link AppendLogGuestbookRepository} only touches it while holding its write lock.
+ */
+final class AppendLog implements AutoCloseable {
+    private static final Logger log              = LoggerFactory.getLogger(AppendLog.class);
+    private static final int    MAGIC            = 0x47424C31;
+    private static final int    HEADER_SIZE      = 4;
+    private static final int    RECORD_OVERHEAD  = 8;
+    private static final long   MINIMUM_CAPACITY = 1 << 20;
+    private static final byte[] ZEROS            = new byte[64 << 10];
+    // Inserts written before timestamps were kept to the millisecond, still replayed from older logs.
+    private static final byte   INSERT_SECONDS   = 1;
+    private static final byte   APPROVE          = 2;
+    private static final byte   DELETE           = 3;
+    private static final byte   LAST_ID          = 4;
+    private static final byte   INSERT           = 5;
+
+    private final Path             path;
+    private final CRC32C           crc = new CRC32C();
+    private       FileChannel      channel;
+    private       MappedByteBuffer buffer;
+    private       int              position;
+    private       int              forcedPosition;
+
+    /**
+     * Receives the records of the log in the order they were appended.
+     */
+    interface Replayer {
+        void insert(int id, boolean isApproved, long timestamp, String name, String message);
+
+        void approve(int id);
+
+        void delete(int id);
+
+        void lastId(int id);
+    }
+
+    private AppendLog(Path path) throws IOException {
+        this.path    = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(Math.max(MINIMUM_CAPACITY, channel.size()));
+    }
+
+    /**
+     * Open the log at the given path, creating it if it does not exist, and hand every intact record to the replayer.
+     */
+    static AppendLog open(Path path, Replayer replayer) throws IOException {
+        var appendLog = new AppendLog(path);
+        try {
+            appendLog.replay(replayer);
+        } catch (IOException | RuntimeException e) {
+            appendLog.close();
+            throw e;
+        }
+        return appendLog;
+    }
+
+    /**
+     * Create an empty log at the given path, replacing whatever was there.
+     */
+    static AppendLog create(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        var appendLog = new AppendLog(path);
+        appendLog.buffer.putInt(0, MAGIC);
+        appendLog.position = HEADER_SIZE;
+        return appendLog;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    /**
+     * @return The number of bytes in use, including the header.
+     */
+    int size() {
+        return position;
+    }
+
+    void appendInsert(int id, boolean isApproved, long timestamp, String name, String message) throws IOException {
+        var nameBytes    = name.getBytes(StandardCharsets.UTF_8);
+        var messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        var body         = begin(1 + 4 + 1 + 8 + 4 + nameBytes.length + 4 + messageBytes.length);
+        buffer.put(body, INSERT);
+        buffer.putInt(body + 1, id);
+        buffer.put(body + 5, (byte) (isApproved ? 1 : 0));
+        buffer.putLong(body + 6, timestamp);
+        buffer.putInt(body + 14, nameBytes.length);
+        buffer.put(body + 18, nameBytes);
+        buffer.putInt(body + 18 + nameBytes.length, messageBytes.length);
+        buffer.put(body + 22 + nameBytes.length, messageBytes);
+        end(body);
+    }
+
+    void appendApprove(Collection<Integer> ids) throws IOException {
+        appendIds(APPROVE, ids);
+    }
+
+    void appendDelete(Collection<Integer> ids) throws IOException {
+        appendIds(DELETE, ids);
+    }
+
+    void appendLastId(int id) throws IOException {
+        var body = begin(1 + 4);
+        buffer.put(body, LAST_ID);
+        buffer.putInt(body + 1, id);
+        end(body);
+    }
+
+    private void appendIds(byte type, Collection<Integer> ids) throws IOException {
+        var body   = begin(1 + 4 + 4 * ids.size());
+        var offset = body + 5;
+        buffer.put(body, type);
+        buffer.putInt(body + 1, ids.size());
+        for (var id : ids) {
+            buffer.putInt(offset, id);
+            offset += 4;
+        }
+        end(body);
+    }
+
+    /**
+     * Write everything appended since the last call through to the disk.
+     */
+    void force() {
+        if (forcedPosition < position) {
+            buffer.force(forcedPosition, position - forcedPosition);
+            forcedPosition = position;
+        }
+    }
+
+    /**
+     * Atomically put another log, usually a compacted copy of this one, in this log's place and carry on appending to it.
+     */
+    void replaceWith(AppendLog other) throws IOException {
+        other.force();
+        Files.move(other.path, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (var directory = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            log.debug("Could not sync the directory of {}: {}", path, e.toString());
+        }
+        channel.close();
+        channel        = other.channel;
+        buffer         = other.buffer;
+        position       = other.position;
+        forcedPosition = other.forcedPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private void replay(Replayer replayer) throws IOException {
+        // A new file, or one whose creator crashed before writing anything.
+        if (buffer.getInt(0) == 0 && buffer.getInt(HEADER_SIZE) == 0) {
+            buffer.putInt(0, MAGIC);
+            position = HEADER_SIZE;
+            force();
+            return;
+        }
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(path + " is not a guestbook append log");
+        }
+
+        var offset = HEADER_SIZE;
+        while (offset + RECORD_OVERHEAD <= buffer.capacity()) {
+            var length = buffer.getInt(offset);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || offset + RECORD_OVERHEAD + (long) length > buffer.capacity() || checksum(offset + RECORD_OVERHEAD, length) != buffer.getInt(offset + 4)) {
+                log.warn("Discarding a torn record at offset {} of {} and everything after it", offset, path);
+                for (var zeroed = offset; zeroed < buffer.capacity(); zeroed += ZEROS.length) {
+                    buffer.put(zeroed, ZEROS, 0, Math.min(ZEROS.length, buffer.capacity() - zeroed));
+                }
+                break;
+            }
+
+            var body = offset + RECORD_OVERHEAD;
+            switch (buffer.get(body)) {
+                case INSERT, INSERT_SECONDS -> {
+                    var nameLength    = buffer.getInt(body + 14);
+                    var messageLength = buffer.getInt(body + 18 + nameLength);
+                    var timestamp     = buffer.get(body) == INSERT ? buffer.getLong(body + 6) : buffer.getLong(body + 6) * 1000;
+                    replayer.insert(buffer.getInt(body + 1), buffer.get(body + 5) != 0, timestamp, string(body + 18, nameLength), string(body + 22 + nameLength, messageLength));
+                }
+                case APPROVE, DELETE -> {
+                    var count = buffer.getInt(body + 1);
+                    for (var i = 0; i < count; i++) {
+                        var id = buffer.getInt(body + 5 + 4 * i);
+                        if (buffer.get(body) == APPROVE) {
+                            replayer.approve(id);
+                        } else {
+                            replayer.delete(id);
+                        }
+                    }
+                }
+                case LAST_ID -> replayer.lastId(buffer.getInt(body + 1));
+                default -> throw new IOException("Unknown record type " + buffer.get(body) + " at offset " + offset + " of " + path);
+            }
+            offset = body + length;
+        }
+        position       = offset;
+        forcedPosition = offset;
+    }
+
+    /**
+     * Reserve room for a record with a body of the given length, growing the mapping if needed.
+     *
+     * @return The offset to write the body at.
+     */
+    private int begin(int bodyLength) throws IOException {
+        var needed = (long) position + RECORD_OVERHEAD + bodyLength;
+        if (needed > Integer.MAX_VALUE) {
+            throw new IOException(path + " cannot grow beyond 2 GiB");
+        }
+        if (needed > buffer.capacity()) {
+            force();
+            map(Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * buffer.capacity())));
+        }
+        buffer.putInt(position, bodyLength);
+        return position + RECORD_OVERHEAD;
+    }
+
+    /**
+     * Finish the record whose body starts at the given offset by writing its checksum. A crash before this point leaves a
+     * record which fails the checksum on replay.
+     */
+    private void end(int body) {
+        var length = buffer.getInt(body - RECORD_OVERHEAD);
+        buffer.putInt(body - 4, checksum(body, length));
+        position = body + length;
+    }
+
+    private int checksum(int offset, int length) {
+        crc.reset();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    private String string(int offset, int length) {
+        var bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void map(long capacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+}
@@ -0,0 +1,795 @@
+package no.clueless.guestbook.persistence;
+
+import no.clueless.guestbook.ApprovedEntry;
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.EntryFilter;
+import no.clueless.guestbook.SearchResult;
+import no.clueless.guestbook.SearchResults;
+import no.clueless.guestbook.metrics.Histogram;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Keeps every entry in memory, in parallel arrays sorted by id, and makes changes durable by appending them to an
+ * {@link AppendLog} before they are applied. On startup the log is replayed, and once it holds more outdated records
+ * than live entries it is compacted into one record per entry.
+ * <p>
+ * Entries are found by binary search on the id array. The orderings of the approved entries by each column are built
+ * the first time they are needed and kept until the approved entries change, so pages cost the same no matter how deep
+ * they are. Reads share a read lock and writes take the write lock, so there is no JDBC, no connection pool and no
+ * thread hand-off on any path.
+ * <p>
+ * Search matches words the same way as the SQLite engine, but scans the approved entries instead of using an index and
+ * returns matches newest first rather than ranked.
+ */
+public class AppendLogGuestbookRepository implements GuestbookRepository {
+    public static final  String SCHEME                       = "appendlog:";
+    public static final  String IN_MEMORY                    = ":memory:";
+    public static final  int    DEFAULT_COMPACTION_THRESHOLD = 4 << 20;
+    private static final Logger log                          = LoggerFactory.getLogger(AppendLogGuestbookRepository.class);
+    private static final int    INITIAL_CAPACITY             = 1024;
+    private static final int    EXPORT_BATCH_SIZE            = 1000;
+
+    private final    Path                             logPath;
+    private final    int                              compactionThreshold;
+    private final    ReentrantReadWriteLock           lock              = new ReentrantReadWriteLock();
+    // Ids of the approved entries by column, in ascending order with ties broken by id. Cleared whenever they change.
+    private final    ConcurrentHashMap<String, int[]> approvedOrderings = new ConcurrentHashMap<>();
+    private final    Histogram                        getEntryTimer;
+    private final    Histogram                        getApprovedEntriesTimer;
+    private final    Histogram                        getApprovedEntriesAfterTimer;
+    private final    Histogram                        searchApprovedEntriesTimer;
+    private final    Histogram                        getEntriesApprovedAfterTimer;
+    private final    Histogram                        getPendingEntriesTimer;
+    private final    Histogram                        moderateEntriesTimer;
+    private final    Histogram                        exportEntriesTimer;
+    private final    Histogram                        insertTimer;
+    private final    Histogram                        initializeTimer;
+    private          AppendLog                        appendLog;
+    private          int                              size;
+    private          int[]                            ids               = new int[INITIAL_CAPACITY];
+    private          boolean[]                        approved          = new boolean[INITIAL_CAPACITY];
+    private          long[]                           timestamps        = new long[INITIAL_CAPACITY];
+    private          String[]                         names             = new String[INITIAL_CAPACITY];
+    private          String[]                         messages          = new String[INITIAL_CAPACITY];
+    // The folded name and message, so searches can rule out most entries without tokenizing them.
+    private          String[]                         foldedTexts       = new String[INITIAL_CAPACITY];
+    // The ids of the entries in the order they were approved, so an entry's approval sequence is its position plus one.
+    // Ids of entries deleted since are left in place and skipped.
+    private          int[]                            approvalOrder     = new int[INITIAL_CAPACITY];
+    private          int                              approvals;
+    private          int                              lastId;
+    private          int                              approvedCount;
+    private          long                             outdatedRecords;
+    private volatile long                             approvedVersion;
+
+    public AppendLogGuestbookRepository(String connectionString) {
+        this(connectionString, new MetricsRegistry());
+    }
+
+    public AppendLogGuestbookRepository(String connectionString, MetricsRegistry metrics) {
+        this(connectionString, DEFAULT_COMPACTION_THRESHOLD, metrics);
+    }
+
+    /**
+     * @param connectionString    {@code appendlog:} followed by the path of the log, or by {@value #IN_MEMORY} to keep
+     *                            the entries in memory only.
+     * @param compactionThreshold The size in bytes the log has to reach before it is compacted.
+     * @param metrics             Where to record query timings.
+     */
+    public AppendLogGuestbookRepository(String connectionString, int compactionThreshold, MetricsRegistry metrics) {
+        if (connectionString == null || !connectionString.startsWith(SCHEME) || connectionString.length() == SCHEME.length()) {
+            throw new IllegalArgumentException("connectionString must be " + SCHEME + " followed by a path or " + IN_MEMORY);
+        }
+        if (compactionThreshold < 0) {
+            throw new IllegalArgumentException("compactionThreshold must be greater than or equal to 0");
+        }
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics cannot be null");
+        }
+
+        var location = connectionString.substring(SCHEME.length());
+        this.logPath                      = location.equals(IN_MEMORY) ? null : Path.of(location);
+        this.compactionThreshold          = compactionThreshold;
+        this.getEntryTimer                = queryTimer(metrics, "get_entry");
+        this.getApprovedEntriesTimer      = queryTimer(metrics, "get_approved_entries");
+        this.getApprovedEntriesAfterTimer = queryTimer(metrics, "get_approved_entries_after");
+        this.searchApprovedEntriesTimer   = queryTimer(metrics, "search_approved_entries");
+        this.getEntriesApprovedAfterTimer = queryTimer(metrics, "get_entries_approved_after");
+        this.getPendingEntriesTimer       = queryTimer(metrics, "get_pending_entries");
+        this.moderateEntriesTimer         = queryTimer(metrics, "moderate_entries");
+        this.exportEntriesTimer           = queryTimer(metrics, "export_entries");
+        this.insertTimer                  = queryTimer(metrics, "insert");
+        this.initializeTimer              = queryTimer(metrics, "initialize");
+        // Start from the wall clock in microseconds rather than 0, so a version handed out before a restart is never
+        // handed out again for other entries, which would turn a stale ETag into a 304.
+        this.approvedVersion              = ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+    }
+
+    private static Histogram queryTimer(MetricsRegistry metrics, String query) {
+        return metrics.histogram("guestbook_database_query_duration_seconds", "Time spent running database queries, not counting the wait for a connection.", "query", query);
+    }
+
+    @Override
+    public void initialize() {
+        if (logPath == null) {
+            return;
+        }
+
+        var startNanos = System.nanoTime();
+        lock.writeLock().lock();
+        try {
+            Files.deleteIfExists(compactionPath());
+            appendLog = AppendLog.open(logPath, new AppendLog.Replayer() {
+                @Override
+                public void insert(int id, boolean isApproved, long timestamp, String name, String message) {
+                    insertSlot(id, isApproved, timestamp, name, message);
+                }
+
+                @Override
+                public void approve(int id) {
+                    approveSlot(slotOf(id));
+                    outdatedRecords++;
+                }
+
+                @Override
+                public void delete(int id) {
+                    var slot = slotOf(id);
+                    if (slot >= 0) {
+                        removeSlots(IntStream.of(slot).toArray());
+                    }
+                    outdatedRecords += 2;
+                }
+
+                @Override
+                public void lastId(int id) {
+                    lastId = Math.max(lastId, id);
+                }
+            });
+            log.info("Replayed {} entries from {} ({} bytes) in {} ms", size, logPath, appendLog.size(), (System.nanoTime() - startNanos) / 1_000_000);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to replay " + logPath, e);
+        } finally {
+            lock.writeLock().unlock();
+            initializeTimer.recordSince(startNanos);
+        }
+    }
+
+    @Override
+    public Entry getEntry(int id) {
+        var startNanos = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            var slot = slotOf(id);
+            return slot < 0 ? null : toEntry(slot);
+        } finally {
+            lock.readLock().unlock();
+            getEntryTimer.recordSince(startNanos);
+        }
+    }
+
+    @Override
+    public List<Entry> getApprovedEntries(int pageNumber, int pageSize, String orderByColumn, String orderDirection) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
+        if (pageNumber < 0) {
+            throw new IllegalArgumentException("pageNumber must be greater than or equal to 0");
+        }
+        SqliteGuestbookRepository.validateOrdering(orderByColumn, orderDirection);
+
+        var startNanos = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            var ordering = approvedOrdering(orderByColumn);
+            var offset   = (long) pageSize * pageNumber;
+            if (offset >= ordering.length) {
+                return List.of();
+            }
+            return isDescending(orderDirection)
+                    ? page(ordering, ordering.length - 1 - (int) offset, -1, pageSize)
+                    : page(ordering, (int) offset, 1, pageSize);
+        } finally {
+            lock.readLock().unlock();
+            getApprovedEntriesTimer.recordSince(startNanos);
+        }
+    }
+
+    @Override
+    public List<Entry> getApprovedEntriesAfter(Integer afterId, int pageSize, String orderByColumn, String orderDirection) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
+        SqliteGuestbookRepository.validateOrdering(orderByColumn, orderDirection);
+
+        var startNanos = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            var column     = orderByColumn.toLowerCase();
+            var ordering   = approvedOrdering(column);
+            var descending = isDescending(orderDirection);
+            if (afterId == null) {
+                return descending ? page(ordering, ordering.length - 1, -1, pageSize) : page(ordering, 0, 1, pageSize);
+            }
+
+            // The position of the first entry ordered after the cursor, which does not have to be approved or even exist
+            // when ordering by id.
+            int position;
+            if (column.equals("id")) {
+                var found = Arrays.binarySearch(ordering, afterId);
+                position = found >= 0 ? found + 1 : -found - 1;
+            } else {
+                var cursorSlot = slotOf(afterId);
+                if (cursorSlot < 0) {
+                    return List.of();
+                }
+                var comparator = slotComparator(column);
+                var low        = 0;
+                var high       = ordering.length;
+                while (low < high) {
+                    var middle = (low + high) >>> 1;
+                    if (comparator.compare(slotOf(ordering[middle]), cursorSlot) <= 0) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                    }
+                }
+                position = low;
+            }
+            if (descending) {
+                // Step back over the cursor itself, if it is in the ordering.
+                var before = position - 1;
+                if (before >= 0 && ordering[before] == afterId) {
+                    before--;
+                }
+                return page(ordering, before, -1, pageSize);
+            }
+            return page(ordering, position, 1, pageSize);
+        } finally {
+            lock.readLock().unlock();
+            getApprovedEntriesAfterTimer.recordSince(startNanos);
+        }
+    }
+
+    @Override
+    public Long getNumberOfApprovedEntries() {
+        lock.readLock().lock();
+        try {
+            return (long) approvedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public SearchResults searchApprovedEntries(String query, int pageNumber, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
+        if (pageNumber < 0) {
+            throw new IllegalArgumentException("pageNumber must be greater than or equal to 0");
+        }
+        var phrases = TextSearch.phrases(query);
+        if (phrases == null) {
+            return new SearchResults(List.of(), 0);
+        }
+
+        var startNanos = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            var offset       = (long) pageSize * pageNumber;
+            var totalResults = 0L;
+            var results      = new ArrayList<SearchResult>(pageSize);
+            for (var slot = size - 1; slot >= 0; slot--) {
+                if (!approved[slot] || !TextSearch.mightMatch(phrases, foldedTexts[slot]) || !TextSearch.matches(phrases, names[slot], messages[slot])) {
+                    continue;
+                }
+                if (totalResults >= offset && results.size() < pageSize) {
+                    results.add(new SearchResult(toEntry(slot), TextSearch.snippet(phrases, names[slot], messages[slot])));
+                }
+                totalResults++;
+            }
+            return new SearchResults(results, totalResults);
+        } finally {
+            lock.readLock().unlock();
+            searchApprovedEntriesTimer.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * The version lives in this process only, as nothing else can change the entries. It counts up from the time the
+     * repository was created, so it is not reused by a later process.
+     */
+    @Override
+    public long getApprovedEntriesVersion() {
+        return approvedVersion;
+    }
+
+    /**
+     * Approvals are numbered in the order they are applied, counting those replayed from the log. A compacted log holds
+     * the approved entries in id order, so once it has been compacted and replayed, the entries approved before the
+     * compaction are numbered in id order instead.
+     */
+    @Override
+    public List<ApprovedEntry> getEntriesApprovedAfter(long afterSequence, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be greater than 0");
+        }
+
+        var startNanos = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            var entries = new ArrayList<ApprovedEntry>(Math.min(limit, approvals));
+            for (var position = Math.clamp(afterSequence, 0, approvals); position < approvals && entries.size() < limit; position++) {
+                var slot = slotOf(approvalOrder[position]);
+                if (slot >= 0) {
+                    entries.add(new ApprovedEntry(position + 1, toEntry(slot)));
+                }
+            }
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+            getEntriesApprovedAfterTimer.recordSince(startNanos);
+        }
+    }
+
+    @Override
+    public long getLastApprovalSequence() {
+        lock.readLock().lock();
+        try {
+            return approvals;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Entry> getPendingEntries(Integer afterId, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
+
+        var startNanos = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            var entries = new ArrayList<Entry>(pageSize);
+            for (var slot = firstSlotAfter(afterId == null ? 0 : afterId); slot < size && entries.size() < pageSize; slot++) {
+                if (!approved[slot]) {
+                    entries.add(toEntry(slot));
+                }
+            }
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+            getPendingEntriesTimer.recordSince(startNanos);
+        }
+    }
+
+    @Override
+    public List<Integer> approveEntries(Collection<Integer> ids) {
+        if (ids == null) {
+            throw new IllegalArgumentException("ids cannot be null");
+        }
+        return moderate(slot -> !approved[slot], new LinkedHashSet<>(ids), true);
+    }
+
+    @Override
+    public List<Integer> approveEntries(EntryFilter filter) {
+        return moderate(matcher(filter), null, true);
+    }
+
+    @Override
+    public List<Integer> deleteEntries(Collection<Integer> ids) {
+        if (ids == null) {
+            throw new IllegalArgumentException("ids cannot be null");
+        }
+        return moderate(slot -> true, new LinkedHashSet<>(ids), false);
+    }
+
+    @Override
+    public List<Integer> deleteEntries(EntryFilter filter) {
+        return moderate(matcher(filter), null, false);
+    }
+
+    /**
+     * Approve or delete entries, logging the change as one record before applying it.
+     *
+     * @param selector   Which slots to moderate.
+     * @param orderedIds The ids to moderate, if the selector should only be asked about these, in the order to report
+     *                   them in. Null to ask about every slot and report in id order.
+     * @param approve    Whether to approve or delete.
+     */
+    private List<Integer> moderate(IntPredicate selector, LinkedHashSet<Integer> orderedIds, boolean approve) {
+        var startNanos = System.nanoTime();
+        lock.writeLock().lock();
+        try {
+            List<Integer> selectedIds;
+            if (orderedIds != null) {
+                selectedIds = new ArrayList<>(orderedIds.size());
+                for (var id : orderedIds) {
+                    var slot = id == null ? -1 : slotOf(id);
+                    if (slot >= 0 && selector.test(slot)) {
+                        selectedIds.add(id);
+                    }
+                }
+            } else {
+                selectedIds = new ArrayList<>();
+                for (var slot = 0; slot < size; slot++) {
+                    if (selector.test(slot)) {
+                        selectedIds.add(ids[slot]);
+                    }
+                }
+            }
+            if (selectedIds.isEmpty()) {
+                return List.of();
+            }
+
+            if (appendLog != null) {
+                if (approve) {
+                    appendLog.appendApprove(selectedIds);
+                } else {
+                    appendLog.appendDelete(selectedIds);
+                }
+                appendLog.force();
+            }
+            if (approve) {
+                for (var id : selectedIds) {
+                    approveSlot(slotOf(id));
+                }
+                outdatedRecords += selectedIds.size();
+            } else {
+                removeSlots(selectedIds.stream().mapToInt(this::slotOf).sorted().toArray());
+                outdatedRecords += 2L * selectedIds.size();
+            }
+            compactIfDue();
+            return selectedIds;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to moderate entries", e);
+        } finally {
+            lock.writeLock().unlock();
+            moderateEntriesTimer.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Hand the entries to the consumer in batches. The lock is only held while a batch is collected, so a slow consumer
+     * never holds up writers, but unlike the SQLite engine the export is not a snapshot: entries approved or deleted
+     * while it runs may or may not be included.
+     */
+    @Override
+    public long exportEntries(Boolean isApproved, LocalDateTime createdAfter, LocalDateTime createdBefore, Consumer<Entry> consumer) {
+        if (consumer == null) {
+            throw new IllegalArgumentException("consumer cannot be null");
+        }
+
+        var startNanos = System.nanoTime();
+        var after      = createdAfter == null ? Long.MIN_VALUE : EpochMillis.of(createdAfter);
+        var before     = createdBefore == null ? Long.MAX_VALUE : EpochMillis.of(createdBefore);
+        var exported   = 0L;
+        var lastId     = 0;
+        try {
+            while (true) {
+                var batch = new ArrayList<Entry>(EXPORT_BATCH_SIZE);
+                lock.readLock().lock();
+                try {
+                    for (var slot = firstSlotAfter(lastId); slot < size && batch.size() < EXPORT_BATCH_SIZE; slot++) {
+                        if ((isApproved == null || approved[slot] == isApproved) && timestamps[slot] >= after && timestamps[slot] < before) {
+                            batch.add(toEntry(slot));
+                        }
+                        lastId = ids[slot];
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                if (batch.isEmpty()) {
+                    return exported;
+                }
+                for (var entry : batch) {
+                    consumer.accept(entry);
+                }
+                exported += batch.size();
+            }
+        } finally {
+            exportEntriesTimer.recordSince(startNanos);
+        }
+    }
+
+    @Override
+    public Entry createEntry(Entry entry) {
+        if (entry == null) {
+            throw new IllegalArgumentException("entry cannot be null");
+        }
+
+        var startNanos = System.nanoTime();
+        lock.writeLock().lock();
+        try {
+            var id        = lastId + 1;
+            var timestamp = System.currentTimeMillis();
+            if (appendLog != null) {
+                appendLog.appendInsert(id, false, timestamp, entry.getName(), entry.getMessage());
+                appendLog.force();
+            }
+            var slot = insertSlot(id, false, timestamp, entry.getName(), entry.getMessage());
+            return toEntry(slot);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create entry", e);
+        } finally {
+            lock.writeLock().unlock();
+            insertTimer.recordSince(startNanos);
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (appendLog != null) {
+                appendLog.close();
+                appendLog = null;
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close {}", logPath, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return The size of the log in bytes, or 0 when the entries are only kept in memory.
+     */
+    public long getLogSize() {
+        lock.readLock().lock();
+        try {
+            return appendLog == null ? 0 : appendLog.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite the log as one record per live entry once it holds more outdated records than live entries and has grown
+     * past the compaction threshold. The compacted log is written next to the old one and then renamed over it, so a crash
+     * at any point leaves one complete log behind.
+     */
+    private void compactIfDue() throws IOException {
+        if (appendLog == null || outdatedRecords <= size || appendLog.size() < compactionThreshold) {
+            return;
+        }
+
+        var startNanos    = System.nanoTime();
+        var oldSize       = appendLog.size();
+        var compactedLog  = AppendLog.create(compactionPath());
+        try {
+            compactedLog.appendLastId(lastId);
+            for (var slot = 0; slot < size; slot++) {
+                compactedLog.appendInsert(ids[slot], approved[slot], timestamps[slot], names[slot], messages[slot]);
+            }
+            appendLog.replaceWith(compactedLog);
+        } catch (IOException | RuntimeException e) {
+            compactedLog.close();
+            Files.deleteIfExists(compactedLog.path());
+            throw e;
+        }
+        outdatedRecords = 0;
+        log.info("Compacted {} from {} to {} bytes in {} ms", logPath, oldSize, appendLog.size(), (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    private Path compactionPath() {
+        return logPath.resolveSibling(logPath.getFileName() + ".compacting");
+    }
+
+    private int insertSlot(int id, boolean isApproved, long timestamp, String name, String message) {
+        if (size == ids.length) {
+            var capacity = ids.length * 2;
+            ids         = Arrays.copyOf(ids, capacity);
+            approved    = Arrays.copyOf(approved, capacity);
+            timestamps  = Arrays.copyOf(timestamps, capacity);
+            names       = Arrays.copyOf(names, capacity);
+            messages    = Arrays.copyOf(messages, capacity);
+            foldedTexts = Arrays.copyOf(foldedTexts, capacity);
+        }
+
+        // Ids only ever grow, so this is an append unless a log was edited by hand.
+        var slot = size == 0 || ids[size - 1] < id ? size : -Arrays.binarySearch(ids, 0, size, id) - 1;
+        if (slot < 0) {
+            throw new IllegalStateException("Entry " + id + " already exists");
+        }
+        var following = size - slot;
+        System.arraycopy(ids, slot, ids, slot + 1, following);
+        System.arraycopy(approved, slot, approved, slot + 1, following);
+        System.arraycopy(timestamps, slot, timestamps, slot + 1, following);
+        System.arraycopy(names, slot, names, slot + 1, following);
+        System.arraycopy(messages, slot, messages, slot + 1, following);
+        System.arraycopy(foldedTexts, slot, foldedTexts, slot + 1, following);
+        ids[slot]         = id;
+        approved[slot]    = isApproved;
+        timestamps[slot]  = timestamp;
+        names[slot]       = name;
+        messages[slot]    = message;
+        foldedTexts[slot] = TextSearch.fold(name) + '\n' + TextSearch.fold(message);
+        size++;
+        lastId = Math.max(lastId, id);
+        if (isApproved) {
+            approvedCount++;
+            recordApproval(id);
+        }
+        return slot;
+    }
+
+    private void approveSlot(int slot) {
+        if (slot >= 0 && !approved[slot]) {
+            approved[slot] = true;
+            approvedCount++;
+            recordApproval(ids[slot]);
+        }
+    }
+
+    private void recordApproval(int id) {
+        if (approvals == approvalOrder.length) {
+            approvalOrder = Arrays.copyOf(approvalOrder, approvals * 2);
+        }
+        approvalOrder[approvals++] = id;
+        approvedEntriesChanged();
+    }
+
+    /**
+     * Remove the given slots in one pass over the arrays.
+     *
+     * @param slots The slots to remove, in ascending order.
+     */
+    private void removeSlots(int[] slots) {
+        var removed = 0;
+        var target  = slots.length == 0 ? size : slots[0];
+        for (var slot = target; slot < size; slot++) {
+            if (removed < slots.length && slots[removed] == slot) {
+                if (approved[slot]) {
+                    approvedCount--;
+                    approvedEntriesChanged();
+                }
+                removed++;
+                continue;
+            }
+            ids[target]         = ids[slot];
+            approved[target]    = approved[slot];
+            timestamps[target]  = timestamps[slot];
+            names[target]       = names[slot];
+            messages[target]    = messages[slot];
+            foldedTexts[target] = foldedTexts[slot];
+            target++;
+        }
+        Arrays.fill(names, target, size, null);
+        Arrays.fill(messages, target, size, null);
+        Arrays.fill(foldedTexts, target, size, null);
+        size = target;
+    }
+
+    private void approvedEntriesChanged() {
+        approvedVersion++;
+        approvedOrderings.clear();
+    }
+
+    private int slotOf(int id) {
+        return Arrays.binarySearch(ids, 0, size, id);
+    }
+
+    private int firstSlotAfter(int id) {
+        var slot = Arrays.binarySearch(ids, 0, size, id);
+        return slot >= 0 ? slot + 1 : -slot - 1;
+    }
+
+    /**
+     * @return The ids of the approved entries ordered by the column, ascending, building the ordering if the approved
+     * entries have changed since it was last asked for. Must be called with a lock held.
+     */
+    private int[] approvedOrdering(String orderByColumn) {
+        var column = orderByColumn.toLowerCase();
+        return approvedOrderings.computeIfAbsent(column, key -> {
+            var approvedSlots = IntStream.range(0, size).filter(slot -> approved[slot]);
+            if (!key.equals("id")) {
+                var comparator = slotComparator(key);
+                approvedSlots = approvedSlots.boxed().sorted(comparator).mapToInt(Integer::intValue);
+            }
+            return approvedSlots.map(slot -> ids[slot]).toArray();
+        });
+    }
+
+    /**
+     * Orders slots the way SQLite orders the column: text by its UTF-8 bytes, which is code point order, and timestamps
+     * by time, with ties broken by id.
+     */
+    private Comparator<Integer> slotComparator(String column) {
+        Comparator<Integer> byColumn = switch (column) {
+            case "name" -> (left, right) -> compareCodePoints(names[left], names[right]);
+            case "message" -> (left, right) -> compareCodePoints(messages[left], messages[right]);
+            case "timestamp" -> (left, right) -> Long.compare(timestamps[left], timestamps[right]);
+            default -> (left, right) -> 0;
+        };
+        return byColumn.thenComparing(slot -> ids[slot]);
+    }
+
+    static int compareCodePoints(String left, String right) {
+        var leftIndex  = 0;
+        var rightIndex = 0;
+        while (leftIndex < left.length() && rightIndex < right.length()) {
+            var leftCodePoint  = left.codePointAt(leftIndex);
+            var rightCodePoint = right.codePointAt(rightIndex);
+            if (leftCodePoint != rightCodePoint) {
+                return Integer.compare(leftCodePoint, rightCodePoint);
+            }
+            leftIndex += Character.charCount(leftCodePoint);
+            rightIndex += Character.charCount(rightCodePoint);
+        }
+        return Boolean.compare(leftIndex < left.length(), rightIndex < right.length());
+    }
+
+    private List<Entry> page(int[] ordering, int start, int step, int pageSize) {
+        var entries = new ArrayList<Entry>(pageSize);
+        for (var position = start; position >= 0 && position < ordering.length && entries.size() < pageSize; position += step) {
+            entries.add(toEntry(slotOf(ordering[position])));
+        }
+        return entries;
+    }
+
+    private Entry toEntry(int slot) {
+        return Entry.existingEntry(ids[slot], approved[slot], names[slot], messages[slot], EpochMillis.toLocalDateTime(timestamps[slot]));
+    }
+
+    private static boolean isDescending(String orderDirection) {
+        return orderDirection.equalsIgnoreCase("desc");
+    }
+
+    /**
+     * Select pending entries the way the SQLite engine's LIKE does: containing the text, ignoring the case of ASCII
+     * letters only.
+     */
+    private IntPredicate matcher(EntryFilter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("filter cannot be null");
+        }
+
+        var after  = filter.createdAfter() == null ? Long.MIN_VALUE : EpochMillis.of(filter.createdAfter());
+        var before = filter.createdBefore() == null ? Long.MAX_VALUE : EpochMillis.of(filter.createdBefore());
+        return slot -> !approved[slot]
+                && (filter.nameContains() == null || containsIgnoringAsciiCase(names[slot], filter.nameContains()))
+                && (filter.messageContains() == null || containsIgnoringAsciiCase(messages[slot], filter.messageContains()))
+                && timestamps[slot] > after
+                && timestamps[slot] < before;
+    }
+
+    static boolean containsIgnoringAsciiCase(String text, String part) {
+        outer:
+        for (var start = 0; start <= text.length() - part.length(); start++) {
+            for (var i = 0; i < part.length(); i++) {
+                if (toLowerAscii(text.charAt(start + i)) != toLowerAscii(part.charAt(i))) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static char toLowerAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+}
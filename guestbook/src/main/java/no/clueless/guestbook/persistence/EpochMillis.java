@@ -0,0 +1,22 @@
+package no.clueless.guestbook.persistence;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Both engines store the time an entry was created as milliseconds since the epoch, and hand it out as a
+ * {@link LocalDateTime} in UTC.
+ */
+final class EpochMillis {
+    private EpochMillis() {
+    }
+
+    static long of(LocalDateTime time) {
+        return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    static LocalDateTime toLocalDateTime(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,217 @@
+package no.clueless.guestbook.persistence;
+
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.metrics.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues new entries for a single writer thread which inserts them in small batches, one transaction and therefore one
+ * sync per batch instead of one per entry. A batch is committed once it is full or once its first entry has waited for
+ * the maximum batch delay, whichever comes first.
+ * <p>
+ * Every entry is inserted with {@code INSERT ... RETURNING}, so each caller gets back the row as it was stored without
+ * a second query. An entry which fails to insert only fails its own caller; a failed commit fails the whole batch.
+ */
+class GroupCommitWriter implements AutoCloseable {
+    private static final Logger log        = LoggerFactory.getLogger(GroupCommitWriter.class);
+    private static final String INSERT_SQL = "INSERT INTO entries(isApproved, name, message, createdAt, timestamp) VALUES(?, ?, ?, ?, NULL) RETURNING id, isApproved, name, message, createdAt";
+
+    private final    SqliteConnectionPool         connectionPool;
+    private final    int                          maximumBatchSize;
+    private final    long                         maximumBatchDelayNanos;
+    private final    BlockingQueue<PendingInsert> queue;
+    private final    Thread                       writerThread;
+    private final    Histogram                    commitTimer;
+    private volatile boolean                      closed;
+
+    private GroupCommitWriter(SqliteConnectionPool connectionPool, int maximumBatchSize, Duration maximumBatchDelay, int maximumQueueSize, Histogram commitTimer) {
+        this.connectionPool         = connectionPool;
+        this.maximumBatchSize       = maximumBatchSize;
+        this.maximumBatchDelayNanos = maximumBatchDelay.toNanos();
+        this.queue                  = new ArrayBlockingQueue<>(maximumQueueSize);
+        this.commitTimer            = commitTimer;
+        this.writerThread           = new Thread(this::run, "guestbook-writer");
+        this.writerThread.setDaemon(true);
+    }
+
+    /**
+     * Create a writer and start its thread.
+     *
+     * @param connectionPool    The pool whose writer connection the entries are inserted with.
+     * @param maximumBatchSize  The number of entries to commit in one transaction at most.
+     * @param maximumBatchDelay How long the first entry of a batch waits for others to join it.
+     * @param maximumQueueSize  The number of entries which can wait to be inserted before new ones are rejected.
+     * @param commitTimer       Where to record how long each batch takes to commit.
+     * @return The writer, ready to take entries.
+     */
+    static GroupCommitWriter start(SqliteConnectionPool connectionPool, int maximumBatchSize, Duration maximumBatchDelay, int maximumQueueSize, Histogram commitTimer) {
+        if (connectionPool == null) {
+            throw new IllegalArgumentException("connectionPool cannot be null");
+        }
+        if (maximumBatchSize < 1) {
+            throw new IllegalArgumentException("maximumBatchSize must be greater than 0");
+        }
+        if (maximumBatchDelay == null || maximumBatchDelay.isNegative()) {
+            throw new IllegalArgumentException("maximumBatchDelay cannot be null or negative");
+        }
+        if (maximumQueueSize < 1) {
+            throw new IllegalArgumentException("maximumQueueSize must be greater than 0");
+        }
+        if (commitTimer == null) {
+            throw new IllegalArgumentException("commitTimer cannot be null");
+        }
+
+        var groupCommitWriter = new GroupCommitWriter(connectionPool, maximumBatchSize, maximumBatchDelay, maximumQueueSize, commitTimer);
+        groupCommitWriter.writerThread.start();
+        return groupCommitWriter;
+    }
+
+    /**
+     * Queue an entry for insertion.
+     *
+     * @param entry The entry to insert.
+     * @return A future which completes with the inserted entry once the batch it was part of has been committed.
+     * @throws RejectedExecutionException If the queue is full or the writer has been closed.
+     */
+    CompletableFuture<Entry> insert(Entry entry) {
+        if (entry == null) {
+            throw new IllegalArgumentException("entry cannot be null");
+        }
+        if (closed) {
+            throw new RejectedExecutionException("writer is closed");
+        }
+
+        var pendingInsert = new PendingInsert(entry, new CompletableFuture<>());
+        if (!queue.offer(pendingInsert)) {
+            throw new RejectedExecutionException("write queue is full");
+        }
+        return pendingInsert.result();
+    }
+
+    /**
+     * @return The number of entries waiting to be inserted.
+     */
+    int queueDepth() {
+        return queue.size();
+    }
+
+    private void run() {
+        var batch = new ArrayList<PendingInsert>(maximumBatchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                var first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                var deadline = System.nanoTime() + maximumBatchDelayNanos;
+                while (batch.size() < maximumBatchSize) {
+                    var remaining = deadline - System.nanoTime();
+                    var next      = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                commit(batch);
+            } catch (InterruptedException e) {
+                if (closed) {
+                    continue;
+                }
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                log.error("Failed to commit a batch of {} entries", batch.size(), e);
+                batch.forEach(pendingInsert -> pendingInsert.result().completeExceptionally(e));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<PendingInsert> batch) {
+        var insertedEntries = connectionPool.write(commitTimer, connection -> {
+            var sqlConnection = connection.connection();
+            sqlConnection.setAutoCommit(false);
+            try {
+                var statement = connection.prepare(INSERT_SQL);
+                var inserted  = new ArrayList<Entry>(batch.size());
+                for (var pendingInsert : batch) {
+                    try {
+                        statement.setBoolean(1, false);
+                        statement.setString(2, pendingInsert.entry().getName());
+                        statement.setString(3, pendingInsert.entry().getMessage());
+                        statement.setLong(4, System.currentTimeMillis());
+                        try (var resultSet = statement.executeQuery()) {
+                            resultSet.next();
+                            inserted.add(Entry.existingEntry(
+                                    resultSet.getInt("id"),
+                                    resultSet.getBoolean("isApproved"),
+                                    resultSet.getString("name"),
+                                    resultSet.getString("message"),
+                                    EpochMillis.toLocalDateTime(resultSet.getLong("createdAt"))
+                            ));
+                        }
+                    } catch (SQLException e) {
+                        inserted.add(null);
+                        pendingInsert.result().completeExceptionally(new RuntimeException("Failed to insert entry", e));
+                    }
+                }
+                sqlConnection.commit();
+                return inserted;
+            } catch (SQLException e) {
+                sqlConnection.rollback();
+                throw e;
+            } finally {
+                sqlConnection.setAutoCommit(true);
+            }
+        });
+
+        for (var i = 0; i < batch.size(); i++) {
+            var insertedEntry = insertedEntries.get(i);
+            if (insertedEntry != null) {
+                batch.get(i).result().complete(insertedEntry);
+            }
+        }
+        if (batch.size() > 1) {
+            log.debug("Committed a batch of {} entries", batch.size());
+        }
+    }
+
+    /**
+     * Stop accepting new entries and wait for the ones already queued to be committed.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            log.warn("Timed out waiting for queued entries to be committed");
+        }
+        queue.forEach(pendingInsert -> pendingInsert.result().completeExceptionally(new RejectedExecutionException("writer is closed")));
+    }
+
+    private record PendingInsert(Entry entry, CompletableFuture<Entry> result) {
+    }
+}
@@ -0,0 +1,174 @@
+package no.clueless.guestbook.persistence;
+
+import no.clueless.guestbook.ApprovedEntry;
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.EntryFilter;
+import no.clueless.guestbook.SearchResults;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Where the entries of the guestbook are stored. Every implementation orders, filters and paginates entries the same
+ * way, so callers can swap one engine for another without noticing anything but the speed.
+ */
+public interface GuestbookRepository extends AutoCloseable {
+    /**
+     * Open the repository named by a connection string: {@code jdbc:sqlite:<file>} for SQLite, or
+     * {@code appendlog:<file>} for the in-memory engine backed by an append-only log. {@code appendlog::memory:} keeps
+     * the entries in memory only.
+     *
+     * @param connectionString  The connection string.
+     * @param readerPoolSize    The number of read-only connections to keep open next to the writer connection. SQLite only.
+     * @param maximumBatchSize  The maximum number of new entries to insert in one transaction. SQLite only.
+     * @param maximumBatchDelay The longest a new entry waits for others to share its transaction with. SQLite only.
+     * @param metrics           Where to record query timings.
+     * @return The repository, not yet initialized.
+     */
+    static GuestbookRepository open(String connectionString, int readerPoolSize, int maximumBatchSize, Duration maximumBatchDelay, MetricsRegistry metrics) {
+        if (connectionString == null || connectionString.isBlank()) {
+            throw new IllegalArgumentException("connectionString cannot be null or blank");
+        }
+        if (connectionString.startsWith("jdbc:sqlite:")) {
+            return new SqliteGuestbookRepository(connectionString, readerPoolSize, maximumBatchSize, maximumBatchDelay, metrics);
+        }
+        if (connectionString.startsWith(AppendLogGuestbookRepository.SCHEME)) {
+            return new AppendLogGuestbookRepository(connectionString, metrics);
+        }
+        throw new IllegalArgumentException("connectionString must start with jdbc:sqlite: or " + AppendLogGuestbookRepository.SCHEME);
+    }
+
+    /**
+     * Create whatever the repository needs to store entries, or load the entries it already has.
+     */
+    void initialize();
+
+    /**
+     * @return The entry with the given id, approved or not, or null if there is none.
+     */
+    Entry getEntry(int id);
+
+    /**
+     * Get a page of approved entries by page number.
+     *
+     * @param pageNumber     The page to get, starting at 0.
+     * @param pageSize       The maximum number of entries to get.
+     * @param orderByColumn  The column to order by, either id, name, message or timestamp. Ties are broken by id.
+     * @param orderDirection The direction to order in, either asc or desc.
+     * @return The entries on the page.
+     */
+    List<Entry> getApprovedEntries(int pageNumber, int pageSize, String orderByColumn, String orderDirection);
+
+    /**
+     * Get a page of approved entries using keyset pagination.
+     *
+     * @param afterId        The id of the last entry on the previous page, or null to get the first page.
+     * @param pageSize       The maximum number of entries to get.
+     * @param orderByColumn  The column to order by, either id, name, message or timestamp. Ties are broken by id.
+     * @param orderDirection The direction to order in, either asc or desc.
+     * @return The entries following the entry with the given id. If that entry no longer exists and the ordering is not
+     * by id, the page is empty.
+     */
+    List<Entry> getApprovedEntriesAfter(Integer afterId, int pageSize, String orderByColumn, String orderDirection);
+
+    Long getNumberOfApprovedEntries();
+
+    /**
+     * Search the approved entries. Every word in the query has to match, and the last one also matches as a prefix.
+     *
+     * @param query      The words to search for.
+     * @param pageNumber The page of results to get, starting at 0.
+     * @param pageSize   The maximum number of results to get.
+     * @return The matching entries on the page, each with a highlighted snippet, and the total number of matches.
+     */
+    SearchResults searchApprovedEntries(String query, int pageNumber, int pageSize);
+
+    /**
+     * @return A number which changes whenever the set of approved entries changes.
+     */
+    long getApprovedEntriesVersion();
+
+    /**
+     * Get approved entries in the order they were approved in, rather than by id, so that an entry approved after newer
+     * ones is still found after them.
+     *
+     * @param afterSequence The sequence of the last entry already seen, or 0 to start from the first approval.
+     * @param limit         The maximum number of entries to get.
+     * @return The entries approved after the given sequence, in approval order.
+     */
+    List<ApprovedEntry> getEntriesApprovedAfter(long afterSequence, int limit);
+
+    /**
+     * @return The sequence of the most recent approval, or 0 if there has been none.
+     */
+    long getLastApprovalSequence();
+
+    /**
+     * Get a page of entries waiting for approval, oldest first.
+     *
+     * @param afterId  The id of the last entry on the previous page, or null to get the first page.
+     * @param pageSize The maximum number of entries to get.
+     * @return The entries on the page.
+     */
+    List<Entry> getPendingEntries(Integer afterId, int pageSize);
+
+    /**
+     * Approve the pending entries with the given ids, all at once.
+     *
+     * @param ids The ids of the entries to approve. Ids of missing or already approved entries are ignored.
+     * @return The ids of the entries which were approved.
+     */
+    List<Integer> approveEntries(Collection<Integer> ids);
+
+    /**
+     * Approve every pending entry matching the filter.
+     *
+     * @param filter Which pending entries to approve.
+     * @return The ids of the entries which were approved.
+     */
+    List<Integer> approveEntries(EntryFilter filter);
+
+    /**
+     * Delete the entries with the given ids, approved or not, all at once.
+     *
+     * @param ids The ids of the entries to delete. Ids of missing entries are ignored.
+     * @return The ids of the entries which were deleted.
+     */
+    List<Integer> deleteEntries(Collection<Integer> ids);
+
+    /**
+     * Delete every pending entry matching the filter.
+     *
+     * @param filter Which pending entries to delete.
+     * @return The ids of the entries which were deleted.
+     */
+    List<Integer> deleteEntries(EntryFilter filter);
+
+    /**
+     * Hand every matching entry to the consumer in id order, without collecting them first.
+     *
+     * @param isApproved    Whether to export approved or pending entries, or null for both.
+     * @param createdAfter  The time, in UTC, entries have to be created at or after, or null.
+     * @param createdBefore The time, in UTC, entries have to be created before, or null.
+     * @param consumer      Where to send the entries.
+     * @return The number of entries exported.
+     */
+    long exportEntries(Boolean isApproved, LocalDateTime createdAfter, LocalDateTime createdBefore, Consumer<Entry> consumer);
+
+    /**
+     * Create an entry. It is stored as pending and timestamped with the current time in UTC, whatever the given entry
+     * says.
+     *
+     * @param entry The entry to create.
+     * @return The entry as it was stored.
+     * @throws java.util.concurrent.RejectedExecutionException If the repository has more writes waiting than it takes.
+     */
+    Entry createEntry(Entry entry);
+
+    @Override
+    void close();
+}
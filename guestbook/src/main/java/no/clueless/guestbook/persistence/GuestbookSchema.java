@@ -0,0 +1,187 @@
+package no.clueless.guestbook.persistence;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * The migrations of the SQLite guestbook database, oldest first. Released migrations must never change, since databases
+ * which already have them will not apply them again; change the schema by adding a migration.
+ */
+final class GuestbookSchema {
+    /**
+     * The creation time of a row written before version 2, which kept it as {@code yyyy-MM-dd HH:mm:ss} text in UTC.
+     */
+    static final String LEGACY_CREATED_AT = "CAST(strftime('%s', timestamp) AS INTEGER) * 1000";
+
+    static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "Create the entries table, its indexes, triggers and search index", GuestbookSchema::createEntries),
+            new Migration(2, "Keep the creation time of entries as epoch milliseconds", GuestbookSchema::addCreatedAt, new Migration.Backfill("entries", """
+                    UPDATE entries SET createdAt = COALESCE(%s, 0), timestamp = NULL
+                    WHERE id > ? AND id <= ? AND createdAt IS NULL
+                    """.formatted(LEGACY_CREATED_AT))),
+            new Migration(3, "Number entries in the order they are approved", GuestbookSchema::addApprovalSequence)
+    );
+
+    private GuestbookSchema() {
+    }
+
+    /**
+     * The schema as it was before migrations were recorded, so databases created back then only gain the version.
+     */
+    private static void createEntries(Statement statement) throws SQLException {
+        statement.execute("""
+                CREATE TABLE IF NOT EXISTS entries (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    isApproved BOOLEAN NOT NULL DEFAULT FALSE,
+                    name TEXT,
+                    message TEXT,
+                    timestamp DATETIME DEFAULT CURRENT_TIMESTAMP
+               )
+               """);
+        // Every allowed sort column gets an index led by isApproved and ending in id, so both the page queries and the
+        // keyset queries can walk an index in order instead of sorting the whole table.
+        statement.execute("CREATE INDEX IF NOT EXISTS entries_approved_id ON entries(isApproved, id)");
+        statement.execute("CREATE INDEX IF NOT EXISTS entries_approved_name ON entries(isApproved, name, id)");
+        statement.execute("CREATE INDEX IF NOT EXISTS entries_approved_message ON entries(isApproved, message, id)");
+        statement.execute("CREATE INDEX IF NOT EXISTS entries_approved_timestamp ON entries(isApproved, timestamp, id)");
+
+        // A change counter which is bumped by triggers whenever the set of approved entries changes, no matter which
+        // process made the change. See SqliteGuestbookRepository.getApprovedEntriesVersion.
+        statement.execute("""
+                CREATE TABLE IF NOT EXISTS approved_entries_version (
+                    id INTEGER PRIMARY KEY CHECK (id = 1),
+                    version INTEGER NOT NULL
+                )
+                """);
+        statement.execute("INSERT OR IGNORE INTO approved_entries_version(id, version) VALUES(1, 0)");
+        statement.execute("""
+                CREATE TRIGGER IF NOT EXISTS entries_approved_inserted AFTER INSERT ON entries WHEN NEW.isApproved
+                BEGIN
+                    UPDATE approved_entries_version SET version = version + 1 WHERE id = 1;
+                END
+                """);
+        statement.execute("""
+                CREATE TRIGGER IF NOT EXISTS entries_approved_updated AFTER UPDATE ON entries WHEN OLD.isApproved OR NEW.isApproved
+                BEGIN
+                    UPDATE approved_entries_version SET version = version + 1 WHERE id = 1;
+                END
+                """);
+        statement.execute("""
+                CREATE TRIGGER IF NOT EXISTS entries_approved_deleted AFTER DELETE ON entries WHEN OLD.isApproved
+                BEGIN
+                    UPDATE approved_entries_version SET version = version + 1 WHERE id = 1;
+                END
+                """);
+
+        // A full-text index over the approved entries only. It is an external content table, so the text is stored once
+        // in entries, and triggers keep it in step with inserts, approvals, edits and deletions no matter which process
+        // makes them.
+        var searchIndexExists = false;
+        try (var resultSet = statement.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'entries_search'")) {
+            searchIndexExists = resultSet.next();
+        }
+        statement.execute("""
+                CREATE VIRTUAL TABLE IF NOT EXISTS entries_search USING fts5(
+                    name,
+                    message,
+                    content = 'entries',
+                    content_rowid = 'id',
+                    tokenize = 'unicode61 remove_diacritics 2'
+                )
+                """);
+        statement.execute("""
+                CREATE TRIGGER IF NOT EXISTS entries_search_inserted AFTER INSERT ON entries WHEN NEW.isApproved
+                BEGIN
+                    INSERT INTO entries_search(rowid, name, message) VALUES(NEW.id, NEW.name, NEW.message);
+                END
+                """);
+        statement.execute("""
+                CREATE TRIGGER IF NOT EXISTS entries_search_updated AFTER UPDATE ON entries WHEN OLD.isApproved OR NEW.isApproved
+                BEGIN
+                    INSERT INTO entries_search(entries_search, rowid, name, message) SELECT 'delete', OLD.id, OLD.name, OLD.message WHERE OLD.isApproved;
+                    INSERT INTO entries_search(rowid, name, message) SELECT NEW.id, NEW.name, NEW.message WHERE NEW.isApproved;
+                END
+                """);
+        statement.execute("""
+                CREATE TRIGGER IF NOT EXISTS entries_search_deleted AFTER DELETE ON entries WHEN OLD.isApproved
+                BEGIN
+                    INSERT INTO entries_search(entries_search, rowid, name, message) VALUES('delete', OLD.id, OLD.name, OLD.message);
+                END
+                """);
+        if (!searchIndexExists) {
+            statement.execute("INSERT INTO entries_search(rowid, name, message) SELECT id, name, message FROM entries WHERE isApproved = true");
+        }
+    }
+
+    /**
+     * Entries get an INTEGER createdAt in epoch milliseconds, which is compared and indexed as a number instead of being
+     * parsed from text on every read. The backfill moves existing rows over and clears their text timestamp, so every
+     * row ends up with only the 8 byte integer.
+     * <p>
+     * Until the backfill is done, a row's creation time is in either column, which is why the text timestamp index makes
+     * way for one on createdAt right away. The update triggers are narrowed to the columns they care about, so that
+     * neither the backfill nor a newly inserted row being moved over bumps the approved entries version or touches the
+     * search index. Inserts which leave createdAt out, as writers from before this version do, are moved over as they
+     * happen.
+     */
+    private static void addCreatedAt(Statement statement) throws SQLException {
+        statement.execute("ALTER TABLE entries ADD COLUMN createdAt INTEGER");
+        statement.execute("DROP INDEX IF EXISTS entries_approved_timestamp");
+        statement.execute("CREATE INDEX entries_approved_created_at ON entries(isApproved, createdAt, id)");
+
+        statement.execute("DROP TRIGGER IF EXISTS entries_approved_updated");
+        statement.execute("""
+                CREATE TRIGGER entries_approved_updated AFTER UPDATE OF isApproved, name, message ON entries WHEN OLD.isApproved OR NEW.isApproved
+                BEGIN
+                    UPDATE approved_entries_version SET version = version + 1 WHERE id = 1;
+                END
+                """);
+        statement.execute("DROP TRIGGER IF EXISTS entries_search_updated");
+        statement.execute("""
+                CREATE TRIGGER entries_search_updated AFTER UPDATE OF isApproved, name, message ON entries WHEN OLD.isApproved OR NEW.isApproved
+                BEGIN
+                    INSERT INTO entries_search(entries_search, rowid, name, message) SELECT 'delete', OLD.id, OLD.name, OLD.message WHERE OLD.isApproved;
+                    INSERT INTO entries_search(rowid, name, message) SELECT NEW.id, NEW.name, NEW.message WHERE NEW.isApproved;
+                END
+                """);
+        statement.execute("""
+                CREATE TRIGGER entries_created_at_defaulted AFTER INSERT ON entries WHEN NEW.createdAt IS NULL
+                BEGIN
+                    UPDATE entries SET createdAt = CAST(strftime('%s', COALESCE(NEW.timestamp, 'now')) AS INTEGER) * 1000, timestamp = NULL WHERE id = NEW.id;
+                END
+                """);
+    }
+
+    /**
+     * Entries get the position at which they were approved, so the live entry stream can follow approvals rather than
+     * ids, which skip entries approved after newer ones. Triggers stamp it, so approvals made by other processes are
+     * numbered too. The counter starts at the highest id, since browsers already hold entry ids as their last event id,
+     * and entries approved before this version have no sequence.
+     */
+    private static void addApprovalSequence(Statement statement) throws SQLException {
+        statement.execute("ALTER TABLE entries ADD COLUMN approvalSequence INTEGER");
+        statement.execute("CREATE INDEX entries_approval_sequence ON entries(approvalSequence) WHERE approvalSequence IS NOT NULL");
+        statement.execute("""
+                CREATE TABLE approval_sequence (
+                    id INTEGER PRIMARY KEY CHECK (id = 1),
+                    sequence INTEGER NOT NULL
+                )
+                """);
+        statement.execute("INSERT INTO approval_sequence(id, sequence) SELECT 1, COALESCE(MAX(id), 0) FROM entries");
+        statement.execute("""
+                CREATE TRIGGER entries_approval_sequence_inserted AFTER INSERT ON entries WHEN NEW.isApproved
+                BEGIN
+                    UPDATE approval_sequence SET sequence = sequence + 1 WHERE id = 1;
+                    UPDATE entries SET approvalSequence = (SELECT sequence FROM approval_sequence WHERE id = 1) WHERE id = NEW.id;
+                END
+                """);
+        statement.execute("""
+                CREATE TRIGGER entries_approval_sequence_updated AFTER UPDATE OF isApproved ON entries WHEN NEW.isApproved AND NOT OLD.isApproved
+                BEGIN
+                    UPDATE approval_sequence SET sequence = sequence + 1 WHERE id = 1;
+                    UPDATE entries SET approvalSequence = (SELECT sequence FROM approval_sequence WHERE id = 1) WHERE id = NEW.id;
+                END
+                """);
+    }
+}
@@ -0,0 +1,52 @@
+package no.clueless.guestbook.persistence;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * One step in the evolution of a database schema, applied once by a {@link SchemaMigrator}.
+ *
+ * @param version     The version the schema is at once the migration is applied. Versions start at 1 and have no gaps.
+ * @param description What the migration does, recorded next to its version.
+ * @param schema      The schema changes, which are applied in one transaction before the database is used, so they should
+ *                    not rewrite whole tables.
+ * @param backfill    An update of the existing rows to run in batches once the schema changes are in place, or null.
+ */
+record Migration(int version, String description, SchemaChange schema, Backfill backfill) {
+    Migration {
+        if (version < 1) {
+            throw new IllegalArgumentException("version must be greater than 0");
+        }
+        if (description == null || description.isBlank()) {
+            throw new IllegalArgumentException("description cannot be null or blank");
+        }
+        if (schema == null) {
+            throw new IllegalArgumentException("schema cannot be null");
+        }
+    }
+
+    Migration(int version, String description, SchemaChange schema) {
+        this(version, description, schema, null);
+    }
+
+    @FunctionalInterface
+    interface SchemaChange {
+        void apply(Statement statement) throws SQLException;
+    }
+
+    /**
+     * @param table  The table to update, which must have an integer primary key named id.
+     * @param update The update of one batch. It has two parameters, the id to start after and the last id to update, and
+     *               must leave rows which are already up to date as they are, such as rows inserted since the migration.
+     */
+    record Backfill(String table, String update) {
+        Backfill {
+            if (table == null || table.isBlank()) {
+                throw new IllegalArgumentException("table cannot be null or blank");
+            }
+            if (update == null || update.isBlank()) {
+                throw new IllegalArgumentException("update cannot be null or blank");
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package no.clueless.guestbook.persistence;
+
+import no.clueless.guestbook.metrics.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Brings a database up to the latest version of its schema, recording every migration it applies in a
+ * {@code schema_version} table.
+ * <p>
+ * Each migration's schema changes are applied in one transaction together with its row in {@code schema_version}, so a
+ * crash leaves the database at one version or the next. A migration which has to update existing rows does so in a
+ * backfill afterwards, one short transaction per batch of ids with the progress recorded alongside, so the writer is
+ * never held for long and a backfill cut short by a restart picks up where it left off. Later migrations are only
+ * applied once the backfill before them has finished, so each migration can rely on the ones before it.
+ */
+class SchemaMigrator {
+    private static final Logger log = LoggerFactory.getLogger(SchemaMigrator.class);
+
+    private final SqliteConnectionPool connectionPool;
+    private final List<Migration>      migrations;
+    private final int                  backfillBatchSize;
+    private final Histogram            migrateTimer;
+    private final Histogram            backfillTimer;
+
+    /**
+     * @param connectionPool    The pool of the database to migrate.
+     * @param migrations        Every migration, in order of version.
+     * @param backfillBatchSize The number of ids to update per backfill transaction.
+     * @param migrateTimer      Where to record how long applying migrations took.
+     * @param backfillTimer     Where to record how long each backfill batch took.
+     */
+    SchemaMigrator(SqliteConnectionPool connectionPool, List<Migration> migrations, int backfillBatchSize, Histogram migrateTimer, Histogram backfillTimer) {
+        if (connectionPool == null) {
+            throw new IllegalArgumentException("connectionPool cannot be null");
+        }
+        if (migrations == null) {
+            throw new IllegalArgumentException("migrations cannot be null");
+        }
+        for (var i = 0; i < migrations.size(); i++) {
+            if (migrations.get(i).version() != i + 1) {
+                throw new IllegalArgumentException("migrations must be numbered from 1 without gaps");
+            }
+        }
+        if (backfillBatchSize < 1) {
+            throw new IllegalArgumentException("backfillBatchSize must be greater than 0");
+        }
+        if (migrateTimer == null) {
+            throw new IllegalArgumentException("migrateTimer cannot be null");
+        }
+        if (backfillTimer == null) {
+            throw new IllegalArgumentException("backfillTimer cannot be null");
+        }
+
+        this.connectionPool    = connectionPool;
+        this.migrations        = List.copyOf(migrations);
+        this.backfillBatchSize = backfillBatchSize;
+        this.migrateTimer      = migrateTimer;
+        this.backfillTimer     = backfillTimer;
+    }
+
+    /**
+     * Apply the migrations the database has not had yet, up to the first one whose backfill has not finished.
+     *
+     * @return Whether the database is at the latest version with every backfill finished.
+     */
+    boolean migrate() {
+        return pendingBackfill() == null;
+    }
+
+    /**
+     * Run the unfinished backfill, if any, applying the migrations after it as it finishes, until the database is at the
+     * latest version or a stop is requested. Meant to run in the background while the database is in use.
+     *
+     * @param stopRequested Checked between batches.
+     * @return Whether the database is at the latest version with every backfill finished.
+     */
+    boolean backfill(BooleanSupplier stopRequested) {
+        if (stopRequested == null) {
+            throw new IllegalArgumentException("stopRequested cannot be null");
+        }
+
+        for (var migration = pendingBackfill(); migration != null; migration = pendingBackfill()) {
+            if (!backfill(migration, stopRequested)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean backfill(Migration migration, BooleanSupplier stopRequested) {
+        var backfill = migration.backfill();
+        var progress = connectionPool.write(backfillTimer, connection -> {
+            try (var statement = connection.connection().createStatement()) {
+                return new long[]{
+                        queryLong(statement, "SELECT backfilledThrough FROM schema_version WHERE version = " + migration.version()),
+                        queryLong(statement, "SELECT COALESCE(MAX(id), 0) FROM " + backfill.table())
+                };
+            }
+        });
+        var startNanos = System.nanoTime();
+        log.info("Backfilling {} for schema version {}, ids {} to {}", backfill.table(), migration.version(), progress[0] + 1, progress[1]);
+
+        for (var backfilledThrough = progress[0]; backfilledThrough < progress[1]; ) {
+            if (stopRequested.getAsBoolean()) {
+                log.info("Stopped backfilling {} for schema version {} after id {}", backfill.table(), migration.version(), backfilledThrough);
+                return false;
+            }
+
+            var from    = backfilledThrough;
+            var through = Math.min(progress[1], from + backfillBatchSize);
+            connectionPool.write(backfillTimer, connection -> inTransaction(connection.connection(), () -> {
+                var update = connection.prepare(backfill.update());
+                update.setLong(1, from);
+                update.setLong(2, through);
+                update.executeUpdate();
+
+                var recordProgress = connection.prepare("UPDATE schema_version SET backfilledThrough = ? WHERE version = ?");
+                recordProgress.setLong(1, through);
+                recordProgress.setInt(2, migration.version());
+                return recordProgress.executeUpdate();
+            }));
+            backfilledThrough = through;
+        }
+
+        connectionPool.write(backfillTimer, connection -> {
+            var finish = connection.prepare("UPDATE schema_version SET backfilledAt = ? WHERE version = ?");
+            finish.setLong(1, System.currentTimeMillis());
+            finish.setInt(2, migration.version());
+            return finish.executeUpdate();
+        });
+        log.info("Backfilled {} for schema version {} in {} ms", backfill.table(), migration.version(), (System.nanoTime() - startNanos) / 1_000_000);
+        return true;
+    }
+
+    /**
+     * Apply the migrations the database has not had yet, stopping at the first one whose backfill has not finished.
+     *
+     * @return The migration whose backfill has to finish before the rest can be applied, or null if there is none.
+     */
+    private Migration pendingBackfill() {
+        return connectionPool.write(migrateTimer, connection -> {
+            var sqlConnection = connection.connection();
+            try (var statement = sqlConnection.createStatement()) {
+                statement.execute("""
+                        CREATE TABLE IF NOT EXISTS schema_version (
+                            version INTEGER PRIMARY KEY,
+                            description TEXT NOT NULL,
+                            appliedAt INTEGER NOT NULL,
+                            backfilledThrough INTEGER,
+                            backfilledAt INTEGER
+                        )
+                        """);
+
+                for (var migration : migrations) {
+                    var pending = inTransaction(sqlConnection, () -> {
+                        // Checked within the transaction, in case another process is migrating the same database.
+                        if (queryLong(statement, "SELECT COUNT(*) FROM schema_version WHERE version = " + migration.version()) > 0) {
+                            return migration.backfill() != null && queryLong(statement, "SELECT COUNT(*) FROM schema_version WHERE version = " + migration.version() + " AND backfilledAt IS NULL") > 0;
+                        }
+
+                        migration.schema().apply(statement);
+                        // A backfill of an empty table is finished before it starts.
+                        var now             = System.currentTimeMillis();
+                        var pendingBackfill = migration.backfill() != null && queryLong(statement, "SELECT EXISTS (SELECT 1 FROM " + migration.backfill().table() + ")") > 0;
+                        var insert          = connection.prepare("INSERT INTO schema_version(version, description, appliedAt, backfilledThrough, backfilledAt) VALUES(?, ?, ?, ?, ?)");
+                        insert.setInt(1, migration.version());
+                        insert.setString(2, migration.description());
+                        insert.setLong(3, now);
+                        insert.setObject(4, migration.backfill() == null ? null : 0L);
+                        insert.setObject(5, migration.backfill() == null || pendingBackfill ? null : now);
+                        insert.executeUpdate();
+                        log.info("Migrated the database to schema version {}: {}", migration.version(), migration.description());
+                        return pendingBackfill;
+                    });
+                    if (pending) {
+                        return migration;
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    private static long queryLong(Statement statement, String sql) throws SQLException {
+        try (var resultSet = statement.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private static <T> T inTransaction(Connection connection, SqlSupplier<T> work) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            var result = work.get();
+            connection.commit();
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlSupplier<T> {
+        T get() throws SQLException;
+    }
+}
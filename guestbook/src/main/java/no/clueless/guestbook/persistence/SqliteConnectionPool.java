@@ -0,0 +1,381 @@
+package no.clueless.guestbook.persistence;
+
+import no.clueless.guestbook.metrics.Histogram;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A small connection pool tailored to SQLite's concurrency model: one dedicated writer connection and a fixed set of
+ * read-only reader connections, all kept open for the lifetime of the pool. The database is put in WAL mode so readers
+ * never block the writer and vice versa.
+ * <p>
+ * A third, dedicated connection is kept for change monitoring, because {@code PRAGMA data_version} is only meaningful
+ * when it is asked of the same connection every time.
+ * <p>
+ * Every pooled connection caches its prepared statements by SQL text. A connection is only ever used by one thread at
+ * a time, so the cache needs no synchronization, and callers must never close the statements they get from it.
+ * <p>
+ * JDBC work requested from a virtual thread is handed to a platform thread and awaited, because the native SQLite calls
+ * would otherwise pin the virtual thread to its carrier for their whole duration. There is one platform thread per
+ * connection, so handed-off work never queues. Waiting for a connection only uses {@code java.util.concurrent} locks,
+ * which do not pin.
+ * <p>
+ * The time spent waiting for a connection is recorded per kind of connection, and every piece of work is timed by the
+ * {@link Histogram} its caller passes along.
+ */
+public class SqliteConnectionPool implements AutoCloseable {
+    private static final Logger log                  = LoggerFactory.getLogger(SqliteConnectionPool.class);
+    private static final int    BUSY_TIMEOUT_MILLIS  = 5000;
+    private static final int    CACHE_SIZE_KIBIBYTES = 8192;
+    private static final long   MMAP_SIZE_BYTES      = 256L * 1024 * 1024;
+
+    private final PooledConnection                writer;
+    private final ReentrantLock                   writerLock  = new ReentrantLock();
+    private final PooledConnection                monitor;
+    private final ReentrantLock                   monitorLock = new ReentrantLock();
+    private final List<PooledConnection>          readers;
+    private final BlockingQueue<PooledConnection> idleReaders;
+    private final ExecutorService                 platformExecutor;
+    private final Histogram                       readerWait;
+    private final Histogram                       writerWait;
+    private final Histogram                       monitorWait;
+    private volatile boolean                      closed;
+
+    public SqliteConnectionPool(String connectionString, int readerPoolSize, MetricsRegistry metrics) {
+        if (connectionString == null || connectionString.isBlank()) {
+            throw new IllegalArgumentException("connectionString cannot be null or blank");
+        }
+        if (readerPoolSize < 0) {
+            throw new IllegalArgumentException("readerPoolSize must be greater than or equal to 0");
+        }
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics cannot be null");
+        }
+
+        // An in-memory database is private to the connection that created it, so every read has to go through the writer.
+        var inMemory                = connectionString.contains(":memory:");
+        var effectiveReaderPoolSize = inMemory ? 0 : readerPoolSize;
+
+        try {
+            this.writer      = new PooledConnection(openWriter(connectionString));
+            this.monitor     = inMemory ? null : new PooledConnection(openReader(connectionString));
+            this.readers     = new ArrayList<>(effectiveReaderPoolSize);
+            this.idleReaders = new ArrayBlockingQueue<>(Math.max(1, effectiveReaderPoolSize));
+            for (var i = 0; i < effectiveReaderPoolSize; i++) {
+                var reader = new PooledConnection(openReader(connectionString));
+                readers.add(reader);
+                idleReaders.add(reader);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to open database connections", e);
+        }
+
+        this.platformExecutor = Executors.newFixedThreadPool(effectiveReaderPoolSize + 2, runnable -> {
+            var thread = new Thread(runnable, "sqlite-jdbc");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        var help         = "Time spent waiting for a database connection.";
+        this.readerWait  = metrics.histogram("guestbook_database_connection_wait_seconds", help, "connection", "reader");
+        this.writerWait  = metrics.histogram("guestbook_database_connection_wait_seconds", help, "connection", "writer");
+        this.monitorWait = metrics.histogram("guestbook_database_connection_wait_seconds", help, "connection", "monitor");
+
+        log.info("Opened SQLite connection pool with 1 writer, {} reader connection(s) and {} monitor connection(s)", effectiveReaderPoolSize, inMemory ? 0 : 1);
+    }
+
+    private static Connection openWriter(String connectionString) throws SQLException {
+        var config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+        config.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+        config.setCacheSize(-CACHE_SIZE_KIBIBYTES);
+        var connection = DriverManager.getConnection(connectionString, config.toProperties());
+        applyMmapSize(connection);
+        return connection;
+    }
+
+    private static Connection openReader(String connectionString) throws SQLException {
+        var config = new SQLiteConfig();
+        config.setReadOnly(true);
+        config.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+        config.setCacheSize(-CACHE_SIZE_KIBIBYTES);
+        var connection = DriverManager.getConnection(connectionString, config.toProperties());
+        applyMmapSize(connection);
+        return connection;
+    }
+
+    private static void applyMmapSize(Connection connection) throws SQLException {
+        try (var statement = connection.createStatement()) {
+            statement.execute("PRAGMA mmap_size = " + MMAP_SIZE_BYTES);
+        }
+    }
+
+    /**
+     * Run work on one of the reader connections, waiting for one to become idle if all of them are busy.
+     *
+     * @param timer Where to record how long the work took.
+     * @param work  The work to run.
+     * @return The result of the work.
+     */
+    public <T> T read(Histogram timer, SqlFunction<T> work) {
+        if (timer == null) {
+            throw new IllegalArgumentException("timer cannot be null");
+        }
+        if (work == null) {
+            throw new IllegalArgumentException("work cannot be null");
+        }
+        if (readers.isEmpty()) {
+            return write(timer, work);
+        }
+        ensureOpen();
+
+        PooledConnection reader;
+        var              waitStart = System.nanoTime();
+        try {
+            reader = idleReaders.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a reader connection", e);
+        }
+        readerWait.recordSince(waitStart);
+
+        try {
+            return apply(timer, work, reader);
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to read from database", e);
+        } finally {
+            idleReaders.add(reader);
+        }
+    }
+
+    /**
+     * Run work on the writer connection. Writers are serialized, which is what SQLite does anyway.
+     *
+     * @param timer Where to record how long the work took.
+     * @param work  The work to run.
+     * @return The result of the work.
+     */
+    public <T> T write(Histogram timer, SqlFunction<T> work) {
+        if (timer == null) {
+            throw new IllegalArgumentException("timer cannot be null");
+        }
+        if (work == null) {
+            throw new IllegalArgumentException("work cannot be null");
+        }
+        ensureOpen();
+
+        var waitStart = System.nanoTime();
+        writerLock.lock();
+        writerWait.recordSince(waitStart);
+        try {
+            return apply(timer, work, writer);
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to write to database", e);
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * Run work on the dedicated monitoring connection. For in-memory databases, which cannot be shared between
+     * connections, the work runs on the writer instead.
+     *
+     * @param timer Where to record how long the work took.
+     * @param work  The work to run.
+     * @return The result of the work.
+     */
+    public <T> T monitor(Histogram timer, SqlFunction<T> work) {
+        if (timer == null) {
+            throw new IllegalArgumentException("timer cannot be null");
+        }
+        if (work == null) {
+            throw new IllegalArgumentException("work cannot be null");
+        }
+        if (monitor == null) {
+            return write(timer, work);
+        }
+        ensureOpen();
+
+        var waitStart = System.nanoTime();
+        monitorLock.lock();
+        monitorWait.recordSince(waitStart);
+        try {
+            return apply(timer, work, monitor);
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to read from database", e);
+        } finally {
+            monitorLock.unlock();
+        }
+    }
+
+    /**
+     * @return Whether {@link #monitor(Histogram, SqlFunction)} runs on a connection of its own, so that {@code PRAGMA data_version}
+     * changes whenever any other connection commits.
+     */
+    public boolean hasDedicatedMonitor() {
+        return monitor != null;
+    }
+
+    private <T> T apply(Histogram timer, SqlFunction<T> work, PooledConnection connection) throws SQLException {
+        if (!Thread.currentThread().isVirtual()) {
+            return timed(timer, work, connection);
+        }
+
+        var future      = platformExecutor.submit(() -> timed(timer, work, connection));
+        var interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    // The connection is still in use by the platform thread, so it cannot be handed back before the work is done.
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    switch (e.getCause()) {
+                        case SQLException sqlException -> throw sqlException;
+                        case RuntimeException runtimeException -> throw runtimeException;
+                        case Error error -> throw error;
+                        default -> throw new RuntimeException(e.getCause());
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static <T> T timed(Histogram timer, SqlFunction<T> work, PooledConnection connection) throws SQLException {
+        var start = System.nanoTime();
+        try {
+            return work.apply(connection);
+        } finally {
+            timer.recordSince(start);
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("connection pool is closed");
+        }
+    }
+
+    /**
+     * Close every connection in the pool, waiting a short while for readers which are still in use.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (var i = 0; i < readers.size(); i++) {
+            try {
+                var reader = idleReaders.poll(BUSY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (reader == null) {
+                    log.warn("Timed out waiting for reader connections to become idle");
+                    break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        readers.forEach(PooledConnection::close);
+
+        if (monitor != null) {
+            monitorLock.lock();
+            try {
+                monitor.close();
+            } finally {
+                monitorLock.unlock();
+            }
+        }
+
+        writerLock.lock();
+        try {
+            writer.close();
+        } finally {
+            writerLock.unlock();
+        }
+
+        platformExecutor.shutdown();
+        log.info("Closed SQLite connection pool");
+    }
+
+    @FunctionalInterface
+    public interface SqlFunction<T> {
+        T apply(PooledConnection connection) throws SQLException;
+    }
+
+    /**
+     * A connection which is only ever used by one thread at a time, along with its cache of prepared statements.
+     */
+    public static final class PooledConnection {
+        private final Connection                     connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Connection connection() {
+            return connection;
+        }
+
+        /**
+         * Get a cached prepared statement for the SQL, preparing it on first use. The statement belongs to the pool and
+         * must not be closed by the caller.
+         *
+         * @param sql The SQL to prepare.
+         * @return The prepared statement.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            var statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        private void close() {
+            for (var statement : statements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    log.warn("Failed to close prepared statement", e);
+                }
+            }
+            statements.clear();
+
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.warn("Failed to close database connection", e);
+            }
+        }
+    }
+}
@@ -1,60 +1,158 @@
 package no.clueless.guestbook.persistence;
 
+import no.clueless.guestbook.ApprovedEntry;
 import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.EntryFilter;
+import no.clueless.guestbook.SearchResult;
+import no.clueless.guestbook.SearchResults;
+import no.clueless.guestbook.metrics.Histogram;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
-public class SqliteGuestbookRepository {
-    private final String connectionString;
+public class SqliteGuestbookRepository implements GuestbookRepository {
+    public static final  int         DEFAULT_READER_POOL_SIZE    = 4;
+    public static final  int         DEFAULT_MAXIMUM_BATCH_SIZE  = 64;
+    public static final  Duration    DEFAULT_MAXIMUM_BATCH_DELAY = Duration.ofMillis(2);
+    private static final Logger      log                         = LoggerFactory.getLogger(SqliteGuestbookRepository.class);
+    private static final int         MAXIMUM_WRITE_QUEUE_SIZE    = 10_000;
+    private static final Set<String> ORDER_BY_COLUMNS            = Set.of("id", "name", "message", "timestamp");
+    private static final int         MAXIMUM_SEARCH_TERMS        = 8;
+    private static final int         MAXIMUM_RANKED_MATCHES      = 10_000;
+    private static final int         BACKFILL_BATCH_SIZE         = 1000;
+    private static final int         EXPORT_BATCH_SIZE           = 1000;
+
+    private final    SqliteConnectionPool connectionPool;
+    private final    GroupCommitWriter    groupCommitWriter;
+    private final    SchemaMigrator       schemaMigrator;
+    private final    Histogram            getEntryTimer;
+    private final    Histogram            getApprovedEntriesTimer;
+    private final    Histogram            getApprovedEntriesAfterTimer;
+    private final    Histogram            getNumberOfApprovedEntriesTimer;
+    private final    Histogram            getApprovedEntriesVersionTimer;
+    private final    Histogram            getEntriesApprovedAfterTimer;
+    private final    Histogram            getLastApprovalSequenceTimer;
+    private final    Histogram            searchApprovedEntriesTimer;
+    private final    Histogram            getPendingEntriesTimer;
+    private final    Histogram            moderateEntriesTimer;
+    private final    Histogram            exportEntriesTimer;
+    private          long                 lastDataVersion            = -1;
+    private          long                 lastApprovedEntriesVersion = -1;
+    // Whether every row has its creation time in createdAt, so it can be compared and ordered by without a fallback.
+    private volatile boolean              migrated;
+    private volatile boolean              closing;
+    private          Thread               backfillThread;
 
     public SqliteGuestbookRepository(String connectionString) {
+        this(connectionString, DEFAULT_READER_POOL_SIZE);
+    }
+
+    public SqliteGuestbookRepository(String connectionString, int readerPoolSize) {
+        this(connectionString, readerPoolSize, DEFAULT_MAXIMUM_BATCH_SIZE, DEFAULT_MAXIMUM_BATCH_DELAY);
+    }
+
+    public SqliteGuestbookRepository(String connectionString, int readerPoolSize, int maximumBatchSize, Duration maximumBatchDelay) {
+        this(connectionString, readerPoolSize, maximumBatchSize, maximumBatchDelay, new MetricsRegistry());
+    }
+
+    /**
+     * @param connectionString  The JDBC connection string of the SQLite database.
+     * @param readerPoolSize    The number of read-only connections to keep open next to the writer connection.
+     * @param maximumBatchSize  The maximum number of new entries to insert in one transaction.
+     * @param maximumBatchDelay The longest a new entry waits for others to share its transaction with.
+     * @param metrics           Where to record query and connection wait timings.
+     */
+    public SqliteGuestbookRepository(String connectionString, int readerPoolSize, int maximumBatchSize, Duration maximumBatchDelay, MetricsRegistry metrics) {
         if (connectionString == null || connectionString.isBlank()) {
             throw new IllegalArgumentException("connectionString cannot be null or blank");
         }
-        this.connectionString = connectionString;
+        if (readerPoolSize < 0) {
+            throw new IllegalArgumentException("readerPoolSize must be greater than or equal to 0");
+        }
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics cannot be null");
+        }
+        this.connectionPool                  = new SqliteConnectionPool(connectionString, readerPoolSize, metrics);
+        this.groupCommitWriter               = GroupCommitWriter.start(connectionPool, maximumBatchSize, maximumBatchDelay, MAXIMUM_WRITE_QUEUE_SIZE, queryTimer(metrics, "insert_batch"));
+        this.getEntryTimer                   = queryTimer(metrics, "get_entry");
+        this.getApprovedEntriesTimer         = queryTimer(metrics, "get_approved_entries");
+        this.getApprovedEntriesAfterTimer    = queryTimer(metrics, "get_approved_entries_after");
+        this.getNumberOfApprovedEntriesTimer = queryTimer(metrics, "get_number_of_approved_entries");
+        this.getApprovedEntriesVersionTimer  = queryTimer(metrics, "get_approved_entries_version");
+        this.getEntriesApprovedAfterTimer    = queryTimer(metrics, "get_entries_approved_after");
+        this.getLastApprovalSequenceTimer    = queryTimer(metrics, "get_last_approval_sequence");
+        this.schemaMigrator                  = new SchemaMigrator(connectionPool, GuestbookSchema.MIGRATIONS, BACKFILL_BATCH_SIZE, queryTimer(metrics, "initialize"), queryTimer(metrics, "backfill_batch"));
+        this.searchApprovedEntriesTimer      = queryTimer(metrics, "search_approved_entries");
+        this.getPendingEntriesTimer          = queryTimer(metrics, "get_pending_entries");
+        this.moderateEntriesTimer            = queryTimer(metrics, "moderate_entries");
+        this.exportEntriesTimer              = queryTimer(metrics, "export_entries");
+        metrics.gauge("guestbook_database_write_queue_depth", "Number of new entries waiting to be written.", groupCommitWriter::queueDepth);
+    }
+
+    private static Histogram queryTimer(MetricsRegistry metrics, String query) {
+        return metrics.histogram("guestbook_database_query_duration_seconds", "Time spent running database queries, not counting the wait for a connection.", "query", query);
     }
 
+    /**
+     * Bring the database up to the latest schema version. Migrations which have to update existing rows do so on a
+     * background thread, while the guestbook is already being served, and pick up where they left off after a restart.
+     */
+    @Override
     public void initialize() {
-        try (var connection = DriverManager.getConnection(connectionString);
-             var statement = connection.createStatement()) {
-            statement.execute("""
-                    CREATE TABLE IF NOT EXISTS entries (
-                        id INTEGER PRIMARY KEY AUTOINCREMENT,
-                        isApproved BOOLEAN NOT NULL DEFAULT FALSE,
-                        name TEXT,
-                        message TEXT,
-                        timestamp DATETIME DEFAULT CURRENT_TIMESTAMP
-                   )
-                   """);
-        } catch (SQLException e) {
+        try {
+            migrate();
+        } catch (RuntimeException e) {
             throw new RuntimeException("Failed to setup database", e);
         }
+        if (!migrated) {
+            backfillThread = Thread.ofPlatform().name("guestbook-backfill").daemon().start(this::backfill);
+        }
+    }
+
+    /**
+     * Apply the migrations which can be applied before the database is used.
+     */
+    void migrate() {
+        migrated = schemaMigrator.migrate();
+    }
+
+    /**
+     * Finish the migrations which update existing rows, until they are done or the repository is closed.
+     */
+    void backfill() {
+        try {
+            migrated = schemaMigrator.backfill(() -> closing);
+        } catch (RuntimeException e) {
+            log.error("Failed to backfill the database, it will be resumed on the next start", e);
+        }
     }
 
+    @Override
     public Entry getEntry(int id) {
-        try (var connection = DriverManager.getConnection(connectionString)) {
-            var sql       = "SELECT isApproved, name, message, timestamp FROM entries WHERE id = ?";
-            var statement = connection.prepareStatement(sql);
+        return connectionPool.read(getEntryTimer, connection -> {
+            var statement = connection.prepare("SELECT " + entryColumns(migrated) + " FROM entries WHERE id = ?");
             statement.setInt(1, id);
-            var resultSet = statement.executeQuery();
 
-            if (resultSet.next()) {
-                var isApproved = resultSet.getBoolean("isApproved");
-                var name       = resultSet.getString("name");
-                var message    = resultSet.getString("message");
-                var timestamp  = resultSet.getTimestamp("timestamp").toLocalDateTime();
-                return Entry.existingEntry(id, isApproved, name, message, timestamp);
-            } else {
-                return null;
+            try (var resultSet = statement.executeQuery()) {
+                return resultSet.next() ? toEntry(resultSet) : null;
             }
-        } catch (SQLException e) {
-            throw new RuntimeException("Failed to connect to database", e);
-        }
+        });
     }
 
+    @Override
     public List<Entry> getApprovedEntries(int pageNumber, int pageSize, String orderByColumn, String orderDirection) {
         if (pageSize < 1) {
             throw new IllegalArgumentException("pageSize must be greater than 0");
@@ -62,67 +160,560 @@ public class SqliteGuestbookRepository {
         if (pageNumber < 0) {
             throw new IllegalArgumentException("pageNumber must be greater than or equal to 0");
         }
-        if (orderByColumn == null || orderByColumn.isBlank()) {
-            throw new IllegalArgumentException("orderByColumn cannot be null or blank");
+        validateOrdering(orderByColumn, orderDirection);
+
+        var sql = approvedEntriesPageSql(orderByColumn, orderDirection, migrated);
+
+        return connectionPool.read(getApprovedEntriesTimer, connection -> {
+            var statement = connection.prepare(sql);
+            statement.setInt(1, pageSize);
+            statement.setLong(2, (long) pageSize * pageNumber);
+
+            var entries = new ArrayList<Entry>(pageSize);
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    entries.add(toEntry(resultSet));
+                }
+            }
+            return entries;
+        });
+    }
+
+    /**
+     * Get a page of approved entries using keyset pagination, which costs the same no matter how deep into the guestbook
+     * the page is.
+     *
+     * @param afterId        The id of the last entry on the previous page, or null to get the first page.
+     * @param pageSize       The maximum number of entries to get.
+     * @param orderByColumn  The column to order by. Ties are broken by id.
+     * @param orderDirection The direction to order in, either asc or desc.
+     * @return The entries following the entry with the given id. If that entry no longer exists and the ordering is not
+     * by id, the page is empty.
+     */
+    @Override
+    public List<Entry> getApprovedEntriesAfter(Integer afterId, int pageSize, String orderByColumn, String orderDirection) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
         }
-        if (!orderByColumn.equalsIgnoreCase("id") && !orderByColumn.equalsIgnoreCase("name") && !orderByColumn.equalsIgnoreCase("message") && !orderByColumn.equalsIgnoreCase("timestamp")) {
-            throw new IllegalArgumentException("orderByColumn must be either id, name, message or timestamp");
+        validateOrdering(orderByColumn, orderDirection);
+
+        var sql = approvedEntriesAfterSql(orderByColumn, orderDirection, afterId != null, migrated);
+
+        return connectionPool.read(getApprovedEntriesAfterTimer, connection -> {
+            var statement      = connection.prepare(sql);
+            var parameterIndex = 1;
+            if (afterId != null) {
+                statement.setInt(parameterIndex++, afterId);
+            }
+            statement.setInt(parameterIndex, pageSize);
+
+            var entries = new ArrayList<Entry>(pageSize);
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    entries.add(toEntry(resultSet));
+                }
+            }
+            return entries;
+        });
+    }
+
+    @Override
+    public Long getNumberOfApprovedEntries() {
+        return connectionPool.read(getNumberOfApprovedEntriesTimer, connection -> {
+            try (var resultSet = connection.prepare("SELECT COUNT(*) FROM entries WHERE isApproved = true").executeQuery()) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        });
+    }
+
+    /**
+     * Search the approved entries, best matches first. Every word in the query has to match, and the last one also
+     * matches as a prefix so that results show up while the user is still typing.
+     * <p>
+     * Ranking has to score every match before the first page is known, so a query matching more than
+     * {@value #MAXIMUM_RANKED_MATCHES} entries, where the words are too common for the rank to mean much anyway, gets
+     * its matches newest first instead.
+     *
+     * @param query      The words to search for.
+     * @param pageNumber The page of results to get, starting at 0.
+     * @param pageSize   The maximum number of results to get.
+     * @return The matching entries on the page, each with a highlighted snippet, and the total number of matches.
+     */
+    @Override
+    public SearchResults searchApprovedEntries(String query, int pageNumber, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
         }
-        if (orderDirection == null || !orderDirection.equalsIgnoreCase("asc") && !orderDirection.equalsIgnoreCase("desc")) {
-            throw new IllegalArgumentException("orderDirection must be either asc or desc");
+        if (pageNumber < 0) {
+            throw new IllegalArgumentException("pageNumber must be greater than or equal to 0");
+        }
+        var matchExpression = matchExpression(query);
+        if (matchExpression == null) {
+            return new SearchResults(List.of(), 0);
         }
 
-        var entries = new ArrayList<Entry>();
+        return connectionPool.read(searchApprovedEntriesTimer, connection -> {
+            var countStatement = connection.prepare("SELECT COUNT(*) FROM entries_search WHERE entries_search MATCH ?");
+            countStatement.setString(1, matchExpression);
+            long totalResults;
+            try (var resultSet = countStatement.executeQuery()) {
+                resultSet.next();
+                totalResults = resultSet.getLong(1);
+            }
+            if (totalResults <= (long) pageSize * pageNumber) {
+                return new SearchResults(List.of(), totalResults);
+            }
 
-        try (var connection = DriverManager.getConnection(connectionString)) {
-            var sql       = String.format("SELECT id, isApproved, name, message, timestamp FROM entries WHERE isApproved = true ORDER BY %s %s LIMIT %d OFFSET %d", orderByColumn, orderDirection, pageSize, pageSize * pageNumber);
-            var statement = connection.createStatement();
-            var resultSet = statement.executeQuery(sql);
+            var statement = connection.prepare(searchSql(totalResults <= MAXIMUM_RANKED_MATCHES, migrated));
+            statement.setString(1, matchExpression);
+            statement.setInt(2, pageSize);
+            statement.setLong(3, (long) pageSize * pageNumber);
 
-            while (resultSet.next()) {
-                entries.add(Entry.existingEntry(
-                        resultSet.getInt("id"),
-                        resultSet.getBoolean("isApproved"),
-                        resultSet.getString("name"),
-                        resultSet.getString("message"),
-                        resultSet.getTimestamp("timestamp").toLocalDateTime()
-                ));
+            var results = new ArrayList<SearchResult>(pageSize);
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    results.add(new SearchResult(toEntry(resultSet), resultSet.getString("snippet")));
+                }
             }
-        } catch (SQLException e) {
-            throw new RuntimeException("Failed to connect to database", e);
+            return new SearchResults(results, totalResults);
+        });
+    }
+
+    /**
+     * The search index only holds approved entries, but entries are still checked so that nothing else can leak out. The
+     * cross join makes SQLite walk the index matches and look each one up in entries, rather than running the full-text
+     * query once for every approved entry.
+     */
+    static String searchSql(boolean ranked, boolean migrated) {
+        return """
+                SELECT entries.id, entries.isApproved, entries.name, entries.message, %s AS createdAt,
+                       snippet(entries_search, -1, '<mark>', '</mark>', '…', 16) AS snippet
+                FROM entries_search CROSS JOIN entries ON entries.id = entries_search.rowid
+                WHERE entries_search MATCH ? AND entries.isApproved = true
+                ORDER BY %s
+                LIMIT ? OFFSET ?
+                """.formatted(createdAt(migrated), ranked ? "entries_search.rank" : "entries_search.rowid DESC");
+    }
+
+    /**
+     * Turn what a user typed into an FTS5 query. Every word becomes a quoted phrase, so no input can be a syntax error
+     * or use FTS5 operators, and the last word matches as a prefix.
+     *
+     * @param query The words to search for.
+     * @return The match expression, or null if the query has no words.
+     */
+    static String matchExpression(String query) {
+        if (query == null) {
+            return null;
         }
 
-        return entries;
+        var terms = new ArrayList<String>();
+        for (var word : query.strip().split("\\s+")) {
+            var term = word.replace("\"", "");
+            if (!term.isEmpty() && terms.size() < MAXIMUM_SEARCH_TERMS) {
+                terms.add("\"" + term + "\"");
+            }
+        }
+        if (terms.isEmpty()) {
+            return null;
+        }
+        return String.join(" ", terms) + "*";
     }
 
-    public Long getNumberOfApprovedEntries() {
-        try(var connection = DriverManager.getConnection(connectionString)) {
-            var statement = connection.createStatement();
-            var resultSet = statement.executeQuery("SELECT COUNT(*) FROM entries WHERE isApproved = true");
-            resultSet.next();
-            return resultSet.getLong(1);
-        } catch (SQLException e) {
-            throw new RuntimeException("Failed to connect to database", e);
+    /**
+     * Get a number which changes whenever the set of approved entries changes, including changes made by other processes
+     * such as manage_entries.sh. Unless the database has been written to since the last call, this is answered from
+     * {@code PRAGMA data_version} alone without reading any table.
+     *
+     * @return The current version of the approved entries.
+     */
+    @Override
+    public long getApprovedEntriesVersion() {
+        return connectionPool.monitor(getApprovedEntriesVersionTimer, connection -> {
+            long dataVersion;
+            try (var resultSet = connection.prepare("PRAGMA data_version").executeQuery()) {
+                resultSet.next();
+                dataVersion = resultSet.getLong(1);
+            }
+            if (connectionPool.hasDedicatedMonitor() && dataVersion == lastDataVersion) {
+                return lastApprovedEntriesVersion;
+            }
+
+            try (var resultSet = connection.prepare("SELECT version FROM approved_entries_version WHERE id = 1").executeQuery()) {
+                lastApprovedEntriesVersion = resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+            lastDataVersion = dataVersion;
+            return lastApprovedEntriesVersion;
+        });
+    }
+
+    /**
+     * Get approved entries in the order they were approved in. The sequence is stamped by triggers, so approvals made by
+     * other processes are included, but entries approved before the database had sequences are not. Until every
+     * migration has been applied, there are none.
+     *
+     * @param afterSequence The sequence of the last entry already seen, or 0 to start from the first approval.
+     * @param limit         The maximum number of entries to get.
+     * @return The entries approved after the given sequence, in approval order.
+     */
+    @Override
+    public List<ApprovedEntry> getEntriesApprovedAfter(long afterSequence, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be greater than 0");
         }
+        if (!migrated) {
+            return List.of();
+        }
+
+        return connectionPool.read(getEntriesApprovedAfterTimer, connection -> {
+            var statement = connection.prepare("SELECT " + entryColumns(migrated) + ", approvalSequence FROM entries WHERE approvalSequence > ? AND isApproved = true ORDER BY approvalSequence LIMIT ?");
+            statement.setLong(1, afterSequence);
+            statement.setInt(2, limit);
+
+            var entries = new ArrayList<ApprovedEntry>(limit);
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    entries.add(new ApprovedEntry(resultSet.getLong("approvalSequence"), toEntry(resultSet)));
+                }
+            }
+            return entries;
+        });
     }
 
+    @Override
+    public long getLastApprovalSequence() {
+        if (!migrated) {
+            return 0;
+        }
+        return connectionPool.read(getLastApprovalSequenceTimer, connection -> {
+            try (var resultSet = connection.prepare("SELECT sequence FROM approval_sequence WHERE id = 1").executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0L;
+            }
+        });
+    }
+
+    /**
+     * Get a page of entries waiting for approval, oldest first.
+     *
+     * @param afterId  The id of the last entry on the previous page, or null to get the first page.
+     * @param pageSize The maximum number of entries to get.
+     * @return The entries on the page.
+     */
+    @Override
+    public List<Entry> getPendingEntries(Integer afterId, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
+
+        return connectionPool.read(getPendingEntriesTimer, connection -> {
+            var statement = connection.prepare("SELECT " + entryColumns(migrated) + " FROM entries WHERE isApproved = false AND id > ? ORDER BY id LIMIT ?");
+            statement.setInt(1, afterId == null ? 0 : afterId);
+            statement.setInt(2, pageSize);
+
+            var entries = new ArrayList<Entry>(pageSize);
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    entries.add(toEntry(resultSet));
+                }
+            }
+            return entries;
+        });
+    }
+
+    /**
+     * Approve the pending entries with the given ids, all in one transaction.
+     *
+     * @param ids The ids of the entries to approve. Ids of missing or already approved entries are ignored.
+     * @return The ids of the entries which were approved.
+     */
+    @Override
+    public List<Integer> approveEntries(Collection<Integer> ids) {
+        return moderateEntries("UPDATE entries SET isApproved = true WHERE id = ? AND isApproved = false", ids);
+    }
+
+    /**
+     * Approve every pending entry matching the filter in one statement.
+     *
+     * @param filter Which pending entries to approve.
+     * @return The ids of the entries which were approved.
+     */
+    @Override
+    public List<Integer> approveEntries(EntryFilter filter) {
+        return moderateEntries("UPDATE entries SET isApproved = true", filter);
+    }
+
+    /**
+     * Delete the entries with the given ids, approved or not, all in one transaction.
+     *
+     * @param ids The ids of the entries to delete. Ids of missing entries are ignored.
+     * @return The ids of the entries which were deleted.
+     */
+    @Override
+    public List<Integer> deleteEntries(Collection<Integer> ids) {
+        return moderateEntries("DELETE FROM entries WHERE id = ?", ids);
+    }
+
+    /**
+     * Delete every pending entry matching the filter in one statement.
+     *
+     * @param filter Which pending entries to delete.
+     * @return The ids of the entries which were deleted.
+     */
+    @Override
+    public List<Integer> deleteEntries(EntryFilter filter) {
+        return moderateEntries("DELETE FROM entries", filter);
+    }
+
+    private List<Integer> moderateEntries(String sql, Collection<Integer> ids) {
+        if (ids == null) {
+            throw new IllegalArgumentException("ids cannot be null");
+        }
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+
+        var distinctIds = List.copyOf(new LinkedHashSet<>(ids));
+        return inTransaction(connection -> {
+            var statement = connection.prepare(sql);
+            for (var id : distinctIds) {
+                statement.setInt(1, id);
+                statement.addBatch();
+            }
+
+            var updateCounts = statement.executeBatch();
+            var moderatedIds = new ArrayList<Integer>(distinctIds.size());
+            for (var i = 0; i < updateCounts.length; i++) {
+                if (updateCounts[i] > 0) {
+                    moderatedIds.add(distinctIds.get(i));
+                }
+            }
+            return moderatedIds;
+        });
+    }
+
+    private List<Integer> moderateEntries(String sql, EntryFilter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("filter cannot be null");
+        }
+
+        var parameters = new ArrayList<Object>();
+        var where      = new StringBuilder(" WHERE isApproved = false");
+        if (filter.nameContains() != null) {
+            where.append(" AND name LIKE ? ESCAPE '\\'");
+            parameters.add(likePattern(filter.nameContains()));
+        }
+        if (filter.messageContains() != null) {
+            where.append(" AND message LIKE ? ESCAPE '\\'");
+            parameters.add(likePattern(filter.messageContains()));
+        }
+        if (filter.createdAfter() != null) {
+            where.append(" AND ").append(createdAt(migrated)).append(" > ?");
+            parameters.add(EpochMillis.of(filter.createdAfter()));
+        }
+        if (filter.createdBefore() != null) {
+            where.append(" AND ").append(createdAt(migrated)).append(" < ?");
+            parameters.add(EpochMillis.of(filter.createdBefore()));
+        }
+
+        return inTransaction(connection -> {
+            var statement = connection.prepare(sql + where + " RETURNING id");
+            for (var i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
+            }
+
+            var moderatedIds = new ArrayList<Integer>();
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    moderatedIds.add(resultSet.getInt(1));
+                }
+            }
+            return moderatedIds;
+        });
+    }
+
+    /**
+     * Hand every matching entry to the consumer in id order, in batches of {@value #EXPORT_BATCH_SIZE} read by id. A
+     * reader connection is only held while a batch is read, so a slow download never keeps one from other requests, but
+     * the export is not a snapshot: entries approved or deleted while it runs may or may not be included.
+     *
+     * @param isApproved    Whether to export approved or pending entries, or null for both.
+     * @param createdAfter  The time, in UTC, entries have to be created at or after, or null.
+     * @param createdBefore The time, in UTC, entries have to be created before, or null.
+     * @param consumer      Where to send the entries.
+     * @return The number of entries exported.
+     */
+    @Override
+    public long exportEntries(Boolean isApproved, LocalDateTime createdAfter, LocalDateTime createdBefore, Consumer<Entry> consumer) {
+        if (consumer == null) {
+            throw new IllegalArgumentException("consumer cannot be null");
+        }
+
+        var parameters = new ArrayList<Object>();
+        var where      = new StringBuilder(" WHERE id > ?");
+        if (isApproved != null) {
+            where.append(" AND isApproved = ?");
+            parameters.add(isApproved);
+        }
+        if (createdAfter != null) {
+            where.append(" AND ").append(createdAt(migrated)).append(" >= ?");
+            parameters.add(EpochMillis.of(createdAfter));
+        }
+        if (createdBefore != null) {
+            where.append(" AND ").append(createdAt(migrated)).append(" < ?");
+            parameters.add(EpochMillis.of(createdBefore));
+        }
+        var sql = "SELECT " + entryColumns(migrated) + " FROM entries" + where + " ORDER BY id LIMIT " + EXPORT_BATCH_SIZE;
+
+        var exported = 0L;
+        var lastId   = 0;
+        while (true) {
+            var afterId = lastId;
+            var batch   = connectionPool.read(exportEntriesTimer, connection -> {
+                var statement = connection.prepare(sql);
+                statement.setInt(1, afterId);
+                for (var i = 0; i < parameters.size(); i++) {
+                    statement.setObject(i + 2, parameters.get(i));
+                }
+
+                var entries = new ArrayList<Entry>(EXPORT_BATCH_SIZE);
+                try (var resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        entries.add(toEntry(resultSet));
+                    }
+                }
+                return entries;
+            });
+            for (var entry : batch) {
+                consumer.accept(entry);
+            }
+            exported += batch.size();
+            if (batch.size() < EXPORT_BATCH_SIZE) {
+                return exported;
+            }
+            lastId = batch.get(batch.size() - 1).getId();
+        }
+    }
+
+    private static String likePattern(String text) {
+        return "%" + text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+    }
+
+    private <T> T inTransaction(SqliteConnectionPool.SqlFunction<T> work) {
+        return connectionPool.write(moderateEntriesTimer, connection -> {
+            var sqlConnection = connection.connection();
+            sqlConnection.setAutoCommit(false);
+            try {
+                var result = work.apply(connection);
+                sqlConnection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                sqlConnection.rollback();
+                throw e;
+            } finally {
+                sqlConnection.setAutoCommit(true);
+            }
+        });
+    }
+
+    /**
+     * Create an entry. Concurrent calls are committed together in batches by a single writer.
+     *
+     * @param entry The entry to create.
+     * @return The entry as it was stored.
+     * @throws RejectedExecutionException If too many entries are already waiting to be written.
+     */
+    @Override
     public Entry createEntry(Entry entry) {
         if (entry == null) {
             throw new IllegalArgumentException("entry cannot be null");
         }
 
-        try (var connection = DriverManager.getConnection(connectionString)) {
-            var sql       = "INSERT INTO entries(isApproved, name, message) VALUES(?, ?, ?)";
-            var statement = connection.prepareStatement(sql);
-            statement.setBoolean(1, false);
-            statement.setString(2, entry.getName());
-            statement.setString(3, entry.getMessage());
-            statement.executeUpdate();
+        try {
+            return groupCommitWriter.insert(entry).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to create entry", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while creating entry", e);
+        }
+    }
+
+    /**
+     * @return The number of new entries waiting to be written.
+     */
+    public int getWriteQueueDepth() {
+        return groupCommitWriter.queueDepth();
+    }
 
-            var id = statement.getGeneratedKeys().getInt(1);
-            return getEntry(id);
-        } catch (SQLException e) {
-            throw new RuntimeException("Failed to connect to database", e);
+    @Override
+    public void close() {
+        closing = true;
+        if (backfillThread != null) {
+            try {
+                backfillThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        groupCommitWriter.close();
+        connectionPool.close();
+    }
+
+    static void validateOrdering(String orderByColumn, String orderDirection) {
+        if (orderByColumn == null || orderByColumn.isBlank()) {
+            throw new IllegalArgumentException("orderByColumn cannot be null or blank");
         }
+        if (!ORDER_BY_COLUMNS.contains(orderByColumn.toLowerCase())) {
+            throw new IllegalArgumentException("orderByColumn must be either id, name, message or timestamp");
+        }
+        if (orderDirection == null || !orderDirection.equalsIgnoreCase("asc") && !orderDirection.equalsIgnoreCase("desc")) {
+            throw new IllegalArgumentException("orderDirection must be either asc or desc");
+        }
+    }
+
+    /**
+     * @return The creation time of entries in milliseconds. Until the migration to createdAt is done, rows which have not
+     * been moved over yet still have it in the text timestamp.
+     */
+    static String createdAt(boolean migrated) {
+        return migrated ? "createdAt" : "COALESCE(createdAt, " + GuestbookSchema.LEGACY_CREATED_AT + ")";
+    }
+
+    static String entryColumns(boolean migrated) {
+        return "id, isApproved, name, message, " + (migrated ? "createdAt" : createdAt(false) + " AS createdAt");
+    }
+
+    static String sortKey(String orderByColumn, boolean migrated) {
+        var column = orderByColumn.toLowerCase();
+        return column.equals("timestamp") ? createdAt(migrated) : column;
+    }
+
+    static String orderByClause(String orderByColumn, String orderDirection, boolean migrated) {
+        var direction = orderDirection.toLowerCase();
+        return orderByColumn.equalsIgnoreCase("id") ? "id " + direction : sortKey(orderByColumn, migrated) + " " + direction + ", id " + direction;
+    }
+
+    static String approvedEntriesPageSql(String orderByColumn, String orderDirection, boolean migrated) {
+        return "SELECT " + entryColumns(migrated) + " FROM entries WHERE isApproved = true ORDER BY " + orderByClause(orderByColumn, orderDirection, migrated) + " LIMIT ? OFFSET ?";
+    }
+
+    static String approvedEntriesAfterSql(String orderByColumn, String orderDirection, boolean hasCursor, boolean migrated) {
+        var key        = sortKey(orderByColumn, migrated);
+        var comparator = orderDirection.equalsIgnoreCase("desc") ? "<" : ">";
+        var cursor     = !hasCursor ? "" : key.equals("id")
+                ? " AND id " + comparator + " ?"
+                : " AND (" + key + ", id) " + comparator + " (SELECT " + key + ", id FROM entries WHERE id = ?)";
+        return "SELECT " + entryColumns(migrated) + " FROM entries WHERE isApproved = true" + cursor + " ORDER BY " + orderByClause(orderByColumn, orderDirection, migrated) + " LIMIT ?";
+    }
+
+    private static Entry toEntry(ResultSet resultSet) throws SQLException {
+        return Entry.existingEntry(
+                resultSet.getInt("id"),
+                resultSet.getBoolean("isApproved"),
+                resultSet.getString("name"),
+                resultSet.getString("message"),
+                EpochMillis.toLocalDateTime(resultSet.getLong("createdAt"))
+        );
     }
 }
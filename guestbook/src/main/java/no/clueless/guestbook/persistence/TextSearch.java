@@ -0,0 +1,212 @@
+package no.clueless.guestbook.persistence;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Full-text matching for engines without an index of their own, following FTS5 as the SQLite engine configures it: the
+ * unicode61 tokenizer with remove_diacritics 2, every word of a query as a phrase and the last one as a prefix.
+ */
+final class TextSearch {
+    private static final int MAXIMUM_SEARCH_TERMS = 8;
+    private static final int SNIPPET_TOKENS       = 16;
+
+    private TextSearch() {
+    }
+
+    /**
+     * Split a query into phrases of folded tokens, the same way the SQLite engine quotes every word as a phrase.
+     *
+     * @return The phrases, or null if the query has no words.
+     */
+    static List<List<String>> phrases(String query) {
+        if (query == null) {
+            return null;
+        }
+
+        var phrases = new ArrayList<List<String>>();
+        for (var word : query.strip().split("\\s+")) {
+            var term = word.replace("\"", "");
+            if (!term.isEmpty() && phrases.size() < MAXIMUM_SEARCH_TERMS) {
+                phrases.add(tokens(term).stream().map(Token::folded).toList());
+            }
+        }
+        return phrases.isEmpty() ? null : phrases;
+    }
+
+    /**
+     * Folding text is done code point by code point, so every folded token of an entry is part of its folded text.
+     *
+     * @return False if a token of the query cannot be in the entry's folded text.
+     */
+    static boolean mightMatch(List<List<String>> phrases, String foldedText) {
+        for (var phrase : phrases) {
+            for (var token : phrase) {
+                if (!foldedText.contains(token)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether every phrase is found in the name or the message, with the last token of the last phrase matching
+     * as a prefix. Phrases without tokens are left out, as in FTS5, and a query of nothing else matches nothing.
+     */
+    static boolean matches(List<List<String>> phrases, String name, String message) {
+        List<Token> nameTokens    = null;
+        List<Token> messageTokens = null;
+        for (var i = 0; i < phrases.size(); i++) {
+            var phrase = phrases.get(i);
+            var prefix = i == phrases.size() - 1;
+            if (phrase.isEmpty()) {
+                continue;
+            }
+            if (nameTokens == null) {
+                nameTokens    = tokens(name);
+                messageTokens = tokens(message);
+            }
+            if (find(phrase, prefix, nameTokens, 0) < 0 && find(phrase, prefix, messageTokens, 0) < 0) {
+                return false;
+            }
+        }
+        return nameTokens != null;
+    }
+
+    private static int find(List<String> phrase, boolean prefix, List<Token> tokens, int from) {
+        outer:
+        for (var start = from; start <= tokens.size() - phrase.size(); start++) {
+            for (var i = 0; i < phrase.size(); i++) {
+                var token = tokens.get(start + i).folded();
+                var last  = prefix && i == phrase.size() - 1;
+                if (last ? !token.startsWith(phrase.get(i)) : !token.equals(phrase.get(i))) {
+                    continue outer;
+                }
+            }
+            return start;
+        }
+        return -1;
+    }
+
+    /**
+     * Highlight the matches in whichever of the name and message has the most of them, showing at most
+     * {@value #SNIPPET_TOKENS} tokens around the first match, like FTS5's snippet function.
+     */
+    static String snippet(List<List<String>> phrases, String name, String message) {
+        var nameMatches    = matchedTokens(phrases, tokens(name));
+        var messageMatches = matchedTokens(phrases, tokens(message));
+        var useMessage     = messageMatches.cardinality() > nameMatches.cardinality();
+        var text           = useMessage ? message : name;
+        var tokens         = tokens(text);
+        var matched        = useMessage ? messageMatches : nameMatches;
+
+        var first = Math.max(0, Math.min(matched.nextSetBit(0), tokens.size() - SNIPPET_TOKENS));
+        var last  = Math.min(tokens.size(), first + SNIPPET_TOKENS) - 1;
+        var out   = new StringBuilder();
+        var index = first == 0 || tokens.isEmpty() ? 0 : tokens.get(first).start();
+        if (first > 0) {
+            out.append('…');
+        }
+        for (var i = first; i <= last; i++) {
+            var token = tokens.get(i);
+            out.append(text, index, token.start());
+            if (matched.get(i) && (i == first || !matched.get(i - 1))) {
+                out.append("<mark>");
+            }
+            out.append(text, token.start(), token.end());
+            if (matched.get(i) && (i == last || !matched.get(i + 1))) {
+                out.append("</mark>");
+            }
+            index = token.end();
+        }
+        if (last == tokens.size() - 1) {
+            out.append(text, index, text.length());
+        } else {
+            out.append('…');
+        }
+        return out.toString();
+    }
+
+    private static BitSet matchedTokens(List<List<String>> phrases, List<Token> tokens) {
+        var matched = new BitSet(tokens.size());
+        for (var i = 0; i < phrases.size(); i++) {
+            var phrase = phrases.get(i);
+            if (phrase.isEmpty()) {
+                continue;
+            }
+            for (var start = find(phrase, i == phrases.size() - 1, tokens, 0); start >= 0; start = find(phrase, i == phrases.size() - 1, tokens, start + 1)) {
+                matched.set(start, start + phrase.size());
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Split text into tokens the way FTS5's unicode61 tokenizer with remove_diacritics 2 does: runs of letters, numbers,
+     * private use characters and combining diacritical marks, lower-cased and without diacritics.
+     */
+    static List<Token> tokens(String text) {
+        var tokens = new ArrayList<Token>();
+        var start  = -1;
+        for (var i = 0; i <= text.length(); ) {
+            var codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (isTokenCharacter(codePoint)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                tokens.add(new Token(start, i, fold(text.substring(start, i))));
+                start = -1;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return tokens;
+    }
+
+    private static boolean isTokenCharacter(int codePoint) {
+        return isCombiningDiacritic(codePoint) || switch (Character.getType(codePoint)) {
+            case Character.UPPERCASE_LETTER, Character.LOWERCASE_LETTER, Character.TITLECASE_LETTER, Character.MODIFIER_LETTER,
+                 Character.OTHER_LETTER, Character.DECIMAL_DIGIT_NUMBER, Character.LETTER_NUMBER, Character.OTHER_NUMBER,
+                 Character.PRIVATE_USE -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean isCombiningDiacritic(int codePoint) {
+        return codePoint >= 0x300 && codePoint <= 0x36F;
+    }
+
+    /**
+     * Lower-case text and remove its diacritics one code point at a time. Like FTS5, only combining diacritical marks and
+     * Latin letters made of an ASCII letter and such marks lose their diacritics, so {@code é} becomes {@code e} but
+     * {@code ά} stays as it is.
+     */
+    static String fold(String text) {
+        if (text.chars().allMatch(c -> c < 0x80)) {
+            return text.toLowerCase(Locale.ROOT);
+        }
+
+        var folded = new StringBuilder(text.length());
+        text.codePoints().forEach(codePoint -> {
+            if (isCombiningDiacritic(codePoint)) {
+                return;
+            }
+            var lowerCase = Character.toLowerCase(codePoint);
+            if (lowerCase >= 0xC0 && lowerCase <= 0x24F || lowerCase >= 0x1E00 && lowerCase <= 0x1EFF) {
+                var decomposed = Normalizer.normalize(Character.toString(lowerCase), Normalizer.Form.NFD);
+                if (decomposed.charAt(0) < 0x80 && decomposed.codePoints().skip(1).allMatch(TextSearch::isCombiningDiacritic)) {
+                    lowerCase = decomposed.charAt(0);
+                }
+            }
+            folded.appendCodePoint(lowerCase);
+        });
+        return folded.toString();
+    }
+
+    record Token(int start, int end, String folded) {
+    }
+}
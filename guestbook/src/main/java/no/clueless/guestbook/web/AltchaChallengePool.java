@@ -0,0 +1,173 @@
+package no.clueless.guestbook.web;
+
+import org.altcha.altcha.Altcha;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A pool of Altcha challenges created ahead of time by a background thread, so handing one out is a queue poll with no
+ * HMAC or random number generation on the request path.
+ * <p>
+ * Challenges are only handed out during the first half of their lifetime, which leaves clients at least half of it to
+ * solve and submit them. Older ones are discarded. If the pool runs dry, a challenge is created on the spot.
+ * <p>
+ * The pool is filled with challenges of the current {@code maxNumber}, and challenges left over from before it changed
+ * are discarded. Challenges of any other {@code maxNumber}, such as those for clients with a difficulty of their own,
+ * are created on the spot.
+ */
+public class AltchaChallengePool implements AutoCloseable {
+    public static final  long     DEFAULT_MAX_NUMBER         = 100_000L;
+    public static final  Duration DEFAULT_CHALLENGE_LIFETIME = Duration.ofSeconds(1000);
+    private static final Logger   log                        = LoggerFactory.getLogger(AltchaChallengePool.class);
+
+    private final    String                         altchaHmacKey;
+    private final    LongSupplier                   maxNumber;
+    private final    Duration                       challengeLifetime;
+    private final    long                           maximumAgeNanos;
+    private final    LongSupplier                   clock;
+    private final    BlockingQueue<PooledChallenge> challenges;
+    private final    Thread                         refillThread;
+    private volatile boolean                        closed;
+
+    private AltchaChallengePool(String altchaHmacKey, LongSupplier maxNumber, Duration challengeLifetime, int poolSize, LongSupplier clock) {
+        this.altchaHmacKey     = altchaHmacKey;
+        this.maxNumber         = maxNumber;
+        this.challengeLifetime = challengeLifetime;
+        this.maximumAgeNanos   = challengeLifetime.toNanos() / 2;
+        this.clock             = clock;
+        this.challenges        = new ArrayBlockingQueue<>(poolSize);
+        this.refillThread      = new Thread(this::refill, "altcha-challenge-pool");
+        this.refillThread.setDaemon(true);
+    }
+
+    /**
+     * Create a pool and start filling it in the background. Filling starts only once the pool is fully constructed, so
+     * the refill thread never sees it half-initialized.
+     *
+     * @param altchaHmacKey     The key challenges are signed with.
+     * @param maxNumber         The {@code maxNumber} of the challenges to keep in the pool, which may change over time.
+     * @param challengeLifetime How long a challenge can be solved for.
+     * @param poolSize          The number of challenges to keep ready.
+     * @return The started pool.
+     */
+    public static AltchaChallengePool start(String altchaHmacKey, LongSupplier maxNumber, Duration challengeLifetime, int poolSize) {
+        return start(altchaHmacKey, maxNumber, challengeLifetime, poolSize, System::nanoTime);
+    }
+
+    static AltchaChallengePool start(String altchaHmacKey, LongSupplier maxNumber, Duration challengeLifetime, int poolSize, LongSupplier clock) {
+        if (altchaHmacKey == null || altchaHmacKey.isBlank()) {
+            throw new IllegalArgumentException("altchaHmacKey cannot be null or blank");
+        }
+        if (maxNumber == null) {
+            throw new IllegalArgumentException("maxNumber cannot be null");
+        }
+        if (challengeLifetime == null || challengeLifetime.toSeconds() < 2) {
+            throw new IllegalArgumentException("challengeLifetime must be at least 2 seconds");
+        }
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("poolSize must be greater than 0");
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("clock cannot be null");
+        }
+
+        var pool = new AltchaChallengePool(altchaHmacKey, maxNumber, challengeLifetime, poolSize, clock);
+        pool.refillThread.start();
+        return pool;
+    }
+
+    /**
+     * @return A fresh challenge of the current {@code maxNumber}, from the pool if one is available.
+     * @throws Exception If the pool is empty and creating a challenge fails.
+     */
+    public Altcha.Challenge take() throws Exception {
+        return take(maxNumber.getAsLong());
+    }
+
+    /**
+     * @param maxNumber The {@code maxNumber} of the challenge.
+     * @return A fresh challenge, from the pool if one of the {@code maxNumber} is available.
+     * @throws Exception If the challenge has to be created and creating it fails.
+     */
+    public Altcha.Challenge take(long maxNumber) throws Exception {
+        if (maxNumber != this.maxNumber.getAsLong()) {
+            return create(maxNumber);
+        }
+
+        var now = clock.getAsLong();
+        PooledChallenge pooledChallenge;
+        while ((pooledChallenge = challenges.poll()) != null) {
+            if (pooledChallenge.maxNumber() == maxNumber && now - pooledChallenge.createdAt() <= maximumAgeNanos) {
+                return pooledChallenge.challenge();
+            }
+        }
+
+        log.debug("Altcha challenge pool is empty, creating a challenge on the request path");
+        return create(maxNumber);
+    }
+
+    /**
+     * @return The number of challenges ready to be handed out.
+     */
+    public int size() {
+        return challenges.size();
+    }
+
+    private Altcha.Challenge create(long maxNumber) throws Exception {
+        return Altcha.createChallenge(new Altcha.ChallengeOptions()
+                .setMaxNumber(maxNumber)
+                .setHmacKey(altchaHmacKey)
+                .setExpiresInSeconds(challengeLifetime.toSeconds()));
+    }
+
+    private void refill() {
+        while (!closed) {
+            try {
+                var maxNumber       = this.maxNumber.getAsLong();
+                var pooledChallenge = new PooledChallenge(create(maxNumber), maxNumber, clock.getAsLong());
+                while (!closed && !challenges.offer(pooledChallenge, 1, TimeUnit.SECONDS)) {
+                    // The pool is full. Make room if the oldest challenge is too old, or too easy or hard, to hand out.
+                    var oldest = challenges.peek();
+                    if (oldest != null && (clock.getAsLong() - oldest.createdAt() > maximumAgeNanos || oldest.maxNumber() != this.maxNumber.getAsLong())) {
+                        challenges.remove(oldest);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Failed to create Altcha challenge for the pool", e);
+                try {
+                    TimeUnit.SECONDS.sleep(1);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop refilling the pool, waiting a short while for the refill thread to finish, so the pool no longer changes
+     * except through {@link #take()}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        refillThread.interrupt();
+        try {
+            refillThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private record PooledChallenge(Altcha.Challenge challenge, long maxNumber, long createdAt) {
+    }
+}
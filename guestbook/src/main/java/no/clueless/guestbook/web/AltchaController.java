@@ -1,29 +1,29 @@
 package no.clueless.guestbook.web;
 
 import io.javalin.http.Context;
-import org.altcha.altcha.Altcha;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class AltchaController {
-    private static final Logger log = LoggerFactory.getLogger(AltchaController.class);
-    private final        String altchaHmacKey;
+    private static final Logger              log = LoggerFactory.getLogger(AltchaController.class);
+    private final        AltchaChallengePool challengePool;
+    private final        AltchaDifficulty    difficulty;
 
-    public AltchaController(String altchaHmacKey) {
-        if (altchaHmacKey == null || altchaHmacKey.isBlank()) {
-            throw new IllegalArgumentException("altchaHmacKey cannot be null or blank");
+    public AltchaController(AltchaChallengePool challengePool, AltchaDifficulty difficulty) {
+        if (challengePool == null) {
+            throw new IllegalArgumentException("challengePool cannot be null");
+        }
+        if (difficulty == null) {
+            throw new IllegalArgumentException("difficulty cannot be null");
         }
 
-        this.altchaHmacKey = altchaHmacKey;
+        this.challengePool = challengePool;
+        this.difficulty    = difficulty;
     }
 
     public void createChallenge(Context ctx) {
-        var challengeOptions = new Altcha.ChallengeOptions()
-                .setMaxNumber(100000L)
-                .setHmacKey(altchaHmacKey)
-                .setExpiresInSeconds(1000);
         try {
-            var challenge = Altcha.createChallenge(challengeOptions);
+            var challenge = challengePool.take(difficulty.maxNumber(ClientAddress.of(ctx)));
             ctx.json(challenge);
         } catch (Exception e) {
             log.error("Failed to create Altcha challenge", e);
@@ -0,0 +1,223 @@
+package no.clueless.guestbook.web;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides how hard the Altcha challenges handed out are, so that spam gets more expensive to send the harder the
+ * guestbook is being flooded, and the cost lands on the senders' CPUs instead of the database and notifications.
+ * <p>
+ * The pressure is the highest of the submissions, failed verifications and write queue depth, each relative to its
+ * target, with submissions and failures counted over the last minute. The difficulty is the minimum {@code maxNumber}
+ * doubled once for every doubling of the pressure above 1, up to the maximum. It is raised as soon as the pressure rises,
+ * and lowered one step at a time, at most once per step down interval, so a flood which pauses does not get easy
+ * challenges straight away.
+ * <p>
+ * With client buckets, client addresses are also hashed into that many buckets, and a client gets the difficulty its
+ * bucket's submissions call for when that is higher than the global one. A single noisy client then pays more without
+ * raising the cost for everybody else.
+ * <p>
+ * The difficulty is not part of the signed challenge, so a solution is verified the same way whatever the difficulty of
+ * its challenge was, and challenges handed out before the difficulty changed stay valid for their whole lifetime.
+ */
+public class AltchaDifficulty {
+    public static final  long     DEFAULT_MAXIMUM_MAX_NUMBER                              = 1_600_000L;
+    public static final  int      DEFAULT_TARGET_SUBMISSIONS_PER_MINUTE                   = 30;
+    public static final  int      DEFAULT_TARGET_FAILED_VERIFICATIONS_PER_MINUTE          = 10;
+    public static final  int      DEFAULT_TARGET_SUBMISSIONS_PER_CLIENT_BUCKET_PER_MINUTE = 5;
+    static final         Duration WINDOW                                                  = Duration.ofMinutes(1);
+    static final         Duration STEP_DOWN_INTERVAL                                      = Duration.ofSeconds(10);
+    private static final int      WINDOW_SLOTS                                            = 6;
+    private static final Logger   log                                                     = LoggerFactory.getLogger(AltchaDifficulty.class);
+
+    private final    long                   minimumMaxNumber;
+    private final    long                   maximumMaxNumber;
+    private final    int                    maximumLevel;
+    private final    int                    targetSubmissionsPerMinute;
+    private final    int                    targetFailedVerificationsPerMinute;
+    private final    IntSupplier            writeQueueDepth;
+    private final    int                    targetWriteQueueDepth;
+    private final    int                    targetSubmissionsPerClientBucketPerMinute;
+    private final    LongSupplier           clock;
+    private final    SlidingWindowCounter   submissions;
+    private final    SlidingWindowCounter   failedVerifications;
+    private final    SlidingWindowCounter[] clientBuckets;
+    private final    LongAdder              totalFailedVerifications = new LongAdder();
+    private volatile int                    level;
+    private volatile long                   levelChangedAt;
+
+    /**
+     * @param minimumMaxNumber                          The {@code maxNumber} of challenges when there is no pressure.
+     * @param maximumMaxNumber                          The highest {@code maxNumber} to hand out, however high the pressure.
+     * @param targetSubmissionsPerMinute                The number of submissions per minute the guestbook takes without raising the difficulty.
+     * @param targetFailedVerificationsPerMinute        The number of failed verifications per minute tolerated without raising the difficulty.
+     * @param writeQueueDepth                           The number of new entries waiting to be written.
+     * @param targetWriteQueueDepth                     The write queue depth tolerated without raising the difficulty.
+     * @param clientBuckets                             The number of buckets to hash client addresses into, or 0 to give every client the same difficulty.
+     * @param targetSubmissionsPerClientBucketPerMinute The number of submissions per minute a client bucket makes without raising its difficulty.
+     */
+    public AltchaDifficulty(long minimumMaxNumber, long maximumMaxNumber, int targetSubmissionsPerMinute, int targetFailedVerificationsPerMinute, IntSupplier writeQueueDepth, int targetWriteQueueDepth, int clientBuckets, int targetSubmissionsPerClientBucketPerMinute) {
+        this(minimumMaxNumber, maximumMaxNumber, targetSubmissionsPerMinute, targetFailedVerificationsPerMinute, writeQueueDepth, targetWriteQueueDepth, clientBuckets, targetSubmissionsPerClientBucketPerMinute, System::nanoTime);
+    }
+
+    AltchaDifficulty(long minimumMaxNumber, long maximumMaxNumber, int targetSubmissionsPerMinute, int targetFailedVerificationsPerMinute, IntSupplier writeQueueDepth, int targetWriteQueueDepth, int clientBuckets, int targetSubmissionsPerClientBucketPerMinute, LongSupplier clock) {
+        if (minimumMaxNumber < 1) {
+            throw new IllegalArgumentException("minimumMaxNumber must be greater than 0");
+        }
+        // Altcha picks the secret number as an int.
+        if (maximumMaxNumber < minimumMaxNumber || maximumMaxNumber > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("maximumMaxNumber must be between minimumMaxNumber and " + Integer.MAX_VALUE);
+        }
+        if (targetSubmissionsPerMinute < 1) {
+            throw new IllegalArgumentException("targetSubmissionsPerMinute must be greater than 0");
+        }
+        if (targetFailedVerificationsPerMinute < 1) {
+            throw new IllegalArgumentException("targetFailedVerificationsPerMinute must be greater than 0");
+        }
+        if (writeQueueDepth == null) {
+            throw new IllegalArgumentException("writeQueueDepth cannot be null");
+        }
+        if (targetWriteQueueDepth < 1) {
+            throw new IllegalArgumentException("targetWriteQueueDepth must be greater than 0");
+        }
+        if (clientBuckets < 0) {
+            throw new IllegalArgumentException("clientBuckets cannot be negative");
+        }
+        if (targetSubmissionsPerClientBucketPerMinute < 1) {
+            throw new IllegalArgumentException("targetSubmissionsPerClientBucketPerMinute must be greater than 0");
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("clock cannot be null");
+        }
+
+        var maximumLevel = 0;
+        while ((minimumMaxNumber << maximumLevel) < maximumMaxNumber) {
+            maximumLevel++;
+        }
+
+        this.minimumMaxNumber                          = minimumMaxNumber;
+        this.maximumMaxNumber                          = maximumMaxNumber;
+        this.maximumLevel                              = maximumLevel;
+        this.targetSubmissionsPerMinute                = targetSubmissionsPerMinute;
+        this.targetFailedVerificationsPerMinute        = targetFailedVerificationsPerMinute;
+        this.writeQueueDepth                           = writeQueueDepth;
+        this.targetWriteQueueDepth                     = targetWriteQueueDepth;
+        this.targetSubmissionsPerClientBucketPerMinute = targetSubmissionsPerClientBucketPerMinute;
+        this.clock                                     = clock;
+        this.submissions                               = new SlidingWindowCounter(WINDOW, WINDOW_SLOTS, clock);
+        this.failedVerifications                       = new SlidingWindowCounter(WINDOW, WINDOW_SLOTS, clock);
+        this.clientBuckets                             = new SlidingWindowCounter[clientBuckets];
+        for (var bucket = 0; bucket < clientBuckets; bucket++) {
+            this.clientBuckets[bucket] = new SlidingWindowCounter(WINDOW, WINDOW_SLOTS, clock);
+        }
+        this.levelChangedAt                            = clock.getAsLong();
+    }
+
+    /**
+     * @param maxNumber The {@code maxNumber} of every challenge.
+     * @return A difficulty which never changes.
+     */
+    public static AltchaDifficulty fixed(long maxNumber) {
+        return new AltchaDifficulty(maxNumber, maxNumber, Integer.MAX_VALUE, Integer.MAX_VALUE, () -> 0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Count a submission of a new entry, whether it turns out to be valid or not.
+     *
+     * @param clientAddress The address of the client which made it.
+     */
+    public void recordSubmission(String clientAddress) {
+        submissions.increment();
+        var clientBucket = clientBucket(clientAddress);
+        if (clientBucket != null) {
+            clientBucket.increment();
+        }
+    }
+
+    /**
+     * Count a submission whose Altcha solution was rejected. Its client bucket counts it on top of the submission itself.
+     *
+     * @param clientAddress The address of the client which made it.
+     */
+    public void recordFailedVerification(String clientAddress) {
+        failedVerifications.increment();
+        totalFailedVerifications.increment();
+        var clientBucket = clientBucket(clientAddress);
+        if (clientBucket != null) {
+            clientBucket.increment();
+        }
+    }
+
+    /**
+     * @return The {@code maxNumber} for challenges handed out to clients without a difficulty of their own.
+     */
+    public long maxNumber() {
+        return maxNumberAt(level());
+    }
+
+    /**
+     * @param clientAddress The address of the client the challenge is for.
+     * @return The {@code maxNumber} for a challenge handed out to the client.
+     */
+    public long maxNumber(String clientAddress) {
+        var clientBucket = clientBucket(clientAddress);
+        var clientLevel  = clientBucket != null ? levelFor((double) clientBucket.sum() / targetSubmissionsPerClientBucketPerMinute) : 0;
+        return maxNumberAt(Math.max(level(), clientLevel));
+    }
+
+    /**
+     * @return The number of rejected Altcha solutions since startup.
+     */
+    public long failedVerifications() {
+        return totalFailedVerifications.sum();
+    }
+
+    private int level() {
+        var now     = clock.getAsLong();
+        var current = level;
+        var target  = levelFor(pressure());
+        if (target == current || (target < current && now - levelChangedAt < STEP_DOWN_INTERVAL.toNanos())) {
+            return current;
+        }
+
+        synchronized (this) {
+            if (level != current) {
+                return level;
+            }
+            level          = target > current ? target : current - 1;
+            levelChangedAt = now;
+            log.info("Changed the Altcha difficulty from {} to {}", maxNumberAt(current), maxNumberAt(level));
+            return level;
+        }
+    }
+
+    private double pressure() {
+        return Math.max(
+                (double) submissions.sum() / targetSubmissionsPerMinute,
+                Math.max((double) failedVerifications.sum() / targetFailedVerificationsPerMinute, (double) writeQueueDepth.getAsInt() / targetWriteQueueDepth)
+        );
+    }
+
+    private int levelFor(double pressure) {
+        if (pressure <= 1) {
+            return 0;
+        }
+        return (int) Math.min(maximumLevel, Math.ceil(Math.log(pressure) / Math.log(2)));
+    }
+
+    private long maxNumberAt(int level) {
+        return Math.min(maximumMaxNumber, minimumMaxNumber << level);
+    }
+
+    private SlidingWindowCounter clientBucket(String clientAddress) {
+        if (clientBuckets.length == 0 || clientAddress == null) {
+            return null;
+        }
+        return clientBuckets[Math.floorMod(clientAddress.hashCode(), clientBuckets.length)];
+    }
+}
@@ -0,0 +1,118 @@
+package no.clueless.guestbook.web;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the salts of Altcha challenges which have already been used, so that a solved challenge can only be
+ * submitted once during its lifetime.
+ * <p>
+ * Salts are kept in two generations of hash sets which rotate once per challenge lifetime. A salt is remembered for at
+ * least one full lifetime after it was used, after which its challenge has expired and verification rejects it anyway.
+ * Checking and remembering a salt is one concurrent set insertion followed by a lookup in the other generation. The
+ * generations are swapped together as one immutable pair, and a salt is inserted before the other generation is checked,
+ * so two uses of the same salt racing a rotation always see each other.
+ * <p>
+ * Each generation holds a bounded number of salts. When the current generation is full, solutions are rejected until
+ * the next rotation rather than forgotten early.
+ */
+public class AltchaReplayCache {
+    private static final Logger log = LoggerFactory.getLogger(AltchaReplayCache.class);
+
+    private final    long         rotationIntervalNanos;
+    private final    int          maximumEntriesPerGeneration;
+    private final    LongSupplier clock;
+    private volatile Generations  generations;
+
+    public AltchaReplayCache(Duration challengeLifetime, int maximumEntriesPerGeneration) {
+        this(challengeLifetime, maximumEntriesPerGeneration, System::nanoTime);
+    }
+
+    AltchaReplayCache(Duration challengeLifetime, int maximumEntriesPerGeneration, LongSupplier clock) {
+        if (challengeLifetime == null || challengeLifetime.isNegative() || challengeLifetime.isZero()) {
+            throw new IllegalArgumentException("challengeLifetime must be greater than 0");
+        }
+        if (maximumEntriesPerGeneration < 1) {
+            throw new IllegalArgumentException("maximumEntriesPerGeneration must be greater than 0");
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("clock cannot be null");
+        }
+
+        this.rotationIntervalNanos       = challengeLifetime.toNanos();
+        this.maximumEntriesPerGeneration = maximumEntriesPerGeneration;
+        this.clock                       = clock;
+        this.generations                 = new Generations(new Generation(clock.getAsLong()), new Generation(clock.getAsLong()));
+    }
+
+    /**
+     * Mark the salt of a challenge as used.
+     *
+     * @param salt The salt of a verified challenge.
+     * @return Whether this is the first time the salt is used, and the solution should be accepted.
+     */
+    public boolean consume(String salt) {
+        if (salt == null || salt.isBlank()) {
+            throw new IllegalArgumentException("salt cannot be null or blank");
+        }
+
+        var generations = rotateIfDue();
+        var generation  = generations.current();
+        if (generation.size().incrementAndGet() > maximumEntriesPerGeneration) {
+            generation.size().decrementAndGet();
+            log.warn("Rejecting Altcha solution because the replay cache is full");
+            return false;
+        }
+        if (!generation.salts().add(salt)) {
+            generation.size().decrementAndGet();
+            return false;
+        }
+        // If a rotation happened meanwhile, another use of the salt may have gone into the new generation. It either
+        // shows up here, or it comes after the insertion above and finds it in its previous generation.
+        var latest = this.generations;
+        if (generations.previous().salts().contains(salt) || latest != generations && isUsedInOther(latest, generation, salt)) {
+            // A rejected replay must not keep the salt around for longer than its first use did.
+            generation.salts().remove(salt);
+            generation.size().decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isUsedInOther(Generations generations, Generation own, String salt) {
+        return generations.current() != own && generations.current().salts().contains(salt)
+                || generations.previous() != own && generations.previous().salts().contains(salt);
+    }
+
+    private Generations rotateIfDue() {
+        var generations = this.generations;
+        var generation  = generations.current();
+        var now         = clock.getAsLong();
+        if (now - generation.startedAt() < rotationIntervalNanos) {
+            return generations;
+        }
+
+        synchronized (this) {
+            if (this.generations == generations) {
+                var previous = now - generation.startedAt() < 2 * rotationIntervalNanos ? generation : new Generation(now);
+                this.generations = new Generations(new Generation(now), previous);
+            }
+            return this.generations;
+        }
+    }
+
+    private record Generations(Generation current, Generation previous) {
+    }
+
+    private record Generation(long startedAt, Set<String> salts, AtomicInteger size) {
+        Generation(long startedAt) {
+            this(startedAt, ConcurrentHashMap.newKeySet(), new AtomicInteger());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package no.clueless.guestbook.web;
+
+/**
+ * Everything serving one of the guestbooks hosted under {@code /{book}}, opened by a {@link Bookshelf}.
+ *
+ * @param guestbookController  Serves the entries of the book.
+ * @param entryStream          Streams newly approved entries of the book.
+ * @param moderationController Serves the moderation endpoints of the book, or null if moderation is disabled.
+ * @param exportController     Serves the export endpoint of the book.
+ * @param shutdown             Releases everything the book holds, including its database file.
+ */
+public record Book(GuestbookController guestbookController, EntryStream entryStream, ModerationController moderationController, ExportController exportController, Runnable shutdown) implements AutoCloseable {
+    public Book {
+        if (guestbookController == null) {
+            throw new IllegalArgumentException("guestbookController cannot be null");
+        }
+        if (entryStream == null) {
+            throw new IllegalArgumentException("entryStream cannot be null");
+        }
+        if (exportController == null) {
+            throw new IllegalArgumentException("exportController cannot be null");
+        }
+        if (shutdown == null) {
+            throw new IllegalArgumentException("shutdown cannot be null");
+        }
+    }
+
+    /**
+     * @return Whether the book can be closed without cutting anyone off, meaning nobody is connected to its stream.
+     */
+    boolean isIdle() {
+        return entryStream.connectedClients() == 0;
+    }
+
+    @Override
+    public void close() {
+        shutdown.run();
+    }
+}
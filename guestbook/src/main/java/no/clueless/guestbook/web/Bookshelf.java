@@ -0,0 +1,257 @@
+package no.clueless.guestbook.web;
+
+import io.javalin.http.NotFoundResponse;
+import no.clueless.guestbook.metrics.Counter;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+
+/**
+ * The guestbooks hosted next to the default one, each in a SQLite file of its own named after the book. Since SQLite
+ * allows one writer per file, books never wait for each other's writes.
+ * <p>
+ * Books are opened when first requested and kept open while they are in use. Once more than the maximum number of books
+ * are open, the least recently used books which are idle are closed, so the number of open files stays bounded however
+ * many books there are. A book is only served if its file exists, so requests for made up books never create files.
+ */
+public class Bookshelf implements AutoCloseable {
+    public static final  int                            DEFAULT_MAXIMUM_OPEN_BOOKS = 64;
+    private static final Logger                         log                        = LoggerFactory.getLogger(Bookshelf.class);
+    private static final Pattern                        NAME                       = Pattern.compile("[a-z0-9][a-z0-9-]{0,62}");
+    // The first path segment of every other route, which would be ambiguous as book names.
+    private static final Set<String>                    RESERVED_NAMES             = Set.of("admin", "altcha", "entries");
+    private final        Path                           directory;
+    private final        int                            maximumOpenBooks;
+    private final        BiFunction<String, Path, Book> opener;
+    private final        LinkedHashMap<String, Shelved> books                      = new LinkedHashMap<>(16, 0.75f, true);
+    private final        Counter                        opened;
+    private final        Counter                        evicted;
+    private              boolean                        closed;
+
+    private Bookshelf(Path directory, int maximumOpenBooks, BiFunction<String, Path, Book> opener, MetricsRegistry metrics) {
+        this.directory        = directory;
+        this.maximumOpenBooks = maximumOpenBooks;
+        this.opener           = opener;
+        this.opened           = metrics.counter("guestbook_books_opened_total", "Number of times a book was opened.");
+        this.evicted          = metrics.counter("guestbook_books_evicted_total", "Number of times an idle book was closed to make room for another.");
+    }
+
+    /**
+     * Create an empty bookshelf which reports how many books are open.
+     *
+     * @param directory        The directory holding the database file of every book, named {@code <book>.db}.
+     * @param maximumOpenBooks The number of books to keep open before closing idle ones.
+     * @param opener           Opens the book with the given name from the given database file.
+     * @param metrics          Where to record how many books are open.
+     * @return The bookshelf.
+     */
+    public static Bookshelf create(Path directory, int maximumOpenBooks, BiFunction<String, Path, Book> opener, MetricsRegistry metrics) {
+        if (directory == null || !Files.isDirectory(directory)) {
+            throw new IllegalArgumentException("directory must be an existing directory");
+        }
+        if (maximumOpenBooks < 1) {
+            throw new IllegalArgumentException("maximumOpenBooks must be greater than 0");
+        }
+        if (opener == null) {
+            throw new IllegalArgumentException("opener cannot be null");
+        }
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics cannot be null");
+        }
+
+        var bookshelf = new Bookshelf(directory, maximumOpenBooks, opener, metrics);
+        metrics.gauge("guestbook_books_open", "Number of books currently open.", bookshelf::openBooks);
+        return bookshelf;
+    }
+
+    /**
+     * @return Whether the name could be the name of a book: lowercase letters, digits and dashes, and not the first path
+     * segment of another route.
+     */
+    public static boolean isValidName(String name) {
+        return name != null && NAME.matcher(name).matches() && !RESERVED_NAMES.contains(name);
+    }
+
+    /**
+     * Borrow a book, opening it first if it is not open. The book stays open until the loan is closed. A book is opened
+     * outside the lock, so opening one never holds up borrowing another, and requests for a book which is being opened
+     * wait for it.
+     *
+     * @param name The name of the book.
+     * @return The loan of the book.
+     * @throws NotFoundResponse If there is no book with the given name.
+     */
+    public Loan borrow(String name) {
+        if (!isValidName(name)) {
+            throw new NotFoundResponse();
+        }
+
+        Shelved shelved;
+        Path databaseFile = null;
+        List<Shelved> evictedBooks;
+        synchronized (books) {
+            if (closed) {
+                throw new IllegalStateException("The bookshelf is closed");
+            }
+            shelved = books.get(name);
+            if (shelved == null) {
+                databaseFile = directory.resolve(name + ".db");
+                if (!Files.isRegularFile(databaseFile)) {
+                    throw new NotFoundResponse();
+                }
+                shelved = new Shelved(name);
+                books.put(name, shelved);
+            }
+            // Counted before the book is open, so it is not evicted while it is being opened.
+            shelved.loans++;
+            evictedBooks = evictIdleBooks();
+        }
+        closeAll(evictedBooks);
+
+        if (databaseFile != null) {
+            open(shelved, databaseFile);
+        }
+        try {
+            return new Loan(shelved, shelved.book.join());
+        } catch (CompletionException e) {
+            release(shelved);
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    private void open(Shelved shelved, Path databaseFile) {
+        try {
+            shelved.book.complete(opener.apply(shelved.name, databaseFile));
+        } catch (RuntimeException | Error e) {
+            synchronized (books) {
+                books.remove(shelved.name, shelved);
+            }
+            shelved.book.completeExceptionally(e);
+            return;
+        }
+        opened.increment();
+        log.info("Opened book {}, {} books are open", shelved.name, openBooks());
+    }
+
+    private void release(Shelved shelved) {
+        List<Shelved> evictedBooks;
+        synchronized (books) {
+            shelved.loans--;
+            evictedBooks = evictIdleBooks();
+        }
+        closeAll(evictedBooks);
+    }
+
+    /**
+     * @return The number of books currently open.
+     */
+    public int openBooks() {
+        synchronized (books) {
+            return books.size();
+        }
+    }
+
+    /**
+     * Close every open book, whether or not it is in use.
+     */
+    @Override
+    public void close() {
+        List<Shelved> openBooks;
+        synchronized (books) {
+            closed    = true;
+            openBooks = new ArrayList<>(books.values());
+            books.clear();
+        }
+        closeAll(openBooks);
+    }
+
+    /**
+     * Take the least recently used idle books off the shelf until no more than the maximum are open. Books in use stay
+     * open even if that means going over the maximum for a while. Must be called while holding the lock on the books.
+     *
+     * @return The books to close once the lock has been released.
+     */
+    private List<Shelved> evictIdleBooks() {
+        if (books.size() <= maximumOpenBooks) {
+            return List.of();
+        }
+
+        var evictedBooks = new ArrayList<Shelved>();
+        var iterator     = books.values().iterator();
+        while (books.size() > maximumOpenBooks && iterator.hasNext()) {
+            var shelved = iterator.next();
+            // A book without loans has been opened, since it is borrowed while it is being opened.
+            if (shelved.loans == 0 && shelved.book.join().isIdle()) {
+                iterator.remove();
+                evictedBooks.add(shelved);
+                evicted.increment();
+            }
+        }
+        return evictedBooks;
+    }
+
+    /**
+     * Close the books, or for a book which is still being opened, close it once it is open.
+     */
+    private static void closeAll(List<Shelved> books) {
+        for (var shelved : books) {
+            shelved.book.thenAccept(book -> {
+                try {
+                    book.close();
+                    log.info("Closed book {}", shelved.name);
+                } catch (RuntimeException e) {
+                    log.error("Failed to close book {}", shelved.name, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * A borrowed book, to be closed as soon as the request using it is done.
+     */
+    public final class Loan implements AutoCloseable {
+        private final Shelved       shelved;
+        private final Book          book;
+        private final AtomicBoolean returned = new AtomicBoolean();
+
+        private Loan(Shelved shelved, Book book) {
+            this.shelved = shelved;
+            this.book    = book;
+        }
+
+        public Book book() {
+            return book;
+        }
+
+        @Override
+        public void close() {
+            if (returned.compareAndSet(false, true)) {
+                release(shelved);
+            }
+        }
+    }
+
+    private static final class Shelved {
+        private final String                  name;
+        // Completed by the request which found the book closed, once it has opened it.
+        private final CompletableFuture<Book> book = new CompletableFuture<>();
+        // Guarded by the lock on the books.
+        private       int                     loans;
+
+        private Shelved(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package no.clueless.guestbook.web;
+
+import io.javalin.http.Context;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public final class ClientAddress {
+    private static final String ATTRIBUTE = "no.clueless.guestbook.clientAddress";
+
+    private ClientAddress() {}
+
+    /**
+     * Get the address of the client which made the request, as resolved by {@link #resolve(Context, Set)}, or the address
+     * the request came from if it was never resolved.
+     *
+     * @param ctx The request context.
+     * @return The address of the client.
+     */
+    public static String of(Context ctx) {
+        String resolved = ctx.attribute(ATTRIBUTE);
+        return resolved != null ? resolved : ctx.ip();
+    }
+
+    /**
+     * Resolve the address of the client which made the request and remember it for the rest of the request. Behind the
+     * reverse proxy every request comes from the proxy, which passes the real client address in the X-Real-IP header. The
+     * header is only believed when the request comes from one of the trusted proxies, since any client can send it.
+     *
+     * @param ctx            The request context.
+     * @param trustedProxies The normalized addresses of the proxies whose X-Real-IP header is believed.
+     */
+    static void resolve(Context ctx, Set<String> trustedProxies) {
+        var address = ctx.ip();
+        var realIp  = ctx.header("X-Real-IP");
+        if (realIp != null && !realIp.isBlank() && trustedProxies.contains(normalize(address))) {
+            address = realIp.trim();
+        }
+        ctx.attribute(ATTRIBUTE, address);
+    }
+
+    /**
+     * @param addresses IP addresses in any of their textual forms.
+     * @return The addresses in the form they are compared in.
+     */
+    static Set<String> normalize(Set<String> addresses) {
+        return addresses.stream().map(String::trim).filter(address -> !address.isEmpty()).map(ClientAddress::normalize).collect(Collectors.toUnmodifiableSet());
+    }
+
+    private static String normalize(String address) {
+        try {
+            return InetAddress.getByName(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            return address;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package no.clueless.guestbook.web;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.Header;
+import io.javalin.http.ServiceUnavailableResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how many requests to a group of routes are handled at once, so that under overload requests are turned away
+ * quickly instead of queueing behind each other until every route stops responding.
+ * <p>
+ * The limit adapts to the latency of the requests it lets through, additive increase, multiplicative decrease: every
+ * request which finishes within the latency target while at least half the limit is in use raises the limit by one, and
+ * a request which takes longer lowers it by a tenth, at most once per latency target so one slow burst does not collapse
+ * it. A request arriving at the limit waits in a short queue for a request to finish, and is rejected with
+ * {@code 503 Service Unavailable} and a {@code Retry-After} header if the queue is full or the wait runs out.
+ * <p>
+ * A limiter can be given limiters of higher priority. While any of them is congested, with requests waiting for a permit
+ * or a request over the latency target within the last latency target, this limiter rejects new requests outright, so
+ * its routes are shed first and leave the capacity to the more important ones. A limiter which merely has every permit
+ * taken is busy rather than congested, since its limit starts low and only grows by being used up.
+ */
+public class ConcurrencyLimiter {
+    public static final  int      DEFAULT_MAXIMUM_LIMIT  = 64;
+    public static final  Duration DEFAULT_LATENCY_TARGET = Duration.ofMillis(100);
+    public static final  int      DEFAULT_MAXIMUM_QUEUED = 32;
+    public static final  Duration DEFAULT_MAXIMUM_WAIT   = Duration.ofMillis(50);
+    private static final Logger   log                    = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+    private static final int      MINIMUM_LIMIT          = 1;
+    private static final double   DECREASE_FACTOR        = 0.9;
+    static final         long     RETRY_AFTER_SECONDS    = 1;
+
+    private final String                   name;
+    private final int                      maximumLimit;
+    private final long                     latencyTargetNanos;
+    private final int                      maximumQueued;
+    private final long                     maximumWaitNanos;
+    private final List<ConcurrencyLimiter> higherPriority;
+    private final LongSupplier             clock;
+    private final ReentrantLock            lock           = new ReentrantLock();
+    private final Condition                permitReleased = lock.newCondition();
+    private final LongAdder                rejected       = new LongAdder();
+    private       int                      limit;
+    private       int                      inFlight;
+    private       int                      queued;
+    private       long                     lastDecreasedAt;
+    private       long                     lastSlowAt;
+
+    public ConcurrencyLimiter(String name, int initialLimit, int maximumLimit, Duration latencyTarget, int maximumQueued, Duration maximumWait, List<ConcurrencyLimiter> higherPriority) {
+        this(name, initialLimit, maximumLimit, latencyTarget, maximumQueued, maximumWait, higherPriority, System::nanoTime);
+    }
+
+    /**
+     * @param name           The name of the limiter, used in logging and metrics.
+     * @param initialLimit   The number of requests let through at once before the limit has adapted.
+     * @param maximumLimit   The highest the limit can go.
+     * @param latencyTarget  How long a request may take before the limit is lowered.
+     * @param maximumQueued  The number of requests which can wait for a permit at once.
+     * @param maximumWait    How long a request waits for a permit before it is rejected.
+     * @param higherPriority The limiters whose congestion makes this one reject requests outright.
+     * @param clock          The source of the current time in nanoseconds.
+     */
+    ConcurrencyLimiter(String name, int initialLimit, int maximumLimit, Duration latencyTarget, int maximumQueued, Duration maximumWait, List<ConcurrencyLimiter> higherPriority, LongSupplier clock) {
+        if (name == null || name.isBlank()) {
+            throw new IllegalArgumentException("name cannot be null or blank");
+        }
+        if (maximumLimit < MINIMUM_LIMIT) {
+            throw new IllegalArgumentException("maximumLimit must be greater than 0");
+        }
+        if (initialLimit < MINIMUM_LIMIT || initialLimit > maximumLimit) {
+            throw new IllegalArgumentException("initialLimit must be between 1 and maximumLimit");
+        }
+        if (latencyTarget == null || latencyTarget.isNegative() || latencyTarget.isZero()) {
+            throw new IllegalArgumentException("latencyTarget must be greater than 0");
+        }
+        if (maximumQueued < 0) {
+            throw new IllegalArgumentException("maximumQueued cannot be negative");
+        }
+        if (maximumWait == null || maximumWait.isNegative()) {
+            throw new IllegalArgumentException("maximumWait cannot be null or negative");
+        }
+        if (higherPriority == null) {
+            throw new IllegalArgumentException("higherPriority cannot be null");
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("clock cannot be null");
+        }
+
+        this.name               = name;
+        this.maximumLimit       = maximumLimit;
+        this.latencyTargetNanos = latencyTarget.toNanos();
+        this.maximumQueued      = maximumQueued;
+        this.maximumWaitNanos   = maximumWait.toNanos();
+        this.higherPriority     = List.copyOf(higherPriority);
+        this.clock              = clock;
+        this.limit              = initialLimit;
+        this.lastDecreasedAt    = clock.getAsLong() - latencyTargetNanos;
+        this.lastSlowAt         = lastDecreasedAt;
+    }
+
+    /**
+     * Take a permit, waiting for one if the limit is reached and there is room in the queue.
+     *
+     * @return Whether a permit was taken. If so, it must be given back with {@link #release(long)}.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public boolean acquire() throws InterruptedException {
+        for (var limiter : higherPriority) {
+            if (limiter.isCongested()) {
+                rejected.increment();
+                return false;
+            }
+        }
+
+        lock.lock();
+        try {
+            if (inFlight < limit) {
+                inFlight++;
+                return true;
+            }
+            if (queued >= maximumQueued) {
+                rejected.increment();
+                return false;
+            }
+
+            queued++;
+            try {
+                var remainingNanos = maximumWaitNanos;
+                while (inFlight >= limit) {
+                    if (remainingNanos <= 0) {
+                        rejected.increment();
+                        return false;
+                    }
+                    remainingNanos = permitReleased.awaitNanos(remainingNanos);
+                }
+                inFlight++;
+                return true;
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give back a permit and adapt the limit to how long the request took.
+     *
+     * @param latencyNanos How long the request took to handle, not counting the wait for the permit.
+     */
+    public void release(long latencyNanos) {
+        lock.lock();
+        try {
+            var now = clock.getAsLong();
+            if (latencyNanos > latencyTargetNanos) {
+                lastSlowAt = now;
+                if (now - lastDecreasedAt >= latencyTargetNanos && limit > MINIMUM_LIMIT) {
+                    var decreased = Math.max(MINIMUM_LIMIT, Math.min(limit - 1, (int) (limit * DECREASE_FACTOR)));
+                    log.debug("Lowering the concurrency limit of {} from {} to {} after a request took {} ms", name, limit, decreased, TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+                    limit           = decreased;
+                    lastDecreasedAt = now;
+                }
+            } else if (inFlight * 2 >= limit && limit < maximumLimit) {
+                limit++;
+            }
+            inFlight--;
+            permitReleased.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Handle the request within the limit, or reject it with {@code 503 Service Unavailable} and a {@code Retry-After}
+     * header.
+     *
+     * @param ctx     The request context.
+     * @param handler The handler to run once a permit is taken.
+     * @throws ServiceUnavailableResponse If no permit could be taken.
+     */
+    public void enforce(Context ctx, Handler handler) throws Exception {
+        if (!acquire()) {
+            ctx.header(Header.RETRY_AFTER, Long.toString(RETRY_AFTER_SECONDS));
+            throw new ServiceUnavailableResponse();
+        }
+
+        var start = System.nanoTime();
+        try {
+            handler.handle(ctx);
+        } finally {
+            release(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return Whether requests are waiting for a permit, or a request took longer than the latency target within the last
+     * latency target.
+     */
+    public boolean isCongested() {
+        lock.lock();
+        try {
+            return queued > 0 || clock.getAsLong() - lastSlowAt < latencyTargetNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int limit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of requests waiting for a permit.
+     */
+    public int queued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of requests rejected since startup.
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,42 @@
+package no.clueless.guestbook.web;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * The concurrency limiters applied to each group of routes, in order of priority: while reads are congested challenges
+ * and submissions are shed, and while challenges are congested submissions are shed.
+ *
+ * @param reads       Applied to GET /entries and GET /entries/search.
+ * @param challenges  Applied to GET /altcha.
+ * @param submissions Applied to POST /entries.
+ */
+public record ConcurrencyLimiters(ConcurrencyLimiter reads, ConcurrencyLimiter challenges, ConcurrencyLimiter submissions) {
+    public ConcurrencyLimiters {
+        if (reads == null) {
+            throw new IllegalArgumentException("reads cannot be null");
+        }
+        if (challenges == null) {
+            throw new IllegalArgumentException("challenges cannot be null");
+        }
+        if (submissions == null) {
+            throw new IllegalArgumentException("submissions cannot be null");
+        }
+    }
+
+    /**
+     * Create the limiters with the same settings, each starting at a tenth of the maximum limit and shedding to the ones
+     * of higher priority.
+     */
+    public static ConcurrencyLimiters prioritized(int maximumLimit, Duration latencyTarget, int maximumQueued, Duration maximumWait) {
+        var initialLimit = Math.max(1, maximumLimit / 10);
+        var reads        = new ConcurrencyLimiter("reads", initialLimit, maximumLimit, latencyTarget, maximumQueued, maximumWait, List.of());
+        var challenges   = new ConcurrencyLimiter("challenges", initialLimit, maximumLimit, latencyTarget, maximumQueued, maximumWait, List.of(reads));
+        var submissions  = new ConcurrencyLimiter("submissions", initialLimit, maximumLimit, latencyTarget, maximumQueued, maximumWait, List.of(reads, challenges));
+        return new ConcurrencyLimiters(reads, challenges, submissions);
+    }
+
+    public List<ConcurrencyLimiter> all() {
+        return List.of(reads, challenges, submissions);
+    }
+}
@@ -0,0 +1,322 @@
+package no.clueless.guestbook.web;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.ServiceUnavailableResponse;
+import io.javalin.http.sse.SseClient;
+import io.javalin.http.sse.SseHandler;
+import no.clueless.guestbook.ApprovedEntriesMonitor;
+import no.clueless.guestbook.ApprovedEntry;
+import no.clueless.guestbook.Guestbook;
+import no.clueless.guestbook.metrics.Counter;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes newly approved entries to connected browsers as Server-Sent Events on {@code GET /entries/stream}.
+ * <p>
+ * When the {@link ApprovedEntriesMonitor} reports a change, the entries approved since the last broadcast are read once
+ * and serialized once, then offered to every client's bounded queue. Idle clients hold no thread. Each queue is drained
+ * by a virtual thread of its own only while it has something to send, so a client with a full TCP window stalls nobody
+ * else, and a client whose queue fills up is disconnected.
+ * <p>
+ * Entries are streamed in the order they were approved in, with their approval sequence as the event id, so an entry
+ * approved after newer ones is still pushed. Browsers reconnect with the {@code Last-Event-ID} header set to the last
+ * sequence they got, and are sent what they missed before going live again.
+ */
+public class EntryStream implements AutoCloseable {
+    public static final  int      DEFAULT_MAXIMUM_CLIENTS    = 10_000;
+    public static final  int      DEFAULT_CLIENT_BUFFER_SIZE = 64;
+    private static final Logger   log                        = LoggerFactory.getLogger(EntryStream.class);
+    private static final int      BATCH_SIZE                 = 100;
+    private static final Duration HEARTBEAT_INTERVAL         = Duration.ofSeconds(15);
+    private static final Event    HEARTBEAT                  = new Event(0, null, null);
+    private static final String   ON_CLOSE                   = "no.clueless.guestbook.streamOnClose";
+    private static final String   X_ACCEL_BUFFERING          = "X-Accel-Buffering";
+
+    private final    Guestbook                guestbook;
+    private final    ObjectMapper             jsonMapper;
+    private final    int                      maximumClients;
+    private final    int                      clientBufferSize;
+    private final    Set<Subscriber>          subscribers = ConcurrentHashMap.newKeySet();
+    private final    SseHandler               sseHandler  = new SseHandler(this::subscribe);
+    private final    ScheduledExecutorService scheduler;
+    private final    ExecutorService          senders     = Executors.newVirtualThreadPerTaskExecutor();
+    private final    Counter                  broadcasted;
+    private final    Counter                  slowDisconnects;
+    private volatile long                     lastBroadcastSequence;
+
+    private EntryStream(Guestbook guestbook, ObjectMapper jsonMapper, int maximumClients, int clientBufferSize, MetricsRegistry metrics) {
+        this.guestbook        = guestbook;
+        this.jsonMapper       = jsonMapper;
+        this.maximumClients   = maximumClients;
+        this.clientBufferSize = clientBufferSize;
+        this.broadcasted      = metrics.counter("guestbook_stream_events_total", "Number of entries pushed to all clients of the live entry stream.");
+        this.slowDisconnects  = metrics.counter("guestbook_stream_slow_disconnects_total", "Number of live entry stream clients disconnected for falling behind.");
+        metrics.gauge("guestbook_stream_clients", "Number of clients connected to the live entry stream.", subscribers::size);
+        this.scheduler        = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "entry-stream");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create a stream of the entries approved from now on, and start sending heartbeats and listening for approvals.
+     *
+     * @param monitor          The monitor to learn about changes to the approved entries from.
+     * @param guestbook        The guestbook to read newly approved entries from.
+     * @param jsonMapper       The JSON mapper to serialize entries with.
+     * @param maximumClients   The maximum number of connected clients. Further clients get {@code 503 Service Unavailable}.
+     * @param clientBufferSize The maximum number of events waiting to be sent to one client before it is disconnected.
+     * @param metrics          Where to record the number of clients and events.
+     * @return The started stream.
+     */
+    public static EntryStream start(ApprovedEntriesMonitor monitor, Guestbook guestbook, ObjectMapper jsonMapper, int maximumClients, int clientBufferSize, MetricsRegistry metrics) {
+        if (monitor == null) {
+            throw new IllegalArgumentException("monitor cannot be null");
+        }
+        if (guestbook == null) {
+            throw new IllegalArgumentException("guestbook cannot be null");
+        }
+        if (jsonMapper == null) {
+            throw new IllegalArgumentException("jsonMapper cannot be null");
+        }
+        if (maximumClients < 1) {
+            throw new IllegalArgumentException("maximumClients must be greater than 0");
+        }
+        if (clientBufferSize < 1) {
+            throw new IllegalArgumentException("clientBufferSize must be greater than 0");
+        }
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics cannot be null");
+        }
+
+        var entryStream = new EntryStream(guestbook, jsonMapper, maximumClients, clientBufferSize, metrics);
+        entryStream.lastBroadcastSequence = guestbook.getLastApprovalSequence();
+        entryStream.scheduler.scheduleWithFixedDelay(entryStream::sendHeartbeats, HEARTBEAT_INTERVAL.toMillis(), HEARTBEAT_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        monitor.addListener(version -> entryStream.scheduler.execute(entryStream::broadcastNewEntries));
+        return entryStream;
+    }
+
+    /**
+     * Connect a client to the stream. Clients must send {@code Accept: text/event-stream}.
+     */
+    public void streamEntries(Context ctx) throws Exception {
+        streamEntries(ctx, () -> {});
+    }
+
+    /**
+     * Connect a client to the stream, and run a callback once it has disconnected. The client is attached after this
+     * returns, so anything it needs must be held until then rather than released when this returns.
+     *
+     * @param ctx     The request context.
+     * @param onClose Run once the client has disconnected. Not run if this throws.
+     */
+    public void streamEntries(Context ctx, Runnable onClose) throws Exception {
+        if (subscribers.size() >= maximumClients) {
+            ctx.header(Header.RETRY_AFTER, String.valueOf(HEARTBEAT_INTERVAL.toSeconds()));
+            throw new ServiceUnavailableResponse();
+        }
+        ctx.attribute(ON_CLOSE, onClose);
+        // Tell nginx to pass events on as they are written rather than buffer them.
+        ctx.header(X_ACCEL_BUFFERING, "no");
+        sseHandler.handle(ctx);
+    }
+
+    private void subscribe(SseClient client) {
+        var subscriber = new Subscriber(client);
+        subscribers.add(subscriber);
+        Runnable onClose = client.ctx().attribute(ON_CLOSE);
+        client.onClose(() -> {
+            subscribers.remove(subscriber);
+            if (onClose != null) {
+                onClose.run();
+            }
+        });
+
+        try {
+            var lastEventId = lastEventId(client.ctx());
+            if (lastEventId != null) {
+                subscriber.replay(lastEventId);
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to send missed entries to a live entry stream client", e);
+            client.close();
+            return;
+        } finally {
+            subscriber.startSending();
+        }
+        client.keepAlive();
+    }
+
+    /**
+     * @return The number of clients currently connected.
+     */
+    public int connectedClients() {
+        return subscribers.size();
+    }
+
+    private static Long lastEventId(Context ctx) {
+        var lastEventId = ctx.header("Last-Event-ID");
+        if (lastEventId == null || lastEventId.isBlank()) {
+            return null;
+        }
+        try {
+            return Math.max(0, Long.parseLong(lastEventId.strip()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void broadcastNewEntries() {
+        try {
+            while (true) {
+                var entries = guestbook.readApprovedAfter(lastBroadcastSequence, BATCH_SIZE);
+                if (entries.isEmpty()) {
+                    return;
+                }
+
+                for (var entry : entries) {
+                    var event = toEvent(entry);
+                    for (var subscriber : subscribers) {
+                        subscriber.offer(event);
+                    }
+                    broadcasted.increment();
+                }
+                lastBroadcastSequence = entries.get(entries.size() - 1).sequence();
+                if (entries.size() < BATCH_SIZE) {
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to broadcast newly approved entries", e);
+        }
+    }
+
+    private void sendHeartbeats() {
+        for (var subscriber : subscribers) {
+            subscriber.offer(HEARTBEAT);
+        }
+    }
+
+    private Event toEvent(ApprovedEntry approvedEntry) {
+        try {
+            return new Event(approvedEntry.sequence(), "entry", jsonMapper.writeValueAsString(approvedEntry.entry()));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize entry " + approvedEntry.entry().getId(), e);
+        }
+    }
+
+    /**
+     * Disconnect every client and stop broadcasting.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        for (var subscriber : subscribers) {
+            subscriber.client.close();
+        }
+        senders.shutdownNow();
+    }
+
+    /**
+     * One connected client. Events are written by at most one thread at a time: the request thread while replaying
+     * missed entries, then a sender thread whenever the queue has something in it.
+     */
+    private class Subscriber {
+        private final    SseClient            client;
+        private final    BlockingQueue<Event> queue   = new LinkedBlockingQueue<>(clientBufferSize);
+        private final    AtomicBoolean        sending = new AtomicBoolean(true);
+        private volatile long                 lastSentSequence;
+
+        private Subscriber(SseClient client) {
+            this.client = client;
+        }
+
+        /**
+         * Send the entries approved after the given sequence. Broadcasts arriving meanwhile are queued, and skipped later
+         * if the replay already covered them. A client which missed too much is told to reload instead.
+         */
+        private void replay(long lastEventId) {
+            List<ApprovedEntry> missed = guestbook.readApprovedAfter(lastEventId, BATCH_SIZE + 1);
+            if (missed.size() > BATCH_SIZE) {
+                client.sendEvent("reset", "");
+                return;
+            }
+            for (var entry : missed) {
+                var event = toEvent(entry);
+                client.sendEvent(event.name(), event.data(), String.valueOf(event.sequence()));
+                lastSentSequence = event.sequence();
+            }
+        }
+
+        private void offer(Event event) {
+            if (client.terminated()) {
+                subscribers.remove(this);
+                return;
+            }
+            if (!queue.offer(event)) {
+                slowDisconnects.increment();
+                log.info("Disconnecting live entry stream client {} which fell {} events behind", ClientAddress.of(client.ctx()), clientBufferSize);
+                subscribers.remove(this);
+                queue.clear();
+                senders.execute(client::close);
+                return;
+            }
+            if (sending.compareAndSet(false, true)) {
+                senders.execute(this::send);
+            }
+        }
+
+        private void startSending() {
+            sending.set(false);
+            if (!queue.isEmpty() && sending.compareAndSet(false, true)) {
+                senders.execute(this::send);
+            }
+        }
+
+        private void send() {
+            while (true) {
+                Event event;
+                while ((event = queue.poll()) != null) {
+                    if (client.terminated()) {
+                        subscribers.remove(this);
+                        queue.clear();
+                        return;
+                    }
+                    if (event == HEARTBEAT) {
+                        client.sendComment("heartbeat");
+                    } else if (event.sequence() > lastSentSequence) {
+                        client.sendEvent(event.name(), event.data(), String.valueOf(event.sequence()));
+                        lastSentSequence = event.sequence();
+                    }
+                }
+
+                sending.set(false);
+                // Another event may have been queued after the last poll but before sending was cleared.
+                if (queue.isEmpty() || !sending.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private record Event(long sequence, String name, String data) {
+    }
+}
@@ -0,0 +1,97 @@
+package no.clueless.guestbook.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.persistence.GuestbookRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams every entry as newline-delimited JSON for backups and analysis. Entries are written to the response one at a
+ * time as they are read from the database, so memory use does not grow with the number of entries.
+ */
+public class ExportController {
+    private static final Logger              log                 = LoggerFactory.getLogger(ExportController.class);
+    private static final String              NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    private static final int                 GZIP_BUFFER_SIZE    = 8192;
+    private final        GuestbookRepository guestbookRepository;
+    private final        ObjectMapper        jsonMapper;
+    private final        ObjectWriter        entryWriter;
+
+    public ExportController(GuestbookRepository guestbookRepository, ObjectMapper jsonMapper) {
+        if (guestbookRepository == null) {
+            throw new IllegalArgumentException("guestbookRepository cannot be null");
+        }
+        if (jsonMapper == null) {
+            throw new IllegalArgumentException("jsonMapper cannot be null");
+        }
+
+        this.guestbookRepository = guestbookRepository;
+        this.jsonMapper          = jsonMapper;
+        // Flushing after every entry would send one chunk per entry, so the generator is only flushed when its buffer is full.
+        this.entryWriter         = jsonMapper.writerFor(Entry.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    /**
+     * Export the entries, optionally only approved or pending ones and only those created within a time range, oldest
+     * first. The response is compressed with gzip if the client accepts it.
+     */
+    public void exportEntries(Context ctx) throws IOException {
+        var approved      = ctx.queryParamAsClass("approved", Boolean.class).allowNullable().get();
+        var createdAfter  = ctx.queryParamAsClass("createdAfter", String.class).allowNullable().check(ExportController::isDateTime, "createdAfter must be a date and time like 2025-01-01T00:00:00").get();
+        var createdBefore = ctx.queryParamAsClass("createdBefore", String.class).allowNullable().check(ExportController::isDateTime, "createdBefore must be a date and time like 2025-01-01T00:00:00").get();
+
+        var gzip = acceptsGzip(ctx);
+        ctx.contentType(NDJSON_CONTENT_TYPE);
+        ctx.header(Header.CONTENT_DISPOSITION, "attachment; filename=\"guestbook-entries.ndjson\"");
+        if (gzip) {
+            // Set before the first write, so Javalin leaves the stream alone instead of compressing it a second time.
+            ctx.header(Header.CONTENT_ENCODING, "gzip");
+        }
+
+        long exported;
+        try (var outputStream = gzip ? new GZIPOutputStream(ctx.outputStream(), GZIP_BUFFER_SIZE) : ctx.outputStream();
+             var generator = jsonMapper.createGenerator(outputStream)) {
+            generator.setRootValueSeparator(null);
+            exported = guestbookRepository.exportEntries(approved, parse(createdAfter), parse(createdBefore), entry -> {
+                try {
+                    entryWriter.writeValue(generator, entry);
+                    generator.writeRaw('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            log.info("Export to {} was cut short: {}", ClientAddress.of(ctx), e.getCause().toString());
+            return;
+        }
+        log.info("Exported {} entries to {}", exported, ClientAddress.of(ctx));
+    }
+
+    private static boolean isDateTime(String value) {
+        try {
+            return value == null || parse(value) != null;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private static LocalDateTime parse(String value) {
+        return value == null ? null : LocalDateTime.parse(value);
+    }
+
+    private static boolean acceptsGzip(Context ctx) {
+        var acceptEncoding = ctx.header(Header.ACCEPT_ENCODING);
+        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
+}
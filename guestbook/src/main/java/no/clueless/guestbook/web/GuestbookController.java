@@ -1,25 +1,49 @@
 package no.clueless.guestbook.web;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
-import io.javalin.http.util.NaiveRateLimit;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.ServiceUnavailableResponse;
+import no.clueless.guestbook.Entry;
 import no.clueless.guestbook.Guestbook;
+import no.clueless.guestbook.Sanitizer;
+import no.clueless.guestbook.SearchResult;
 import org.altcha.altcha.Altcha;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPOutputStream;
 
 public class GuestbookController {
-    private static final Logger log = LoggerFactory.getLogger(GuestbookController.class);
-    private final Guestbook guestbook;
-    private final int       defaultPageSize;
-    private final String    altchaHmacKey;
-    private final int       maximumSubmissionsPerUserPerMinute;
+    private static final Logger                                        log                         = LoggerFactory.getLogger(GuestbookController.class);
+    private static final int                                           MAXIMUM_CACHED_RESPONSES    = 256;
+    private static final int                                           MINIMUM_COMPRESSIBLE_LENGTH = 1024;
+    private static final int                                           MAXIMUM_QUERY_LENGTH        = 200;
+    private final        Guestbook                                     guestbook;
+    private final        ObjectMapper                                  jsonMapper;
+    private final        int                                           defaultPageSize;
+    private final        String                                        altchaHmacKey;
+    private final        AltchaReplayCache                             altchaReplayCache;
+    private final        AltchaDifficulty                              altchaDifficulty;
+    private final        Sanitizer                                     sanitizer;
+    private final        ObjectReader                                  altchaPayloadReader;
+    private final        Cache<EntriesResponseKey, SerializedResponse> serializedEntriesResponses  = Caffeine.newBuilder().maximumSize(MAXIMUM_CACHED_RESPONSES).build();
 
-    public GuestbookController(Guestbook guestbook, ObjectMapper jsonMapper, int defaultPageSize, String altchaHmacKey, int maximumSubmissionsPerUserPerMinute) {
+    public GuestbookController(Guestbook guestbook, ObjectMapper jsonMapper, int defaultPageSize, String altchaHmacKey, AltchaReplayCache altchaReplayCache, AltchaDifficulty altchaDifficulty, Sanitizer sanitizer) {
         if (guestbook == null) {
             throw new IllegalArgumentException("guestbook cannot be null");
         }
@@ -32,57 +56,226 @@ public class GuestbookController {
         if (altchaHmacKey == null || altchaHmacKey.isBlank()) {
             throw new IllegalArgumentException("altchaHmacKey cannot be null or blank");
         }
-        if (maximumSubmissionsPerUserPerMinute < 1) {
-            throw new IllegalArgumentException("maximumSubmissionsPerUserPerMinute must be greater than 0");
+        if (altchaReplayCache == null) {
+            throw new IllegalArgumentException("altchaReplayCache cannot be null");
+        }
+        if (altchaDifficulty == null) {
+            throw new IllegalArgumentException("altchaDifficulty cannot be null");
+        }
+        if (sanitizer == null) {
+            throw new IllegalArgumentException("sanitizer cannot be null");
         }
 
-        this.guestbook                          = guestbook;
-        this.defaultPageSize                    = defaultPageSize;
-        this.altchaHmacKey                      = altchaHmacKey;
-        this.maximumSubmissionsPerUserPerMinute = maximumSubmissionsPerUserPerMinute;
+        this.guestbook           = guestbook;
+        this.jsonMapper          = jsonMapper;
+        this.defaultPageSize     = defaultPageSize;
+        this.altchaHmacKey       = altchaHmacKey;
+        this.altchaReplayCache   = altchaReplayCache;
+        this.altchaDifficulty    = altchaDifficulty;
+        this.sanitizer           = sanitizer;
+        this.altchaPayloadReader = jsonMapper.readerFor(Altcha.Payload.class).without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
     }
 
+    /**
+     * Get a page of approved entries, newest first. Clients should follow {@code nextCursor} by passing it back as the
+     * {@code after} query parameter, which costs the same for every page. The {@code page} query parameter is still
+     * supported for clients which need to jump straight to a numbered page.
+     * <p>
+     * Each page is serialized once per version of the approved entries and served from memory after that, with a strong
+     * ETag derived from the version so that revalidating clients get a {@code 304 Not Modified} without any work.
+     */
     public void getEntries(Context ctx) {
+        var after = ctx.queryParamAsClass("after", Integer.class).allowNullable().check(value -> value == null || value > 0, "after must be greater than 0").get();
+        var page  = after != null ? null : ctx.queryParamAsClass("page", Integer.class).check(value -> value >= 0, "page must be greater than or equal to 0").getOrDefault(0);
+
+        var version = guestbook.getVersion();
+        if (version.isEmpty()) {
+            ctx.json(readEntries(page, after));
+            return;
+        }
+
+        var key      = new EntriesResponseKey(version.getAsLong(), page, after);
+        var etag     = key.etag(false);
+        var gzipEtag = key.etag(true);
+        ctx.header(Header.CACHE_CONTROL, "no-cache");
+        ctx.header(Header.VARY, Header.ACCEPT_ENCODING);
+
+        var matchingEtag = matchingEtag(ctx.header(Header.IF_NONE_MATCH), etag, gzipEtag);
+        if (matchingEtag != null) {
+            ctx.header(Header.ETAG, matchingEtag);
+            ctx.status(HttpStatus.NOT_MODIFIED);
+            return;
+        }
+
+        var response = serializedEntriesResponses.get(key, ignored -> serialize(readEntries(page, after)));
+        ctx.contentType(ContentType.APPLICATION_JSON);
+        if (response.gzippedJson() != null && acceptsGzip(ctx)) {
+            ctx.header(Header.ETAG, gzipEtag);
+            ctx.header(Header.CONTENT_ENCODING, "gzip");
+            ctx.result(response.gzippedJson());
+        } else {
+            ctx.header(Header.ETAG, etag);
+            ctx.result(response.json());
+        }
+    }
+
+    /**
+     * @return The number of numbered pages of approved entries.
+     */
+    int numberOfPages() {
+        return (int) Math.ceil((double) guestbook.getTotalEntries() / defaultPageSize);
+    }
+
+    /**
+     * @param page The page number, starting at 0.
+     * @return The JSON body {@link #getEntries(Context)} serves for the numbered page, byte for byte.
+     */
+    byte[] entriesPageJson(int page) {
+        var version = guestbook.getVersion();
+        if (version.isEmpty()) {
+            return serialize(readEntries(page, null)).json();
+        }
+        return serializedEntriesResponses.get(new EntriesResponseKey(version.getAsLong(), page, null), ignored -> serialize(readEntries(page, null))).json();
+    }
+
+    private GetEntriesResponse readEntries(Integer page, Integer after) {
         var totalEntries = guestbook.getTotalEntries();
-        var page         = ctx.queryParamAsClass("page", Integer.class).getOrDefault(0);
         var totalPages   = Math.ceil((double) totalEntries / defaultPageSize);
-        var entries      = guestbook.read(page, defaultPageSize, "id", "desc");
+        var entries      = after != null ? guestbook.readAfter(after, defaultPageSize, "id", "desc") : guestbook.read(page, defaultPageSize, "id", "desc");
+        return new GetEntriesResponse(entries, totalEntries, totalPages, page, defaultPageSize, nextCursor(entries));
+    }
 
-        ctx.json(Map.of(
-                "entries", entries,
-                "totalEntries", totalEntries,
-                "totalPages", totalPages,
-                "currentPage", page,
-                "size", defaultPageSize
-        ));
+    private SerializedResponse serialize(GetEntriesResponse response) {
+        try {
+            var json = jsonMapper.writeValueAsBytes(response);
+            if (json.length < MINIMUM_COMPRESSIBLE_LENGTH) {
+                return new SerializedResponse(json, null);
+            }
+
+            var gzippedJson = new ByteArrayOutputStream(json.length / 2);
+            try (var gzipOutputStream = new GZIPOutputStream(gzippedJson)) {
+                gzipOutputStream.write(json);
+            }
+            return new SerializedResponse(json, gzippedJson.toByteArray());
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize entries", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to compress entries", e);
+        }
     }
 
-    public void postEntry(Context ctx) {
-        NaiveRateLimit.requestPerTimeUnit(ctx, maximumSubmissionsPerUserPerMinute, TimeUnit.MINUTES);
+    private static boolean acceptsGzip(Context ctx) {
+        var acceptEncoding = ctx.header(Header.ACCEPT_ENCODING);
+        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
 
+    /**
+     * @return The ETag in the If-None-Match header which matches either representation of the page, or null if none do.
+     */
+    private static String matchingEtag(String ifNoneMatch, String etag, String gzipEtag) {
+        if (ifNoneMatch == null) {
+            return null;
+        }
+        for (var candidate : ifNoneMatch.split(",")) {
+            var tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return etag;
+            }
+            if (tag.equals(gzipEtag)) {
+                return gzipEtag;
+            }
+        }
+        return null;
+    }
+
+    private Integer nextCursor(List<Entry> entries) {
+        return entries.size() < defaultPageSize ? null : entries.get(entries.size() - 1).getId();
+    }
+
+    /**
+     * Search the approved entries for the words in the {@code q} query parameter, best matches first, a page at a time.
+     */
+    public void searchEntries(Context ctx) {
+        var query = ctx.queryParamAsClass("q", String.class)
+                .check(value -> !value.isBlank(), "q cannot be blank")
+                .check(value -> value.length() <= MAXIMUM_QUERY_LENGTH, "q cannot be longer than " + MAXIMUM_QUERY_LENGTH + " characters")
+                .get();
+        var page  = ctx.queryParamAsClass("page", Integer.class).check(value -> value >= 0, "page must be greater than or equal to 0").getOrDefault(0);
+
+        var searchResults = guestbook.search(query, page, defaultPageSize);
+        ctx.json(new SearchEntriesResponse(searchResults.results(), searchResults.totalResults(), page, defaultPageSize));
+    }
+
+    /**
+     * Sign the guestbook. The cheap checks, including the length limits, are done before the Altcha solution is
+     * verified, so malformed and oversized submissions are rejected without spending a challenge. Every submission, and
+     * every rejected solution on top of that, counts towards the difficulty of the next challenges.
+     */
+    public void postEntry(Context ctx) {
+        var clientAddress = ClientAddress.of(ctx);
+        altchaDifficulty.recordSubmission(clientAddress);
         var postEntryrequest = ctx.bodyValidator(PostEntryRequest.class)
                 .check(request -> request.token() == null || request.token().isEmpty(), "unable to process request")
                 .check(request -> request.name() != null && !request.name().isBlank(), "name cannot be null or blank")
+                .check(request -> request.name() == null || request.name().length() <= sanitizer.maximumNameLength(), "name cannot be longer than " + sanitizer.maximumNameLength() + " characters")
                 .check(request -> request.message() != null && !request.message().isBlank(), "message cannot be null or blank")
+                .check(request -> request.message() == null || request.message().length() <= sanitizer.maximumMessageLength(), "message cannot be longer than " + sanitizer.maximumMessageLength() + " characters")
                 .check(request -> request.altcha() != null && !request.altcha().isBlank(), "altcha cannot be null or blank")
-                .check(request -> {
-                    try {
-                        var result = Altcha.verifySolution(request.altcha(), altchaHmacKey, true);
-                        if(!result) {
-                            log.warn("Altcha solution was invalid. Someone is trying to spoof the guestbook.");
-                        }
-                        return result;
-                    } catch (Exception e) {
-                        log.error("An exception occurred while verifying the Altcha solution", e);
-                        throw new BadRequestResponse("unable to process request");
-                    }
-                }, "unable to process request")
                 .get();
+        if (!isAltchaSolved(postEntryrequest.altcha())) {
+            altchaDifficulty.recordFailedVerification(clientAddress);
+            throw new BadRequestResponse("unable to process request");
+        }
 
-        var createdEntry = guestbook.sign(postEntryrequest.name(), postEntryrequest.message()).orElseThrow(BadRequestResponse::new);
+        Entry createdEntry;
+        try {
+            createdEntry = guestbook.sign(postEntryrequest.name(), postEntryrequest.message()).orElseThrow(BadRequestResponse::new);
+        } catch (RejectedExecutionException e) {
+            // The write queue is full, which is overload rather than a fault, so the client is told to come back.
+            log.warn("Turned away an entry: {}", e.getMessage());
+            ctx.header(Header.RETRY_AFTER, Long.toString(ConcurrencyLimiter.RETRY_AFTER_SECONDS));
+            throw new ServiceUnavailableResponse();
+        }
         ctx.json(createdEntry);
     }
 
+    private boolean isAltchaSolved(String altcha) {
+        try {
+            var payload = altchaPayloadReader.<Altcha.Payload>readValue(Base64.getDecoder().decode(altcha));
+            var result  = Altcha.verifySolution(payload, altchaHmacKey, true);
+            if(!result) {
+                log.warn("Altcha solution was invalid. Someone is trying to spoof the guestbook.");
+                return false;
+            }
+            if (!altchaReplayCache.consume(payload.salt)) {
+                log.warn("Altcha solution was already used. Someone is trying to replay a solved challenge.");
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("An exception occurred while verifying the Altcha solution", e);
+            return false;
+        }
+    }
+
+    private record EntriesResponseKey(long version, Integer page, Integer after) {
+        String etag(boolean gzipped) {
+            return "\"" + version + (after != null ? "-a" + after : "-p" + page) + (gzipped ? "-gzip" : "") + "\"";
+        }
+    }
+
+    private record SerializedResponse(byte[] json, byte[] gzippedJson) {
+    }
+
+    public record GetEntriesResponse(List<Entry> entries, long totalEntries, double totalPages, Integer currentPage, int size, Integer nextCursor) {
+    }
+
+    public record SearchEntriesResponse(List<SearchResult> results, long totalResults, int currentPage, int size) {
+    }
+
     public record PostEntryRequest(String name, String message, String altcha, String token) {
         public PostEntryRequest {
             if (name == null || name.isBlank()) {
@@ -2,28 +2,54 @@ package no.clueless.guestbook.web;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.Javalin;
+import io.javalin.http.Context;
 import io.javalin.http.ForbiddenResponse;
+import io.javalin.http.Handler;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.validation.ValidationException;
 import io.javalin.json.JavalinJackson;
+import no.clueless.guestbook.ExecutionMode;
+import no.clueless.guestbook.metrics.Counter;
+import no.clueless.guestbook.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Optional;
 import java.util.Set;
+import java.util.function.Function;
 
 public class JavalinServer {
-    private static final Logger              log = LoggerFactory.getLogger(JavalinServer.class);
-    private final        AltchaController    altchaController;
-    private final        GuestbookController guestbookController;
-    private final        Set<String>         allowedOrigin;
-    private final        Set<String>         allowedReferrers;
-    private final        ObjectMapper        jsonMapper;
+    private static final Logger               log = LoggerFactory.getLogger(JavalinServer.class);
+    private final        AltchaController     altchaController;
+    private final        GuestbookController  guestbookController;
+    private final        EntryStream          entryStream;
+    private final        ModerationController moderationController;
+    private final        ExportController     exportController;
+    private final        Bookshelf            bookshelf;
+    private final        Set<String>          allowedOrigin;
+    private final        Set<String>          allowedReferrers;
+    private final        Set<String>          trustedProxies;
+    private final        ObjectMapper         jsonMapper;
+    private final        ExecutionMode        executionMode;
+    private final        RateLimiters         rateLimiters;
+    private final        ConcurrencyLimiters  concurrencyLimiters;
+    private final        MetricsRegistry      metrics;
 
     public JavalinServer(
             AltchaController altchaController,
             GuestbookController guestbookController,
+            EntryStream entryStream,
+            ModerationController moderationController,
+            ExportController exportController,
+            Bookshelf bookshelf,
             Set<String> allowedOrigin,
             Set<String> allowedReferrers,
-            ObjectMapper jsonMapper
+            Set<String> trustedProxies,
+            ObjectMapper jsonMapper,
+            ExecutionMode executionMode,
+            RateLimiters rateLimiters,
+            ConcurrencyLimiters concurrencyLimiters,
+            MetricsRegistry metrics
     ) {
         if (altchaController == null) {
             throw new IllegalArgumentException("altchaController cannot be null");
@@ -31,36 +57,203 @@ public class JavalinServer {
         if (guestbookController == null) {
             throw new IllegalArgumentException("guestbookController cannot be null");
         }
+        if (entryStream == null) {
+            throw new IllegalArgumentException("entryStream cannot be null");
+        }
+        if (moderationController != null && exportController == null) {
+            throw new IllegalArgumentException("exportController cannot be null when moderationController is set");
+        }
         if (allowedOrigin == null || allowedOrigin.isEmpty()) {
             throw new IllegalArgumentException("allowedOrigin cannot be null or empty");
         }
         if (allowedReferrers == null || allowedReferrers.isEmpty()) {
             throw new IllegalArgumentException("allowedReferrers cannot be null or empty");
         }
+        if (trustedProxies == null) {
+            throw new IllegalArgumentException("trustedProxies cannot be null");
+        }
+        if (executionMode == null) {
+            throw new IllegalArgumentException("executionMode cannot be null");
+        }
+        if (rateLimiters == null) {
+            throw new IllegalArgumentException("rateLimiters cannot be null");
+        }
+        if (concurrencyLimiters == null) {
+            throw new IllegalArgumentException("concurrencyLimiters cannot be null");
+        }
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics cannot be null");
+        }
 
-        this.altchaController    = altchaController;
-        this.guestbookController = guestbookController;
-        this.allowedOrigin       = allowedOrigin;
-        this.allowedReferrers    = allowedReferrers;
-        this.jsonMapper          = jsonMapper;
+        this.altchaController     = altchaController;
+        this.guestbookController  = guestbookController;
+        this.entryStream          = entryStream;
+        this.moderationController = moderationController;
+        this.exportController     = exportController;
+        this.bookshelf            = bookshelf;
+        this.allowedOrigin        = allowedOrigin;
+        this.allowedReferrers     = allowedReferrers;
+        this.trustedProxies       = ClientAddress.normalize(trustedProxies);
+        this.jsonMapper           = jsonMapper;
+        this.executionMode        = executionMode;
+        this.rateLimiters         = rateLimiters;
+        this.concurrencyLimiters  = concurrencyLimiters;
+        this.metrics              = metrics;
     }
 
+    /**
+     * @return The server, with the moderation and export endpoints under {@code /admin} only if a moderation controller
+     * was given, and the routes of the books under {@code /{book}} only if a bookshelf was given. The entry stream and the
+     * admin endpoints are left out of the concurrency limits, the stream since it holds its request open for as long as the
+     * client listens.
+     */
     public Javalin create() {
-        return Javalin.create(config -> {
+        var javalin = Javalin.create(config -> {
                     if (jsonMapper != null) {
                         config.jsonMapper(new JavalinJackson(jsonMapper, true));
                     }
+                    config.useVirtualThreads = executionMode == ExecutionMode.VIRTUAL;
                     config.bundledPlugins.enableCors(cors -> cors.addRule(rule -> allowedOrigin.forEach(rule::allowHost)));
                 })
                 .before(ctx -> {
+                    ClientAddress.resolve(ctx, trustedProxies);
+                    if (ctx.path().startsWith("/admin/")) {
+                        return;
+                    }
                     var referer = ctx.header("Referer");
                     if (referer == null || !allowedReferrers.contains(referer)) {
-                        log.warn("Received request without allowed referer ({}) from {}", referer, Optional.ofNullable(ctx.header("X-Real-IP")).filter(value -> !value.isBlank()).orElse(ctx.ip()));
+                        log.warn("Received request without allowed referer ({}) from {}", referer, ClientAddress.of(ctx));
                         throw new ForbiddenResponse();
                     }
                 })
-                .get("/altcha", altchaController::createChallenge)
-                .get("/entries", guestbookController::getEntries)
-                .post("/entries", guestbookController::postEntry);
+                .get("/altcha", instrumented("GET /altcha", rateLimited(rateLimiters.challenges(), concurrencyLimiters.challenges(), altchaController::createChallenge)))
+                .get("/entries/stream", instrumented("GET /entries/stream", rateLimited(rateLimiters.entries(), null, entryStream::streamEntries)))
+                .get("/entries/search", instrumented("GET /entries/search", rateLimited(rateLimiters.entries(), concurrencyLimiters.reads(), guestbookController::searchEntries)))
+                .get("/entries", instrumented("GET /entries", rateLimited(rateLimiters.entries(), concurrencyLimiters.reads(), guestbookController::getEntries)))
+                .post("/entries", instrumented("POST /entries", rateLimited(rateLimiters.submissions(), concurrencyLimiters.submissions(), guestbookController::postEntry)));
+
+        if (bookshelf != null) {
+            javalin.get("/{book}/entries/stream", instrumented("GET /{book}/entries/stream", streamInBook(rateLimiters.entries())))
+                    .get("/{book}/entries/search", instrumented("GET /{book}/entries/search", inBook(rateLimiters.entries(), concurrencyLimiters.reads(), book -> book.guestbookController()::searchEntries)))
+                    .get("/{book}/entries", instrumented("GET /{book}/entries", inBook(rateLimiters.entries(), concurrencyLimiters.reads(), book -> book.guestbookController()::getEntries)))
+                    .post("/{book}/entries", instrumented("POST /{book}/entries", inBook(rateLimiters.submissions(), concurrencyLimiters.submissions(), book -> book.guestbookController()::postEntry)));
+        }
+
+        if (moderationController != null) {
+            javalin.before("/admin/*", moderationController::authenticate)
+                    .get("/admin/entries/pending", instrumented("GET /admin/entries/pending", moderationController::getPendingEntries))
+                    .post("/admin/entries/approve", instrumented("POST /admin/entries/approve", moderationController::approveEntries))
+                    .post("/admin/entries/delete", instrumented("POST /admin/entries/delete", moderationController::deleteEntries))
+                    .get("/admin/entries/export", instrumented("GET /admin/entries/export", exportController::exportEntries));
+            if (bookshelf != null) {
+                javalin.get("/admin/{book}/entries/pending", instrumented("GET /admin/{book}/entries/pending", inBook(null, null, book -> book.moderationController()::getPendingEntries)))
+                        .post("/admin/{book}/entries/approve", instrumented("POST /admin/{book}/entries/approve", inBook(null, null, book -> book.moderationController()::approveEntries)))
+                        .post("/admin/{book}/entries/delete", instrumented("POST /admin/{book}/entries/delete", inBook(null, null, book -> book.moderationController()::deleteEntries)))
+                        .get("/admin/{book}/entries/export", instrumented("GET /admin/{book}/entries/export", inBook(null, null, book -> book.exportController()::exportEntries)));
+            }
+        }
+        return javalin;
+    }
+
+    /**
+     * Borrow the book named in the path for the duration of the request and hand the request to the route's handler in
+     * that book. Each book has rate limiter buckets of its own, so a client's use of one book does not count against
+     * another.
+     *
+     * @param rateLimiter        The rate limiter to apply, or null for none.
+     * @param concurrencyLimiter The concurrency limiter to apply, or null for none.
+     * @param route              Picks the handler to use in the book.
+     */
+    private Handler inBook(TokenBucketRateLimiter rateLimiter, ConcurrencyLimiter concurrencyLimiter, Function<Book, Handler> route) {
+        return ctx -> {
+            var name = ctx.pathParam("book");
+            if (!Bookshelf.isValidName(name)) {
+                throw new NotFoundResponse();
+            }
+            if (rateLimiter != null) {
+                rateLimiter.enforce(ctx, name);
+            }
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.enforce(ctx, borrowed -> handleInBook(borrowed, name, route));
+            } else {
+                handleInBook(ctx, name, route);
+            }
+        };
+    }
+
+    private void handleInBook(Context ctx, String name, Function<Book, Handler> route) throws Exception {
+        try (var loan = bookshelf.borrow(name)) {
+            route.apply(loan.book()).handle(ctx);
+        }
+    }
+
+    /**
+     * Connect a client to the entry stream of the book named in the path. The client attaches after the handler returns
+     * and stays connected long after, so the loan is held until the client disconnects rather than returned with the
+     * handler, and the book is not closed under it.
+     */
+    private Handler streamInBook(TokenBucketRateLimiter rateLimiter) {
+        return ctx -> {
+            var name = ctx.pathParam("book");
+            if (!Bookshelf.isValidName(name)) {
+                throw new NotFoundResponse();
+            }
+            rateLimiter.enforce(ctx, name);
+
+            var loan = bookshelf.borrow(name);
+            try {
+                loan.book().entryStream().streamEntries(ctx, loan::close);
+            } catch (Exception e) {
+                loan.close();
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Count the responses of a route by status class and record how long its handler took. The metrics are looked up
+     * once here, so a request only costs a few counter increments.
+     */
+    private Handler instrumented(String route, Handler handler) {
+        var duration  = metrics.histogram("guestbook_http_request_duration_seconds", "Time spent handling requests, by route.", "route", route);
+        var responses = new Counter[5];
+        for (var i = 0; i < responses.length; i++) {
+            responses[i] = metrics.counter("guestbook_http_responses_total", "Number of responses, by route and status class.", "route", route, "status", (i + 1) + "xx");
+        }
+
+        return ctx -> {
+            var start  = System.nanoTime();
+            var status = 500;
+            try {
+                handler.handle(ctx);
+                status = ctx.statusCode();
+            } catch (HttpResponseException e) {
+                status = e.getStatus();
+                throw e;
+            } catch (ValidationException e) {
+                status = 400;
+                throw e;
+            } finally {
+                duration.recordSince(start);
+                responses[Math.clamp(status / 100 - 1, 0, responses.length - 1)].increment();
+            }
+        };
+    }
+
+    /**
+     * Apply the rate limit first, so a client over its limit is turned away without taking a permit from the concurrency
+     * limiter.
+     *
+     * @param concurrencyLimiter The concurrency limiter to apply, or null for none.
+     */
+    private static Handler rateLimited(TokenBucketRateLimiter rateLimiter, ConcurrencyLimiter concurrencyLimiter, Handler handler) {
+        return ctx -> {
+            rateLimiter.enforce(ctx);
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.enforce(ctx, handler);
+            } else {
+                handler.handle(ctx);
+            }
+        };
     }
 }
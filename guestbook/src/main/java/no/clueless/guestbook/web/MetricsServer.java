@@ -0,0 +1,26 @@
+package no.clueless.guestbook.web;
+
+import io.javalin.Javalin;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+
+/**
+ * Serves the application's metrics in the Prometheus text format on {@code GET /metrics}. It is meant to run on a port
+ * of its own which is only reachable by the monitoring system, so it has none of the referer and rate limiting checks
+ * of the public server.
+ */
+public class MetricsServer {
+    private final MetricsRegistry metrics;
+
+    public MetricsServer(MetricsRegistry metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics cannot be null");
+        }
+
+        this.metrics = metrics;
+    }
+
+    public Javalin create() {
+        return Javalin.create(config -> config.showJavalinBanner = false)
+                .get("/metrics", ctx -> ctx.contentType(MetricsRegistry.CONTENT_TYPE).result(metrics.scrape()));
+    }
+}
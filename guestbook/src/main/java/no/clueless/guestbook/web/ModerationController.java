@@ -0,0 +1,98 @@
+package no.clueless.guestbook.web;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.UnauthorizedResponse;
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.EntryFilter;
+import no.clueless.guestbook.Moderator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Endpoints for moderators under {@code /admin}, authenticated with a bearer token. Approving and deleting takes either
+ * a set of ids or a filter, and each request is applied in one transaction.
+ */
+public class ModerationController {
+    public static final  int       MINIMUM_TOKEN_LENGTH = 32;
+    private static final Logger    log                  = LoggerFactory.getLogger(ModerationController.class);
+    private static final int       MAXIMUM_PAGE_SIZE    = 1000;
+    private static final int       MAXIMUM_IDS          = 100_000;
+    private final        Moderator moderator;
+    private final        byte[]    adminToken;
+    private final        int       defaultPageSize;
+
+    public ModerationController(Moderator moderator, String adminToken, int defaultPageSize) {
+        if (moderator == null) {
+            throw new IllegalArgumentException("moderator cannot be null");
+        }
+        if (adminToken == null || adminToken.strip().length() < MINIMUM_TOKEN_LENGTH) {
+            throw new IllegalArgumentException("adminToken must be at least " + MINIMUM_TOKEN_LENGTH + " characters");
+        }
+        if (defaultPageSize < 1 || defaultPageSize > MAXIMUM_PAGE_SIZE) {
+            throw new IllegalArgumentException("defaultPageSize must be between 1 and " + MAXIMUM_PAGE_SIZE);
+        }
+
+        this.moderator       = moderator;
+        this.adminToken      = adminToken.strip().getBytes(StandardCharsets.UTF_8);
+        this.defaultPageSize = defaultPageSize;
+    }
+
+    /**
+     * Reject requests without the admin token. Compares in constant time so the token cannot be guessed byte by byte.
+     */
+    public void authenticate(Context ctx) {
+        var authorization = ctx.header(Header.AUTHORIZATION);
+        var token         = authorization != null && authorization.startsWith("Bearer ") ? authorization.substring(7).strip() : "";
+        if (!MessageDigest.isEqual(adminToken, token.getBytes(StandardCharsets.UTF_8))) {
+            log.warn("Received moderation request without a valid token from {}", ClientAddress.of(ctx));
+            ctx.header(Header.WWW_AUTHENTICATE, "Bearer");
+            throw new UnauthorizedResponse();
+        }
+    }
+
+    /**
+     * Get a page of entries waiting for approval, oldest first. Follow {@code nextCursor} by passing it back as the
+     * {@code after} query parameter.
+     */
+    public void getPendingEntries(Context ctx) {
+        var after = ctx.queryParamAsClass("after", Integer.class).allowNullable().check(value -> value == null || value > 0, "after must be greater than 0").get();
+        var size  = ctx.queryParamAsClass("size", Integer.class).check(value -> value > 0 && value <= MAXIMUM_PAGE_SIZE, "size must be between 1 and " + MAXIMUM_PAGE_SIZE).getOrDefault(defaultPageSize);
+
+        var entries = moderator.getPendingEntries(after, size);
+        ctx.json(new GetPendingEntriesResponse(entries, entries.size() < size ? null : entries.get(entries.size() - 1).getId()));
+    }
+
+    public void approveEntries(Context ctx) {
+        moderate(ctx, moderator::approve, moderator::approve);
+    }
+
+    public void deleteEntries(Context ctx) {
+        moderate(ctx, moderator::delete, moderator::delete);
+    }
+
+    private void moderate(Context ctx, Function<List<Integer>, List<Integer>> byIds, Function<EntryFilter, List<Integer>> byFilter) {
+        var request = ctx.bodyValidator(ModerationRequest.class)
+                .check(body -> (body.ids() == null) != (body.filter() == null), "exactly one of ids and filter must be set")
+                .check(body -> body.ids() == null || body.ids().size() <= MAXIMUM_IDS, "ids cannot contain more than " + MAXIMUM_IDS + " ids")
+                .check(body -> body.ids() == null || body.ids().stream().allMatch(id -> id != null && id > 0), "ids must be greater than 0")
+                .get();
+
+        var moderatedIds = request.ids() != null ? byIds.apply(request.ids()) : byFilter.apply(request.filter());
+        ctx.json(new ModerationResponse(moderatedIds.size(), moderatedIds));
+    }
+
+    public record GetPendingEntriesResponse(List<Entry> entries, Integer nextCursor) {
+    }
+
+    public record ModerationRequest(List<Integer> ids, EntryFilter filter) {
+    }
+
+    public record ModerationResponse(int count, List<Integer> ids) {
+    }
+}
@@ -0,0 +1,22 @@
+package no.clueless.guestbook.web;
+
+/**
+ * The rate limiters applied to each route.
+ *
+ * @param entries     Applied to GET /entries.
+ * @param submissions Applied to POST /entries.
+ * @param challenges  Applied to GET /altcha.
+ */
+public record RateLimiters(TokenBucketRateLimiter entries, TokenBucketRateLimiter submissions, TokenBucketRateLimiter challenges) {
+    public RateLimiters {
+        if (entries == null) {
+            throw new IllegalArgumentException("entries cannot be null");
+        }
+        if (submissions == null) {
+            throw new IllegalArgumentException("submissions cannot be null");
+        }
+        if (challenges == null) {
+            throw new IllegalArgumentException("challenges cannot be null");
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package no.clueless.guestbook.web;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts events over a sliding window, split into a fixed number of slots. Counting an event is one atomic increment,
+ * plus clearing its slot the first time the slot is used in a new round. The sum covers the current slot and the ones
+ * before it, so it lags the true window by at most one slot.
+ */
+class SlidingWindowCounter {
+    private final long            slotNanos;
+    private final int             slots;
+    private final LongSupplier    clock;
+    private final AtomicLongArray counts;
+    private final AtomicLongArray epochs;
+
+    /**
+     * @param window The length of the window.
+     * @param slots  The number of slots to split the window into.
+     * @param clock  The source of the current time in nanoseconds.
+     */
+    SlidingWindowCounter(Duration window, int slots, LongSupplier clock) {
+        if (window == null || window.isNegative() || window.isZero()) {
+            throw new IllegalArgumentException("window must be greater than 0");
+        }
+        if (slots < 1) {
+            throw new IllegalArgumentException("slots must be greater than 0");
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("clock cannot be null");
+        }
+
+        this.slotNanos = Math.max(1, window.toNanos() / slots);
+        this.slots     = slots;
+        this.clock     = clock;
+        this.counts    = new AtomicLongArray(slots);
+        this.epochs    = new AtomicLongArray(slots);
+        var epoch = epoch();
+        for (var slot = 0; slot < slots; slot++) {
+            // Slots which have never been used must not count as part of the current window.
+            epochs.set(slot, epoch - slots);
+        }
+    }
+
+    void increment() {
+        var epoch = epoch();
+        var slot  = (int) Math.floorMod(epoch, (long) slots);
+        if (epochs.get(slot) != epoch) {
+            synchronized (this) {
+                if (epochs.get(slot) != epoch) {
+                    counts.set(slot, 0);
+                    epochs.set(slot, epoch);
+                }
+            }
+        }
+        counts.incrementAndGet(slot);
+    }
+
+    /**
+     * @return The number of events counted within the window.
+     */
+    long sum() {
+        var epoch = epoch();
+        var sum   = 0L;
+        for (var slot = 0; slot < slots; slot++) {
+            if (epoch - epochs.get(slot) < slots) {
+                sum += counts.get(slot);
+            }
+        }
+        return sum;
+    }
+
+    private long epoch() {
+        return Math.floorDiv(clock.getAsLong(), slotNanos);
+    }
+}
@@ -0,0 +1,192 @@
+package no.clueless.guestbook.web;
+
+import no.clueless.guestbook.ApprovedEntriesMonitor;
+import no.clueless.guestbook.metrics.Counter;
+import no.clueless.guestbook.metrics.Histogram;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps a snapshot of the first numbered pages of {@code GET /entries} on disk, so a web server in front of the
+ * guestbook can serve page views as static files and only pass the rest on. Each page is written as
+ * {@code entries/page-<n>.json} and {@code entries/page-<n>.json.gz}, with the same body the API serves.
+ * <p>
+ * The snapshot is written when the publisher is started, and brought up to date on a thread of its own whenever the
+ * approved entries change. Only pages whose body changed are rewritten, and pages past the end are deleted so they fall
+ * through to the API again. Every file is written next to its final name and renamed over it, so a reader sees either
+ * the old page or the new one, never half of one. The compressed page is renamed into place first, so a client may
+ * briefly get an older page, but never a truncated one.
+ */
+public class SnapshotPublisher implements AutoCloseable {
+    public static final  int                 DEFAULT_MAXIMUM_PAGES = 100;
+    private static final Logger              log                   = LoggerFactory.getLogger(SnapshotPublisher.class);
+    private static final Pattern             PAGE_FILE             = Pattern.compile("page-(\\d{1,9})\\.json(\\.gz)?");
+    private final        GuestbookController guestbookController;
+    private final        Path                directory;
+    private final        int                 maximumPages;
+    private final        ExecutorService     executor;
+    private final        AtomicBoolean       publishPending        = new AtomicBoolean();
+    private final        Counter             pagesWritten;
+    private final        Counter             pagesDeleted;
+    private final        Histogram           publishDuration;
+
+    private SnapshotPublisher(GuestbookController guestbookController, Path directory, int maximumPages, MetricsRegistry metrics) {
+        this.guestbookController = guestbookController;
+        this.directory           = directory.resolve("entries");
+        this.maximumPages        = maximumPages;
+        this.executor            = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "snapshot-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pagesWritten        = metrics.counter("guestbook_snapshot_pages_written_total", "Number of snapshot pages written because their content changed.");
+        this.pagesDeleted        = metrics.counter("guestbook_snapshot_pages_deleted_total", "Number of snapshot pages deleted because they are past the last page.");
+        this.publishDuration     = metrics.histogram("guestbook_snapshot_publish_duration_seconds", "Time spent bringing the snapshot up to date.");
+    }
+
+    /**
+     * Write the snapshot and keep it up to date from then on.
+     *
+     * @param monitor             Tells the publisher when the approved entries change.
+     * @param guestbookController Serializes the pages exactly like the API does.
+     * @param directory           Where to write the snapshot. The pages go in its {@code entries} subdirectory.
+     * @param maximumPages        The number of pages to keep a snapshot of. Later pages are only served by the API.
+     * @param metrics             Where to record what the publisher does.
+     * @return The publisher, already listening to the monitor.
+     */
+    public static SnapshotPublisher start(ApprovedEntriesMonitor monitor, GuestbookController guestbookController, Path directory, int maximumPages, MetricsRegistry metrics) {
+        if (monitor == null) {
+            throw new IllegalArgumentException("monitor cannot be null");
+        }
+        if (guestbookController == null) {
+            throw new IllegalArgumentException("guestbookController cannot be null");
+        }
+        if (directory == null) {
+            throw new IllegalArgumentException("directory cannot be null");
+        }
+        if (maximumPages < 1) {
+            throw new IllegalArgumentException("maximumPages must be greater than 0");
+        }
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics cannot be null");
+        }
+
+        var snapshotPublisher = new SnapshotPublisher(guestbookController, directory, maximumPages, metrics);
+        try {
+            Files.createDirectories(snapshotPublisher.directory);
+            snapshotPublisher.publish();
+        } catch (IOException e) {
+            snapshotPublisher.close();
+            throw new UncheckedIOException("Failed to publish the snapshot to " + snapshotPublisher.directory, e);
+        } catch (RuntimeException e) {
+            snapshotPublisher.close();
+            throw e;
+        }
+        monitor.addListener(version -> snapshotPublisher.schedulePublish());
+        return snapshotPublisher;
+    }
+
+    /**
+     * Bring the snapshot up to date, unless that is already about to happen. Changes arriving while a publish is running
+     * are merged into one more publish after it.
+     */
+    private void schedulePublish() {
+        if (!publishPending.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(() -> {
+            publishPending.set(false);
+            try {
+                publish();
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to publish the snapshot to {}", directory, e);
+            }
+        });
+    }
+
+    /**
+     * Bring the snapshot up to date with the approved entries.
+     *
+     * @return The number of files written or deleted.
+     */
+    synchronized int publish() throws IOException {
+        var start   = System.nanoTime();
+        var changed = 0;
+        // An empty guestbook still has a first page.
+        var pages   = Math.min(maximumPages, Math.max(1, guestbookController.numberOfPages()));
+        for (var page = 0; page < pages; page++) {
+            var json = guestbookController.entriesPageJson(page);
+            var file = directory.resolve("page-" + page + ".json");
+            if (Files.exists(file) && Arrays.equals(json, Files.readAllBytes(file))) {
+                continue;
+            }
+            write(directory.resolve("page-" + page + ".json.gz"), gzip(json));
+            write(file, json);
+            pagesWritten.increment();
+            changed += 2;
+        }
+
+        try (var files = Files.list(directory)) {
+            for (var file : files.toList()) {
+                var matcher = PAGE_FILE.matcher(file.getFileName().toString());
+                if (matcher.matches() && Integer.parseInt(matcher.group(1)) >= pages) {
+                    Files.deleteIfExists(file);
+                    if (matcher.group(2) == null) {
+                        pagesDeleted.increment();
+                    }
+                    changed++;
+                }
+            }
+        }
+
+        publishDuration.recordSince(start);
+        if (changed > 0) {
+            log.info("Published {} snapshot files of {} pages to {} in {} ms", changed, pages, directory, (System.nanoTime() - start) / 1_000_000);
+        }
+        return changed;
+    }
+
+    private static void write(Path file, byte[] content) throws IOException {
+        var temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temporaryFile, content);
+        Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        var gzipped = new ByteArrayOutputStream(content.length / 2);
+        try (var gzipOutputStream = new GZIPOutputStream(gzipped)) {
+            gzipOutputStream.write(content);
+        }
+        return gzipped.toByteArray();
+    }
+
+    /**
+     * Stop publishing, waiting for a publish in progress to finish. The snapshot is left as it is.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("Timed out waiting for the snapshot publisher to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
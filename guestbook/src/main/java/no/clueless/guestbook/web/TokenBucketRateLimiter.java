@@ -0,0 +1,204 @@
+package no.clueless.guestbook.web;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.TooManyRequestsResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A per-client token bucket rate limiter with bounded memory.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the time at which the bucket will be full again, the generic cell
+ * rate algorithm formulation of a token bucket. Taking a token is one compare-and-set, so clients never contend with
+ * each other, and the buckets live in a {@link ConcurrentHashMap} whose bins are locked independently.
+ * <p>
+ * A bucket which has refilled completely carries no information and is swept away, once per sweep interval. If the
+ * number of tracked clients reaches its cap in between, a new client takes the place of the stalest of a small sample of
+ * buckets from a random part of the map, the one closest to full. A flood of distinct addresses therefore cannot grow the
+ * map without bound, and cannot lock new visitors out either: the worst it can do is hand a recently active client a fresh bucket.
+ */
+public class TokenBucketRateLimiter {
+    private static final Logger log             = LoggerFactory.getLogger(TokenBucketRateLimiter.class);
+    private static final int    EVICTION_SAMPLE = 16;
+
+    private final String                                name;
+    private final long                                  emissionIntervalNanos;
+    private final long                                  burstToleranceNanos;
+    private final int                                   maximumTrackedClients;
+    private final long                                  sweepIntervalNanos;
+    private final LongSupplier                          clock;
+    private final ConcurrentHashMap<String, AtomicLong> buckets   = new ConcurrentHashMap<>();
+    private final AtomicBoolean                         sweeping  = new AtomicBoolean();
+    private final AtomicLong                            nextSweep;
+    private final AtomicLong                            evictions = new AtomicLong();
+
+    public TokenBucketRateLimiter(String name, int permitsPerMinute, int maximumTrackedClients) {
+        this(name, permitsPerMinute, Duration.ofMinutes(1), maximumTrackedClients, System::nanoTime);
+    }
+
+    /**
+     * @param name                  The name of the limiter, used in logging.
+     * @param capacity              The number of requests a client can make in a burst.
+     * @param refillPeriod          How long it takes an empty bucket to fill up completely.
+     * @param maximumTrackedClients The maximum number of clients to track at once.
+     * @param clock                 The source of the current time in nanoseconds.
+     */
+    public TokenBucketRateLimiter(String name, int capacity, Duration refillPeriod, int maximumTrackedClients, LongSupplier clock) {
+        if (name == null || name.isBlank()) {
+            throw new IllegalArgumentException("name cannot be null or blank");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        if (refillPeriod == null || refillPeriod.isNegative() || refillPeriod.isZero()) {
+            throw new IllegalArgumentException("refillPeriod must be greater than 0");
+        }
+        if (maximumTrackedClients < 1) {
+            throw new IllegalArgumentException("maximumTrackedClients must be greater than 0");
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("clock cannot be null");
+        }
+
+        this.name                  = name;
+        this.emissionIntervalNanos = Math.max(1, refillPeriod.toNanos() / capacity);
+        this.burstToleranceNanos   = emissionIntervalNanos * (capacity - 1);
+        this.maximumTrackedClients = maximumTrackedClients;
+        this.sweepIntervalNanos    = refillPeriod.toNanos();
+        this.clock                 = clock;
+        this.nextSweep             = new AtomicLong(clock.getAsLong() + sweepIntervalNanos);
+    }
+
+    /**
+     * Try to take a token from the client's bucket.
+     *
+     * @param client The key of the client.
+     * @return 0 if the request is allowed, otherwise the number of nanoseconds until it would be.
+     */
+    public long tryAcquire(String client) {
+        var now = clock.getAsLong();
+        if (now - nextSweep.get() >= 0) {
+            sweep(now);
+        }
+
+        var bucket = buckets.get(client);
+        if (bucket == null) {
+            if (buckets.size() >= maximumTrackedClients) {
+                evictStalest();
+            }
+            bucket = buckets.computeIfAbsent(client, ignored -> new AtomicLong(now));
+        }
+
+        while (true) {
+            var theoreticalArrivalTime = bucket.get();
+            var nextArrivalTime        = Math.max(theoreticalArrivalTime, now) + emissionIntervalNanos;
+            var waitTime               = nextArrivalTime - now - burstToleranceNanos - emissionIntervalNanos;
+            if (waitTime > 0) {
+                return waitTime;
+            }
+            if (bucket.compareAndSet(theoreticalArrivalTime, nextArrivalTime)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Take a token from the bucket of the client making the request, or reject the request with {@code 429 Too Many
+     * Requests} and a {@code Retry-After} header.
+     *
+     * @param ctx The request context.
+     * @throws TooManyRequestsResponse If the client is out of tokens.
+     */
+    public void enforce(Context ctx) {
+        enforce(ctx, "");
+    }
+
+    /**
+     * Like {@link #enforce(Context)}, but with buckets kept apart per namespace.
+     *
+     * @param ctx       The request context.
+     * @param namespace The namespace to take the token in.
+     * @throws TooManyRequestsResponse If the client is out of tokens.
+     */
+    public void enforce(Context ctx, String namespace) {
+        var waitTime = tryAcquire(namespace.isEmpty() ? ClientAddress.of(ctx) : namespace + '|' + ClientAddress.of(ctx));
+        if (waitTime > 0) {
+            ctx.header(Header.RETRY_AFTER, Long.toString(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitTime + TimeUnit.SECONDS.toNanos(1) - 1))));
+            throw new TooManyRequestsResponse();
+        }
+    }
+
+    /**
+     * @return The number of clients currently tracked.
+     */
+    public int trackedClients() {
+        return buckets.size();
+    }
+
+    /**
+     * @return The number of buckets evicted to make room for new clients since startup.
+     */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Remove the bucket with the earliest theoretical arrival time among a few in a randomly chosen part of the map.
+     * Halving the map's spliterator down to a sample finds that part without a scan of every bucket, and starting at a
+     * random place keeps evictions from landing on the same few buckets at the head of the map every time.
+     */
+    private void evictStalest() {
+        var sample = buckets.entrySet().spliterator();
+        var random = ThreadLocalRandom.current();
+        while (sample.estimateSize() > EVICTION_SAMPLE) {
+            var half = sample.trySplit();
+            if (half == null) {
+                break;
+            }
+            if (random.nextBoolean()) {
+                sample = half;
+            }
+        }
+
+        var stalest = new Object() {
+            String key;
+            long   time;
+        };
+        sample.forEachRemaining(bucket -> {
+            var time = bucket.getValue().get();
+            if (stalest.key == null || time - stalest.time < 0) {
+                stalest.key  = bucket.getKey();
+                stalest.time = time;
+            }
+        });
+        if (stalest.key == null) {
+            // The sampled part of the map happened to be empty.
+            var first = buckets.keySet().iterator();
+            stalest.key = first.hasNext() ? first.next() : null;
+        }
+        if (stalest.key != null && buckets.remove(stalest.key) != null && evictions.getAndIncrement() % maximumTrackedClients == 0) {
+            log.warn("Rate limiter {} is tracking {} clients, its maximum. Evicting the stalest buckets to make room for new clients.", name, maximumTrackedClients);
+        }
+    }
+
+    private void sweep(long now) {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            buckets.entrySet().removeIf(bucket -> bucket.getValue().get() - now <= 0);
+            nextSweep.set(now + sweepIntervalNanos);
+        } finally {
+            sweeping.set(false);
+        }
+    }
+}
@@ -1,25 +1,34 @@
 package no.clueless;
 
+import no.clueless.guestbook.ApprovedEntriesMonitor;
+import no.clueless.guestbook.DuplicateDetector;
 import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.EntryCache;
 import no.clueless.guestbook.Guestbook;
-import no.clueless.guestbook.persistence.SqliteGuestbookRepository;
+import no.clueless.guestbook.Sanitizer;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import no.clueless.guestbook.persistence.GuestbookRepository;
 import org.junit.jupiter.api.Test;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.HexFormat;
+import java.util.List;
 import java.util.concurrent.SubmissionPublisher;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 class GuestbookTest {
 
     @Test
     void signingTheGuestbookShouldPublishAnEvent() {
-        var guestbookRepository = mock(SqliteGuestbookRepository.class);
+        var guestbookRepository = mock(GuestbookRepository.class);
         var createdEntry        = Entry.newEntry("Foo", "Bar");
         when(guestbookRepository.createEntry(any())).thenReturn(createdEntry);
 
@@ -33,10 +42,42 @@ class GuestbookTest {
         verify(submissionPublisher, times(1)).submit(createdEntry);
     }
 
+    @Test
+    void nearDuplicatesShouldBeTurnedAwayBeforeReachingTheRepository() {
+        var guestbookRepository = mock(GuestbookRepository.class);
+        when(guestbookRepository.createEntry(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        var submissionPublisher = mock(SubmissionPublisher.class);
+
+        //noinspection unchecked
+        var guestbook = new Guestbook(guestbookRepository, submissionPublisher, null, new Sanitizer(), new DuplicateDetector(Duration.ofMinutes(10), DuplicateDetector.DEFAULT_MAXIMUM_DISTANCE, 1024), new MetricsRegistry());
+
+        assertTrue(guestbook.sign("Spammer", "Buy cheap watches at <b>http://spam.example.com</b> today!").isPresent());
+        assertTrue(guestbook.sign("Spammer", "Buy cheap watches at http://spam.example.com today!!").isEmpty());
+        assertTrue(guestbook.sign("Visitor", "Lovely website, thanks for sharing.").isPresent());
+
+        verify(guestbookRepository, times(2)).createEntry(any());
+        //noinspection unchecked
+        verify(submissionPublisher, times(2)).submit(any());
+    }
+
+    @Test
+    void anEntryWhichFailedToBeStoredShouldNotBeADuplicateOfItsRetry() {
+        var guestbookRepository = mock(GuestbookRepository.class);
+        when(guestbookRepository.createEntry(any())).thenThrow(new IllegalStateException("Database is locked")).thenAnswer(invocation -> invocation.getArgument(0));
+        var submissionPublisher = mock(SubmissionPublisher.class);
+
+        //noinspection unchecked
+        var guestbook = new Guestbook(guestbookRepository, submissionPublisher, null, new Sanitizer(), new DuplicateDetector(Duration.ofMinutes(10), DuplicateDetector.DEFAULT_MAXIMUM_DISTANCE, 1024), new MetricsRegistry());
+
+        assertThrows(IllegalStateException.class, () -> guestbook.sign("Visitor", "Lovely website, thanks for sharing."));
+        assertTrue(guestbook.sign("Visitor", "Lovely website, thanks for sharing.").isPresent());
+        assertTrue(guestbook.sign("Visitor", "Lovely website, thanks for sharing.").isEmpty(), "Once stored, the entry is remembered");
+    }
+
     @Test
     void signingTheGuestbookShouldCleanNameAndMessageForHtml() {
         // arrange
-        var guestbookRepository = mock(SqliteGuestbookRepository.class);
+        var guestbookRepository = mock(GuestbookRepository.class);
         var submissionPublisher = mock(SubmissionPublisher.class);
 
         //noinspection unchecked
@@ -49,6 +90,40 @@ class GuestbookTest {
         assertNull(result);
     }
 
+    @Test
+    void readingTheGuestbookShouldOnlyHitTheRepositoryAgainWhenTheApprovedEntriesChange() {
+        // arrange
+        var guestbookRepository = mock(GuestbookRepository.class);
+        var submissionPublisher = mock(SubmissionPublisher.class);
+        var entries             = List.of(Entry.existingEntry(1, true, "Foo", "Bar", java.time.LocalDateTime.now()));
+        when(guestbookRepository.getApprovedEntriesVersion()).thenReturn(1L);
+        when(guestbookRepository.getApprovedEntries(0, 10, "id", "desc")).thenReturn(entries);
+        when(guestbookRepository.getNumberOfApprovedEntries()).thenReturn(1L);
+
+        try (var monitor = ApprovedEntriesMonitor.start(guestbookRepository::getApprovedEntriesVersion, Duration.ofHours(1))) {
+            var entryCache = EntryCache.create(monitor, 10);
+            //noinspection unchecked
+            var guestbook = new Guestbook(guestbookRepository, submissionPublisher, entryCache);
+
+            // act
+            guestbook.read(0, 10, "id", "desc");
+            guestbook.getTotalEntries();
+            guestbook.read(0, 10, "id", "desc");
+            guestbook.getTotalEntries();
+
+            when(guestbookRepository.getApprovedEntriesVersion()).thenReturn(2L);
+            monitor.refresh();
+            var result = guestbook.read(0, 10, "id", "desc");
+
+            // assert
+            assertEquals(entries, result);
+            verify(guestbookRepository, times(2)).getApprovedEntries(0, 10, "id", "desc");
+            verify(guestbookRepository, times(1)).getNumberOfApprovedEntries();
+            assertEquals(1, entryCache.statistics().pageHits());
+            assertEquals(1, entryCache.statistics().countHits());
+        }
+    }
+
     @Test
     void testAltchaVerificationLogic() throws Exception {
         String secret = "test-secret";
@@ -0,0 +1,115 @@
+package no.clueless;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.NotificationDispatcher;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NotificationDispatcherTest {
+    private HttpServer    stubServer;
+    private HttpClient    httpClient;
+    private List<String>  receivedBodies;
+    private AtomicInteger failuresLeft;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        receivedBodies = new CopyOnWriteArrayList<>();
+        failuresLeft   = new AtomicInteger();
+        stubServer     = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stubServer.createContext("/emails", exchange -> {
+            var body       = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            var statusCode = failuresLeft.getAndDecrement() > 0 ? 503 : 200;
+            if (statusCode == 200) {
+                receivedBodies.add(body);
+            }
+            exchange.sendResponseHeaders(statusCode, -1);
+            exchange.close();
+        });
+        stubServer.start();
+        httpClient = HttpClient.newHttpClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        httpClient.close();
+        stubServer.stop(0);
+    }
+
+    private NotificationDispatcher dispatcher(Duration digestWindow) {
+        var endpoint = URI.create("http://localhost:" + stubServer.getAddress().getPort() + "/emails");
+        return new NotificationDispatcher(httpClient, endpoint, "api-key", "from@example.com", "to@example.com", new ObjectMapper(), digestWindow, 2, 3, Duration.ofMillis(10), new MetricsRegistry());
+    }
+
+    private static Entry entry(int id) {
+        return Entry.existingEntry(id, false, "Name " + id, "Message " + id, LocalDateTime.now());
+    }
+
+    @Test
+    void aBurstOfEntriesShouldBeMergedIntoOneDigest() throws InterruptedException {
+        try (var dispatcher = dispatcher(Duration.ofMillis(300))) {
+            for (var id = 1; id <= 10; id++) {
+                dispatcher.dispatch(entry(id));
+            }
+
+            awaitReceived(2);
+            assertTrue(receivedBodies.get(0).contains("ID 1 from Name 1"));
+            assertTrue(receivedBodies.get(1).contains("9 new entries pending approval"));
+            assertTrue(receivedBodies.get(1).contains("ID 10 from Name 10"));
+        }
+    }
+
+    @Test
+    void failedNotificationsShouldBeRetried() throws InterruptedException {
+        failuresLeft.set(2);
+        try (var dispatcher = dispatcher(Duration.ZERO)) {
+            dispatcher.dispatch(entry(1));
+
+            awaitReceived(1);
+            assertTrue(receivedBodies.get(0).contains("ID 1 from Name 1"));
+        }
+    }
+
+    @Test
+    void entriesShouldBeToldApartByBook() throws InterruptedException {
+        try (var dispatcher = dispatcher(Duration.ofMillis(300))) {
+            dispatcher.dispatch(entry(1));
+            dispatcher.dispatch("first", entry(1));
+            dispatcher.dispatch("second", entry(1));
+            dispatcher.dispatch(entry(2));
+            dispatcher.discard("first", List.of(1));
+
+            awaitReceived(2);
+            assertTrue(receivedBodies.get(0).contains("ID 1 from Name 1 pending approval"), receivedBodies.get(0));
+            assertTrue(receivedBodies.get(1).contains("2 new entries pending approval"), receivedBodies.get(1));
+            assertTrue(receivedBodies.get(1).contains("ID 1 from Name 1 in the book second"), receivedBodies.get(1));
+            assertTrue(receivedBodies.get(1).contains("ID 2 from Name 2<"), receivedBodies.get(1));
+            assertFalse(receivedBodies.get(1).contains("in the book first"), "Only the entry of the moderated book is left out");
+        }
+    }
+
+    private void awaitReceived(int expected) throws InterruptedException {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (receivedBodies.size() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, receivedBodies.size());
+    }
+}
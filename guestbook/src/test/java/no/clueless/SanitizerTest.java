@@ -0,0 +1,73 @@
+package no.clueless;
+
+import no.clueless.guestbook.Sanitizer;
+import org.jsoup.Jsoup;
+import org.jsoup.safety.Safelist;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SanitizerTest {
+    private static final List<String> FRAGMENTS = List.of(
+            "<", ">", "&", " ", "  ", "\t", "\n", "\r\n", "\f", "\u000B", "\u0000", "\u001F", "\u007F", "\u0085", " ",
+            "­", "​", " ", "　", "﻿", "�", "￿", "\uD83D", "\uDE00", "😀", "\"",
+            "'", "=", "/", "!", "-", ";", "#", "x", "<b>", "</b>", "<i>bold</i>", "<script>alert('hi')</script>",
+            "<a href=\"https://example.com\">", "</a>", "<p>", "<br>", "<br/>", "<!--", "-->", "<![CDATA[", "]]>",
+            "<pre>  </pre>", "<textarea>", "<style>", "&amp;", "&lt;", "&gt;", "&nbsp;", "&#x41;", "&#65;", "&copy",
+            "&unknown;", "&#0;", "æøå", "ÆØÅ", "Hello", "world", "1 < 2", "a > b", "Tom & Jerry"
+    );
+
+    private final Sanitizer sanitizer = new Sanitizer(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    @Test
+    void cleaningShouldGiveTheSameOutputAsJsoupForRandomText() {
+        var random = new Random(20260214L);
+        for (var i = 0; i < 50_000; i++) {
+            var text = randomText(random);
+            assertEquals(Jsoup.clean(text, Safelist.none()), sanitizer.cleanMessage(text), () -> "Different output for " + escape(text));
+        }
+    }
+
+    @Test
+    void plainTextShouldBeReturnedWithoutBeingParsed() {
+        for (var text : List.of("Jane Doe", "Takk for en fin side! Hilsen Åse 😀", "It's \"quoted\", (bracketed) and 100% done.")) {
+            assertEquals(Jsoup.clean(text, Safelist.none()), text);
+            assertSame(text, sanitizer.cleanMessage(text));
+        }
+    }
+
+    @Test
+    void textsLongerThanTheMaximumLengthShouldBeRejected() {
+        var limitedSanitizer = new Sanitizer(5, 10);
+        assertEquals("Alice", limitedSanitizer.cleanName("Alice"));
+        assertThrows(IllegalArgumentException.class, () -> limitedSanitizer.cleanName("Alice B"));
+        assertEquals("0123456789", limitedSanitizer.cleanMessage("0123456789"));
+        assertThrows(IllegalArgumentException.class, () -> limitedSanitizer.cleanMessage("<b>0123456789</b>"));
+    }
+
+    /**
+     * @return Up to 12 pieces of text, each one either a fragment which Jsoup treats specially, a run of ordinary
+     * characters, or a random code point.
+     */
+    private static String randomText(Random random) {
+        var text   = new StringBuilder();
+        var pieces = random.nextInt(13);
+        for (var i = 0; i < pieces; i++) {
+            switch (random.nextInt(3)) {
+                case 0 -> text.append(FRAGMENTS.get(random.nextInt(FRAGMENTS.size())));
+                case 1 -> text.append("lorem ipsum dolor sit amet", 0, 1 + random.nextInt(26));
+                default -> text.appendCodePoint(random.nextBoolean() ? random.nextInt(0x3000) : random.nextInt(Character.MAX_CODE_POINT + 1));
+            }
+        }
+        return text.toString();
+    }
+
+    private static String escape(String text) {
+        var escaped = new StringBuilder();
+        text.chars().forEach(c -> escaped.append(c >= ' ' && c < 0x7F ? String.valueOf((char) c) : String.format("\\u%04X", c)));
+        return escaped.toString();
+    }
+}
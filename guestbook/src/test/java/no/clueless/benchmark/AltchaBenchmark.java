@@ -0,0 +1,54 @@
+package no.clueless.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.altcha.altcha.Altcha;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures creating an Altcha challenge and verifying a solution to one, the server side cost of the proof of work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AltchaBenchmark {
+    private static final String HMAC_KEY = "benchmark";
+
+    private Altcha.ChallengeOptions challengeOptions;
+    private String                  solution;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        challengeOptions = new Altcha.ChallengeOptions()
+                .setMaxNumber(100000L)
+                .setHmacKey(HMAC_KEY)
+                .setExpiresInSeconds(1000);
+
+        var challenge = Altcha.createChallenge(challengeOptions);
+        var solved    = Altcha.solveChallenge(challenge.challenge, challenge.salt, Altcha.Algorithm.SHA256, challenge.maxnumber, 0);
+        var payload   = Map.of(
+                "algorithm", challenge.algorithm,
+                "challenge", challenge.challenge,
+                "number", solved.number,
+                "salt", challenge.salt,
+                "signature", challenge.signature
+        );
+        solution = Base64.getEncoder().encodeToString(new ObjectMapper().writeValueAsBytes(payload));
+    }
+
+    @Benchmark
+    public Altcha.Challenge createChallenge() throws Exception {
+        return Altcha.createChallenge(challengeOptions);
+    }
+
+    @Benchmark
+    public boolean verifySolution() throws Exception {
+        return Altcha.verifySolution(solution, HMAC_KEY, true);
+    }
+}
@@ -0,0 +1,142 @@
+package no.clueless.benchmark;
+
+import no.clueless.guestbook.DuplicateDetector;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures fingerprinting, checking and remembering a submission with {@link DuplicateDetector} on a synthetic corpus:
+ * a flood of a few spam messages, each posted over and over with a word swapped, the case changed or punctuation added,
+ * and a stream of distinct messages like real visitors write. The {@code duplicates} and {@code accepted} counters show how much of each the
+ * detector turns away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DuplicateDetectorBenchmark {
+    private static final int NUMBER_OF_WORDS           = 2000;
+    private static final int NUMBER_OF_SPAM_TEMPLATES  = 20;
+    private static final int NUMBER_OF_FLOOD_VARIANTS  = 10_000;
+    // More than the index holds, so a genuine message has been pushed out before it comes round again.
+    private static final int NUMBER_OF_GENUINE_ENTRIES = 100_000;
+
+    @Param({"8"})
+    public int maximumDistance;
+
+    private DuplicateDetector floodDetector;
+    private DuplicateDetector genuineDetector;
+    private String[][]        flood;
+    private String[][]        genuine;
+    private int               nextGenuine;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        var random = new Random(42);
+        var words  = new String[NUMBER_OF_WORDS];
+        for (var i = 0; i < NUMBER_OF_WORDS; i++) {
+            words[i] = word(random);
+        }
+
+        var templates = new String[NUMBER_OF_SPAM_TEMPLATES][];
+        for (var i = 0; i < NUMBER_OF_SPAM_TEMPLATES; i++) {
+            templates[i] = sentence(random, words, 15 + random.nextInt(15)).split(" ");
+        }
+        flood = new String[NUMBER_OF_FLOOD_VARIANTS][];
+        for (var i = 0; i < NUMBER_OF_FLOOD_VARIANTS; i++) {
+            var message = templates[random.nextInt(NUMBER_OF_SPAM_TEMPLATES)].clone();
+            message[random.nextInt(message.length)] = words[random.nextInt(NUMBER_OF_WORDS)];
+            var text = String.join(" ", message);
+            text = switch (random.nextInt(4)) {
+                case 0 -> text.toUpperCase();
+                case 1 -> text + "!!!";
+                case 2 -> text + " " + random.nextInt(1000);
+                default -> text;
+            };
+            flood[i] = new String[]{"Deals " + random.nextInt(10), text};
+        }
+
+        genuine = new String[NUMBER_OF_GENUINE_ENTRIES][];
+        for (var i = 0; i < NUMBER_OF_GENUINE_ENTRIES; i++) {
+            genuine[i] = new String[]{word(random) + " " + word(random), sentence(random, words, 8 + random.nextInt(30))};
+        }
+
+        floodDetector   = new DuplicateDetector(Duration.ofMinutes(10), maximumDistance, DuplicateDetector.DEFAULT_CAPACITY);
+        genuineDetector = new DuplicateDetector(Duration.ofMinutes(10), maximumDistance, DuplicateDetector.DEFAULT_CAPACITY);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Outcomes {
+        public long duplicates;
+        public long accepted;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            duplicates = 0;
+            accepted   = 0;
+        }
+
+        boolean count(boolean duplicate) {
+            if (duplicate) {
+                duplicates++;
+            } else {
+                accepted++;
+            }
+            return duplicate;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean floodOneThread(Outcomes outcomes) {
+        var submission = flood[ThreadLocalRandom.current().nextInt(NUMBER_OF_FLOOD_VARIANTS)];
+        return outcomes.count(submit(floodDetector, submission[0], submission[1]));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean floodAllCores(Outcomes outcomes) {
+        var submission = flood[ThreadLocalRandom.current().nextInt(NUMBER_OF_FLOOD_VARIANTS)];
+        return outcomes.count(submit(floodDetector, submission[0], submission[1]));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean genuineOneThread(Outcomes outcomes) {
+        // In order, since picking at random would submit some messages again while they are still remembered.
+        var submission = genuine[nextGenuine];
+        nextGenuine = (nextGenuine + 1) % NUMBER_OF_GENUINE_ENTRIES;
+        return outcomes.count(submit(genuineDetector, submission[0], submission[1]));
+    }
+
+    private static boolean submit(DuplicateDetector duplicateDetector, String name, String message) {
+        var fingerprint = DuplicateDetector.fingerprint(name, message);
+        var duplicate   = duplicateDetector.isDuplicate(fingerprint);
+        duplicateDetector.remember(fingerprint);
+        return duplicate;
+    }
+
+    private static String sentence(Random random, String[] words, int length) {
+        var sentence = new StringBuilder();
+        for (var i = 0; i < length; i++) {
+            sentence.append(i == 0 ? "" : " ").append(words[random.nextInt(words.length)]);
+        }
+        return sentence.append('.').toString();
+    }
+
+    private static String word(Random random) {
+        var word   = new StringBuilder();
+        var length = 2 + random.nextInt(8);
+        for (var i = 0; i < length; i++) {
+            word.append((char) ('a' + random.nextInt(26)));
+        }
+        return word.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package no.clueless.benchmark;
+
+import io.javalin.Javalin;
+import no.clueless.guestbook.Application;
+import no.clueless.guestbook.ApprovedEntriesMonitor;
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.ExecutionMode;
+import no.clueless.guestbook.Guestbook;
+import no.clueless.guestbook.Sanitizer;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import no.clueless.guestbook.persistence.SqliteGuestbookRepository;
+import no.clueless.guestbook.web.AltchaChallengePool;
+import no.clueless.guestbook.web.AltchaController;
+import no.clueless.guestbook.web.AltchaDifficulty;
+import no.clueless.guestbook.web.AltchaReplayCache;
+import no.clueless.guestbook.web.ConcurrencyLimiter;
+import no.clueless.guestbook.web.ConcurrencyLimiters;
+import no.clueless.guestbook.web.EntryStream;
+import no.clueless.guestbook.web.GuestbookController;
+import no.clueless.guestbook.web.JavalinServer;
+import no.clueless.guestbook.web.RateLimiters;
+import no.clueless.guestbook.web.TokenBucketRateLimiter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the platform and virtual thread execution modes of {@link JavalinServer} under blocking load: many more
+ * concurrent clients than Jetty has platform threads, against a handler which blocks on a slow downstream call and
+ * against the real uncached GET /entries path through SQLite.
+ * <p>
+ * Sample time mode reports both throughput and the p99 latency of each mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(512)
+public class ExecutionModeBenchmark {
+    private static final String REFERER            = "http://localhost/guestbook.html";
+    private static final long   DOWNSTREAM_LATENCY = 20;
+    private static final int    NUMBER_OF_ENTRIES  = 1000;
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    public ExecutionMode executionMode;
+
+    private Path                      databaseFile;
+    private SqliteGuestbookRepository guestbookRepository;
+    private Javalin                   javalin;
+    private HttpClient                httpClient;
+    private HttpRequest               blockingRequest;
+    private HttpRequest               entriesRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        databaseFile        = Files.createTempFile("guestbook-benchmark", ".db");
+        guestbookRepository = new SqliteGuestbookRepository("jdbc:sqlite:" + databaseFile);
+        guestbookRepository.initialize();
+        for (var i = 0; i < NUMBER_OF_ENTRIES; i++) {
+            guestbookRepository.createEntry(Entry.newEntry("Name " + i, "Message " + i));
+        }
+        try (var connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile);
+             var statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE entries SET isApproved = true");
+        }
+
+        var jsonMapper          = Application.createJsonMapper();
+        var guestbook           = new Guestbook(guestbookRepository, new SubmissionPublisher<>());
+        var entryStream         = EntryStream.start(ApprovedEntriesMonitor.start(guestbookRepository::getApprovedEntriesVersion, Duration.ofSeconds(1)), guestbook, jsonMapper, 1000, 64, new MetricsRegistry());
+        var guestbookController = new GuestbookController(guestbook, jsonMapper, 10, "benchmark", new AltchaReplayCache(Duration.ofMinutes(1), 1000), AltchaDifficulty.fixed(1000), new Sanitizer());
+        var rateLimiters        = new RateLimiters(unlimited(), unlimited(), unlimited());
+        var javalinServer       = new JavalinServer(new AltchaController(AltchaChallengePool.start("benchmark", () -> 1000, Duration.ofMinutes(1), 16), AltchaDifficulty.fixed(1000)), guestbookController, entryStream, null, null, null, Set.of("http://localhost"), Set.of(REFERER), Set.of("127.0.0.1", "::1"), jsonMapper, executionMode, rateLimiters, unlimitedConcurrency(), new MetricsRegistry());
+
+        javalin = javalinServer.create()
+                .get("/blocking", ctx -> {
+                    Thread.sleep(DOWNSTREAM_LATENCY);
+                    ctx.result("ok");
+                })
+                .start(0);
+
+        httpClient      = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        blockingRequest = request("/blocking");
+        entriesRequest  = request("/entries?page=5");
+    }
+
+    private static TokenBucketRateLimiter unlimited() {
+        return new TokenBucketRateLimiter("unlimited", Integer.MAX_VALUE, 1000);
+    }
+
+    private static ConcurrencyLimiters unlimitedConcurrency() {
+        var limiter = new ConcurrencyLimiter("unlimited", Integer.MAX_VALUE, Integer.MAX_VALUE, Duration.ofDays(1), 0, Duration.ZERO, List.of());
+        return new ConcurrencyLimiters(limiter, limiter, limiter);
+    }
+
+    private HttpRequest request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + javalin.port() + path)).header("Referer", REFERER).GET().build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        javalin.stop();
+        httpClient.close();
+        guestbookRepository.close();
+        Files.deleteIfExists(databaseFile);
+    }
+
+    @Benchmark
+    public int blockingHandler() throws IOException, InterruptedException {
+        return httpClient.send(blockingRequest, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    @Benchmark
+    public int getEntries() throws IOException, InterruptedException {
+        return httpClient.send(entriesRequest, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+}
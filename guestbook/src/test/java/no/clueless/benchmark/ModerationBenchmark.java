@@ -0,0 +1,105 @@
+package no.clueless.benchmark;
+
+import no.clueless.guestbook.EntryFilter;
+import no.clueless.guestbook.persistence.SqliteGuestbookRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures clearing a spam wave: approving or deleting thousands of pending entries in one call, next to a table of
+ * approved entries which keeps its search index up to date.
+ * <p>
+ * Every invocation needs a fresh wave of pending entries, so each one is timed on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ModerationBenchmark {
+    private static final int APPROVED_ENTRIES = 100_000;
+
+    @Param({"10000"})
+    public int numberOfPendingEntries;
+
+    private Path                      databaseFile;
+    private SqliteGuestbookRepository guestbookRepository;
+    private List<Integer>             pendingIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        databaseFile        = Files.createTempFile("guestbook-benchmark", ".db");
+        guestbookRepository = new SqliteGuestbookRepository("jdbc:sqlite:" + databaseFile);
+        guestbookRepository.initialize();
+        insert(APPROVED_ENTRIES, true);
+    }
+
+    @Setup(Level.Invocation)
+    public void insertPendingEntries() throws SQLException {
+        var firstId = insert(numberOfPendingEntries, false);
+        pendingIds = new ArrayList<>(numberOfPendingEntries);
+        for (var i = 0; i < numberOfPendingEntries; i++) {
+            pendingIds.add(firstId + i);
+        }
+    }
+
+    /**
+     * @return The id of the first inserted entry.
+     */
+    private int insert(int numberOfEntries, boolean isApproved) throws SQLException {
+        try (var connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile)) {
+            connection.setAutoCommit(false);
+            try (var statement = connection.prepareStatement("INSERT INTO entries(isApproved, name, message) VALUES(?, ?, ?)")) {
+                for (var i = 0; i < numberOfEntries; i++) {
+                    statement.setBoolean(1, isApproved);
+                    statement.setString(2, "Name " + i);
+                    statement.setString(3, isApproved ? "A genuine message number " + i : "Buy cheap pills now, offer " + i);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+
+            try (var statement = connection.createStatement();
+                 var resultSet = statement.executeQuery("SELECT MAX(id) FROM entries")) {
+                resultSet.next();
+                return resultSet.getInt(1) - numberOfEntries + 1;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        guestbookRepository.close();
+        Files.deleteIfExists(databaseFile);
+        Files.deleteIfExists(Path.of(databaseFile + "-wal"));
+        Files.deleteIfExists(Path.of(databaseFile + "-shm"));
+    }
+
+    /**
+     * Approved entries are added to the search index, so this is the most expensive kind of moderation.
+     */
+    @Benchmark
+    public List<Integer> approveByIds() {
+        return guestbookRepository.approveEntries(pendingIds);
+    }
+
+    @Benchmark
+    public List<Integer> deleteByIds() {
+        return guestbookRepository.deleteEntries(pendingIds);
+    }
+
+    @Benchmark
+    public List<Integer> deleteByFilter() {
+        return guestbookRepository.deleteEntries(new EntryFilter(null, "cheap pills", null, null));
+    }
+}
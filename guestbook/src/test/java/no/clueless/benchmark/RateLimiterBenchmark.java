@@ -0,0 +1,60 @@
+package no.clueless.benchmark;
+
+import no.clueless.guestbook.web.TokenBucketRateLimiter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how {@link TokenBucketRateLimiter} scales across cores: with every thread taking tokens for its own share
+ * of many distinct clients, which is what real traffic looks like, and with every thread hammering the same client,
+ * which is the worst case for contention on a single bucket.
+ * <p>
+ * Compare the throughput of the single-threaded and all-cores variants of each benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimiterBenchmark {
+    private static final int NUMBER_OF_CLIENTS = 10_000;
+
+    private TokenBucketRateLimiter rateLimiter;
+    private String[]               clients;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        rateLimiter = new TokenBucketRateLimiter("benchmark", 60, NUMBER_OF_CLIENTS * 2);
+        clients     = new String[NUMBER_OF_CLIENTS];
+        for (var i = 0; i < NUMBER_OF_CLIENTS; i++) {
+            clients[i] = "10.0." + (i / 256) + "." + (i % 256);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long distinctClientsOneThread() {
+        return rateLimiter.tryAcquire(clients[ThreadLocalRandom.current().nextInt(NUMBER_OF_CLIENTS)]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long distinctClientsAllCores() {
+        return rateLimiter.tryAcquire(clients[ThreadLocalRandom.current().nextInt(NUMBER_OF_CLIENTS)]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long sameClientOneThread() {
+        return rateLimiter.tryAcquire(clients[0]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long sameClientAllCores() {
+        return rateLimiter.tryAcquire(clients[0]);
+    }
+}
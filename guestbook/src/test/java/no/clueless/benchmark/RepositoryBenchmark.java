@@ -0,0 +1,143 @@
+package no.clueless.benchmark;
+
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.SearchResults;
+import no.clueless.guestbook.persistence.AppendLogGuestbookRepository;
+import no.clueless.guestbook.persistence.GuestbookRepository;
+import no.clueless.guestbook.persistence.SqliteGuestbookRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the reads and writes of every {@link GuestbookRepository} engine against a temporary file at several table
+ * sizes, so that regressions which only show up on large tables are caught and the engines can be compared.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+    private static final int PAGE_SIZE = 10;
+
+    @Param({"sqlite", "appendlog"})
+    public String engine;
+
+    @Param({"1000", "10000", "100000"})
+    public int numberOfEntries;
+
+    private Path                databaseFile;
+    private GuestbookRepository guestbookRepository;
+    private int                 middlePage;
+    private int                 middleId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        databaseFile = Files.createTempFile("guestbook-benchmark", ".db");
+        if (engine.equals("appendlog")) {
+            guestbookRepository = new AppendLogGuestbookRepository(AppendLogGuestbookRepository.SCHEME + databaseFile);
+            guestbookRepository.initialize();
+            var approvedIds = new ArrayList<Integer>();
+            for (var i = 0; i < numberOfEntries; i++) {
+                var entry = guestbookRepository.createEntry(Entry.newEntry("Name " + i, "Message number " + i + " from a benchmark which signs the guestbook a lot."));
+                if (i % 10 != 0) {
+                    approvedIds.add(entry.getId());
+                }
+            }
+            guestbookRepository.approveEntries(approvedIds);
+        } else {
+            guestbookRepository = new SqliteGuestbookRepository("jdbc:sqlite:" + databaseFile);
+            guestbookRepository.initialize();
+            insertEntries();
+        }
+
+        middlePage = (int) (guestbookRepository.getNumberOfApprovedEntries() / PAGE_SIZE / 2);
+        middleId   = numberOfEntries / 2 + 1;
+    }
+
+    /**
+     * Filling the table through createEntry would take minutes on the larger sizes, so insert in one transaction.
+     */
+    private void insertEntries() throws SQLException {
+        try (var connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile)) {
+            connection.setAutoCommit(false);
+            try (var statement = connection.prepareStatement("INSERT INTO entries(isApproved, name, message) VALUES(?, ?, ?)")) {
+                for (var i = 0; i < numberOfEntries; i++) {
+                    statement.setBoolean(1, i % 10 != 0);
+                    statement.setString(2, "Name " + i);
+                    statement.setString(3, "Message number " + i + " from a benchmark which signs the guestbook a lot.");
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        guestbookRepository.close();
+        Files.deleteIfExists(databaseFile);
+        Files.deleteIfExists(Path.of(databaseFile + "-wal"));
+        Files.deleteIfExists(Path.of(databaseFile + "-shm"));
+    }
+
+    @Benchmark
+    public List<Entry> firstPage() {
+        return guestbookRepository.getApprovedEntriesAfter(null, PAGE_SIZE, "id", "desc");
+    }
+
+    @Benchmark
+    public List<Entry> middlePageByOffset() {
+        return guestbookRepository.getApprovedEntries(middlePage, PAGE_SIZE, "id", "desc");
+    }
+
+    @Benchmark
+    public List<Entry> middlePageByCursor() {
+        return guestbookRepository.getApprovedEntriesAfter(middleId, PAGE_SIZE, "id", "desc");
+    }
+
+    @Benchmark
+    public List<Entry> middlePageByCursorOrderedByName() {
+        return guestbookRepository.getApprovedEntriesAfter(middleId, PAGE_SIZE, "name", "asc");
+    }
+
+    @Benchmark
+    public Long numberOfApprovedEntries() {
+        return guestbookRepository.getNumberOfApprovedEntries();
+    }
+
+    @Benchmark
+    public SearchResults searchRareTerm() {
+        return guestbookRepository.searchApprovedEntries(String.valueOf(middleId), 0, PAGE_SIZE);
+    }
+
+    /**
+     * Every entry matches. Below 10000 entries every match is ranked before the first page is known, above it matches
+     * come newest first.
+     */
+    @Benchmark
+    public SearchResults searchCommonTerm() {
+        return guestbookRepository.searchApprovedEntries("guestbook", 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public Entry entryById() {
+        return guestbookRepository.getEntry(ThreadLocalRandom.current().nextInt(numberOfEntries) + 1);
+    }
+
+    @Benchmark
+    public Entry createEntry() {
+        return guestbookRepository.createEntry(Entry.newEntry("Benchmark", "A message written by the benchmark."));
+    }
+}
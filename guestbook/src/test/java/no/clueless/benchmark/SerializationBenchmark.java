@@ -0,0 +1,45 @@
+package no.clueless.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.clueless.guestbook.Application;
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.web.GuestbookController;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serializing a page of entries through the {@link ObjectMapper} the application is configured with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"10", "50"})
+    public int pageSize;
+
+    private ObjectMapper                           jsonMapper;
+    private GuestbookController.GetEntriesResponse response;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        jsonMapper = Application.createJsonMapper();
+
+        var entries = new ArrayList<Entry>(pageSize);
+        for (var i = 0; i < pageSize; i++) {
+            entries.add(Entry.existingEntry(1000 - i, true, "Name " + i, "A message of moderate length from visitor number " + i + ", with \"quotes\" and æøå.", LocalDateTime.of(2025, 1, 1, 12, 0).plusMinutes(i)));
+        }
+        response = new GuestbookController.GetEntriesResponse(entries, 1000, Math.ceil(1000.0 / pageSize), null, pageSize, entries.get(pageSize - 1).getId());
+    }
+
+    @Benchmark
+    public byte[] serializePage() throws JsonProcessingException {
+        return jsonMapper.writeValueAsBytes(response);
+    }
+}
@@ -0,0 +1,78 @@
+package no.clueless.benchmark;
+
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.Guestbook;
+import no.clueless.guestbook.Sanitizer;
+import no.clueless.guestbook.persistence.SqliteGuestbookRepository;
+import org.jsoup.Jsoup;
+import org.jsoup.safety.Safelist;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Guestbook#sign(String, String)} for plain text and for messages with markup, against an in-memory
+ * database with group commit disabled so that the sanitization dominates the cost. The sanitization is also measured on
+ * its own, next to cleaning with Jsoup directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignBenchmark {
+    @Param({"plain", "markup"})
+    public String messageKind;
+
+    private SqliteGuestbookRepository  guestbookRepository;
+    private SubmissionPublisher<Entry> entryCreatedPublisher;
+    private Guestbook                  guestbook;
+    private Sanitizer                  sanitizer;
+    private String                     name;
+    private String                     message;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        guestbookRepository   = new SqliteGuestbookRepository("jdbc:sqlite::memory:", SqliteGuestbookRepository.DEFAULT_READER_POOL_SIZE, 1, Duration.ZERO);
+        guestbookRepository.initialize();
+        entryCreatedPublisher = new SubmissionPublisher<>();
+        guestbook             = new Guestbook(guestbookRepository, entryCreatedPublisher);
+        sanitizer             = new Sanitizer();
+
+        if (messageKind.equals("plain")) {
+            name    = "Jane Doe";
+            message = "Thanks for a lovely website. I found the article about the guestbook really useful, keep it up!";
+        } else {
+            name    = "<b>Jane</b> Doe";
+            message = "Thanks for a <i>lovely</i> website &amp; <a href=\"https://example.com\">link</a>. <script>alert('hi')</script> Keep it up!";
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        entryCreatedPublisher.close();
+        guestbookRepository.close();
+    }
+
+    @Benchmark
+    public Optional<Entry> sign() {
+        return guestbook.sign(name, message);
+    }
+
+    @Benchmark
+    public void sanitize(Blackhole blackhole) {
+        blackhole.consume(sanitizer.cleanName(name));
+        blackhole.consume(sanitizer.cleanMessage(message));
+    }
+
+    @Benchmark
+    public void sanitizeWithJsoup(Blackhole blackhole) {
+        blackhole.consume(Jsoup.clean(name, Safelist.none()));
+        blackhole.consume(Jsoup.clean(message, Safelist.none()));
+    }
+}
@@ -0,0 +1,75 @@
+package no.clueless.guestbook;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DuplicateDetectorTest {
+    private static final String SPAM = "Buy cheap watches at http://spam.example.com today, best prices guaranteed for everyone!";
+
+    private final AtomicLong clock = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+
+    @Test
+    void lightlyVariedCopiesShouldBeDuplicatesAndDifferentEntriesShouldNot() {
+        var duplicateDetector = new DuplicateDetector(Duration.ofMinutes(10), DuplicateDetector.DEFAULT_MAXIMUM_DISTANCE, 1024, clock::get);
+
+        assertFalse(submit(duplicateDetector, "John", SPAM));
+        assertTrue(submit(duplicateDetector, "John", SPAM));
+        assertTrue(submit(duplicateDetector, "John", SPAM.toUpperCase()));
+        assertTrue(submit(duplicateDetector, "Jon", SPAM + " !!!"));
+        assertTrue(submit(duplicateDetector, "John", SPAM.replace("today", "now")));
+
+        assertFalse(submit(duplicateDetector, "Alice", "Great site!"));
+        assertFalse(submit(duplicateDetector, "Bob", "Great site!"));
+        assertFalse(submit(duplicateDetector, "Alice", "Thanks for a lovely website, I really enjoyed the article."));
+    }
+
+    @Test
+    void submissionsShouldBeForgottenAfterTheWindow() {
+        var duplicateDetector = new DuplicateDetector(Duration.ofMinutes(10), 0, 1024, clock::get);
+
+        assertFalse(submit(duplicateDetector, "John", SPAM));
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(9));
+        assertTrue(submit(duplicateDetector, "John", SPAM));
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        assertFalse(submit(duplicateDetector, "John", SPAM));
+    }
+
+    @Test
+    void theIndexShouldKeepTheMostRecentSubmissionsWhenFull() {
+        var duplicateDetector = new DuplicateDetector(Duration.ofMinutes(10), DuplicateDetector.DEFAULT_MAXIMUM_DISTANCE, 64, clock::get);
+
+        assertFalse(submit(duplicateDetector, "John", SPAM));
+        for (var i = 0; i < 10_000; i++) {
+            clock.incrementAndGet();
+            submit(duplicateDetector, "Visitor " + i, "Message number " + i + " about " + Integer.toHexString(i * 31 + 7));
+        }
+        assertFalse(submit(duplicateDetector, "John", SPAM), "Pushed out by newer submissions");
+        assertTrue(submit(duplicateDetector, "John", SPAM));
+    }
+
+    @Test
+    void checkingShouldNotRememberTheSubmission() {
+        var duplicateDetector = new DuplicateDetector(Duration.ofMinutes(10), DuplicateDetector.DEFAULT_MAXIMUM_DISTANCE, 1024, clock::get);
+        var fingerprint       = DuplicateDetector.fingerprint("John", SPAM);
+
+        assertFalse(duplicateDetector.isDuplicate(fingerprint));
+        assertFalse(duplicateDetector.isDuplicate(fingerprint), "Only remembered once stored");
+        duplicateDetector.remember(fingerprint);
+        assertTrue(duplicateDetector.isDuplicate(DuplicateDetector.fingerprint("Jon", SPAM + " !!!")));
+    }
+
+    /**
+     * Check and remember a submission, as {@link Guestbook#sign(String, String)} does when the entry is stored.
+     */
+    private static boolean submit(DuplicateDetector duplicateDetector, String name, String message) {
+        var fingerprint = DuplicateDetector.fingerprint(name, message);
+        var duplicate   = duplicateDetector.isDuplicate(fingerprint);
+        duplicateDetector.remember(fingerprint);
+        return duplicate;
+    }
+}
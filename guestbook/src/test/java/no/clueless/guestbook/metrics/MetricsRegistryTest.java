@@ -0,0 +1,39 @@
+package no.clueless.guestbook.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsRegistryTest {
+    @Test
+    void metricsShouldBeScrapedInThePrometheusTextFormat() {
+        var metrics = new MetricsRegistry();
+        metrics.counter("requests_total", "Requests.", "route", "GET /entries").add(3);
+        metrics.gauge("queue_depth", "Queue depth.", () -> 7);
+        var histogram = metrics.histogram("duration_seconds", "Duration.", "route", "GET /entries");
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(50));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        histogram.record(TimeUnit.SECONDS.toNanos(30));
+
+        var scraped = metrics.scrape();
+
+        assertTrue(scraped.contains("# TYPE requests_total counter\nrequests_total{route=\"GET /entries\"} 3\n"), scraped);
+        assertTrue(scraped.contains("# TYPE queue_depth gauge\nqueue_depth 7.0\n"), scraped);
+        assertTrue(scraped.contains("duration_seconds_bucket{route=\"GET /entries\",le=\"1.0E-4\"} 1\n"), scraped);
+        assertTrue(scraped.contains("duration_seconds_bucket{route=\"GET /entries\",le=\"0.005\"} 2\n"), scraped);
+        assertTrue(scraped.contains("duration_seconds_bucket{route=\"GET /entries\",le=\"10.0\"} 2\n"), scraped);
+        assertTrue(scraped.contains("duration_seconds_bucket{route=\"GET /entries\",le=\"+Inf\"} 3\n"), scraped);
+        assertTrue(scraped.contains("duration_seconds_count{route=\"GET /entries\"} 3\n"), scraped);
+    }
+
+    @Test
+    void registeringTheSameMetricTwiceShouldReturnTheSameMetric() {
+        var metrics = new MetricsRegistry();
+
+        assertSame(metrics.counter("requests_total", "Requests.", "route", "a"), metrics.counter("requests_total", "Requests.", "route", "a"));
+        assertNotSame(metrics.counter("requests_total", "Requests.", "route", "a"), metrics.counter("requests_total", "Requests.", "route", "b"));
+        assertThrows(IllegalArgumentException.class, () -> metrics.histogram("requests_total", "Requests."));
+    }
+}
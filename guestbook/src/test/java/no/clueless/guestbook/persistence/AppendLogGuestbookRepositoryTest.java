@@ -0,0 +1,199 @@
+package no.clueless.guestbook.persistence;
+
+import no.clueless.guestbook.ApprovedEntry;
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.EntryFilter;
+import no.clueless.guestbook.SearchResult;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.DriverManager;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AppendLogGuestbookRepositoryTest {
+    private static final List<String>      WORDS     = List.of(
+            "hello", "Hello", "HELLO", "café", "cafe", "Café-bar", "naïve", "ÆØÅ", "æøå", "Ærlig", "straße", "ά", "ǿ", "😀", "x",
+            "guestbook", "guest", "book", "100%", "cheap_pills", "Tom & Jerry", "&lt;b&gt;", "a", "b", "A", "Z", "ä", "z", "İstanbul", "é"
+    );
+    private static final List<String>      QUERIES   = List.of("hello", "HEL", "cafe", "café bar", "bar cafe", "naive", "æøå", "aerlig", "strasse", "ά", "α", "ǿ", "😀", "guest", "guestbook", "book guest", "100", "cheap pills", "cheap_pills", "tom jerry", "lt", "istanbul", "e", "!!!", "\"", "x !!!");
+    private static final List<String>      COLUMNS   = List.of("id", "name", "message", "timestamp");
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    @TempDir
+    Path temporaryDirectory;
+
+    @Test
+    void everyQueryShouldBeAnsweredLikeTheSqliteEngine() throws Exception {
+        var connectionString = "jdbc:sqlite:" + temporaryDirectory.resolve("guestbook.db");
+        var logPath          = temporaryDirectory.resolve("guestbook.log");
+        var random           = new Random(20260301L);
+        var now              = LocalDateTime.now(ZoneOffset.UTC).truncatedTo(ChronoUnit.SECONDS);
+
+        // Both engines start from the same entries, with timestamps spread over a few days so ordering by them means
+        // something, written straight to the SQLite table and the log.
+        try (var sqlite = new SqliteGuestbookRepository(connectionString)) {
+            sqlite.initialize();
+        }
+        try (var connection = DriverManager.getConnection(connectionString);
+             var insert = connection.prepareStatement("INSERT INTO entries(id, isApproved, name, message, timestamp) VALUES(?, false, ?, ?, ?)");
+             var appendLog = AppendLog.create(logPath)) {
+            for (var id = 1; id <= 400; id++) {
+                var name      = randomText(random, 3);
+                var message   = randomText(random, 12);
+                var timestamp = now.minusMinutes(random.nextInt(3 * 24 * 60));
+                insert.setInt(1, id);
+                insert.setString(2, name);
+                insert.setString(3, message);
+                insert.setString(4, TIMESTAMP.format(timestamp));
+                insert.executeUpdate();
+                appendLog.appendInsert(id, false, timestamp.toInstant(ZoneOffset.UTC).toEpochMilli(), name, message);
+            }
+        }
+
+        try (var sqlite = new SqliteGuestbookRepository(connectionString);
+             var appendLog = new AppendLogGuestbookRepository(AppendLogGuestbookRepository.SCHEME + logPath)) {
+            sqlite.initialize();
+            appendLog.initialize();
+
+            for (var round = 0; round < 4; round++) {
+                var ids = random.ints(60, 1, 420).boxed().toList();
+                assertEquals(sqlite.approveEntries(ids), appendLog.approveEntries(ids));
+                assertEquals(sqlite.deleteEntries(ids.subList(0, 5)), appendLog.deleteEntries(ids.subList(0, 5)));
+            }
+            var filters = List.of(
+                    new EntryFilter(null, "CHEAP_PILLS", null, null),
+                    new EntryFilter("æøå", null, null, null),
+                    new EntryFilter(null, "100%", now.minusDays(1), null),
+                    new EntryFilter("a", null, null, now.minusDays(2))
+            );
+            assertEquals(sqlite.deleteEntries(filters.get(0)), appendLog.deleteEntries(filters.get(0)));
+            assertEquals(sqlite.approveEntries(filters.get(1)), appendLog.approveEntries(filters.get(1)));
+            assertEquals(sqlite.deleteEntries(filters.get(2)), appendLog.deleteEntries(filters.get(2)));
+            assertEquals(sqlite.approveEntries(filters.get(3)), appendLog.approveEntries(filters.get(3)));
+
+            assertEquals(sqlite.getNumberOfApprovedEntries(), appendLog.getNumberOfApprovedEntries());
+            for (var id = 0; id <= 401; id++) {
+                assertEquals(sqlite.getEntry(id), appendLog.getEntry(id));
+            }
+            for (var column : COLUMNS) {
+                for (var direction : List.of("asc", "DESC")) {
+                    for (var pageNumber = 0; pageNumber < 40; pageNumber++) {
+                        assertEquals(sqlite.getApprovedEntries(pageNumber, 7, column, direction), appendLog.getApprovedEntries(pageNumber, 7, column, direction), column + " " + direction + " page " + pageNumber);
+                    }
+                    // Cursors may point at approved, pending, deleted or never created entries.
+                    for (Integer afterId = null; afterId == null || afterId <= 405; afterId = afterId == null ? 0 : afterId + 3) {
+                        assertEquals(sqlite.getApprovedEntriesAfter(afterId, 7, column, direction), appendLog.getApprovedEntriesAfter(afterId, 7, column, direction), column + " " + direction + " after " + afterId);
+                    }
+                }
+            }
+            for (Integer afterId = null; afterId == null || afterId <= 405; afterId = afterId == null ? 0 : afterId + 11) {
+                assertEquals(sqlite.getPendingEntries(afterId, 13), appendLog.getPendingEntries(afterId, 13));
+            }
+            assertEquals(sqlite.getLastApprovalSequence(), appendLog.getLastApprovalSequence());
+            for (var afterSequence = 0L; afterSequence <= sqlite.getLastApprovalSequence() + 1; afterSequence += 5) {
+                assertEquals(sqlite.getEntriesApprovedAfter(afterSequence, 7), appendLog.getEntriesApprovedAfter(afterSequence, 7), "approved after " + afterSequence);
+            }
+            for (var isApproved : new Boolean[]{null, true, false}) {
+                assertEquals(export(sqlite, isApproved, now.minusDays(2), now.minusDays(1)), export(appendLog, isApproved, now.minusDays(2), now.minusDays(1)));
+                assertEquals(export(sqlite, isApproved, null, null), export(appendLog, isApproved, null, null));
+            }
+            // SQLite ranks the matches, the append log returns them newest first, so only what matches is compared.
+            for (var query : QUERIES) {
+                var expected = sqlite.searchApprovedEntries(query, 0, 1000);
+                var actual   = appendLog.searchApprovedEntries(query, 0, 1000);
+                assertEquals(expected.totalResults(), actual.totalResults(), query);
+                assertEquals(searchedIds(expected.results()), searchedIds(actual.results()), query);
+            }
+        }
+    }
+
+    @Test
+    void entriesShouldSurviveReopeningCompactionAndATornRecord() throws IOException {
+        var logPath          = temporaryDirectory.resolve("guestbook.log");
+        var connectionString = AppendLogGuestbookRepository.SCHEME + logPath;
+        List<Entry>         expected;
+        List<ApprovedEntry> approvals;
+        long                version;
+        try (var repository = new AppendLogGuestbookRepository(connectionString)) {
+            repository.initialize();
+            for (var i = 0; i < 10; i++) {
+                repository.createEntry(Entry.newEntry("Name " + i, "Message " + i));
+            }
+            repository.approveEntries(List.of(8, 4, 2));
+            repository.approveEntries(List.of(6));
+            repository.deleteEntries(List.of(4, 9, 10));
+            expected  = export(repository, null, null, null);
+            approvals = repository.getEntriesApprovedAfter(0, 10);
+            version   = repository.getApprovedEntriesVersion();
+        }
+        assertEquals(List.of(8, 2, 6), approvals.stream().map(approval -> approval.entry().getId()).toList(), "Entries are numbered in the order they were approved in");
+        assertEquals(List.of(1L, 3L, 4L), approvals.stream().map(ApprovedEntry::sequence).toList(), "The deleted entry leaves a gap");
+
+        try (var repository = new AppendLogGuestbookRepository(connectionString, 0, new MetricsRegistry())) {
+            repository.initialize();
+            assertEquals(expected, export(repository, null, null, null));
+            assertEquals(approvals, repository.getEntriesApprovedAfter(0, 10), "Replaying the log numbers the approvals the same way");
+            assertTrue(repository.getApprovedEntriesVersion() > version, "A version from before the restart is not handed out again");
+            assertEquals(3L, repository.getNumberOfApprovedEntries());
+
+            // Outdated records now outnumber the entries, so this compacts the log.
+            var sizeBeforeCompaction = repository.getLogSize();
+            repository.deleteEntries(List.of(1, 3));
+            assertTrue(repository.getLogSize() < sizeBeforeCompaction, "Expected the log to be compacted");
+            assertFalse(Files.exists(temporaryDirectory.resolve("guestbook.log.compacting")));
+            assertEquals(11, repository.createEntry(Entry.newEntry("After", "Compaction")).getId(), "Ids of deleted entries are not reused");
+            expected = export(repository, null, null, null);
+        }
+
+        // Tear the last record, as a crash half way through writing it would.
+        try (var repository = new AppendLogGuestbookRepository(connectionString)) {
+            repository.initialize();
+            assertEquals(expected, export(repository, null, null, null));
+            repository.createEntry(Entry.newEntry("Torn", "Never fully written"));
+            var logSize = repository.getLogSize();
+            repository.close();
+            try (var channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[]{0x55, 0x55}), logSize - 3);
+            }
+        }
+        try (var repository = new AppendLogGuestbookRepository(connectionString)) {
+            repository.initialize();
+            assertEquals(expected, export(repository, null, null, null));
+            assertEquals(12, repository.createEntry(Entry.newEntry("Next", "Written over the torn record")).getId());
+        }
+    }
+
+    private static List<Entry> export(GuestbookRepository repository, Boolean isApproved, LocalDateTime createdAfter, LocalDateTime createdBefore) {
+        var entries = new ArrayList<Entry>();
+        repository.exportEntries(isApproved, createdAfter, createdBefore, entries::add);
+        return entries;
+    }
+
+    private static List<Integer> searchedIds(List<SearchResult> results) {
+        return results.stream().map(result -> result.entry().getId()).sorted(Comparator.naturalOrder()).toList();
+    }
+
+    private static String randomText(Random random, int maximumWords) {
+        var words = new ArrayList<String>();
+        for (var i = 0; i <= random.nextInt(maximumWords); i++) {
+            words.add(WORDS.get(random.nextInt(WORDS.size())));
+        }
+        return String.join(random.nextInt(4) == 0 ? ", " : " ", words);
+    }
+}
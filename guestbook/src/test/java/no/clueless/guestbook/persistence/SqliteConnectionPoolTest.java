@@ -0,0 +1,94 @@
+package no.clueless.guestbook.persistence;
+
+import no.clueless.guestbook.metrics.Histogram;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SqliteConnectionPoolTest {
+    @TempDir
+    Path temporaryDirectory;
+
+    private String    connectionString;
+    private Histogram timer;
+
+    @BeforeEach
+    void setUp() {
+        connectionString = "jdbc:sqlite:" + temporaryDirectory.resolve("guestbook.db");
+        timer            = new MetricsRegistry().histogram("test_duration_seconds", "Test.");
+    }
+
+    @Test
+    void readersShouldBeReturnedToThePoolAndKeepTheirStatements() {
+        try (var pool = new SqliteConnectionPool(connectionString, 1, new MetricsRegistry())) {
+            var first  = pool.read(timer, connection -> connection);
+            var second = pool.read(timer, connection -> connection);
+            assertSame(first, second, "The only reader is handed out again once returned");
+
+            var statement = pool.read(timer, connection -> connection.prepare("SELECT 1"));
+            assertSame(statement, pool.read(timer, connection -> connection.prepare("SELECT 1")));
+            assertNotSame(first, pool.write(timer, connection -> connection), "The writer is a connection of its own");
+        }
+    }
+
+    @Test
+    void readsShouldWaitForABusyReaderWhenThePoolIsExhausted() throws Exception {
+        try (var pool = new SqliteConnectionPool(connectionString, 1, new MetricsRegistry())) {
+            var borrowed = new CountDownLatch(1);
+            var release  = new CountDownLatch(1);
+            var holder   = CompletableFuture.runAsync(() -> pool.read(timer, connection -> {
+                borrowed.countDown();
+                await(release);
+                return null;
+            }));
+            assertTrue(borrowed.await(10, TimeUnit.SECONDS));
+
+            var waiter = CompletableFuture.supplyAsync(() -> pool.read(timer, connection -> "read"));
+            Thread.sleep(100);
+            assertFalse(waiter.isDone(), "Waits while the only reader is borrowed");
+
+            release.countDown();
+            assertEquals("read", waiter.get(10, TimeUnit.SECONDS));
+            holder.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void closeShouldWaitForBorrowedReadersAndRefuseNewWork() throws Exception {
+        var pool     = new SqliteConnectionPool(connectionString, 1, new MetricsRegistry());
+        var borrowed = new CountDownLatch(1);
+        var release  = new CountDownLatch(1);
+        var holder   = CompletableFuture.supplyAsync(() -> pool.read(timer, connection -> {
+            borrowed.countDown();
+            await(release);
+            return connection.prepare("SELECT 1").executeQuery().next();
+        }));
+        assertTrue(borrowed.await(10, TimeUnit.SECONDS));
+
+        var closing = CompletableFuture.runAsync(pool::close);
+        Thread.sleep(100);
+        assertFalse(closing.isDone(), "Waits for the borrowed reader");
+        assertThrows(IllegalStateException.class, () -> pool.read(timer, connection -> null));
+        assertThrows(IllegalStateException.class, () -> pool.write(timer, connection -> null));
+
+        release.countDown();
+        assertTrue(holder.get(10, TimeUnit.SECONDS), "The borrowed reader stays usable until it is returned");
+        closing.get(10, TimeUnit.SECONDS);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
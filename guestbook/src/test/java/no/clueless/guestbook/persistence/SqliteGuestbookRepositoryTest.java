@@ -0,0 +1,333 @@
+package no.clueless.guestbook.persistence;
+
+import no.clueless.guestbook.ApprovedEntry;
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.EntryFilter;
+import no.clueless.guestbook.SearchResults;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SqliteGuestbookRepositoryTest {
+    private static final List<String> ORDER_BY_COLUMNS    = List.of("id", "name", "message", "timestamp");
+    private static final List<String> ORDER_BY_DIRECTIONS = List.of("asc", "desc");
+
+    @TempDir
+    Path temporaryDirectory;
+
+    private String                    connectionString;
+    private SqliteGuestbookRepository guestbookRepository;
+
+    @BeforeEach
+    void setUp() {
+        connectionString    = "jdbc:sqlite:" + temporaryDirectory.resolve("guestbook.db");
+        guestbookRepository = new SqliteGuestbookRepository(connectionString);
+        guestbookRepository.initialize();
+    }
+
+    @AfterEach
+    void tearDown() {
+        guestbookRepository.close();
+    }
+
+    @Test
+    void keysetQueriesShouldBeAnsweredFromAnIndexWithoutSorting() throws SQLException {
+        try (var connection = DriverManager.getConnection(connectionString)) {
+            for (var column : ORDER_BY_COLUMNS) {
+                for (var direction : ORDER_BY_DIRECTIONS) {
+                    for (var hasCursor : List.of(false, true)) {
+                        var queryPlan = explain(connection, SqliteGuestbookRepository.approvedEntriesAfterSql(column, direction, hasCursor, true));
+
+                        assertTrue(queryPlan.contains("INDEX " + indexOf(column)), () -> "Expected index on " + column + " to be used, but the plan was: " + queryPlan);
+                        assertFalse(queryPlan.contains("TEMP B-TREE"), () -> "Expected no sorting when ordering by " + column + ", but the plan was: " + queryPlan);
+                        assertFalse(queryPlan.contains("SCAN entries"), () -> "Expected no table scan when ordering by " + column + ", but the plan was: " + queryPlan);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void pageQueriesShouldBeAnsweredFromAnIndexWithoutSorting() throws SQLException {
+        try (var connection = DriverManager.getConnection(connectionString)) {
+            for (var column : ORDER_BY_COLUMNS) {
+                for (var direction : ORDER_BY_DIRECTIONS) {
+                    var queryPlan = explain(connection, SqliteGuestbookRepository.approvedEntriesPageSql(column, direction, true));
+
+                    assertTrue(queryPlan.contains("INDEX " + indexOf(column)), () -> "Expected index on " + column + " to be used, but the plan was: " + queryPlan);
+                    assertFalse(queryPlan.contains("TEMP B-TREE"), () -> "Expected no sorting when ordering by " + column + ", but the plan was: " + queryPlan);
+                }
+            }
+        }
+    }
+
+    @Test
+    void followingCursorsShouldVisitTheSameEntriesAsPageNumbers() throws SQLException {
+        for (var i = 0; i < 25; i++) {
+            guestbookRepository.createEntry(Entry.newEntry("Name " + (i % 4), "Message " + i));
+        }
+        try (var connection = DriverManager.getConnection(connectionString);
+             var statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE entries SET isApproved = true WHERE id % 5 != 0");
+        }
+
+        for (var column : ORDER_BY_COLUMNS) {
+            for (var direction : ORDER_BY_DIRECTIONS) {
+                var byPageNumber = new ArrayList<Entry>();
+                for (var pageNumber = 0; ; pageNumber++) {
+                    var page = guestbookRepository.getApprovedEntries(pageNumber, 3, column, direction);
+                    if (page.isEmpty()) {
+                        break;
+                    }
+                    byPageNumber.addAll(page);
+                }
+
+                var     byCursor = new ArrayList<Entry>();
+                Integer after    = null;
+                while (true) {
+                    var page = guestbookRepository.getApprovedEntriesAfter(after, 3, column, direction);
+                    if (page.isEmpty()) {
+                        break;
+                    }
+                    byCursor.addAll(page);
+                    after = page.get(page.size() - 1).getId();
+                }
+
+                assertEquals(20, byPageNumber.size());
+                assertEquals(byPageNumber, byCursor, "Ordering by " + column + " " + direction);
+            }
+        }
+    }
+
+    @Test
+    void concurrentlyCreatedEntriesShouldEachBeReturnedToTheirOwnCaller() throws Exception {
+        var tasks = new ArrayList<Callable<Entry>>();
+        for (var i = 0; i < 200; i++) {
+            var name = "Name " + i;
+            tasks.add(() -> guestbookRepository.createEntry(Entry.newEntry(name, "Message from " + name)));
+        }
+
+        try (var executor = Executors.newFixedThreadPool(16)) {
+            var ids = new HashSet<Integer>();
+            for (var future : executor.invokeAll(tasks)) {
+                var createdEntry = future.get();
+                assertEquals("Message from " + createdEntry.getName(), createdEntry.getMessage());
+                assertFalse(createdEntry.isApproved());
+                assertEquals(createdEntry, guestbookRepository.getEntry(createdEntry.getId()));
+                ids.add(createdEntry.getId());
+            }
+            assertEquals(200, ids.size());
+        }
+    }
+
+    @Test
+    void searchShouldOnlyFindApprovedEntriesAndFollowApprovalsEditsAndDeletions() throws SQLException {
+        var cafe   = guestbookRepository.createEntry(Entry.newEntry("Ola", "Lovely café and lovely people"));
+        var hidden = guestbookRepository.createEntry(Entry.newEntry("Kari", "Lovely spam"));
+        var other  = guestbookRepository.createEntry(Entry.newEntry("Per", "Nothing to see here"));
+        try (var connection = DriverManager.getConnection(connectionString);
+             var statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE entries SET isApproved = true WHERE id IN (" + cafe.getId() + ", " + other.getId() + ")");
+
+            var results = guestbookRepository.searchApprovedEntries("LOVE", 0, 10);
+            assertEquals(List.of(cafe.getId()), ids(results));
+            assertEquals("<mark>Lovely</mark> café and <mark>lovely</mark> people", results.results().get(0).snippet());
+            assertEquals(1, results.totalResults());
+            assertEquals(1, guestbookRepository.searchApprovedEntries("cafe \"people", 0, 10).totalResults());
+            assertEquals(0, guestbookRepository.searchApprovedEntries("lovely AND OR NEAR(", 0, 10).totalResults());
+
+            statement.executeUpdate("UPDATE entries SET isApproved = true WHERE id = " + hidden.getId());
+            assertEquals(2, guestbookRepository.searchApprovedEntries("lovely", 0, 10).totalResults());
+
+            statement.executeUpdate("UPDATE entries SET message = 'Nothing anymore' WHERE id = " + cafe.getId());
+            assertEquals(List.of(hidden.getId()), ids(guestbookRepository.searchApprovedEntries("lovely", 0, 10)));
+
+            statement.executeUpdate("UPDATE entries SET isApproved = false WHERE id = " + hidden.getId());
+            assertEquals(0, guestbookRepository.searchApprovedEntries("lovely", 0, 10).totalResults());
+
+            statement.executeUpdate("DELETE FROM entries WHERE id = " + other.getId());
+            assertEquals(List.of(cafe.getId()), ids(guestbookRepository.searchApprovedEntries("nothing", 0, 10)));
+            statement.executeUpdate("INSERT INTO entries_search(entries_search) VALUES('integrity-check')");
+        }
+    }
+
+    @Test
+    void bulkModerationShouldOnlyTouchTheSelectedEntries() {
+        var ids = new ArrayList<Integer>();
+        for (var i = 0; i < 10; i++) {
+            ids.add(guestbookRepository.createEntry(Entry.newEntry("Name " + i, i % 2 == 0 ? "Buy 100% cheap_pills" : "Hello " + i)).getId());
+        }
+
+        assertEquals(List.of(ids.get(1), ids.get(3)), guestbookRepository.approveEntries(List.of(ids.get(1), ids.get(3), ids.get(3))));
+        assertEquals(List.of(ids.get(5)), guestbookRepository.approveEntries(List.of(ids.get(3), ids.get(5), 999)));
+        assertEquals(List.of(), guestbookRepository.approveEntries(new EntryFilter(null, "100% cheap_pills", null, LocalDateTime.now().minusDays(1))));
+        assertEquals(List.of(ids.get(0), ids.get(2), ids.get(4), ids.get(6), ids.get(8)), guestbookRepository.deleteEntries(new EntryFilter(null, "100% CHEAP_pills", null, null)));
+        assertEquals(List.of(), guestbookRepository.deleteEntries(new EntryFilter(null, "Hello 1", null, null)), "Approved entries are not selected by filters");
+        assertEquals(List.of(ids.get(7), ids.get(9)), guestbookRepository.getPendingEntries(null, 10).stream().map(Entry::getId).toList());
+        assertEquals(List.of(ids.get(9)), guestbookRepository.getPendingEntries(ids.get(7), 10).stream().map(Entry::getId).toList());
+
+        assertEquals(List.of(ids.get(1), ids.get(7)), guestbookRepository.deleteEntries(List.of(ids.get(1), ids.get(7), ids.get(0))));
+        assertEquals(List.of(ids.get(3), ids.get(5)), guestbookRepository.getApprovedEntriesAfter(null, 10, "id", "asc").stream().map(Entry::getId).toList());
+        assertEquals(List.of(ids.get(9)), guestbookRepository.approveEntries(new EntryFilter("name 9", null, null, null)));
+    }
+
+    @Test
+    void exportShouldStreamTheMatchingEntriesInIdOrder() {
+        var ids = new ArrayList<Integer>();
+        for (var i = 0; i < 5; i++) {
+            ids.add(guestbookRepository.createEntry(Entry.newEntry("Name " + i, "Message " + i)).getId());
+        }
+        guestbookRepository.approveEntries(List.of(ids.get(1), ids.get(3)));
+
+        var exported = new ArrayList<Entry>();
+        assertEquals(5, guestbookRepository.exportEntries(null, null, null, exported::add));
+        assertEquals(ids, exported.stream().map(Entry::getId).toList());
+        assertEquals("Message 4", exported.get(4).getMessage());
+
+        var approved = new ArrayList<Integer>();
+        assertEquals(2, guestbookRepository.exportEntries(true, LocalDateTime.now().minusDays(1), LocalDateTime.now().plusDays(1), entry -> approved.add(entry.getId())));
+        assertEquals(List.of(ids.get(1), ids.get(3)), approved);
+        assertEquals(3, guestbookRepository.exportEntries(false, null, null, entry -> assertFalse(entry.isApproved())));
+        assertEquals(0, guestbookRepository.exportEntries(null, LocalDateTime.now().plusDays(1), null, entry -> fail("No entries were created in the future")));
+    }
+
+    @Test
+    void aDatabaseFromBeforeMigrationsShouldBeServedWhileItsTimestampsAreBackfilled() throws SQLException {
+        var legacyConnectionString = "jdbc:sqlite:" + temporaryDirectory.resolve("legacy.db");
+        var firstTimestamp         = LocalDateTime.of(2024, 1, 1, 12, 0);
+        try (var connection = DriverManager.getConnection(legacyConnectionString);
+             var statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE entries (id INTEGER PRIMARY KEY AUTOINCREMENT, isApproved BOOLEAN NOT NULL DEFAULT FALSE, name TEXT, message TEXT, timestamp DATETIME DEFAULT CURRENT_TIMESTAMP)");
+            connection.setAutoCommit(false);
+            try (var insert = connection.prepareStatement("INSERT INTO entries(isApproved, name, message, timestamp) VALUES(?, ?, ?, ?)")) {
+                // More rows than one backfill batch, with timestamps out of id order.
+                for (var i = 0; i < 2500; i++) {
+                    insert.setBoolean(1, i % 3 != 0);
+                    insert.setString(2, "Name " + i);
+                    insert.setString(3, "Message " + i);
+                    insert.setString(4, firstTimestamp.plusSeconds(i * 7919L % 2500).toString().replace('T', ' '));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+            connection.commit();
+        }
+
+        try (var repository = new SqliteGuestbookRepository(legacyConnectionString);
+             var connection = DriverManager.getConnection(legacyConnectionString);
+             var statement = connection.createStatement()) {
+            repository.migrate();
+            assertEquals(firstTimestamp.plusSeconds(7919 % 2500), repository.getEntry(2).getTimestamp());
+            statement.executeUpdate("INSERT INTO entries(isApproved, name, message) VALUES(true, 'Old writer', 'Still works')");
+            var created = repository.createEntry(Entry.newEntry("New writer", "Works too"));
+            repository.approveEntries(List.of(created.getId()));
+            assertEquals(List.of(), repository.getEntriesApprovedAfter(0, 10), "Approvals are not numbered until the backfill before it is done");
+
+            var approvedEntriesVersion = repository.getApprovedEntriesVersion();
+            var before                 = readEverything(repository, firstTimestamp);
+            var timestamps             = before.get(0).stream().map(Entry::getTimestamp).toList();
+            assertEquals(1668, timestamps.size());
+            assertEquals(timestamps.stream().sorted().toList(), timestamps);
+            assertEquals(created.getTimestamp(), timestamps.get(timestamps.size() - 1));
+
+            repository.backfill();
+            assertEquals(before, readEverything(repository, firstTimestamp));
+            assertEquals(approvedEntriesVersion, repository.getApprovedEntriesVersion(), "Moving timestamps over is not a change to the approved entries");
+
+            statement.executeUpdate("UPDATE entries SET isApproved = true WHERE id = 4");
+            repository.approveEntries(List.of(1));
+            var approvals = repository.getEntriesApprovedAfter(0, 10);
+            assertEquals(List.of(4, 1), approvals.stream().map(approval -> approval.entry().getId()).toList(), "Only entries approved since the migration, by any writer, are numbered");
+            assertEquals(List.of(2503L, 2504L), approvals.stream().map(ApprovedEntry::sequence).toList(), "Sequences start after the ids browsers may already have");
+            assertEquals(2504L, repository.getLastApprovalSequence());
+
+            var filter     = new EntryFilter("Name 1", null, firstTimestamp.plusMinutes(10), firstTimestamp.plusMinutes(30));
+            var matchedIds = repository.getPendingEntries(null, 1000).stream()
+                    .filter(entry -> entry.getName().startsWith("Name 1") && entry.getTimestamp().isAfter(filter.createdAfter()) && entry.getTimestamp().isBefore(filter.createdBefore()))
+                    .map(Entry::getId)
+                    .toList();
+            assertFalse(matchedIds.isEmpty());
+            assertEquals(matchedIds, repository.deleteEntries(filter));
+
+            try (var resultSet = statement.executeQuery("SELECT COUNT(*) FROM entries WHERE createdAt IS NULL OR timestamp IS NOT NULL")) {
+                resultSet.next();
+                assertEquals(0, resultSet.getInt(1), "Every row should be left with only its integer creation time");
+            }
+            try (var resultSet = statement.executeQuery("SELECT version, backfilledAt IS NOT NULL FROM schema_version ORDER BY version")) {
+                for (var schemaVersion : List.of(1, 2, 3)) {
+                    assertTrue(resultSet.next());
+                    assertEquals(schemaVersion, resultSet.getInt(1));
+                    assertEquals(schemaVersion == 2, resultSet.getBoolean(2));
+                }
+                assertFalse(resultSet.next());
+            }
+            try (var resultSet = statement.executeQuery("SELECT 1 FROM sqlite_master WHERE name = 'entries_approved_timestamp'")) {
+                assertFalse(resultSet.next(), "The index on the text timestamp should be dropped");
+            }
+            statement.executeUpdate("INSERT INTO entries_search(entries_search) VALUES('integrity-check')");
+        }
+    }
+
+    @Test
+    void searchQueriesShouldLookUpEntriesFromTheIndexMatches() throws SQLException {
+        try (var connection = DriverManager.getConnection(connectionString)) {
+            for (var ranked : List.of(false, true)) {
+                var queryPlan = explain(connection, SqliteGuestbookRepository.searchSql(ranked, true));
+
+                assertTrue(queryPlan.startsWith("SCAN entries_search VIRTUAL TABLE"), () -> "Expected the search index to be scanned first, but the plan was: " + queryPlan);
+                assertFalse(queryPlan.contains("TEMP B-TREE"), () -> "Expected no sorting, but the plan was: " + queryPlan);
+            }
+        }
+    }
+
+    /**
+     * Every read which orders or filters by creation time: approved entries oldest first by page, newest first by cursor,
+     * and the entries of a time range.
+     */
+    private static List<List<Entry>> readEverything(SqliteGuestbookRepository repository, LocalDateTime firstTimestamp) {
+        var byCursor = new ArrayList<Entry>();
+        for (var page = repository.getApprovedEntriesAfter(null, 100, "timestamp", "desc"); !page.isEmpty(); page = repository.getApprovedEntriesAfter(page.get(page.size() - 1).getId(), 100, "timestamp", "desc")) {
+            byCursor.addAll(page);
+        }
+        var inRange = new ArrayList<Entry>();
+        repository.exportEntries(null, firstTimestamp.plusMinutes(5), firstTimestamp.plusMinutes(6), inRange::add);
+        return List.of(repository.getApprovedEntries(0, 5000, "timestamp", "asc"), byCursor, inRange);
+    }
+
+    private static String indexOf(String column) {
+        return column.equals("timestamp") ? "entries_approved_created_at" : "entries_approved_" + column;
+    }
+
+    private static List<Integer> ids(SearchResults searchResults) {
+        return searchResults.results().stream().map(result -> result.entry().getId()).toList();
+    }
+
+    private static String explain(java.sql.Connection connection, String sql) throws SQLException {
+        var queryPlan = new StringBuilder();
+        try (var statement = connection.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            var parameterCount = statement.getParameterMetaData().getParameterCount();
+            for (var i = 1; i <= parameterCount; i++) {
+                statement.setInt(i, 1);
+            }
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    queryPlan.append(resultSet.getString("detail")).append('\n');
+                }
+            }
+        }
+        return queryPlan.toString();
+    }
+}
@@ -0,0 +1,63 @@
+package no.clueless.guestbook.web;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AltchaChallengePoolTest {
+    private static final Duration LIFETIME = Duration.ofMinutes(10);
+
+    private final AtomicLong clock     = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+    private final AtomicLong maxNumber = new AtomicLong(1000);
+
+    @Test
+    void thePoolShouldRefillInTheBackground() throws Exception {
+        try (var pool = AltchaChallengePool.start("hmac-key", maxNumber::get, LIFETIME, 4, clock::get)) {
+            awaitFull(pool, 4);
+
+            assertEquals(1000, pool.take().maxnumber);
+            awaitFull(pool, 4);
+        }
+    }
+
+    @Test
+    void challengesPastHalfTheirLifetimeShouldBeDiscarded() throws Exception {
+        var pool = AltchaChallengePool.start("hmac-key", maxNumber::get, LIFETIME, 4, clock::get);
+        awaitFull(pool, 4);
+        // Stop refilling, so only take() changes what is in the pool.
+        pool.close();
+
+        pool.take();
+        assertEquals(3, pool.size(), "Fresh challenges are handed out from the pool");
+
+        clock.addAndGet(LIFETIME.toNanos() / 2 + 1);
+        assertNotNull(pool.take());
+        assertEquals(0, pool.size(), "Stale challenges are dropped and a fresh one is created on the spot");
+    }
+
+    @Test
+    void challengesOfAnotherMaxNumberShouldBeCreatedOnTheSpot() throws Exception {
+        var pool = AltchaChallengePool.start("hmac-key", maxNumber::get, LIFETIME, 4, clock::get);
+        awaitFull(pool, 4);
+        pool.close();
+
+        assertEquals(8000, pool.take(8000).maxnumber);
+        assertEquals(4, pool.size(), "The pool is left alone for a client with a difficulty of its own");
+
+        maxNumber.set(2000);
+        assertEquals(2000, pool.take().maxnumber);
+        assertEquals(0, pool.size(), "Challenges from before the difficulty changed are dropped");
+    }
+
+    private static void awaitFull(AltchaChallengePool pool, int size) throws InterruptedException {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.size() < size) {
+            assertTrue(System.nanoTime() < deadline, "The pool was not refilled in time");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package no.clueless.guestbook.web;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AltchaDifficultyTest {
+    private final AtomicLong    clock           = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+    private final AtomicInteger writeQueueDepth = new AtomicInteger();
+
+    @Test
+    void difficultyShouldRiseAtOnceWithSubmissionsAndFallOneStepAtATime() {
+        var difficulty = new AltchaDifficulty(1000, 16_000, 10, 10, writeQueueDepth::get, 10, 0, 1, clock::get);
+        assertEquals(1000, difficulty.maxNumber());
+
+        record(difficulty, 25);
+        assertEquals(4000, difficulty.maxNumber(), "2.5 times the target takes two doublings");
+        record(difficulty, 200);
+        assertEquals(16_000, difficulty.maxNumber(), "Capped at the maximum");
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        assertEquals(8000, difficulty.maxNumber());
+        assertEquals(8000, difficulty.maxNumber());
+        clock.addAndGet(AltchaDifficulty.STEP_DOWN_INTERVAL.toNanos());
+        assertEquals(4000, difficulty.maxNumber());
+        clock.addAndGet(AltchaDifficulty.STEP_DOWN_INTERVAL.toNanos());
+        assertEquals(2000, difficulty.maxNumber());
+        clock.addAndGet(AltchaDifficulty.STEP_DOWN_INTERVAL.toNanos());
+        assertEquals(1000, difficulty.maxNumber());
+    }
+
+    @Test
+    void failedVerificationsAndTheWriteQueueShouldRaiseTheDifficulty() {
+        var difficulty = new AltchaDifficulty(1000, 16_000, 10, 2, writeQueueDepth::get, 10, 0, 1, clock::get);
+
+        for (var i = 0; i < 3; i++) {
+            difficulty.recordFailedVerification("client");
+        }
+        assertEquals(2000, difficulty.maxNumber());
+        assertEquals(3, difficulty.failedVerifications());
+
+        writeQueueDepth.set(40);
+        assertEquals(4000, difficulty.maxNumber());
+    }
+
+    @Test
+    void aNoisyClientShouldOnlyRaiseTheDifficultyOfItsOwnBucket() {
+        var difficulty = new AltchaDifficulty(1000, 16_000, 10, 10, writeQueueDepth::get, 10, 1024, 2, clock::get);
+
+        for (var i = 0; i < 6; i++) {
+            difficulty.recordSubmission("10.0.0.1");
+        }
+        assertEquals(4000, difficulty.maxNumber("10.0.0.1"));
+        assertEquals(1000, difficulty.maxNumber("10.0.0.2"));
+        assertEquals(1000, difficulty.maxNumber());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        assertEquals(1000, difficulty.maxNumber("10.0.0.1"));
+    }
+
+    private static void record(AltchaDifficulty difficulty, int submissions) {
+        for (var i = 0; i < submissions; i++) {
+            difficulty.recordSubmission("client-" + i);
+        }
+    }
+}
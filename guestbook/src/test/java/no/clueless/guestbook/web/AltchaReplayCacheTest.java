@@ -0,0 +1,39 @@
+package no.clueless.guestbook.web;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AltchaReplayCacheTest {
+    private final AtomicLong clock = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+
+    @Test
+    void saltsShouldOnlyBeAcceptedOnceWhileTheirChallengeCanStillBeVerified() {
+        var replayCache = new AltchaReplayCache(Duration.ofMinutes(10), 10, clock::get);
+
+        assertTrue(replayCache.consume("salt"));
+        assertFalse(replayCache.consume("salt"));
+
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        assertFalse(replayCache.consume("salt"));
+
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        assertTrue(replayCache.consume("salt"));
+    }
+
+    @Test
+    void solutionsShouldBeRejectedWhileTheCacheIsFull() {
+        var replayCache = new AltchaReplayCache(Duration.ofMinutes(10), 2, clock::get);
+
+        assertTrue(replayCache.consume("first"));
+        assertTrue(replayCache.consume("second"));
+        assertFalse(replayCache.consume("third"));
+
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        assertTrue(replayCache.consume("third"));
+    }
+}
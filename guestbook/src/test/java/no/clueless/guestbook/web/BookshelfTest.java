@@ -0,0 +1,145 @@
+package no.clueless.guestbook.web;
+
+import io.javalin.http.NotFoundResponse;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BookshelfTest {
+    @TempDir
+    Path temporaryDirectory;
+
+    private final List<String>             openedBooks = new ArrayList<>();
+    private final List<String>             closedBooks = new ArrayList<>();
+    private final Map<String, EntryStream> streams     = new ConcurrentHashMap<>();
+    private       Bookshelf                bookshelf;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        for (var name : List.of("alpha", "beta", "gamma")) {
+            Files.createFile(temporaryDirectory.resolve(name + ".db"));
+        }
+        bookshelf = Bookshelf.create(temporaryDirectory, 2, (name, databaseFile) -> {
+            assertEquals(temporaryDirectory.resolve(name + ".db"), databaseFile);
+            openedBooks.add(name);
+            var entryStream = mock(EntryStream.class);
+            streams.put(name, entryStream);
+            return new Book(mock(GuestbookController.class), entryStream, null, mock(ExportController.class), () -> closedBooks.add(name));
+        }, new MetricsRegistry());
+    }
+
+    @Test
+    void booksShouldBeOpenedOnceAndTheLeastRecentlyUsedIdleBookClosed() {
+        bookshelf.borrow("alpha").close();
+        bookshelf.borrow("beta").close();
+        bookshelf.borrow("alpha").close();
+        assertEquals(List.of("alpha", "beta"), openedBooks);
+
+        bookshelf.borrow("gamma").close();
+        assertEquals(List.of("beta"), closedBooks);
+        assertEquals(2, bookshelf.openBooks());
+
+        bookshelf.borrow("beta").close();
+        assertEquals(List.of("alpha", "beta", "gamma", "beta"), openedBooks);
+        assertEquals(List.of("beta", "alpha"), closedBooks);
+
+        bookshelf.close();
+        assertEquals(List.of("beta", "alpha", "gamma", "beta"), closedBooks);
+    }
+
+    @Test
+    void booksInUseShouldStayOpenUntilReturned() {
+        var alpha = bookshelf.borrow("alpha");
+        bookshelf.borrow("beta").close();
+        when(streams.get("beta").connectedClients()).thenReturn(1);
+
+        var gamma = bookshelf.borrow("gamma");
+        assertEquals(3, bookshelf.openBooks());
+        assertEquals(List.of(), closedBooks);
+
+        alpha.close();
+        alpha.close();
+        assertEquals(List.of("alpha"), closedBooks);
+        gamma.close();
+        assertEquals(2, bookshelf.openBooks());
+    }
+
+    @Test
+    void aBookBeingOpenedShouldHoldUpOnlyItsOwnBorrowers() throws Exception {
+        var opening   = new CountDownLatch(1);
+        var mayOpen   = new CountDownLatch(1);
+        var openings  = new AtomicInteger();
+        var slowShelf = Bookshelf.create(temporaryDirectory, 2, (name, databaseFile) -> {
+            openings.incrementAndGet();
+            if (name.equals("alpha")) {
+                opening.countDown();
+                try {
+                    mayOpen.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return new Book(mock(GuestbookController.class), mock(EntryStream.class), null, mock(ExportController.class), () -> {});
+        }, new MetricsRegistry());
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var first  = executor.submit(() -> slowShelf.borrow("alpha"));
+            opening.await();
+            var second = executor.submit(() -> slowShelf.borrow("alpha"));
+
+            slowShelf.borrow("beta").close();
+            assertFalse(first.isDone(), "Borrowing another book does not wait for alpha to open");
+
+            mayOpen.countDown();
+            assertSame(first.get().book(), second.get().book());
+            assertEquals(2, openings.get(), "Alpha is opened once for both borrowers");
+            first.get().close();
+            second.get().close();
+        } finally {
+            slowShelf.close();
+        }
+    }
+
+    @Test
+    void aBookWhichFailedToOpenShouldBeOpenedAgainNextTime() {
+        var attempts  = new AtomicInteger();
+        var failShelf = Bookshelf.create(temporaryDirectory, 2, (name, databaseFile) -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IllegalStateException("Corrupt database");
+            }
+            return new Book(mock(GuestbookController.class), mock(EntryStream.class), null, mock(ExportController.class), () -> {});
+        }, new MetricsRegistry());
+
+        assertThrows(IllegalStateException.class, () -> failShelf.borrow("alpha"));
+        assertEquals(0, failShelf.openBooks());
+        failShelf.borrow("alpha").close();
+        assertEquals(2, attempts.get());
+        assertEquals(1, failShelf.openBooks());
+        failShelf.close();
+    }
+
+    @Test
+    void missingInvalidAndReservedBooksShouldNotBeFound() throws IOException {
+        Files.createFile(temporaryDirectory.resolve("admin.db"));
+        for (var name : List.of("delta", "Alpha", "../alpha", "alpha.db", "-alpha", "", "admin", "entries", "altcha")) {
+            assertThrows(NotFoundResponse.class, () -> bookshelf.borrow(name), name);
+        }
+        assertEquals(List.of(), openedBooks);
+        assertFalse(Files.exists(temporaryDirectory.resolve("delta.db")));
+    }
+}
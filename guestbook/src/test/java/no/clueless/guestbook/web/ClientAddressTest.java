@@ -0,0 +1,36 @@
+package no.clueless.guestbook.web;
+
+import io.javalin.Javalin;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientAddressTest {
+    @Test
+    void theRealIpHeaderShouldOnlyBeBelievedFromTrustedProxies() throws Exception {
+        assertEquals("203.0.113.7", resolvedAddress(Set.of("127.0.0.1", "::1")), "The loopback address is a trusted proxy");
+        assertEquals("203.0.113.7", resolvedAddress(Set.of(" 127.0.0.1 ", "0:0:0:0:0:0:0:1")), "Addresses are compared in normalized form");
+        assertNotEquals("203.0.113.7", resolvedAddress(Set.of("192.0.2.1")), "A client cannot pick its own address");
+    }
+
+    private static String resolvedAddress(Set<String> trustedProxies) throws IOException, InterruptedException {
+        var normalized = ClientAddress.normalize(trustedProxies);
+        var javalin    = Javalin.create()
+                .before(ctx -> ClientAddress.resolve(ctx, normalized))
+                .get("/", ctx -> ctx.result(ClientAddress.of(ctx)))
+                .start(0);
+        try (var httpClient = HttpClient.newHttpClient()) {
+            var request = HttpRequest.newBuilder(URI.create("http://localhost:" + javalin.port() + "/")).header("X-Real-IP", "203.0.113.7").build();
+            return httpClient.send(request, HttpResponse.BodyHandlers.ofString()).body();
+        } finally {
+            javalin.stop();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package no.clueless.guestbook.web;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrencyLimiterTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final AtomicLong clock = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+
+    @Test
+    void theLimitShouldGrowWhileRequestsAreFastAndShrinkWhenTheyAreSlow() throws InterruptedException {
+        var limiter = new ConcurrencyLimiter("test", 4, 8, Duration.ofMillis(100), 0, Duration.ZERO, List.of(), clock::get);
+
+        for (var i = 0; i < 10; i++) {
+            acquire(limiter, 4);
+            release(limiter, 4, FAST);
+        }
+        assertEquals(8, limiter.limit(), "Capped at the maximum");
+
+        acquire(limiter, 2);
+        release(limiter, 2, SLOW);
+        assertEquals(7, limiter.limit(), "Lowered at most once per latency target");
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        acquire(limiter, 1);
+        limiter.release(SLOW);
+        assertEquals(6, limiter.limit());
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    void requestsBeyondTheLimitAndTheQueueShouldBeRejected() throws InterruptedException {
+        var limiter = new ConcurrencyLimiter("test", 2, 2, Duration.ofMillis(100), 0, Duration.ofMillis(10), List.of(), clock::get);
+
+        acquire(limiter, 2);
+        assertFalse(limiter.acquire());
+        assertEquals(1, limiter.rejected());
+
+        limiter.release(FAST);
+        assertTrue(limiter.acquire());
+    }
+
+    @Test
+    void aQueuedRequestShouldBeAdmittedWhenAPermitIsReleased() throws Exception {
+        var limiter = new ConcurrencyLimiter("test", 1, 1, Duration.ofMillis(100), 1, Duration.ofSeconds(10), List.of(), clock::get);
+
+        acquire(limiter, 1);
+        var queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return limiter.acquire();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (limiter.queued() == 0) {
+            Thread.onSpinWait();
+        }
+        assertFalse(limiter.acquire(), "The queue only holds one request");
+
+        limiter.release(FAST);
+        assertTrue(queued.get(10, TimeUnit.SECONDS));
+        assertEquals(1, limiter.inFlight());
+    }
+
+    @Test
+    void lowerPriorityRequestsShouldBeShedWhileHigherPriorityOnesAreCongested() throws Exception {
+        var reads  = new ConcurrencyLimiter("reads", 1, 1, Duration.ofMillis(100), 1, Duration.ofSeconds(10), List.of(), clock::get);
+        var writes = new ConcurrencyLimiter("writes", 4, 4, Duration.ofMillis(100), 0, Duration.ZERO, List.of(reads), clock::get);
+
+        acquire(reads, 1);
+        assertTrue(writes.acquire(), "Reads using every permit are busy, not congested");
+        writes.release(FAST);
+
+        var queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return reads.acquire();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (reads.queued() == 0) {
+            Thread.onSpinWait();
+        }
+        assertFalse(writes.acquire(), "Reads are waiting for a permit");
+        assertEquals(0, writes.inFlight());
+
+        reads.release(SLOW);
+        assertTrue(queued.get(10, TimeUnit.SECONDS));
+        reads.release(FAST);
+        assertFalse(writes.acquire(), "A read took longer than the latency target");
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(writes.acquire());
+    }
+
+    private static void acquire(ConcurrencyLimiter limiter, int permits) throws InterruptedException {
+        for (var i = 0; i < permits; i++) {
+            assertTrue(limiter.acquire());
+        }
+    }
+
+    private static void release(ConcurrencyLimiter limiter, int permits, long latencyNanos) {
+        for (var i = 0; i < permits; i++) {
+            limiter.release(latencyNanos);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package no.clueless.guestbook.web;
+
+import io.javalin.Javalin;
+import no.clueless.guestbook.Application;
+import no.clueless.guestbook.ApprovedEntriesMonitor;
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.Guestbook;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import no.clueless.guestbook.persistence.SqliteGuestbookRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryStreamTest {
+    @TempDir
+    Path temporaryDirectory;
+
+    private String                    connectionString;
+    private SqliteGuestbookRepository guestbookRepository;
+    private ApprovedEntriesMonitor    monitor;
+    private EntryStream               entryStream;
+    private Javalin                   javalin;
+    private HttpClient                httpClient;
+
+    @BeforeEach
+    void setUp() {
+        connectionString    = "jdbc:sqlite:" + temporaryDirectory.resolve("guestbook.db");
+        guestbookRepository = new SqliteGuestbookRepository(connectionString);
+        guestbookRepository.initialize();
+        monitor     = ApprovedEntriesMonitor.start(guestbookRepository::getApprovedEntriesVersion, Duration.ofHours(1));
+        entryStream = EntryStream.start(monitor, new Guestbook(guestbookRepository, new SubmissionPublisher<>()), Application.createJsonMapper(), 10, 16, new MetricsRegistry());
+        javalin     = Javalin.create().get("/entries/stream", entryStream::streamEntries).start(0);
+        httpClient  = HttpClient.newHttpClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        entryStream.close();
+        javalin.stop();
+        httpClient.close();
+        monitor.close();
+        guestbookRepository.close();
+    }
+
+    @Test
+    void reconnectingClientsShouldGetWhatTheyMissedAndThenNewlyApprovedEntries() throws Exception {
+        var first  = guestbookRepository.createEntry(Entry.newEntry("First", "First message"));
+        var second = guestbookRepository.createEntry(Entry.newEntry("Second", "Second message"));
+        var third  = guestbookRepository.createEntry(Entry.newEntry("Third", "Third message"));
+        approve(first.getId());
+        approve(second.getId());
+        monitor.refresh();
+
+        var request = HttpRequest.newBuilder(URI.create("http://localhost:" + javalin.port() + "/entries/stream"))
+                .header("Accept", "text/event-stream")
+                .header("Last-Event-ID", String.valueOf(first.getId()))
+                .build();
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        var response = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofLines()).thenAccept(httpResponse -> httpResponse.body().forEach(lines::add));
+
+        var missed = nextEvent(lines);
+        assertTrue(missed.contains("event: entry"), missed::toString);
+        assertTrue(missed.contains("id: " + second.getId()), missed::toString);
+
+        approve(third.getId());
+        monitor.refresh();
+        var approved = nextEvent(lines);
+        assertTrue(approved.contains("id: " + third.getId()), approved::toString);
+        assertTrue(approved.stream().anyMatch(line -> line.startsWith("data: ") && line.contains("\"message\":\"Third message\"")), approved::toString);
+        response.cancel(true);
+    }
+
+    @Test
+    void entriesApprovedAfterNewerOnesShouldStillBePushed() throws Exception {
+        var older = guestbookRepository.createEntry(Entry.newEntry("Older", "Waited longer for approval"));
+        var newer = guestbookRepository.createEntry(Entry.newEntry("Newer", "Approved first"));
+        approve(newer.getId());
+        monitor.refresh();
+
+        // Replaying from the start of the approvals shows the client is attached before the older entry is approved.
+        var request = HttpRequest.newBuilder(URI.create("http://localhost:" + javalin.port() + "/entries/stream"))
+                .header("Accept", "text/event-stream")
+                .header("Last-Event-ID", "0")
+                .build();
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        var response = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofLines()).thenAccept(httpResponse -> {
+            assertEquals("no", httpResponse.headers().firstValue("X-Accel-Buffering").orElse(null), "nginx should not buffer the stream");
+            httpResponse.body().forEach(lines::add);
+        });
+
+        var replayed = nextEvent(lines);
+        assertTrue(replayed.contains("id: 1"), replayed::toString);
+        assertTrue(replayed.stream().anyMatch(line -> line.contains("\"message\":\"Approved first\"")), replayed::toString);
+
+        approve(older.getId());
+        monitor.refresh();
+        var approved = nextEvent(lines);
+        assertTrue(approved.contains("id: 2"), approved::toString);
+        assertTrue(approved.stream().anyMatch(line -> line.contains("\"message\":\"Waited longer for approval\"")), approved::toString);
+        response.cancel(true);
+    }
+
+    private void approve(int id) throws SQLException {
+        try (var connection = DriverManager.getConnection(connectionString);
+             var statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE entries SET isApproved = true WHERE id = " + id);
+        }
+    }
+
+    /**
+     * @return The lines of the next event, skipping heartbeats.
+     */
+    private static List<String> nextEvent(BlockingQueue<String> lines) throws InterruptedException {
+        var event = new ArrayList<String>();
+        while (true) {
+            var line = nextLine(lines);
+            if (!line.isEmpty()) {
+                event.add(line);
+            } else if (event.stream().anyMatch(field -> field.startsWith("event:"))) {
+                return event;
+            } else {
+                event.clear();
+            }
+        }
+    }
+
+    private static String nextLine(BlockingQueue<String> lines) throws InterruptedException {
+        var line = lines.poll(5, TimeUnit.SECONDS);
+        assertNotNull(line, "Timed out waiting for the stream");
+        return line;
+    }
+}
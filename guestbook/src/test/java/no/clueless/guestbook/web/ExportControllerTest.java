@@ -0,0 +1,120 @@
+package no.clueless.guestbook.web;
+
+import io.javalin.Javalin;
+import no.clueless.guestbook.Application;
+import no.clueless.guestbook.persistence.SqliteGuestbookRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExportControllerTest {
+    private static final int           ENTRIES = 2500;
+    private static final LocalDateTime FIRST   = LocalDateTime.of(2025, 1, 1, 0, 0);
+
+    @TempDir
+    Path temporaryDirectory;
+
+    private SqliteGuestbookRepository guestbookRepository;
+    private Javalin                   javalin;
+    private HttpClient                httpClient;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        var connectionString = "jdbc:sqlite:" + temporaryDirectory.resolve("guestbook.db");
+        guestbookRepository = new SqliteGuestbookRepository(connectionString);
+        guestbookRepository.initialize();
+        // More entries than one export batch, one a minute, with every other one approved.
+        try (var connection = DriverManager.getConnection(connectionString);
+             var insert = connection.prepareStatement("INSERT INTO entries(isApproved, name, message, createdAt) VALUES(?, ?, ?, ?)")) {
+            connection.setAutoCommit(false);
+            for (var i = 0; i < ENTRIES; i++) {
+                insert.setBoolean(1, i % 2 == 0);
+                insert.setString(2, "Name " + i);
+                insert.setString(3, "Message " + i);
+                insert.setLong(4, FIRST.plusMinutes(i).toInstant(ZoneOffset.UTC).toEpochMilli());
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            connection.commit();
+        }
+
+        var exportController = new ExportController(guestbookRepository, Application.createJsonMapper());
+        javalin    = Javalin.create().get("/export", exportController::exportEntries).start(0);
+        httpClient = HttpClient.newHttpClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        javalin.stop();
+        httpClient.close();
+        guestbookRepository.close();
+    }
+
+    @Test
+    void everyEntryShouldBeExportedOldestFirstAndGzippedWhenAccepted() throws Exception {
+        var response = httpClient.send(request("").header("Accept-Encoding", "gzip").build(), HttpResponse.BodyHandlers.ofInputStream());
+
+        assertEquals(200, response.statusCode());
+        assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElse(null));
+        assertEquals("application/x-ndjson", response.headers().firstValue("Content-Type").orElse(null));
+        try (var body = new GZIPInputStream(response.body())) {
+            assertEquals(IntStream.rangeClosed(1, ENTRIES).boxed().toList(), ids(body));
+        }
+    }
+
+    @Test
+    void entriesShouldBeFilteredByApprovalAndCreationTime() throws Exception {
+        var createdAfter  = FIRST.plusMinutes(100);
+        var createdBefore = FIRST.plusMinutes(1300);
+
+        var approved = httpClient.send(request("?approved=true&createdAfter=" + createdAfter + "&createdBefore=" + createdBefore).build(), HttpResponse.BodyHandlers.ofInputStream());
+        assertEquals(200, approved.statusCode());
+        assertTrue(approved.headers().firstValue("Content-Encoding").isEmpty(), "Only compressed when the client accepts it");
+        try (var body = approved.body()) {
+            // Entry i + 1 was created i minutes after the first, and approved if i is even.
+            assertEquals(IntStream.range(100, 1300).filter(i -> i % 2 == 0).map(i -> i + 1).boxed().toList(), ids(body));
+        }
+
+        var pending = httpClient.send(request("?approved=false&createdAfter=" + FIRST.plusMinutes(2400)).build(), HttpResponse.BodyHandlers.ofInputStream());
+        try (var body = pending.body()) {
+            assertEquals(IntStream.range(2400, ENTRIES).filter(i -> i % 2 == 1).map(i -> i + 1).boxed().toList(), ids(body));
+        }
+
+        assertEquals(400, httpClient.send(request("?createdBefore=yesterday").build(), HttpResponse.BodyHandlers.discarding()).statusCode());
+    }
+
+    private HttpRequest.Builder request(String query) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + javalin.port() + "/export" + query));
+    }
+
+    private static List<Integer> ids(InputStream body) throws IOException {
+        var jsonMapper = Application.createJsonMapper();
+        var ids        = new ArrayList<Integer>();
+        for (var line : new String(body.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isEmpty()) {
+                ids.add(jsonMapper.readTree(line).get("id").asInt());
+            }
+        }
+        return ids;
+    }
+}
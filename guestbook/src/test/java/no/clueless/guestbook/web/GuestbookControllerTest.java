@@ -0,0 +1,162 @@
+package no.clueless.guestbook.web;
+
+import io.javalin.Javalin;
+import no.clueless.guestbook.Application;
+import no.clueless.guestbook.ApprovedEntriesMonitor;
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.EntryCache;
+import no.clueless.guestbook.Guestbook;
+import no.clueless.guestbook.Sanitizer;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import no.clueless.guestbook.persistence.GuestbookRepository;
+import no.clueless.guestbook.persistence.SqliteGuestbookRepository;
+import org.altcha.altcha.Altcha;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class GuestbookControllerTest {
+    @TempDir
+    Path temporaryDirectory;
+
+    private SqliteGuestbookRepository guestbookRepository;
+    private ApprovedEntriesMonitor    monitor;
+    private Javalin                   javalin;
+    private HttpClient                httpClient;
+
+    @BeforeEach
+    void setUp() {
+        guestbookRepository = new SqliteGuestbookRepository("jdbc:sqlite:" + temporaryDirectory.resolve("guestbook.db"));
+        guestbookRepository.initialize();
+        monitor             = ApprovedEntriesMonitor.start(guestbookRepository::getApprovedEntriesVersion, Duration.ofHours(1));
+        var guestbook       = new Guestbook(guestbookRepository, new SubmissionPublisher<>(), EntryCache.create(monitor, 10), new MetricsRegistry());
+        var controller      = new GuestbookController(guestbook, Application.createJsonMapper(), 10, "hmac-key", new AltchaReplayCache(Duration.ofMinutes(1), 100), AltchaDifficulty.fixed(1000), new Sanitizer());
+        javalin             = Javalin.create().get("/entries", controller::getEntries).start(0);
+        httpClient          = HttpClient.newHttpClient();
+
+        var ids = new ArrayList<Integer>();
+        for (var i = 0; i < 10; i++) {
+            ids.add(guestbookRepository.createEntry(Entry.newEntry("Name " + i, "A message long enough for the page to be worth compressing, number " + i)).getId());
+        }
+        guestbookRepository.approveEntries(ids);
+        monitor.refresh();
+    }
+
+    @AfterEach
+    void tearDown() {
+        javalin.stop();
+        httpClient.close();
+        monitor.close();
+        guestbookRepository.close();
+    }
+
+    @Test
+    void aMatchingEtagShouldGetNotModified() throws Exception {
+        var response = get(List.of());
+        assertEquals(200, response.statusCode());
+        var etag = response.headers().firstValue("ETag").orElseThrow();
+
+        var revalidated = get(List.of("If-None-Match", etag));
+        assertEquals(304, revalidated.statusCode());
+        assertEquals(etag, revalidated.headers().firstValue("ETag").orElseThrow());
+        assertEquals(0, revalidated.body().length);
+
+        assertEquals(304, get(List.of("If-None-Match", "\"unrelated\", " + etag)).statusCode(), "Any of the listed tags may match");
+    }
+
+    @Test
+    void anEtagShouldGoStaleWhenAnEntryIsApproved() throws Exception {
+        var etag = get(List.of()).headers().firstValue("ETag").orElseThrow();
+
+        var entry = guestbookRepository.createEntry(Entry.newEntry("Latecomer", "Approved after the page was fetched"));
+        guestbookRepository.approveEntries(List.of(entry.getId()));
+        monitor.refresh();
+
+        var response = get(List.of("If-None-Match", etag));
+        assertEquals(200, response.statusCode());
+        assertNotEquals(etag, response.headers().firstValue("ETag").orElseThrow());
+        assertTrue(new String(response.body(), StandardCharsets.UTF_8).contains("Latecomer"));
+    }
+
+    @Test
+    void gzipShouldBeServedToClientsWhichAcceptItUnderAnEtagOfItsOwn() throws Exception {
+        var plain   = get(List.of());
+        var gzipped = get(List.of("Accept-Encoding", "gzip, deflate"));
+        assertEquals(200, gzipped.statusCode());
+        assertEquals("gzip", gzipped.headers().firstValue("Content-Encoding").orElseThrow());
+        assertTrue(gzipped.headers().allValues("Vary").stream().anyMatch(vary -> vary.contains("Accept-Encoding")));
+        assertArrayEquals(plain.body(), gunzip(gzipped.body()));
+        assertTrue(plain.headers().firstValue("Content-Encoding").isEmpty());
+
+        var gzipEtag = gzipped.headers().firstValue("ETag").orElseThrow();
+        assertNotEquals(plain.headers().firstValue("ETag").orElseThrow(), gzipEtag);
+        assertEquals(304, get(List.of("Accept-Encoding", "gzip", "If-None-Match", gzipEtag)).statusCode());
+    }
+
+    @Test
+    void aFullWriteQueueShouldGetServiceUnavailableWithRetryAfter() throws Exception {
+        var fullRepository = mock(GuestbookRepository.class);
+        when(fullRepository.createEntry(any())).thenThrow(new RejectedExecutionException("write queue is full"));
+        var jsonMapper     = Application.createJsonMapper();
+        var controller     = new GuestbookController(new Guestbook(fullRepository, new SubmissionPublisher<>()), jsonMapper, 10, "hmac-key", new AltchaReplayCache(Duration.ofMinutes(1), 100), AltchaDifficulty.fixed(1000), new Sanitizer());
+        var postJavalin    = Javalin.create().post("/entries", controller::postEntry).start(0);
+        try {
+            var challenge = Altcha.createChallenge(new Altcha.ChallengeOptions().setMaxNumber(1000L).setHmacKey("hmac-key").setExpiresInSeconds(60L));
+            var solution  = Altcha.solveChallenge(challenge.challenge, challenge.salt, Altcha.Algorithm.SHA256, challenge.maxnumber, 0);
+            var altcha    = Base64.getEncoder().encodeToString(jsonMapper.writeValueAsBytes(Map.of(
+                    "algorithm", challenge.algorithm,
+                    "challenge", challenge.challenge,
+                    "number", solution.number,
+                    "salt", challenge.salt,
+                    "signature", challenge.signature
+            )));
+            var request   = HttpRequest.newBuilder(URI.create("http://localhost:" + postJavalin.port() + "/entries"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(jsonMapper.writeValueAsString(Map.of("name", "Visitor", "message", "Hello", "altcha", altcha))))
+                    .build();
+
+            var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            assertEquals(503, response.statusCode());
+            assertEquals("1", response.headers().firstValue("Retry-After").orElseThrow());
+        } finally {
+            postJavalin.stop();
+        }
+    }
+
+    private HttpResponse<byte[]> get(List<String> headers) throws IOException, InterruptedException {
+        var request = HttpRequest.newBuilder(URI.create("http://localhost:" + javalin.port() + "/entries"));
+        for (var i = 0; i < headers.size(); i += 2) {
+            request.header(headers.get(i), headers.get(i + 1));
+        }
+        return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static byte[] gunzip(byte[] body) throws IOException {
+        try (var gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            return gzipInputStream.readAllBytes();
+        }
+    }
+}
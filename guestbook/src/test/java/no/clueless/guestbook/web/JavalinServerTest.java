@@ -0,0 +1,123 @@
+package no.clueless.guestbook.web;
+
+import io.javalin.Javalin;
+import no.clueless.guestbook.Application;
+import no.clueless.guestbook.ApprovedEntriesMonitor;
+import no.clueless.guestbook.ExecutionMode;
+import no.clueless.guestbook.Guestbook;
+import no.clueless.guestbook.Sanitizer;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import no.clueless.guestbook.persistence.SqliteGuestbookRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JavalinServerTest {
+    private static final String REFERER = "http://localhost/guestbook.html";
+
+    @TempDir
+    Path temporaryDirectory;
+
+    private SqliteGuestbookRepository guestbookRepository;
+    private ApprovedEntriesMonitor    monitor;
+    private EntryStream               entryStream;
+    private AltchaChallengePool       altchaChallengePool;
+    private ConcurrencyLimiters       concurrencyLimiters;
+    private Javalin                   javalin;
+    private HttpClient                httpClient;
+
+    @BeforeEach
+    void setUp() {
+        guestbookRepository = new SqliteGuestbookRepository("jdbc:sqlite:" + temporaryDirectory.resolve("guestbook.db"));
+        guestbookRepository.initialize();
+        monitor             = ApprovedEntriesMonitor.start(guestbookRepository::getApprovedEntriesVersion, Duration.ofHours(1));
+        var jsonMapper      = Application.createJsonMapper();
+        var guestbook       = new Guestbook(guestbookRepository, new SubmissionPublisher<>());
+        entryStream         = EntryStream.start(monitor, guestbook, jsonMapper, 10, 10, new MetricsRegistry());
+        altchaChallengePool = AltchaChallengePool.start("hmac-key", () -> 1000, Duration.ofMinutes(1), 4);
+        // Every limit starts at 1, with no queue, and a request counts as slow after a minute.
+        concurrencyLimiters = ConcurrencyLimiters.prioritized(10, Duration.ofMinutes(1), 0, Duration.ZERO);
+        var javalinServer   = new JavalinServer(
+                new AltchaController(altchaChallengePool, AltchaDifficulty.fixed(1000)),
+                new GuestbookController(guestbook, jsonMapper, 10, "hmac-key", new AltchaReplayCache(Duration.ofMinutes(1), 100), AltchaDifficulty.fixed(1000), new Sanitizer()),
+                entryStream,
+                null,
+                null,
+                null,
+                Set.of("http://localhost"),
+                Set.of(REFERER),
+                Set.of("127.0.0.1", "::1"),
+                jsonMapper,
+                ExecutionMode.PLATFORM,
+                new RateLimiters(unlimited(), unlimited(), unlimited()),
+                concurrencyLimiters,
+                new MetricsRegistry()
+        );
+        javalin             = javalinServer.create().start(0);
+        httpClient          = HttpClient.newHttpClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        javalin.stop();
+        httpClient.close();
+        altchaChallengePool.close();
+        entryStream.close();
+        monitor.close();
+        guestbookRepository.close();
+    }
+
+    @Test
+    void requestsOverTheLimitShouldGetServiceUnavailableWithRetryAfter() throws Exception {
+        assertTrue(concurrencyLimiters.reads().acquire());
+
+        var response = send(HttpRequest.newBuilder(uri("/entries")).GET());
+        assertEquals(503, response.statusCode());
+        assertEquals("1", response.headers().firstValue("Retry-After").orElseThrow());
+
+        concurrencyLimiters.reads().release(0);
+        assertEquals(200, send(HttpRequest.newBuilder(uri("/entries")).GET()).statusCode());
+    }
+
+    @Test
+    void lowerPriorityRoutesShouldOnlyBeShedWhileReadsAreCongested() throws Exception {
+        assertTrue(concurrencyLimiters.reads().acquire());
+        assertEquals(200, send(HttpRequest.newBuilder(uri("/altcha")).GET()).statusCode(), "Reads using their only permit are busy, not congested");
+
+        concurrencyLimiters.reads().release(TimeUnit.MINUTES.toNanos(2));
+        var challenge = send(HttpRequest.newBuilder(uri("/altcha")).GET());
+        assertEquals(503, challenge.statusCode());
+        assertEquals("1", challenge.headers().firstValue("Retry-After").orElseThrow());
+
+        var submission = send(HttpRequest.newBuilder(uri("/entries")).header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString("{}")));
+        assertEquals(503, submission.statusCode(), "Shed before the body is even read");
+        assertEquals("1", submission.headers().firstValue("Retry-After").orElseThrow());
+        assertEquals(200, send(HttpRequest.newBuilder(uri("/entries")).GET()).statusCode(), "Reads themselves are still served");
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + javalin.port() + path);
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        return httpClient.send(request.header("Referer", REFERER).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static TokenBucketRateLimiter unlimited() {
+        return new TokenBucketRateLimiter("unlimited", Integer.MAX_VALUE, 1000);
+    }
+}
@@ -0,0 +1,111 @@
+package no.clueless.guestbook.web;
+
+import no.clueless.guestbook.Application;
+import no.clueless.guestbook.ApprovedEntriesMonitor;
+import no.clueless.guestbook.Entry;
+import no.clueless.guestbook.Guestbook;
+import no.clueless.guestbook.Sanitizer;
+import no.clueless.guestbook.metrics.MetricsRegistry;
+import no.clueless.guestbook.persistence.SqliteGuestbookRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotPublisherTest {
+    private static final FileTime LONG_AGO = FileTime.fromMillis(0);
+
+    @TempDir
+    Path temporaryDirectory;
+
+    private String                    connectionString;
+    private SqliteGuestbookRepository guestbookRepository;
+    private ApprovedEntriesMonitor    monitor;
+    private GuestbookController       guestbookController;
+    private SnapshotPublisher         snapshotPublisher;
+    private Path                      pages;
+
+    @BeforeEach
+    void setUp() {
+        connectionString    = "jdbc:sqlite:" + temporaryDirectory.resolve("guestbook.db");
+        guestbookRepository = new SqliteGuestbookRepository(connectionString);
+        guestbookRepository.initialize();
+        // Nothing is cached, and the monitor never polls, so the snapshot only changes when the test publishes it.
+        monitor             = ApprovedEntriesMonitor.start(guestbookRepository::getApprovedEntriesVersion, Duration.ofHours(1));
+        guestbookController = new GuestbookController(new Guestbook(guestbookRepository, new SubmissionPublisher<>()), Application.createJsonMapper(), 10, "hmac-key", new AltchaReplayCache(Duration.ofMinutes(1), 100), AltchaDifficulty.fixed(1000), new Sanitizer());
+        snapshotPublisher   = SnapshotPublisher.start(monitor, guestbookController, temporaryDirectory.resolve("snapshot"), 3, new MetricsRegistry());
+        pages               = temporaryDirectory.resolve("snapshot").resolve("entries");
+    }
+
+    @AfterEach
+    void tearDown() {
+        snapshotPublisher.close();
+        monitor.close();
+        guestbookRepository.close();
+    }
+
+    @Test
+    void onlyChangedPagesShouldBeRewrittenAndPagesPastTheEndDeleted() throws IOException, SQLException {
+        assertEquals(List.of("page-0.json", "page-0.json.gz"), files());
+        assertPublished(0);
+
+        var ids = new ArrayList<Integer>();
+        for (var i = 0; i < 45; i++) {
+            ids.add(guestbookRepository.createEntry(Entry.newEntry("Name " + i, "Message " + i)).getId());
+        }
+        guestbookRepository.approveEntries(ids);
+        assertEquals(6, snapshotPublisher.publish(), "Only the first three pages are kept");
+        assertEquals(List.of("page-0.json", "page-0.json.gz", "page-1.json", "page-1.json.gz", "page-2.json", "page-2.json.gz"), files());
+        for (var page = 0; page < 3; page++) {
+            assertPublished(page);
+        }
+        assertEquals(0, snapshotPublisher.publish());
+
+        // Editing an entry on the last page leaves the totals, and so the other pages, as they are.
+        for (var file : files()) {
+            Files.setLastModifiedTime(pages.resolve(file), LONG_AGO);
+        }
+        try (var connection = DriverManager.getConnection(connectionString);
+             var statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE entries SET message = 'Edited' WHERE id = " + ids.get(20));
+        }
+        assertEquals(2, snapshotPublisher.publish());
+        for (var file : files()) {
+            assertEquals(file.startsWith("page-2."), !Files.getLastModifiedTime(pages.resolve(file)).equals(LONG_AGO), file);
+        }
+        assertPublished(2);
+
+        guestbookRepository.deleteEntries(ids.subList(0, 38));
+        assertEquals(6, snapshotPublisher.publish(), "Page 0 is rewritten, pages 1 and 2 are deleted");
+        assertEquals(List.of("page-0.json", "page-0.json.gz"), files());
+        assertPublished(0);
+    }
+
+    private void assertPublished(int page) throws IOException {
+        var expected = guestbookController.entriesPageJson(page);
+        assertArrayEquals(expected, Files.readAllBytes(pages.resolve("page-" + page + ".json")));
+        try (var gzipInputStream = new GZIPInputStream(Files.newInputStream(pages.resolve("page-" + page + ".json.gz")))) {
+            assertArrayEquals(expected, gzipInputStream.readAllBytes());
+        }
+    }
+
+    private List<String> files() throws IOException {
+        try (var files = Files.list(pages)) {
+            return files.map(file -> file.getFileName().toString()).sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package no.clueless.guestbook.web;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketRateLimiterTest {
+    private final AtomicLong clock = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+
+    @Test
+    void clientsShouldBeAllowedABurstAndThenRefillAtTheConfiguredRate() {
+        var rateLimiter = new TokenBucketRateLimiter("test", 3, Duration.ofMinutes(1), 10, clock::get);
+
+        assertEquals(0, rateLimiter.tryAcquire("client"));
+        assertEquals(0, rateLimiter.tryAcquire("client"));
+        assertEquals(0, rateLimiter.tryAcquire("client"));
+        assertEquals(TimeUnit.SECONDS.toNanos(20), rateLimiter.tryAcquire("client"));
+        assertEquals(0, rateLimiter.tryAcquire("another client"));
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(20));
+        assertEquals(0, rateLimiter.tryAcquire("client"));
+        assertTrue(rateLimiter.tryAcquire("client") > 0);
+    }
+
+    @Test
+    void idleClientsShouldBeForgottenAndTheStalestEvictedWhileTheLimiterIsFull() {
+        var rateLimiter = new TokenBucketRateLimiter("test", 2, Duration.ofMinutes(1), 2, clock::get);
+
+        assertEquals(0, rateLimiter.tryAcquire("first"));
+        assertEquals(0, rateLimiter.tryAcquire("first"));
+        assertEquals(0, rateLimiter.tryAcquire("second"));
+        assertEquals(0, rateLimiter.tryAcquire("third"), "A new client is let in while the limiter is full");
+        assertEquals(2, rateLimiter.trackedClients());
+        assertEquals(1, rateLimiter.evictions());
+        assertTrue(rateLimiter.tryAcquire("first") > 0, "The busier client keeps its bucket");
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        assertEquals(0, rateLimiter.tryAcquire("fourth"));
+        assertEquals(1, rateLimiter.trackedClients(), "Full buckets are swept away");
+    }
+
+    @Test
+    void theStalestBucketShouldBeEvictedWhereverItIsInTheMap() {
+        var rateLimiter = new TokenBucketRateLimiter("test", 1, Duration.ofMinutes(1), 256, clock::get);
+        var stale       = lateInIterationOrder();
+        assertEquals(0, rateLimiter.tryAcquire(stale));
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        for (var client = 0; client < 255; client++) {
+            assertEquals(0, rateLimiter.tryAcquire("busy-" + client));
+        }
+        for (var client = 0; client < 1000 && rateLimiter.tryAcquire(stale) > 0; client++) {
+            rateLimiter.tryAcquire("new-" + client);
+        }
+        assertEquals(256, rateLimiter.trackedClients());
+        assertTrue(rateLimiter.evictions() < 1000, "The stale bucket was sampled and evicted, so its client got a fresh one");
+    }
+
+    /**
+     * Find a key in the last few bins of a ConcurrentHashMap table of 512 bins, the size it grows to for 256 entries, so
+     * that it is never among the first buckets the map iterates over.
+     */
+    private static String lateInIterationOrder() {
+        for (var candidate = 0; ; candidate++) {
+            var key  = "stale-" + candidate;
+            var hash = key.hashCode();
+            if (((hash ^ (hash >>> 16)) & 511) >= 480) {
+                return key;
+            }
+        }
+    }
+}
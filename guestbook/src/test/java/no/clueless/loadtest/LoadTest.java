@@ -0,0 +1,226 @@
+package no.clueless.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.clueless.guestbook.Application;
+import org.altcha.altcha.Altcha;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Starts the real application against a temporary SQLite database and a stub mail endpoint, drives a mix of
+ * {@code GET /entries}, {@code GET /altcha} and {@code POST /entries} at constant rates, and reports throughput and
+ * latency percentiles per route.
+ * <p>
+ * Options are given as {@code key=value} arguments:
+ * <ul>
+ *     <li>{@code duration}: seconds to measure for (default 30), after {@code warmup} seconds of unrecorded load (default 10).</li>
+ *     <li>{@code entries}, {@code challenges}, {@code submissions}: requests per second to each route (default 200, 20 and 5).</li>
+ *     <li>{@code seed}: number of approved entries in the database before the run (default 10000).</li>
+ *     <li>{@code pages}: how many pages deep the readers browse (default 50).</li>
+ *     <li>{@code clients}: number of distinct client addresses the requests come from (default 10000).</li>
+ *     <li>{@code mailLatency}: milliseconds the stub mail endpoint takes to answer (default 50).</li>
+ *     <li>{@code output}: directory to write the full latency distributions to.</li>
+ * </ul>
+ * Any option with an upper case key, such as {@code EXECUTION_MODE=VIRTUAL}, is passed to the application as
+ * configuration.
+ */
+public class LoadTest {
+    private static final String REFERER    = "http://localhost/guestbook.html";
+    private static final String HMAC_KEY   = "loadtest";
+    private static final long   MAX_NUMBER = 1000L;
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        for (var arg : args) {
+            var separator = arg.indexOf('=');
+            if (separator < 1) {
+                throw new IllegalArgumentException("Options must be given as key=value, but got " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        var duration           = Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "30")));
+        var warmup             = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup", "10")));
+        var entriesRate        = Double.parseDouble(options.getOrDefault("entries", "200"));
+        var challengesRate     = Double.parseDouble(options.getOrDefault("challenges", "20"));
+        var submissionsRate    = Double.parseDouble(options.getOrDefault("submissions", "5"));
+        var numberOfSeeds      = Integer.parseInt(options.getOrDefault("seed", "10000"));
+        var numberOfPages      = Integer.parseInt(options.getOrDefault("pages", "50"));
+        var numberOfClients    = Integer.parseInt(options.getOrDefault("clients", "10000"));
+        var mailLatency        = Duration.ofMillis(Long.parseLong(options.getOrDefault("mailLatency", "50")));
+        var outputDirectory    = options.containsKey("output") ? Path.of(options.get("output")) : null;
+        var databaseDirectory  = Files.createTempDirectory("guestbook-loadtest");
+        var connectionString   = "jdbc:sqlite:" + databaseDirectory.resolve("guestbook.db");
+
+        // Every submission needs a challenge of its own, so solve them all up front to keep the load generator's CPU
+        // out of the measurements. The server does not care how hard a correctly signed challenge was.
+        var numberOfSolutions = (int) Math.ceil(submissionsRate * (duration.toSeconds() + warmup.toSeconds()) * 1.1) + 10;
+        System.out.printf("Solving %d Altcha challenges%n", numberOfSolutions);
+        var solutions = new ConcurrentLinkedQueue<>(IntStream.range(0, numberOfSolutions).parallel().mapToObj(i -> solveChallenge()).toList());
+
+        try (var mailServer = new StubMailServer(mailLatency)) {
+            var environment = new HashMap<String, String>();
+            environment.put("SERVER_PORT", "0");
+            environment.put("CONNECTION_STRING", connectionString);
+            environment.put("ALTCHA_HMAC_KEY", HMAC_KEY);
+            environment.put("SENDER_EMAIL_ADDRESS", "guestbook@localhost");
+            environment.put("RECIPIENT_EMAIL_ADDRESS", "owner@localhost");
+            environment.put("RESEND_API_KEY", "loadtest");
+            environment.put("RESEND_ENDPOINT", mailServer.endpoint().toString());
+            environment.put("ALLOWED_ORIGIN", "http://localhost");
+            environment.put("ALLOWED_REFERRERS", REFERER);
+            environment.put("MAXIMUM_SUBMISSIONS_PER_USER_PER_MINUTE", "10");
+            options.forEach((key, value) -> {
+                if (Character.isUpperCase(key.charAt(0))) {
+                    environment.put(key, value);
+                }
+            });
+
+            try (var application = Application.start(environment)) {
+                seed(connectionString, numberOfSeeds);
+
+                var baseUri    = "http://localhost:" + application.port();
+                var jsonMapper = new ObjectMapper();
+                var routes     = List.of(
+                        new RouteLoad("GET entries", entriesRate, () -> request(baseUri + entriesPath(numberOfSeeds, numberOfPages), numberOfClients).GET().build()),
+                        new RouteLoad("GET altcha", challengesRate, () -> request(baseUri + "/altcha", numberOfClients).GET().build()),
+                        new RouteLoad("POST entries", submissionsRate, () -> {
+                            var solution = solutions.poll();
+                            if (solution == null) {
+                                throw new IllegalStateException("Ran out of solved Altcha challenges");
+                            }
+                            var body = jsonMapper.createObjectNode()
+                                    .put("name", "Visitor " + ThreadLocalRandom.current().nextInt(numberOfClients))
+                                    .put("message", "Load test message " + ThreadLocalRandom.current().nextLong() + ", nice website!")
+                                    .put("altcha", solution)
+                                    .toString();
+                            return request(baseUri + "/entries", numberOfClients)
+                                    .header("Content-Type", "application/json")
+                                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                                    .build();
+                        })
+                );
+
+                System.out.printf("Warming up for %d s, then measuring for %d s%n", warmup.toSeconds(), duration.toSeconds());
+                try (var httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(Executors.newVirtualThreadPerTaskExecutor()).build();
+                     var executor = Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("loadtest-", 0).factory())) {
+                    var measurementStart = System.nanoTime() + warmup.toNanos();
+                    var end              = measurementStart + duration.toNanos();
+                    routes.forEach(route -> executor.submit(() -> route.run(httpClient, measurementStart, end)));
+                    executor.shutdown();
+                    executor.awaitTermination(duration.plus(warmup).toSeconds() + 60, TimeUnit.SECONDS);
+                    // Give the last requests a chance to complete before reporting.
+                    TimeUnit.SECONDS.sleep(2);
+                }
+
+                System.out.println();
+                RouteLoad.printHeader(System.out);
+                for (var route : routes) {
+                    route.printSummary(System.out, duration.toMillis() / 1000.0);
+                }
+                System.out.printf("%nEmails received by the stub mail endpoint: %d%n", mailServer.receivedEmails());
+
+                if (outputDirectory != null) {
+                    Files.createDirectories(outputDirectory);
+                    for (var route : routes) {
+                        var file = outputDirectory.resolve(route.name().toLowerCase().replace(' ', '-') + ".hgrm");
+                        try (var out = new PrintStream(Files.newOutputStream(file))) {
+                            route.writeDistribution(out);
+                        }
+                    }
+                    System.out.printf("Latency distributions written to %s%n", outputDirectory);
+                }
+            }
+        } finally {
+            deleteRecursively(databaseDirectory);
+        }
+    }
+
+    private static HttpRequest.Builder request(String uri, int numberOfClients) {
+        var client = ThreadLocalRandom.current().nextInt(numberOfClients);
+        return HttpRequest.newBuilder(URI.create(uri))
+                .timeout(Duration.ofSeconds(30))
+                .header("Referer", REFERER)
+                .header("X-Real-IP", "10." + (client >> 16 & 0xff) + "." + (client >> 8 & 0xff) + "." + (client & 0xff));
+    }
+
+    /**
+     * Most readers look at the first page, some page through by number and some follow cursors.
+     */
+    private static String entriesPath(int numberOfSeeds, int numberOfPages) {
+        var random = ThreadLocalRandom.current();
+        var roll   = random.nextInt(10);
+        if (roll < 6) {
+            return "/entries";
+        }
+        if (roll < 8) {
+            return "/entries?page=" + random.nextInt(numberOfPages);
+        }
+        return "/entries?after=" + (random.nextInt(Math.max(1, numberOfSeeds)) + 1);
+    }
+
+    private static String solveChallenge() {
+        try {
+            var challenge = Altcha.createChallenge(new Altcha.ChallengeOptions()
+                    .setMaxNumber(MAX_NUMBER)
+                    .setHmacKey(HMAC_KEY)
+                    .setExpiresInSeconds(3600));
+            var solution  = Altcha.solveChallenge(challenge.challenge, challenge.salt, Altcha.Algorithm.SHA256, challenge.maxnumber, 0);
+            var payload   = Map.of(
+                    "algorithm", challenge.algorithm,
+                    "challenge", challenge.challenge,
+                    "number", solution.number,
+                    "salt", challenge.salt,
+                    "signature", challenge.signature
+            );
+            return Base64.getEncoder().encodeToString(new ObjectMapper().writeValueAsBytes(payload));
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to solve Altcha challenge", e);
+        }
+    }
+
+    private static void seed(String connectionString, int numberOfEntries) throws SQLException {
+        try (var connection = DriverManager.getConnection(connectionString)) {
+            connection.setAutoCommit(false);
+            try (var statement = connection.prepareStatement("INSERT INTO entries(isApproved, name, message) VALUES(true, ?, ?)")) {
+                for (var i = 0; i < numberOfEntries; i++) {
+                    statement.setString(1, "Seeded visitor " + i);
+                    statement.setString(2, "A seeded message, number " + i + ", to give the readers something to read.");
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (var paths = Files.walk(directory)) {
+            var sorted = new ArrayList<>(paths.toList());
+            sorted.sort((a, b) -> b.getNameCount() - a.getNameCount());
+            for (var path : sorted) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
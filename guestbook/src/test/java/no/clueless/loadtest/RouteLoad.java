@@ -0,0 +1,111 @@
+package no.clueless.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.PrintStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Drives one route at a constant request rate and records how long each request took.
+ * <p>
+ * Requests are sent on a fixed schedule whether or not earlier ones have completed, and latency is measured from when
+ * a request was due to be sent rather than from when it actually was. A stalled server therefore shows up as the
+ * latency every user queued behind the stall would have seen, instead of as a handful of slow requests, which corrects
+ * for coordinated omission.
+ */
+class RouteLoad {
+    private static final long HIGHEST_TRACKABLE_LATENCY = TimeUnit.MINUTES.toMicros(1);
+
+    private final String                name;
+    private final double                requestsPerSecond;
+    private final Supplier<HttpRequest> requests;
+    private final Histogram             responseTimes = new ConcurrentHistogram(HIGHEST_TRACKABLE_LATENCY, 3);
+    private final Histogram             serviceTimes  = new ConcurrentHistogram(HIGHEST_TRACKABLE_LATENCY, 3);
+    private final LongAdder             successes     = new LongAdder();
+    private final LongAdder             rejections    = new LongAdder();
+    private final LongAdder             failures      = new LongAdder();
+
+    RouteLoad(String name, double requestsPerSecond, Supplier<HttpRequest> requests) {
+        this.name              = name;
+        this.requestsPerSecond = requestsPerSecond;
+        this.requests          = requests;
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * Send requests on schedule until the end of the run. Only requests due after the warmup are recorded.
+     */
+    void run(HttpClient httpClient, long measurementStart, long end) {
+        if (requestsPerSecond <= 0) {
+            return;
+        }
+
+        var interval = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+        var start    = System.nanoTime();
+        for (long i = 0; ; i++) {
+            var intendedStart = start + i * interval;
+            if (intendedStart >= end) {
+                return;
+            }
+            long now;
+            while ((now = System.nanoTime()) < intendedStart) {
+                LockSupport.parkNanos(intendedStart - now);
+            }
+
+            var sent     = now;
+            var recorded = intendedStart >= measurementStart;
+            httpClient.sendAsync(requests.get(), HttpResponse.BodyHandlers.discarding()).whenComplete((response, throwable) -> {
+                var completed = System.nanoTime();
+                if (!recorded) {
+                    return;
+                }
+                responseTimes.recordValue(Math.min(HIGHEST_TRACKABLE_LATENCY, TimeUnit.NANOSECONDS.toMicros(completed - intendedStart)));
+                serviceTimes.recordValue(Math.min(HIGHEST_TRACKABLE_LATENCY, TimeUnit.NANOSECONDS.toMicros(completed - sent)));
+                if (throwable != null) {
+                    failures.increment();
+                } else if (response.statusCode() < 400) {
+                    successes.increment();
+                } else if (response.statusCode() == 429 || response.statusCode() == 503) {
+                    rejections.increment();
+                } else {
+                    failures.increment();
+                }
+            });
+        }
+    }
+
+    void printSummary(PrintStream out, double measuredSeconds) {
+        out.printf("%-12s %9.1f %9d %9d %9d %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                name,
+                responseTimes.getTotalCount() / measuredSeconds,
+                successes.sum(),
+                rejections.sum(),
+                failures.sum(),
+                responseTimes.getValueAtPercentile(50) / 1000.0,
+                responseTimes.getValueAtPercentile(99) / 1000.0,
+                responseTimes.getValueAtPercentile(99.9) / 1000.0,
+                responseTimes.getMaxValue() / 1000.0,
+                serviceTimes.getValueAtPercentile(99) / 1000.0);
+    }
+
+    static void printHeader(PrintStream out) {
+        out.printf("%-12s %9s %9s %9s %9s %9s %9s %9s %9s %9s%n", "route", "req/s", "ok", "rejected", "failed", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "svc p99");
+    }
+
+    /**
+     * Write the full response time distribution in HdrHistogram's percentile format, in milliseconds.
+     */
+    void writeDistribution(PrintStream out) {
+        responseTimes.outputPercentileDistribution(out, 1000.0);
+    }
+}
@@ -0,0 +1,52 @@
+package no.clueless.loadtest;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for the Resend API during a load test, answering every email with {@code 200 OK} after a fixed latency.
+ */
+public class StubMailServer implements AutoCloseable {
+    private final HttpServer httpServer;
+    private final AtomicLong receivedEmails = new AtomicLong();
+
+    public StubMailServer(Duration latency) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        httpServer.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        httpServer.createContext("/emails", exchange -> {
+            try (exchange) {
+                exchange.getRequestBody().readAllBytes();
+                Thread.sleep(latency);
+                receivedEmails.incrementAndGet();
+
+                var body = "{\"id\":\"stub\"}".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        httpServer.start();
+    }
+
+    public URI endpoint() {
+        return URI.create("http://localhost:" + httpServer.getAddress().getPort() + "/emails");
+    }
+
+    public long receivedEmails() {
+        return receivedEmails.get();
+    }
+
+    @Override
+    public void close() {
+        httpServer.stop(0);
+    }
+}
@@ -0,0 +1,158 @@
+package no.clueless.startup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts the packaged guestbook as a separate process, once per run and mode, and measures how long it takes until
+ * {@code GET /entries} first succeeds and how much resident memory the process uses at that point.
+ * <p>
+ * The modes are the plain jar, the jar with the AppCDS archive written by the {@code cds} profile, and the binary built
+ * by the {@code native} profile. Modes whose files have not been built are skipped.
+ * <p>
+ * Options are given as {@code key=value} arguments:
+ * <ul>
+ *     <li>{@code runs}: number of starts per mode (default 5). The first start of every mode is not recorded.</li>
+ *     <li>{@code jar}: the shaded jar (default target/guestbook-1.0-SNAPSHOT.jar).</li>
+ *     <li>{@code archive}: the AppCDS archive (default target/guestbook.jsa).</li>
+ *     <li>{@code native}: the native binary (default target/guestbook).</li>
+ *     <li>{@code timeout}: seconds to wait for a start before giving up (default 30).</li>
+ * </ul>
+ */
+public class StartupBenchmark {
+    private static final String REFERER = "http://localhost/guestbook.html";
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        for (var arg : args) {
+            var separator = arg.indexOf('=');
+            if (separator < 1) {
+                throw new IllegalArgumentException("Options must be given as key=value, but got " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        var runs    = Integer.parseInt(options.getOrDefault("runs", "5"));
+        var jar     = Path.of(options.getOrDefault("jar", "target/guestbook-1.0-SNAPSHOT.jar"));
+        var archive = Path.of(options.getOrDefault("archive", "target/guestbook.jsa"));
+        var binary  = Path.of(options.getOrDefault("native", "target/guestbook"));
+        var timeout = Duration.ofSeconds(Long.parseLong(options.getOrDefault("timeout", "30")));
+        var java    = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+
+        var modes = new LinkedHashMap<String, List<String>>();
+        if (Files.isRegularFile(jar)) {
+            modes.put("jar", List.of(java, "-jar", jar.toString()));
+            if (Files.isRegularFile(archive)) {
+                modes.put("cds", List.of(java, "-XX:SharedArchiveFile=" + archive, "-Xshare:on", "-jar", jar.toString()));
+            }
+        }
+        if (Files.isExecutable(binary)) {
+            modes.put("native", List.of(binary.toString()));
+        }
+        if (modes.isEmpty()) {
+            throw new IllegalStateException("Nothing to start, build the jar with mvn package first");
+        }
+
+        try (var httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(100)).build()) {
+            System.out.printf("%-8s %20s %20s%n", "mode", "first response (ms)", "resident memory (MB)");
+            for (var mode : modes.entrySet()) {
+                var startupTimes = new ArrayList<Double>();
+                var residentSizes = new ArrayList<Double>();
+                for (var run = 0; run <= runs; run++) {
+                    var result = start(httpClient, mode.getValue(), timeout);
+                    if (run > 0) {
+                        startupTimes.add(result.startupTime().toNanos() / 1e6);
+                        residentSizes.add(result.residentKilobytes() / 1024.0);
+                    }
+                }
+                System.out.printf("%-8s %20s %20s%n", mode.getKey(), summarize(startupTimes), summarize(residentSizes));
+            }
+        }
+    }
+
+    private static Result start(HttpClient httpClient, List<String> command, Duration timeout) throws IOException, InterruptedException {
+        var databaseDirectory = Files.createTempDirectory("guestbook-startup");
+        var port              = freePort();
+        var processBuilder    = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        var environment       = processBuilder.environment();
+        environment.put("SERVER_PORT", String.valueOf(port));
+        environment.put("CONNECTION_STRING", "jdbc:sqlite:" + databaseDirectory.resolve("guestbook.db"));
+        environment.put("ALTCHA_HMAC_KEY", "startup");
+        environment.put("SENDER_EMAIL_ADDRESS", "guestbook@localhost");
+        environment.put("RECIPIENT_EMAIL_ADDRESS", "owner@localhost");
+        environment.put("ALLOWED_ORIGIN", "http://localhost");
+        environment.put("ALLOWED_REFERRERS", REFERER);
+        environment.put("MAXIMUM_SUBMISSIONS_PER_USER_PER_MINUTE", "10");
+
+        var request   = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/entries")).header("Referer", REFERER).timeout(Duration.ofSeconds(1)).GET().build();
+        var startedAt = System.nanoTime();
+        var process   = processBuilder.start();
+        try {
+            while (System.nanoTime() - startedAt < timeout.toNanos()) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException(String.join(" ", command) + " exited with " + process.exitValue());
+                }
+                try {
+                    if (httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                        return new Result(Duration.ofNanos(System.nanoTime() - startedAt), residentKilobytes(process.pid()));
+                    }
+                } catch (IOException e) {
+                    // Not listening yet.
+                }
+                Thread.sleep(5);
+            }
+            throw new IllegalStateException(String.join(" ", command) + " did not answer within " + timeout);
+        } finally {
+            process.destroy();
+            process.waitFor();
+            try (var paths = Files.walk(databaseDirectory)) {
+                for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (var serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    /**
+     * @return The VmRSS of the process, or 0 where /proc is not available.
+     */
+    private static long residentKilobytes(long pid) throws IOException {
+        var status = Path.of("/proc", String.valueOf(pid), "status");
+        if (!Files.isReadable(status)) {
+            return 0;
+        }
+        for (var line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim());
+            }
+        }
+        return 0;
+    }
+
+    private static String summarize(List<Double> values) {
+        var sorted = values.stream().sorted().toList();
+        return String.format("%.0f (%.0f-%.0f)", sorted.get(sorted.size() / 2), sorted.get(0), sorted.get(sorted.size() - 1));
+    }
+
+    private record Result(Duration startupTime, long residentKilobytes) {
+    }
+}
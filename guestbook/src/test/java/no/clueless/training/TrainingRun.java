@@ -0,0 +1,160 @@
+package no.clueless.training;
+
+import no.clueless.guestbook.Application;
+import no.clueless.guestbook.Entry;
+import no.clueless.loadtest.StubMailServer;
+import org.altcha.altcha.Altcha;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Starts the packaged guestbook as a separate process against a temporary database, sends one request to every route
+ * and stops it again, so that the process writes an AppCDS archive of the classes a real start loads. Emails go to a
+ * stub mail server rather than Resend. The driver is kept out of the jar, so it needs the test classes on its classpath:
+ * <pre>
+ * java -cp guestbook.jar:target/test-classes no.clueless.training.TrainingRun jar=guestbook.jar archive=guestbook.jsa
+ * </pre>
+ * Options are given as {@code key=value} arguments:
+ * <ul>
+ *     <li>{@code jar}: the shaded jar (default target/guestbook-1.0-SNAPSHOT.jar).</li>
+ *     <li>{@code archive}: the AppCDS archive to write (default target/guestbook.jsa).</li>
+ *     <li>{@code timeout}: seconds to wait for the guestbook to start (default 30).</li>
+ * </ul>
+ */
+public class TrainingRun {
+    private static final String REFERER     = "http://localhost/guestbook.html";
+    private static final String HMAC_KEY    = "training";
+    private static final String ADMIN_TOKEN = "training-run-token-which-is-long-enough";
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        for (var arg : args) {
+            var separator = arg.indexOf('=');
+            if (separator < 1) {
+                throw new IllegalArgumentException("Options must be given as key=value, but got " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        var jar     = Path.of(options.getOrDefault("jar", "target/guestbook-1.0-SNAPSHOT.jar"));
+        var archive = Path.of(options.getOrDefault("archive", "target/guestbook.jsa"));
+        var timeout = Duration.ofSeconds(Long.parseLong(options.getOrDefault("timeout", "30")));
+        var java    = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        if (!Files.isRegularFile(jar)) {
+            throw new IllegalStateException(jar + " does not exist, build it with mvn package first");
+        }
+
+        var databaseDirectory = Files.createTempDirectory("guestbook-training");
+        try (var mailServer = new StubMailServer(Duration.ZERO);
+             var httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(100)).build()) {
+            var port           = freePort();
+            var processBuilder = new ProcessBuilder(java, "-XX:ArchiveClassesAtExit=" + archive, "-jar", jar.toString()).inheritIO();
+            var environment    = processBuilder.environment();
+            environment.put("SERVER_PORT", String.valueOf(port));
+            environment.put("CONNECTION_STRING", "jdbc:sqlite:" + databaseDirectory.resolve("guestbook.db"));
+            environment.put("ALTCHA_HMAC_KEY", HMAC_KEY);
+            environment.put("SENDER_EMAIL_ADDRESS", "guestbook@localhost");
+            environment.put("RECIPIENT_EMAIL_ADDRESS", "owner@localhost");
+            environment.put("RESEND_API_KEY", "training");
+            environment.put("RESEND_ENDPOINT", mailServer.endpoint().toString());
+            environment.put("ALLOWED_ORIGIN", "http://localhost");
+            environment.put("ALLOWED_REFERRERS", REFERER);
+            environment.put("MAXIMUM_SUBMISSIONS_PER_USER_PER_MINUTE", "10");
+            environment.put("ADMIN_TOKEN", ADMIN_TOKEN);
+
+            var process = processBuilder.start();
+            try {
+                var baseUri = "http://localhost:" + port;
+                awaitStart(httpClient, process, baseUri, timeout);
+                train(httpClient, baseUri);
+            } finally {
+                // The archive is written while the process exits after the shutdown hook has run.
+                process.destroy();
+                process.waitFor();
+            }
+            if (!Files.isRegularFile(archive)) {
+                throw new IllegalStateException("The guestbook exited without writing " + archive);
+            }
+            System.out.printf("Wrote %s after %d email(s) to the stub mail server%n", archive, mailServer.receivedEmails());
+        } finally {
+            try (var paths = Files.walk(databaseDirectory)) {
+                for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    private static void awaitStart(HttpClient httpClient, Process process, String baseUri, Duration timeout) throws IOException, InterruptedException {
+        var request   = HttpRequest.newBuilder(URI.create(baseUri + "/entries")).header("Referer", REFERER).timeout(Duration.ofSeconds(1)).GET().build();
+        var startedAt = System.nanoTime();
+        while (System.nanoTime() - startedAt < timeout.toNanos()) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("The guestbook exited with " + process.exitValue());
+            }
+            try {
+                if (httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet.
+            }
+            Thread.sleep(5);
+        }
+        throw new IllegalStateException("The guestbook did not answer within " + timeout);
+    }
+
+    private static void train(HttpClient httpClient, String baseUri) throws Exception {
+        var jsonMapper = Application.createJsonMapper();
+        var challenge  = jsonMapper.readValue(send(httpClient, HttpRequest.newBuilder(URI.create(baseUri + "/altcha")).header("Referer", REFERER).GET()), Altcha.Challenge.class);
+        var solution   = Altcha.solveChallenge(challenge.challenge, challenge.salt, Altcha.Algorithm.SHA256, challenge.maxnumber, 0);
+        var altcha     = Base64.getEncoder().encodeToString(jsonMapper.writeValueAsBytes(Map.of(
+                "algorithm", challenge.algorithm,
+                "challenge", challenge.challenge,
+                "number", solution.number,
+                "salt", challenge.salt,
+                "signature", challenge.signature
+        )));
+
+        var created = jsonMapper.readValue(send(httpClient, HttpRequest.newBuilder(URI.create(baseUri + "/entries"))
+                .header("Referer", REFERER)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(jsonMapper.writeValueAsString(Map.of("name", "Trainer", "message", "Hello <b>world</b>", "altcha", altcha))))), Entry.class);
+        send(httpClient, admin(baseUri + "/admin/entries/pending").GET());
+        send(httpClient, admin(baseUri + "/admin/entries/approve").POST(HttpRequest.BodyPublishers.ofString("{\"ids\":[" + created.getId() + "]}")));
+        send(httpClient, admin(baseUri + "/admin/entries/export").header("Accept-Encoding", "gzip").GET());
+        send(httpClient, HttpRequest.newBuilder(URI.create(baseUri + "/entries")).header("Referer", REFERER).header("Accept-Encoding", "gzip").GET());
+        send(httpClient, HttpRequest.newBuilder(URI.create(baseUri + "/entries?after=" + created.getId())).header("Referer", REFERER).GET());
+        send(httpClient, HttpRequest.newBuilder(URI.create(baseUri + "/entries/search?q=hello")).header("Referer", REFERER).GET());
+    }
+
+    private static HttpRequest.Builder admin(String uri) {
+        return HttpRequest.newBuilder(URI.create(uri)).header("Authorization", "Bearer " + ADMIN_TOKEN);
+    }
+
+    private static byte[] send(HttpClient httpClient, HttpRequest.Builder request) throws IOException, InterruptedException {
+        var response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException(response.request().method() + " " + response.request().uri() + " failed with " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    private static int freePort() throws IOException {
+        try (var serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+}